@@ -0,0 +1,446 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.IOUtils;
+import org.jdom2.Document;
+import org.jdom2.JDOMException;
+import org.jdom2.output.XMLOutputter;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleException;
+
+/**
+ * Persistent cache of canonical outputs in a directory
+ *
+ * Entries are addressed by a hash of the input and of the configuration of
+ * the canonicalizer, so a cache can be shared by canonicalizers with different
+ * configurations and entries of a changed configuration are never used. The
+ * outputs are stored compressed, one file per entry, large entries are read
+ * through memory mapping. Entries are written to temporary files first and
+ * moved to their place when complete, so the cache can be used by any number
+ * of threads and processes at once. When the entries exceed the size budget,
+ * the least recently used ones are deleted.
+ *
+ * The cache does not notice changes of the canonicalizer implementation, it
+ * should be cleared when the canonicalizer is upgraded.
+ *
+ * @author David Formanek
+ */
+public final class CanonicalizationCache {
+
+    private static final Logger LOGGER = Logger.getLogger(CanonicalizationCache.class.getName());
+    // changed when the format of the entries changes
+    private static final String FORMAT = "1";
+    private static final String ENTRY_SUFFIX = ".gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    // temporary files older than this are left over by failed writes
+    private static final long TEMPORARY_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+    // share of the size budget the garbage collection shrinks the entries to
+    private static final double COLLECTED_SIZE_RATIO = 0.9;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // smaller entries are read, mapping them costs more than reading
+    private static final long MAPPED_MIN_SIZE = 64 * 1024;
+
+    // readers of cached outputs, created only once per thread
+    private static final ThreadLocal<XMLReader> READERS = new ThreadLocal<XMLReader>() {
+        @Override
+        protected XMLReader initialValue() {
+            try {
+                return Settings.saxParserFactory().newSAXParser().getXMLReader();
+            } catch (ParserConfigurationException | SAXException ex) {
+                throw new ConfigError("cannot create reader of cached outputs", ex);
+            }
+        }
+    };
+
+    private final Path directory;
+    private final long maxSize;
+    // approximate size of the entries, corrected by each garbage collection
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicBoolean collecting = new AtomicBoolean();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Opens the cache in the directory, the directory is created if it does
+     * not exist.
+     *
+     * @param directory directory of the cache entries
+     * @param maxSize size budget of the entries in bytes
+     * @throws IOException when the directory cannot be created or read
+     */
+    public CanonicalizationCache(final Path directory, final long maxSize) throws IOException {
+        if (directory == null) {
+            throw new NullPointerException("directory");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+        collectGarbage();
+    }
+
+    /**
+     * Canonicalize an input MathML stream, the output is taken from the cache
+     * if present.
+     *
+     * @param canonicalizer canonicalizer used on a cache miss
+     * @param in input stream to be canonicalized
+     * @param out canonical output stream of input
+     * @see MathMLCanonicalizer#canonicalize(InputStream, OutputStream)
+     */
+    public void canonicalize(final MathMLCanonicalizer canonicalizer, final InputStream in,
+            final OutputStream out) throws JDOMException, IOException, ModuleException, XMLStreamException {
+        if (canonicalizer == null) {
+            throw new NullPointerException("canonicalizer");
+        }
+        if (in == null) {
+            throw new NullPointerException("in");
+        }
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+        final byte[] input = IOUtils.toByteArray(in);
+        final Path entry = getEntry(canonicalizer, "document", input);
+        byte[] output = load(entry);
+        if (output == null) {
+            final ByteArrayOutputStream canonicalized = new ByteArrayOutputStream();
+            canonicalizer.canonicalize(new ByteArrayInputStream(input), canonicalized);
+            output = canonicalized.toByteArray();
+            store(entry, output);
+        }
+        out.write(output);
+    }
+
+    /**
+     * Canonicalize only the {@code <math>} elements of an input document into
+     * a tree built by the content handler, the canonicalized elements are
+     * taken from the cache if present.
+     *
+     * @param canonicalizer canonicalizer used on a cache miss
+     * @param in input stream to be canonicalized
+     * @param handler handler building the document with canonicalized
+     * {@code <math>} elements
+     * @throws SAXException when the handler fails
+     * @see MathMLCanonicalizer#canonicalizeMath(InputStream, ContentHandler)
+     */
+    public void canonicalizeMath(final MathMLCanonicalizer canonicalizer, final InputStream in,
+            final ContentHandler handler)
+            throws ModuleException, IOException, XMLStreamException, JDOMException, SAXException {
+        if (canonicalizer == null) {
+            throw new NullPointerException("canonicalizer");
+        }
+        if (in == null) {
+            throw new NullPointerException("Input stream is null");
+        }
+        if (handler == null) {
+            throw new NullPointerException("handler");
+        }
+        final byte[] input = IOUtils.toByteArray(in);
+        final Path entry = getEntry(canonicalizer, "math", input);
+        byte[] output = load(entry);
+        if (output == null) {
+            final Document document = canonicalizer.canonicalizeMath(new ByteArrayInputStream(input), false);
+            output = new XMLOutputter().outputString(document.getRootElement()).getBytes(StandardCharsets.UTF_8);
+            store(entry, output);
+        }
+        // hits and misses are passed to the handler in the same way
+        final XMLReader reader = READERS.get();
+        reader.setContentHandler(handler);
+        try {
+            reader.parse(new InputSource(new ByteArrayInputStream(output)));
+        } finally {
+            reader.setContentHandler(null);
+        }
+    }
+
+    /**
+     * @return number of the outputs taken from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of the outputs canonicalized and added to the cache
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return approximate size of the entries in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Deletes the least recently used entries until the entries fit into the
+     * size budget, also deletes the temporary files left over by failed
+     * writes.
+     *
+     * @return size of the remaining entries in bytes
+     * @throws IOException when the directory cannot be read
+     */
+    public long collectGarbage() throws IOException {
+        final List<CachedFile> entries = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(ENTRY_SUFFIX)) {
+                    entries.add(new CachedFile(file, attributes));
+                } else if (name.endsWith(TEMPORARY_SUFFIX)
+                        && now - attributes.lastModifiedTime().toMillis() > TEMPORARY_MAX_AGE) {
+                    delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                // deleted meanwhile
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        long total = 0;
+        for (CachedFile entry : entries) {
+            total += entry.size;
+        }
+        if (total > maxSize) {
+            final long collectedSize = (long) (maxSize * COLLECTED_SIZE_RATIO);
+            Collections.sort(entries, new Comparator<CachedFile>() {
+                @Override
+                public int compare(final CachedFile first, final CachedFile second) {
+                    return Long.compare(first.lastUsed, second.lastUsed);
+                }
+            });
+            int deleted = 0;
+            for (CachedFile entry : entries) {
+                if (total <= collectedSize) {
+                    break;
+                }
+                delete(entry.path);
+                total -= entry.size;
+                deleted++;
+            }
+            LOGGER.log(Level.FINE, "{0} cache entries deleted, {1} bytes kept", new Object[]{deleted, total});
+        }
+        size.set(total);
+        return total;
+    }
+
+    /**
+     * Gets the entry addressed by the input and by the configuration of the
+     * canonicalizer.
+     *
+     * @param variant kind of the output of the input
+     */
+    private Path getEntry(final MathMLCanonicalizer canonicalizer, final String variant, final byte[] input) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new ConfigError("SHA-256 not supported", ex);
+        }
+        digest.update((FORMAT + '\n' + variant + '\n' + canonicalizer.getConfigurationDescription() + '\0')
+                .getBytes(StandardCharsets.UTF_8));
+        final byte[] hash = digest.digest(input);
+        final char[] name = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            name[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            name[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        // first byte of the hash as a subdirectory, so the directories stay small
+        return directory.resolve(new String(name, 0, 2)).resolve(new String(name, 2, name.length - 2) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Loads the output of the entry.
+     *
+     * @return output of the entry or null if there is no such entry
+     */
+    private byte[] load(final Path entry) throws IOException {
+        final byte[] output;
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            final long length = channel.size();
+            final ByteBuffer compressed;
+            if (length >= MAPPED_MIN_SIZE) {
+                compressed = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } else {
+                compressed = ByteBuffer.allocate((int) length);
+                while (compressed.hasRemaining() && channel.read(compressed) >= 0) {
+                    // read the whole entry
+                }
+                compressed.flip();
+            }
+            output = IOUtils.toByteArray(new GZIPInputStream(new ByteBufferInputStream(compressed)));
+        } catch (NoSuchFileException ex) {
+            misses.incrementAndGet();
+            return null;
+        } catch (ZipException | EOFException ex) {
+            LOGGER.log(Level.WARNING, "corrupted cache entry " + entry + " deleted", ex);
+            delete(entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // the time of the last use decides which entries are kept
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINER, "cannot touch cache entry " + entry, ex);
+        }
+        return output;
+    }
+
+    /**
+     * Stores the output to the entry, the output is only logged if it cannot
+     * be stored.
+     */
+    private void store(final Path entry, final byte[] output) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            temporary = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), TEMPORARY_SUFFIX);
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary))) {
+                out.write(output);
+            }
+            final long length = Files.size(temporary);
+            try {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            if (size.addAndGet(length) > maxSize && collecting.compareAndSet(false, true)) {
+                try {
+                    collectGarbage();
+                } finally {
+                    collecting.set(false);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "cannot store cache entry " + entry, ex);
+        } finally {
+            if (temporary != null) {
+                delete(temporary);
+            }
+        }
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINER, "cannot delete " + file, ex);
+        }
+    }
+
+    private static final class CachedFile {
+
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        CachedFile(final Path path, final BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastUsed = attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * Stream of the remaining bytes of a buffer
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
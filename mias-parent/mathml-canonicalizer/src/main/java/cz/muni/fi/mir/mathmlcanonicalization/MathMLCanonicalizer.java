@@ -20,45 +20,84 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
 import org.apache.commons.io.IOUtils;
+import org.jdom2.Attribute;
+import org.jdom2.AttributeType;
+import org.jdom2.Content;
 import org.jdom2.Document;
+import org.jdom2.Element;
 import org.jdom2.JDOMException;
+import org.jdom2.Namespace;
+import org.jdom2.Parent;
+import org.jdom2.ProcessingInstruction;
+import org.jdom2.Text;
 import org.jdom2.input.SAXBuilder;
+import org.jdom2.input.StAXStreamBuilder;
 import org.jdom2.output.XMLOutputter;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 import cz.muni.fi.mir.mathmlcanonicalization.modules.DOMModule;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.DOMPass;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.DOMVisitorModule;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.DocumentCensus;
 import cz.muni.fi.mir.mathmlcanonicalization.modules.Module;
 import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleException;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleSettings;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleTrigger;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.StreamFilterModule;
 import cz.muni.fi.mir.mathmlcanonicalization.modules.StreamModule;
 import cz.muni.fi.mir.mathmlcanonicalization.utils.DTDManipulator;
+import cz.muni.fi.mir.mathmlcanonicalization.utils.XMLStreamCopier;
 
 /**
  * An input class for MathML canonicalization.
  *
+ * Canonicalizer is thread-safe, a single instance can canonicalize documents
+ * in any number of threads at once. The configuration belongs to the
+ * instance, global properties overridden by a configuration file are kept by
+ * the canonicalizer and {@link Settings} are left unchanged. The input is
+ * parsed with the DTD of the canonicalizer, except inside stream modules which
+ * are not stream filters as they parse their input themselves using the global
+ * settings. A module added
+ * while the canonicalizer is in use applies to the documents whose
+ * canonicalization starts afterwards. Properties of the added modules should
+ * not be changed while documents are being canonicalized.
+ *
  * @author David Formanek
  */
 public final class MathMLCanonicalizer {
 
     private static final Logger LOGGER = Logger.getLogger(MathMLCanonicalizer.class.getName());
+    private static final String MATH = "math";
 
-    private List<StreamModule> streamModules = new LinkedList<>();
-    private List<DOMModule> domModules = new LinkedList<>();
-    private boolean enforcingXHTMLPlusMathMLDTD = false;
+    // global properties overridden by the configuration file
+    private final Map<String, String> properties;
+    private volatile Configuration configuration = new Configuration();
+    private volatile boolean enforcingXHTMLPlusMathMLDTD = false;
 
     // TODO: refactoring
     /**
@@ -79,6 +118,7 @@ public final class MathMLCanonicalizer {
      * Initializes canonicalizer with no modules
      */
     public MathMLCanonicalizer() {
+        properties = Collections.emptyMap();
     }
 
     /**
@@ -92,27 +132,84 @@ public final class MathMLCanonicalizer {
         if (xmlConfigurationStream == null) {
             throw new NullPointerException("xmlConfigurationStream is null");
         }
+        final Map<String, String> overridden = new HashMap<>();
         try {
             final ByteArrayOutputStream baos = new ByteArrayOutputStream();
             IOUtils.copy(xmlConfigurationStream, baos);
             validateXMLConfiguration(new ByteArrayInputStream(baos.toByteArray()));
-            loadXMLConfiguration(new ByteArrayInputStream(baos.toByteArray()));
+            loadXMLConfiguration(new ByteArrayInputStream(baos.toByteArray()), overridden);
         } catch (XMLStreamException | IOException ex) {
             LOGGER.log(Level.SEVERE, "cannot load configuration. ", ex);
             throw new ConfigException("cannot load configuration", ex);
         }
+        final String dtd = overridden.get(Settings.XHTMLPlusMATHMLPlusSVGDTD);
+        if (dtd != null && Settings.class.getResource(dtd) == null) {
+            throw new ConfigException("DTD classpath resource '" + dtd + "' does not exist");
+        }
+        properties = Collections.unmodifiableMap(overridden);
+    }
+
+    /**
+     * Gets given global property as seen by this canonicalizer
+     *
+     * @param key property name
+     * @return property value from the configuration file of this
+     * canonicalizer if overridden there, from {@link Settings} otherwise
+     * @throws IllegalArgumentException when property not set
+     */
+    public String getProperty(String key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        final String property = properties.get(key);
+        return property == null ? Settings.getProperty(key) : property;
+    }
+
+    /**
+     * Returns stream of the XHTML plus MathML DTD the input is parsed with,
+     * which is the one from the configuration file if overridden there
+     *
+     * @see Settings#getXHTMLPlusMathMLPlusSVGDTDStream()
+     */
+    public InputStream getXHTMLPlusMathMLPlusSVGDTDStream() {
+        return Settings.getDTDStream(getProperty(Settings.XHTMLPlusMATHMLPlusSVGDTD));
+    }
+
+    /**
+     * Describes the configuration the canonical output depends on: global
+     * properties, DTD injection and the modules with their properties in
+     * order of execution. Canonicalizers with the same description produce
+     * the same output from the same input, so the description can key caches
+     * of canonicalized or further processed formulae. The description is
+     * created again only when the configuration changes.
+     *
+     * @return description of the current configuration
+     */
+    public String getConfigurationDescription() {
+        final Configuration config = configuration;
+        final boolean enforcingDTD = enforcingXHTMLPlusMathMLDTD;
+        final long version = Settings.getConfigurationVersion();
+        Description description = config.description;
+        if (description == null || !description.isCurrent(enforcingDTD, version)) {
+            description = new Description(config, enforcingDTD, version);
+            config.description = description;
+        }
+        return description.text;
     }
 
     /**
      * Adds the module to the process of canonicalization
      *
      * StreamModules are called before DOM modules and then in order of
-     * addition. Each module can be added more than once if needed.
+     * addition. Each module can be added more than once if needed. When all
+     * the stream modules are {@link StreamFilterModule}s, their filters are
+     * chained over a single reader of the input and the JDOM representation is
+     * built from the events of the last one.
      *
      * @param module the module to be used in canonicalization
      * @return the canonizer object to allow adding more modules at once
      */
-    public MathMLCanonicalizer addModule(Module module) {
+    public synchronized MathMLCanonicalizer addModule(Module module) {
         if (module == null) {
             throw new NullPointerException("module");
         }
@@ -121,15 +218,49 @@ public final class MathMLCanonicalizer {
                 LOGGER.log(Level.INFO, "Module is stream and DOM module at the"
                         + " same time, it will be used as a stream module.");
             }
-            streamModules.add((StreamModule) module);
-        } else if (module instanceof DOMModule) {
-            domModules.add((DOMModule) module);
-        } else {
+        } else if (!(module instanceof DOMModule)) {
             throw new UnsupportedOperationException("Module type not supported");
         }
+        configuration = configuration.with(module);
         return this;
     }
 
+    /**
+     * Returns how many times the module was executed.
+     *
+     * DOM modules are executed once per document or {@code <math>} element
+     * unless they are skipped. Together with {@link #getSkipCount(Module)} it
+     * helps to tune the configuration.
+     *
+     * @param module module added to this canonicalizer
+     * @return number of executions of the module
+     */
+    public long getExecutionCount(final Module module) {
+        return getCounter(module).executed.get();
+    }
+
+    /**
+     * Returns how many times the module was skipped since its trigger did not
+     * fire on the census of the document or {@code <math>} element.
+     *
+     * @param module module added to this canonicalizer
+     * @return number of skips of the module
+     */
+    public long getSkipCount(final Module module) {
+        return getCounter(module).skipped.get();
+    }
+
+    private ModuleCounter getCounter(final Module module) {
+        if (module == null) {
+            throw new NullPointerException("module");
+        }
+        final ModuleCounter counter = configuration.counters.get(module);
+        if (counter == null) {
+            throw new IllegalArgumentException("Module " + module + " was not added");
+        }
+        return counter;
+    }
+
     /**
      * Adds the module by its class name.
      *
@@ -182,8 +313,10 @@ public final class MathMLCanonicalizer {
 
     /**
      * Loads configuration from XML file, overriding the properties.
+     *
+     * @param overridden filled with the overridden global properties
      */
-    private void loadXMLConfiguration(InputStream xmlConfigurationStream)
+    private void loadXMLConfiguration(InputStream xmlConfigurationStream, Map<String, String> overridden)
             throws ConfigException, XMLStreamException {
         assert xmlConfigurationStream != null;
         final XMLInputFactory inputFactory = Settings.defaultXmlInputFactory();
@@ -237,7 +370,7 @@ public final class MathMLCanonicalizer {
                             if (attributeName.equals("name") && attributeValue != null) {
                                 if (module == null) {
                                     if (Settings.isProperty(attributeValue)) {
-                                        Settings.setProperty(attributeValue, reader.getElementText());
+                                        overridden.put(attributeValue, reader.getElementText());
                                     } else {
                                         throw new ConfigException("configuration not valid\n"
                                                 + "Tried to override non-existing global property "
@@ -292,21 +425,29 @@ public final class MathMLCanonicalizer {
         if (out == null) {
             throw new NullPointerException("out");
         }
-
-        ByteArrayOutputStream streamModulesResult = executeStreamModules(in);
+        final Configuration config = configuration;
 
         // do not create the JDOM representation if there are no modules
-        if (domModules.isEmpty()) {
-            if (streamModules.isEmpty()) {
+        if (config.domModules.isEmpty()) {
+            if (config.streamModules.isEmpty()) {
                 throw new IOException("There are no modules added.");
             }
-            assert streamModulesResult != null; // nonempty streamModules + nothing thrown in for
-            streamModulesResult.writeTo(out);
+            if (config.isFilteringStream()) {
+                try {
+                    XMLStreamCopier.copy(executeStreamFilters(config, in, false), out);
+                } catch (XMLStreamException ex) {
+                    LOGGER.log(Level.SEVERE, "error while parsing the input file. ", ex);
+                    throw new ModuleException("Error while parsing the input file", ex);
+                }
+            } else {
+                executeStreamModules(config, in).writeTo(out);
+            }
             return;
         }
-        final InputStream input = streamModulesResult == null ? in : new ByteArrayInputStream(streamModulesResult.toByteArray());
 
-        final Document document = executeDomModules(input);
+        final Census census = new Census();
+        final Document document = buildDocument(config, in, census);
+        executeDomModules(config, document, census.document);
 
         // convertong the JDOM representation back to stream
         final XMLOutputter serializer = new XMLOutputter();
@@ -323,40 +464,322 @@ public final class MathMLCanonicalizer {
         if (in == null) {
             throw new NullPointerException("Input stream is null");
         }
+        final Configuration config = configuration;
 
-        ByteArrayOutputStream streamModulesResult = executeStreamModules(in);
-        final InputStream input = streamModulesResult == null ? in : new ByteArrayInputStream(streamModulesResult.toByteArray());
+        final Census census = new Census();
+        final Document document = buildDocument(config, in, census);
+        executeDomModules(config, document, census.document);
+        return document;
+    }
 
-        return executeDomModules(input);
+    /**
+     * Canonicalize only the {@code <math>} elements of an input document.
+     *
+     * Stream modules process the whole input, then every {@code <math>}
+     * element is processed by DOM modules as a separate document. The work of
+     * DOM modules depends on the size of the formulae only, not on the size of
+     * the rest of the document.
+     *
+     * @param in input stream to be canonicalized
+     * @param keepingOtherContent if true, the content outside {@code <math>}
+     * elements is kept as processed by stream modules, otherwise it is dropped
+     * while the input is read and the {@code <math>} elements become children
+     * of the root element
+     * @return document with canonicalized {@code <math>} elements
+     */
+    public Document canonicalizeMath(final InputStream in, final boolean keepingOtherContent)
+            throws ModuleException, IOException, XMLStreamException, JDOMException {
+        if (in == null) {
+            throw new NullPointerException("Input stream is null");
+        }
+        return canonicalizeMath(configuration, in, keepingOtherContent);
     }
 
-    private Document executeDomModules(final InputStream input) throws JDOMException, IOException, ModuleException {
-        // creating the JDOM representation from the stream
-        final SAXBuilder builder = Settings.setupSAXBuilder();
-        final Document document = builder.build(input);
+    /**
+     * Canonicalize only the {@code <math>} elements of an input document into
+     * a tree built by the content handler.
+     *
+     * The handler receives the events of the document returned by
+     * {@link #canonicalizeMath(InputStream, boolean)} dropping the content
+     * outside {@code <math>} elements, so it can build any tree representation
+     * (e.g. W3C DOM by {@link javax.xml.transform.sax.TransformerHandler})
+     * with no conversion of the whole JDOM document. When all the stream
+     * modules are {@link StreamFilterModule}s, every {@code <math>} element is
+     * built, canonicalized and passed to the handler while the input is read,
+     * so there is only one formula in JDOM at a time.
+     *
+     * @param in input stream to be canonicalized
+     * @param handler handler building the document with canonicalized
+     * {@code <math>} elements
+     * @throws SAXException when the handler fails
+     */
+    public void canonicalizeMath(final InputStream in, final ContentHandler handler)
+            throws ModuleException, IOException, XMLStreamException, JDOMException, SAXException {
+        if (in == null) {
+            throw new NullPointerException("Input stream is null");
+        }
+        if (handler == null) {
+            throw new NullPointerException("handler");
+        }
+        final Configuration config = configuration;
+        final ContentWriter writer = new ContentWriter(handler);
+        if (config.streamModules.isEmpty() || !config.isFilteringStream()) {
+            handler.startDocument();
+            writer.writeElement(canonicalizeMath(config, in, false).getRootElement());
+            handler.endDocument();
+            return;
+        }
 
-        // calling JDOM modules
-        for (DOMModule module : domModules) {
-            module.execute(document);
+        final Census census = new Census();
+        final List<DOMModuleSetup> setups = setupDomModules(config);
+        final StAXStreamBuilder builder = new StAXStreamBuilder();
+        handler.startDocument();
+        try {
+            final XMLStreamReader reader = new CensusReader(executeStreamFilters(config, in, true), census);
+            // root element if it is not math, written without its content
+            Element root = null;
+            int rootDeclared = 0;
+            // depth of the current element outside math
+            int depth = 0;
+            int event = reader.next();
+            while (true) {
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (reader.getLocalName().equals(MATH)) {
+                        final DocumentCensus formula = depth == 0 ? census.document
+                                : census.formulae.get(census.formulae.size() - 1);
+                        // the builder reads the element and moves to the event after its end
+                        final Document fragment = new Document((Element) builder.fragment(reader));
+                        DOMPass.execute(selectPasses(setups, formula), fragment);
+                        writer.writeElement(fragment.getRootElement());
+                        event = reader.getEventType();
+                        continue;
+                    } else {
+                        if (depth == 0) {
+                            root = createElement(reader);
+                            rootDeclared = writer.startElement(root);
+                        }
+                        depth++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    if (depth == 0) {
+                        writer.endElement(root, rootDeclared);
+                    }
+                }
+                if (!reader.hasNext()) {
+                    break;
+                }
+                event = reader.next();
+            }
+        } catch (XMLStreamException | JDOMException ex) {
+            LOGGER.log(Level.SEVERE, "error while parsing the input file. ", ex);
+            throw new ModuleException("Error while parsing the input file", ex);
+        }
+        handler.endDocument();
+    }
+
+    /**
+     * Creates element of the current start element event of the reader with
+     * its attributes and namespace declarations, but with no content.
+     */
+    private static Element createElement(final XMLStreamReader reader) {
+        final Element element = new Element(reader.getLocalName(),
+                Namespace.getNamespace(reader.getPrefix(), reader.getNamespaceURI()));
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            element.addNamespaceDeclaration(
+                    Namespace.getNamespace(reader.getNamespacePrefix(i), reader.getNamespaceURI(i)));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttribute(new Attribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i),
+                    AttributeType.getAttributeType(reader.getAttributeType(i)),
+                    Namespace.getNamespace(reader.getAttributePrefix(i), reader.getAttributeNamespace(i))));
+        }
+        return element;
+    }
+
+    private Document canonicalizeMath(final Configuration config, final InputStream in,
+            final boolean keepingOtherContent)
+            throws ModuleException, IOException, XMLStreamException, JDOMException {
+        final Census census = new Census();
+        final Document document;
+        if (!keepingOtherContent && !config.streamModules.isEmpty() && config.isFilteringStream()) {
+            try {
+                document = new StAXStreamBuilder().build(
+                        new MathOnlyReader(new CensusReader(executeStreamFilters(config, in, true), census)));
+            } catch (XMLStreamException | JDOMException ex) {
+                LOGGER.log(Level.SEVERE, "error while parsing the input file. ", ex);
+                throw new ModuleException("Error while parsing the input file", ex);
+            }
+        } else {
+            document = buildDocument(config, in, census);
+        }
+
+        final Element root = document.getRootElement();
+        if (root.getName().equals(MATH)) {
+            executeDomModules(config, document, census.document);
+            return document;
+        }
+        final List<Element> formulae = new ArrayList<>();
+        collectMath(root, formulae);
+        if (!keepingOtherContent) {
+            root.removeContent();
+        }
+        final List<DOMModuleSetup> setups = setupDomModules(config);
+        final boolean counted = census.formulae.size() == formulae.size();
+        for (int i = 0; i < formulae.size(); i++) {
+            final Element math = formulae.get(i);
+            final Parent parent = keepingOtherContent ? math.getParent() : root;
+            final int index = keepingOtherContent ? parent.indexOf(math) : parent.getContentSize();
+            final Document fragment = new Document(math.detach());
+            DOMPass.execute(selectPasses(setups, counted ? census.formulae.get(i) : null), fragment);
+            parent.addContent(index, fragment.detachRootElement());
         }
         return document;
     }
 
+    private static void collectMath(final Element element, final List<Element> formulae) {
+        for (Element child : element.getChildren()) {
+            if (child.getName().equals(MATH)) {
+                formulae.add(child);
+            } else {
+                collectMath(child, formulae);
+            }
+        }
+    }
+
+    /**
+     * Builds the JDOM representation of the input.
+     *
+     * @param census filled with the census of the document when it is built
+     * from the events of stream filters, left empty otherwise
+     */
+    private Document buildDocument(final Configuration config, final InputStream in, final Census census)
+            throws JDOMException, IOException, ModuleException, XMLStreamException {
+        // creating the JDOM representation from the stream
+        if (config.streamModules.isEmpty()) {
+            return Settings.setupSAXBuilder(getProperty(Settings.XHTMLPlusMATHMLPlusSVGDTD)).build(in);
+        }
+        if (config.isFilteringStream()) {
+            try {
+                return new StAXStreamBuilder().build(new CensusReader(executeStreamFilters(config, in, true), census));
+            } catch (XMLStreamException | JDOMException ex) {
+                LOGGER.log(Level.SEVERE, "error while parsing the input file. ", ex);
+                throw new ModuleException("Error while parsing the input file", ex);
+            }
+        }
+        final SAXBuilder builder = Settings.setupSAXBuilder(getProperty(Settings.XHTMLPlusMATHMLPlusSVGDTD));
+        return builder.build(new ByteArrayInputStream(executeStreamModules(config, in).toByteArray()));
+    }
+
+    private void executeDomModules(final Configuration config, final Document document,
+            final DocumentCensus census)
+            throws ModuleException {
+        DOMPass.execute(selectPasses(setupDomModules(config), census), document);
+    }
+
+    /**
+     * Returns passes and triggers of all DOM modules. They are set up on the
+     * first use and again only when properties of some module change.
+     */
+    private static List<DOMModuleSetup> setupDomModules(final Configuration config) {
+        List<DOMModuleSetup> setups = config.setups;
+        if (setups != null && isCurrent(setups)) {
+            return setups;
+        }
+        setups = new ArrayList<>(config.domModules.size());
+        for (DOMModule module : config.domModules) {
+            final ModuleSettings settings = module.getSettings();
+            final List<DOMPass> passes;
+            if (module instanceof DOMVisitorModule) {
+                passes = ((DOMVisitorModule) module).getPasses();
+            } else {
+                passes = Collections.singletonList(DOMPass.ofDocument(module::execute));
+            }
+            setups.add(new DOMModuleSetup(module, config.counters.get(module), settings, passes,
+                    module.getTrigger()));
+        }
+        setups = Collections.unmodifiableList(setups);
+        config.setups = setups;
+        return setups;
+    }
+
+    private static boolean isCurrent(final List<DOMModuleSetup> setups) {
+        for (DOMModuleSetup setup : setups) {
+            if (setup.module.getSettings() != setup.settings) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns passes of the DOM modules to be executed in their order, so the
+     * element passes of consecutive modules are run in a single traversal of
+     * the document. Modules whose triggers do not fire are skipped, the census
+     * is extended by what the preceding executed modules can add.
+     *
+     * @param census census of the document or {@code null} if not known, then
+     * no module is skipped
+     */
+    private static List<DOMPass> selectPasses(final List<DOMModuleSetup> setups, final DocumentCensus census) {
+        final DocumentCensus current = census == null ? null : new DocumentCensus(census);
+        final List<DOMPass> passes = new ArrayList<>();
+        for (DOMModuleSetup setup : setups) {
+            if (current != null) {
+                if (!setup.trigger.isFired(current)) {
+                    LOGGER.log(Level.FINER, "Module {0} skipped", setup.module);
+                    setup.counter.skipped.incrementAndGet();
+                    continue;
+                }
+                current.addAll(setup.trigger.getProduced());
+            }
+            setup.counter.executed.incrementAndGet();
+            passes.addAll(setup.passes);
+        }
+        return passes;
+    }
+
+    /**
+     * Returns reader of the input filtered by all stream modules.
+     *
+     * @param building the events are used for building a document, so they
+     * are presented as if the filtered document were serialized and parsed
+     * again
+     */
+    private XMLStreamReader executeStreamFilters(final Configuration config, final InputStream in,
+            final boolean building)
+            throws ModuleException, XMLStreamException {
+        assert !config.streamModules.isEmpty();
+        final XMLInputFactory inputFactory = Settings.setupXMLInputFactory(getProperty(Settings.XHTMLPlusMATHMLPlusSVGDTD));
+        final XMLStreamReader input = inputFactory.createXMLStreamReader(injectDtdsIfNecessary(in));
+
+        XMLStreamReader reader = input;
+        for (StreamModule module : config.streamModules) {
+            reader = ((StreamFilterModule) module).filter(reader);
+            config.counters.get(module).executed.incrementAndGet();
+        }
+
+        if (enforcingXHTMLPlusMathMLDTD) {
+            return inputFactory.createFilteredReader(reader, r -> r.getEventType() != XMLStreamConstants.DTD);
+        }
+        return building ? new ReparsedReader(reader, input) : reader;
+    }
+
     /**
      * Returns result of stream modules execution or null if stream modules are
      * not defined.
      */
-    private ByteArrayOutputStream executeStreamModules(final InputStream in)
+    private ByteArrayOutputStream executeStreamModules(final Configuration config, final InputStream in)
             throws ModuleException, IOException, XMLStreamException {
 
-        if (streamModules.isEmpty()) {
+        if (config.streamModules.isEmpty()) {
             return null;
         }
 
         ByteArrayOutputStream outputStream = null;
 
         // calling stream modules
-        for (StreamModule module : streamModules) {
+        for (StreamModule module : config.streamModules) {
             InputStream inputStream = outputStream == null
                     ? injectDtdsIfNecessary(in)
                     : new ByteArrayInputStream(outputStream.toByteArray());
@@ -365,6 +788,7 @@ public final class MathMLCanonicalizer {
             if (outputStream == null) {
                 throw new IOException("Module " + module + " returned null");
             }
+            config.counters.get(module).executed.incrementAndGet();
         }
 
         return removeDtdsIfNecessary(outputStream);
@@ -419,4 +843,490 @@ public final class MathMLCanonicalizer {
 
     }
 
+    private static final class ModuleCounter {
+
+        private final AtomicLong executed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+    }
+
+    /**
+     * Passes and trigger of a DOM module set up according to its settings.
+     */
+    private static final class DOMModuleSetup {
+
+        private final DOMModule module;
+        private final ModuleCounter counter;
+        private final ModuleSettings settings;
+        private final List<DOMPass> passes;
+        private final ModuleTrigger trigger;
+
+        DOMModuleSetup(final DOMModule module, final ModuleCounter counter, final ModuleSettings settings,
+                final List<DOMPass> passes, final ModuleTrigger trigger) {
+            this.module = module;
+            this.counter = counter;
+            this.settings = settings;
+            this.passes = passes;
+            this.trigger = trigger;
+        }
+    }
+
+    /**
+     * Modules of a canonicalizer. Configuration is never changed, adding a
+     * module replaces it by a new one, so every canonicalization uses the
+     * same modules from its start to its end.
+     */
+    private static final class Configuration {
+
+        private final List<StreamModule> streamModules;
+        private final List<DOMModule> domModules;
+        private final Map<Module, ModuleCounter> counters;
+        // set up on the first use, see setupDomModules
+        private volatile List<DOMModuleSetup> setups = null;
+        // created on the first use, see getConfigurationDescription
+        private volatile Description description = null;
+
+        Configuration() {
+            this(Collections.<StreamModule>emptyList(), Collections.<DOMModule>emptyList(),
+                    new IdentityHashMap<Module, ModuleCounter>());
+        }
+
+        private Configuration(final List<StreamModule> streamModules, final List<DOMModule> domModules,
+                final Map<Module, ModuleCounter> counters) {
+            this.streamModules = streamModules;
+            this.domModules = domModules;
+            this.counters = counters;
+        }
+
+        /**
+         * Returns configuration with the module added after the modules of
+         * its type, counters of the modules are kept.
+         */
+        Configuration with(final Module module) {
+            final List<StreamModule> stream = new ArrayList<>(streamModules);
+            final List<DOMModule> dom = new ArrayList<>(domModules);
+            if (module instanceof StreamModule) {
+                stream.add((StreamModule) module);
+            } else {
+                dom.add((DOMModule) module);
+            }
+            final Map<Module, ModuleCounter> moduleCounters = new IdentityHashMap<>(counters);
+            moduleCounters.putIfAbsent(module, new ModuleCounter());
+            return new Configuration(Collections.unmodifiableList(stream), Collections.unmodifiableList(dom),
+                    moduleCounters);
+        }
+
+        /**
+         * Tests whether all the stream modules can be chained as filters.
+         */
+        boolean isFilteringStream() {
+            for (StreamModule module : streamModules) {
+                if (!(module instanceof StreamFilterModule)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Census of a document and of its outermost {@code <math>} elements in
+     * document order.
+     */
+    private static final class Census {
+
+        private DocumentCensus document = null;
+        private final List<DocumentCensus> formulae = new ArrayList<>();
+    }
+
+    /**
+     * Writer of elements to a content handler. Namespaces are declared where
+     * they come into scope, comments are dropped since content handlers
+     * cannot receive them.
+     */
+    private static final class ContentWriter {
+
+        private final ContentHandler handler;
+        // reused for the attributes of all elements
+        private final AttributesImpl attributes = new AttributesImpl();
+        // namespaces in scope of the current element, the innermost last
+        private final List<Namespace> scope = new ArrayList<>();
+
+        ContentWriter(final ContentHandler handler) {
+            this.handler = handler;
+            scope.add(Namespace.NO_NAMESPACE);
+            scope.add(Namespace.XML_NAMESPACE);
+        }
+
+        void writeElement(final Element element) throws SAXException {
+            final int declared = startElement(element);
+            for (Content content : element.getContent()) {
+                switch (content.getCType()) {
+                    case Element: {
+                        writeElement((Element) content);
+                        break;
+                    }
+                    case Text:
+                    case CDATA: {
+                        final String text = ((Text) content).getText();
+                        handler.characters(text.toCharArray(), 0, text.length());
+                        break;
+                    }
+                    case ProcessingInstruction: {
+                        final ProcessingInstruction instruction = (ProcessingInstruction) content;
+                        handler.processingInstruction(instruction.getTarget(), instruction.getData());
+                        break;
+                    }
+                    default: {
+                        break;
+                    }
+                }
+            }
+            endElement(element, declared);
+        }
+
+        /**
+         * Writes start of the element.
+         *
+         * @return number of the namespaces declared by the element
+         */
+        int startElement(final Element element) throws SAXException {
+            final int size = scope.size();
+            declare(element.getNamespace());
+            if (element.hasAdditionalNamespaces()) {
+                for (Namespace namespace : element.getAdditionalNamespaces()) {
+                    declare(namespace);
+                }
+            }
+            attributes.clear();
+            if (element.hasAttributes()) {
+                for (Attribute attribute : element.getAttributes()) {
+                    // attributes with no prefix are in no namespace, not in the default one
+                    if (!attribute.getNamespacePrefix().isEmpty()) {
+                        declare(attribute.getNamespace());
+                    }
+                    attributes.addAttribute(attribute.getNamespaceURI(), attribute.getName(),
+                            attribute.getQualifiedName(), getType(attribute.getAttributeType()),
+                            attribute.getValue());
+                }
+            }
+            handler.startElement(element.getNamespaceURI(), element.getName(), element.getQualifiedName(),
+                    attributes);
+            return scope.size() - size;
+        }
+
+        void endElement(final Element element, final int declared) throws SAXException {
+            handler.endElement(element.getNamespaceURI(), element.getName(), element.getQualifiedName());
+            for (int i = 0; i < declared; i++) {
+                handler.endPrefixMapping(scope.remove(scope.size() - 1).getPrefix());
+            }
+        }
+
+        private void declare(final Namespace namespace) throws SAXException {
+            for (int i = scope.size() - 1; i >= 0; i--) {
+                if (scope.get(i).getPrefix().equals(namespace.getPrefix())) {
+                    if (scope.get(i).getURI().equals(namespace.getURI())) {
+                        return;
+                    }
+                    break;
+                }
+            }
+            scope.add(namespace);
+            handler.startPrefixMapping(namespace.getPrefix(), namespace.getURI());
+        }
+
+        private static String getType(final AttributeType type) {
+            switch (type) {
+                case UNDECLARED: {
+                    return "CDATA";
+                }
+                case ENUMERATION: {
+                    return "NMTOKEN";
+                }
+                default: {
+                    return type.name();
+                }
+            }
+        }
+    }
+
+    /**
+     * Description of a configuration with the settings it was created from
+     */
+    private final class Description {
+
+        private final boolean enforcingDTD;
+        private final long settingsVersion;
+        private final List<Module> modules = new ArrayList<>();
+        private final List<ModuleSettings> moduleSettings = new ArrayList<>();
+        private final String text;
+
+        Description(final Configuration config, final boolean enforcingDTD, final long settingsVersion) {
+            this.enforcingDTD = enforcingDTD;
+            this.settingsVersion = settingsVersion;
+            modules.addAll(config.streamModules);
+            modules.addAll(config.domModules);
+            final StringBuilder description = new StringBuilder();
+            description.append("dtd=").append(enforcingDTD).append('\n');
+            for (String key : new TreeSet<>(Settings.getPropertyNames())) {
+                description.append(key).append('=').append(getProperty(key)).append('\n');
+            }
+            for (Module module : modules) {
+                final ModuleSettings settings = module.getSettings();
+                moduleSettings.add(settings);
+                description.append(module.getClass().getName()).append('\n');
+                for (String key : new TreeSet<>(settings.getPropertyNames())) {
+                    description.append('\t').append(key).append('=').append(settings.getProperty(key))
+                            .append('\n');
+                }
+            }
+            text = description.toString();
+        }
+
+        boolean isCurrent(final boolean enforcing, final long version) {
+            if (enforcing != enforcingDTD || version != settingsVersion) {
+                return false;
+            }
+            for (int i = 0; i < modules.size(); i++) {
+                if (modules.get(i).getSettings() != moduleSettings.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reader collecting the census of the events it passes.
+     */
+    private static class CensusReader extends StreamReaderDelegate {
+
+        private final Census census;
+        private final DocumentCensus document = new DocumentCensus();
+        // census of the current outermost math element
+        private DocumentCensus formula = null;
+        // depth in the current outermost math element, 0 outside math
+        private int mathDepth = 0;
+
+        CensusReader(final XMLStreamReader reader, final Census census) {
+            super(reader);
+            this.census = census;
+            census.document = document;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            final int event = super.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    if (mathDepth > 0) {
+                        mathDepth++;
+                    } else if (getLocalName().equals(MATH)) {
+                        formula = new DocumentCensus();
+                        census.formulae.add(formula);
+                        mathDepth = 1;
+                    }
+                    addElement(document);
+                    if (mathDepth > 0) {
+                        addElement(formula);
+                    }
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    if (mathDepth > 0) {
+                        mathDepth--;
+                    }
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE: {
+                    document.addCharacters(getTextCharacters(), getTextStart(), getTextLength());
+                    if (mathDepth > 0) {
+                        formula.addCharacters(getTextCharacters(), getTextStart(), getTextLength());
+                    }
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+            return event;
+        }
+
+        private void addElement(final DocumentCensus target) {
+            target.addElement(getLocalName());
+            for (int i = 0; i < getAttributeCount(); i++) {
+                target.addAttribute(getAttributeLocalName(i));
+                target.addCharacters(getAttributeValue(i));
+            }
+        }
+    }
+
+    /**
+     * Reader skipping everything outside {@code <math>} elements except the
+     * root element.
+     */
+    private static class MathOnlyReader extends StreamReaderDelegate {
+
+        // depth of the current element
+        private int depth = 0;
+        // depth of the current math element, 0 outside math
+        private int mathDepth = 0;
+
+        MathOnlyReader(final XMLStreamReader reader) {
+            super(reader);
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            while (true) {
+                final int event = super.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        depth++;
+                        if (mathDepth == 0 && getLocalName().equals(MATH)) {
+                            mathDepth = depth;
+                        }
+                        if (depth == 1 || mathDepth > 0) {
+                            return event;
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.END_ELEMENT: {
+                        final boolean inMath = mathDepth > 0;
+                        if (mathDepth == depth) {
+                            mathDepth = 0;
+                        }
+                        depth--;
+                        if (depth == 0 || inMath) {
+                            return event;
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.START_DOCUMENT:
+                    case XMLStreamConstants.END_DOCUMENT:
+                    case XMLStreamConstants.DTD: {
+                        return event;
+                    }
+                    default: {
+                        if (mathDepth > 0) {
+                            return event;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reader presenting the events as the parser of their serialization would.
+     * DTD is passed only if it is a document type declaration, some StAX
+     * implementations give just its internal subset. If DTD is passed, the
+     * attributes defaulted by it which were removed by stream filters are
+     * added back.
+     */
+    private static class ReparsedReader extends StreamReaderDelegate {
+
+        private final XMLStreamReader input;
+        private boolean dtd = false;
+        // indexes of the added attributes in the input
+        private final List<Integer> defaulted = new ArrayList<>();
+
+        ReparsedReader(final XMLStreamReader reader, final XMLStreamReader input) {
+            super(reader);
+            this.input = input;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            if (event == XMLStreamConstants.DTD) {
+                dtd = getText().trim().startsWith("<!DOCTYPE");
+                if (!dtd) {
+                    event = super.next();
+                }
+            }
+            defaulted.clear();
+            if (dtd && event == XMLStreamConstants.START_ELEMENT) {
+                // filters do not read ahead, the input is at the same element
+                for (int index = 0; index < input.getAttributeCount(); ++index) {
+                    if (!input.isAttributeSpecified(index) && !isFiltered(input.getAttributeName(index))) {
+                        defaulted.add(index);
+                    }
+                }
+            }
+            return event;
+        }
+
+        private boolean isFiltered(final QName name) {
+            for (int index = 0; index < super.getAttributeCount(); ++index) {
+                if (super.getAttributeName(index).equals(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int getAttributeCount() {
+            return super.getAttributeCount() + defaulted.size();
+        }
+
+        @Override
+        public QName getAttributeName(int index) {
+            final int count = super.getAttributeCount();
+            return index < count ? super.getAttributeName(index) : input.getAttributeName(defaulted.get(index - count));
+        }
+
+        @Override
+        public String getAttributeNamespace(int index) {
+            final int count = super.getAttributeCount();
+            return index < count ? super.getAttributeNamespace(index) : input.getAttributeNamespace(defaulted.get(index - count));
+        }
+
+        @Override
+        public String getAttributeLocalName(int index) {
+            final int count = super.getAttributeCount();
+            return index < count ? super.getAttributeLocalName(index) : input.getAttributeLocalName(defaulted.get(index - count));
+        }
+
+        @Override
+        public String getAttributePrefix(int index) {
+            final int count = super.getAttributeCount();
+            return index < count ? super.getAttributePrefix(index) : input.getAttributePrefix(defaulted.get(index - count));
+        }
+
+        @Override
+        public String getAttributeType(int index) {
+            final int count = super.getAttributeCount();
+            return index < count ? super.getAttributeType(index) : input.getAttributeType(defaulted.get(index - count));
+        }
+
+        @Override
+        public String getAttributeValue(int index) {
+            final int count = super.getAttributeCount();
+            return index < count ? super.getAttributeValue(index) : input.getAttributeValue(defaulted.get(index - count));
+        }
+
+        @Override
+        public boolean isAttributeSpecified(int index) {
+            return index < super.getAttributeCount() && super.isAttributeSpecified(index);
+        }
+
+        @Override
+        public String getAttributeValue(String namespaceURI, String localName) {
+            final String value = super.getAttributeValue(namespaceURI, localName);
+            if (value != null) {
+                return value;
+            }
+            for (int index : defaulted) {
+                if (input.getAttributeLocalName(index).equals(localName)) {
+                    return input.getAttributeValue(index);
+                }
+            }
+            return null;
+        }
+    }
+
 }
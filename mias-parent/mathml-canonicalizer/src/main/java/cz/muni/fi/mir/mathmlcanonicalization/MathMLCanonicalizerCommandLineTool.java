@@ -16,19 +16,33 @@
 package cz.muni.fi.mir.mathmlcanonicalization;
 
 import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleException;
-import java.io.ByteArrayInputStream;
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.util.ArrayList;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
@@ -40,7 +54,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
-import org.apache.commons.io.FileUtils;
 import org.jdom2.JDOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.bootstrap.DOMImplementationRegistry;
@@ -53,11 +66,20 @@ import org.xml.sax.SAXException;
 /**
  * Sample class using the canonizer.
  *
+ * Files and directory trees given as arguments are canonicalized by a single
+ * canonicalizer, by several threads at once if requested. Directories are
+ * walked while the files are canonicalized, so the files need not be listed
+ * in advance. Overwritten files are replaced by their canonical output only
+ * when it is complete.
+ *
  * @author David Formanek
  */
 public final class MathMLCanonicalizerCommandLineTool {
 
+    private static final Logger LOGGER = Logger.getLogger(MathMLCanonicalizerCommandLineTool.class.getName());
     private static final String JARFILE = "mathml-canonicalizer.jar";
+    // suffix of the temporary files with canonical outputs of overwritten files
+    private static final String TEMPORARY_SUFFIX = ".canonicalizing";
 
     // TODO: refactoring
     /**
@@ -70,6 +92,7 @@ public final class MathMLCanonicalizerCommandLineTool {
         options.addOption("c", "config-file", true, "load configuration file");
         options.addOption("d", "inject-xhtml-mathml-svg-dtd", false, "enforce injection of XHTML 1.1 plus MathML 2.0 plus SVG 1.1 DTD reference into input documents");
         options.addOption("w", "overwrite-inputs", false, "overwrite input files by canonical outputs");
+        options.addOption("j", "jobs", true, "number of files canonicalized in parallel (default 1)");
         options.addOption("p", "print-default-config-file", false, "print default configuration that will be used if no config file is supplied");
         options.addOption("h", "help", false, "print help");
 
@@ -82,93 +105,200 @@ public final class MathMLCanonicalizerCommandLineTool {
             System.exit(1);
         }
 
-        InputStream config = null;
-        boolean overwrite = false;
-        boolean dtdInjectionMode = false;
         if (line != null) {
-            if (line.hasOption('c')) {
+            if (line.hasOption('p')) {
+                printDefaultConfig();
+                System.exit(0);
+            }
+
+            if (line.hasOption('h')) {
+                printHelp(options);
+                System.exit(0);
+            }
+
+            int jobs = 1;
+            if (line.hasOption('j')) {
                 try {
-                    config = new FileInputStream(line.getOptionValue('c'));
+                    jobs = Integer.parseInt(line.getOptionValue('j'));
+                } catch (NumberFormatException ex) {
+                    jobs = 0;
+                }
+                if (jobs < 1) {
+                    System.err.println("Number of jobs must be a positive integer");
+                    printHelp(options);
+                    System.exit(1);
+                }
+            }
+
+            final List<String> arguments = Arrays.asList(line.getArgs());
+            if (arguments.isEmpty()) {
+                printHelp(options);
+                System.exit(0);
+            }
+
+            // the configuration is loaded once and the canonicalizer shared by all the jobs
+            final MathMLCanonicalizer canonicalizer;
+            if (line.hasOption('c')) {
+                try (InputStream config = new FileInputStream(line.getOptionValue('c'))) {
+                    canonicalizer = new MathMLCanonicalizer(config);
                 } catch (FileNotFoundException ex) {
-                    Logger.getLogger(MathMLCanonicalizerCommandLineTool.class.getName()).log(Level.SEVERE, null, ex);
+                    LOGGER.log(Level.SEVERE, null, ex);
                     System.exit(2);
+                    return;
                 }
             } else {
-                config = Settings.getStreamFromProperty("defaultConfig");
+                canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
             }
+            canonicalizer.setEnforcingXHTMLPlusMathMLDTD(line.hasOption('d'));
 
-            if (line.hasOption('d')) {
-                dtdInjectionMode = true;
+            final Batch batch = new Batch(canonicalizer, line.hasOption('w'), jobs);
+            for (String arg : arguments) {
+                try {
+                    batch.submitAll(Paths.get(arg));
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, ex.getMessage(), ex);
+                }
             }
-
-            if (line.hasOption('w')) {
-                overwrite = true;
+            batch.finish();
+            if (batch.failed.get() > 0) {
+                System.exit(3);
             }
+        }
+    }
 
-            if (line.hasOption('p')) {
-                printDefaultConfig();
-                System.exit(0);
-            }
+    /**
+     * Files canonicalized by the shared canonicalizer and their statistics
+     */
+    private static final class Batch {
 
-            if (line.hasOption('h')) {
-                printHelp(options);
-                System.exit(0);
+        private final MathMLCanonicalizer canonicalizer;
+        private final boolean overwrite;
+        // null when the files are canonicalized by the calling thread
+        private final ThreadPoolExecutor executor;
+        private final long start = System.nanoTime();
+        private final AtomicLong canonicalized = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        Batch(final MathMLCanonicalizer canonicalizer, final boolean overwrite, final int jobs) {
+            assert canonicalizer != null && jobs > 0;
+            this.canonicalizer = canonicalizer;
+            this.overwrite = overwrite;
+            if (jobs == 1) {
+                executor = null;
+            } else {
+                // the queue is bounded, when it is full the walking thread canonicalizes the file itself
+                executor = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(4 * jobs), new ThreadPoolExecutor.CallerRunsPolicy());
             }
+        }
 
-            final List<String> arguments = Arrays.asList(line.getArgs());
-            if (arguments.size() > 0) {
-                for (String arg : arguments) {
+        /**
+         * Canonicalizes the file or all the files in the directory tree
+         */
+        void submitAll(final Path path) throws IOException {
+            Files.walkFileTree(path, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && !file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                        submit(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                    LOGGER.log(Level.SEVERE, "cannot read " + file, ex);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private void submit(final Path file) {
+            final Runnable job = new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        List<File> files = getFiles(new File(arg));
-                        for (File file : files) {
-                            canonicalize(file, config, dtdInjectionMode, overwrite);
-                        }
-                    } catch (IOException ex) {
-                        Logger.getLogger(MathMLCanonicalizerCommandLineTool.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+                        final long size = Files.size(file);
+                        canonicalize(file);
+                        canonicalized.incrementAndGet();
+                        bytes.addAndGet(size);
+                    } catch (IOException | JDOMException | ModuleException | XMLStreamException ex) {
+                        failed.incrementAndGet();
+                        LOGGER.log(Level.SEVERE, "cannot canonicalize " + file, ex);
                     }
                 }
+            };
+            if (executor == null) {
+                job.run();
             } else {
-                printHelp(options);
-                System.exit(0);
+                executor.execute(job);
             }
         }
-    }
 
-    private static void canonicalize(File file, InputStream config, boolean dtdInjectionMode, boolean overwrite) throws
-            ConfigException, FileNotFoundException, JDOMException, IOException, ModuleException, XMLStreamException {
-        assert file != null; // but config can be null
-        MathMLCanonicalizer mlcan;
-        if (config != null) {
-            mlcan = new MathMLCanonicalizer(config);
-        } else {
-            mlcan = MathMLCanonicalizer.getDefaultCanonicalizer();
+        private void canonicalize(final Path file) throws
+                IOException, JDOMException, ModuleException, XMLStreamException {
+            if (overwrite) {
+                LOGGER.log(Level.FINE, "overwriting the file {0}", file.toAbsolutePath());
+                final Path temporary = file.resolveSibling("." + file.getFileName() + "."
+                        + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+                try {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(file));
+                            OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                        canonicalizer.canonicalize(in, out);
+                    }
+                    replace(temporary, file);
+                } finally {
+                    Files.deleteIfExists(temporary);
+                }
+            } else if (executor == null) {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                    canonicalizer.canonicalize(in, System.out);
+                }
+            } else {
+                // outputs of the jobs are not interleaved, they are printed in order of completion
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                    canonicalizer.canonicalize(in, out);
+                }
+                synchronized (System.out) {
+                    out.writeTo(System.out);
+                    System.out.flush();
+                }
+            }
         }
-        mlcan.setEnforcingXHTMLPlusMathMLDTD(dtdInjectionMode);
 
-        if (overwrite) {
-            Logger.getLogger(MathMLCanonicalizerCommandLineTool.class.getName()).log(Level.INFO, "overwriting the file {0}", file.getAbsolutePath());
-            ByteArrayInputStream source = new ByteArrayInputStream(FileUtils.readFileToByteArray(file));
-
-            mlcan.canonicalize(source, new FileOutputStream(file));
-        } else {
-            mlcan.canonicalize(new FileInputStream(file), System.out);
+        private static void replace(final Path source, final Path target) throws IOException {
+            try {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
         }
-    }
 
-    private static List<File> getFiles(File file) throws IOException {
-        assert file != null;
-        List<File> result = new ArrayList<>();
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) {
-                for (File f : files) {
-                    result.addAll(getFiles(f));
+        /**
+         * Waits for all the submitted files and prints the summary
+         */
+        void finish() {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                        LOGGER.log(Level.INFO, "{0} files canonicalized", canonicalized.get());
+                    }
+                } catch (InterruptedException ex) {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
                 }
             }
-        } else {
-            result.add(file);
+            System.out.flush();
+            final double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            final double megabytes = bytes.get() / (1024.0 * 1024.0);
+            System.err.println(String.format("Canonicalized %d files (%.1f MB) in %.1f s,"
+                    + " %.1f files/s, %.2f MB/s, %d failed", canonicalized.get(), megabytes, seconds,
+                    canonicalized.get() / seconds, megabytes / seconds, failed.get()));
         }
-        return result;
     }
 
     /**
@@ -178,7 +308,7 @@ public final class MathMLCanonicalizerCommandLineTool {
     private static void printHelp(Options options) {
         System.err.println("Usage:");
         System.err.println("\tjava -jar " + JARFILE
-                + " [ -c /path/to/config.xml ] [ -w ] [ -d ]"
+                + " [ -c /path/to/config.xml ] [ -w ] [ -d ] [ -j jobs ]"
                 + " { /path/to/input.xhtml | /path/to/directory [ | ... ] }");
         System.err.println("\tjava -jar " + JARFILE + " -p");
         System.err.println("\tjava -jar " + JARFILE + " -h");
@@ -18,11 +18,19 @@ package cz.muni.fi.mir.mathmlcanonicalization;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
@@ -34,6 +42,8 @@ import org.jdom2.input.sax.XMLReaders;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 
+import cz.muni.fi.mir.mathmlcanonicalization.utils.CompiledDTD;
+
 /**
  * Global settings shared among all instances.
  *
@@ -58,10 +68,20 @@ public class Settings {
     /**
      * Name of the property containing path to the MathML DTD
      */
-    private static final String XHTMLPlusMATHMLPlusSVGDTD = "dtdXHTMLPlusMathMLPlusSVG";
+    static final String XHTMLPlusMATHMLPlusSVGDTD = "dtdXHTMLPlusMathMLPlusSVG";
 
     private static final Properties PROPERTIES = readConfiguration();
 
+    /**
+     * Incremented whenever a global property changes its value
+     */
+    private static final AtomicLong CONFIGURATION_VERSION = new AtomicLong();
+
+    /**
+     * DTDs compiled on the first use, by URL of the original DTD
+     */
+    private static final ConcurrentMap<String, CompiledDTD> COMPILED_DTDS = new ConcurrentHashMap<>();
+
     /**
      * Gets given global property from {@link
      * cz.muni.fi.mir.mathmlcanonicalization.Settings#PROPERTIES_FILENAME}
@@ -94,6 +114,13 @@ public class Settings {
         return PROPERTIES.getProperty(key) != null;
     }
 
+    /**
+     * @return names of all the global properties
+     */
+    static Set<String> getPropertyNames() {
+        return PROPERTIES.stringPropertyNames();
+    }
+
     /**
      * Sets given global property
      *
@@ -107,7 +134,21 @@ public class Settings {
         if (value == null) {
             throw new NullPointerException("value");
         }
-        PROPERTIES.put(key, value);
+        Object previous = PROPERTIES.put(key, value);
+        if (!value.equals(previous)) {
+            CONFIGURATION_VERSION.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets version of the global properties. The version changes every time a
+     * property is set to a different value, so clients caching canonicalized
+     * results can find out their cache is stale.
+     *
+     * @return current configuration version
+     */
+    public static long getConfigurationVersion() {
+        return CONFIGURATION_VERSION.get();
     }
 
     /**
@@ -118,7 +159,20 @@ public class Settings {
      * @return initialized XMLInputFactory instance
      */
     public static XMLInputFactory setupXMLInputFactory() {
-        return xmlFactories.get().getXmlInputFactory();
+        return setupXMLInputFactory(getProperty(XHTMLPlusMATHMLPlusSVGDTD));
+    }
+
+    /**
+     * Sets properties desired for MathML normalization purpose, resolving the
+     * DTDs to the given one instead of the global property
+     *
+     * NB: this method creates factory only once per thread and DTD
+     *
+     * @param dtd classpath resource of the XHTML plus MathML DTD
+     * @return initialized XMLInputFactory instance
+     */
+    static XMLInputFactory setupXMLInputFactory(String dtd) {
+        return xmlFactories.get().getXmlInputFactory(dtd);
     }
 
     /**
@@ -149,6 +203,15 @@ public class Settings {
         return xmlFactories.get().getDocumentBuilderFactory();
     }
 
+    /**
+     * Returns namespace aware SAXParserFactory instance.
+     *
+     * NB: this method creates factory only once per thread
+     */
+    public static SAXParserFactory saxParserFactory() {
+        return xmlFactories.get().getSaxParserFactory();
+    }
+
     /**
      * Returns SchemaFactory instance dedicated to XML W3C Schema.
      *
@@ -164,7 +227,45 @@ public class Settings {
      * NB: this method creates factory only once per thread
      */
     public static SAXBuilder setupSAXBuilder() {
-        return xmlFactories.get().getSaxBuilder();
+        return setupSAXBuilder(getProperty(XHTMLPlusMATHMLPlusSVGDTD));
+    }
+
+    /**
+     * Returns SAXBuilder dedicated for MathML normalization, resolving the DTDs
+     * to the given one instead of the global property
+     *
+     * NB: this method creates factory only once per thread and DTD
+     *
+     * @param dtd classpath resource of the XHTML plus MathML DTD
+     */
+    static SAXBuilder setupSAXBuilder(String dtd) {
+        return xmlFactories.get().getSaxBuilder(dtd);
+    }
+
+    /**
+     * Returns stream of the XHTML 1.1 plus MathML 2.0 plus SVG 1.1 DTD which
+     * defines named entities and default attributes of MathML documents.
+     *
+     * NB: the DTD is resolved from the property on every call, but each DTD is
+     * compiled only once on its first use and shared by all parsers, see
+     * {@link CompiledDTD}
+     */
+    public static InputStream getXHTMLPlusMathMLPlusSVGDTDStream() {
+        return getDTDStream(getProperty(XHTMLPlusMATHMLPlusSVGDTD));
+    }
+
+    /**
+     * Returns stream of the DTD in given classpath resource, compiled only
+     * once on its first use
+     *
+     * @throws ConfigError when the resource does not exist
+     */
+    static InputStream getDTDStream(String resource) {
+        final URL dtd = Settings.class.getResource(resource);
+        if (dtd == null) {
+            throw new ConfigError("DTD classpath resource '" + resource + "' does not exist");
+        }
+        return COMPILED_DTDS.computeIfAbsent(dtd.toExternalForm(), url -> compileDTD(dtd)).openStream();
     }
 
     /**
@@ -214,22 +315,34 @@ public class Settings {
         return result;
     }
 
+    private static CompiledDTD compileDTD(URL dtd) {
+        try {
+            final CompiledDTD compiled = CompiledDTD.compile(dtd);
+            log.log(Level.FINER, "DTD {0} compiled to {1} bytes", new Object[]{dtd, compiled.size()});
+            return compiled;
+        } catch (IOException e) {
+            throw new ConfigError("DTD " + dtd + " could not be compiled", e);
+        }
+    }
+
     // single container for XML factories
     private static class XmlFactories {
 
-        private final SAXBuilder saxBuilder = createSaxBuilder();
-        private final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+        // factories resolving the DTDs, by classpath resource of the DTD
+        private final Map<String, SAXBuilder> saxBuilders = new HashMap<>();
+        private final Map<String, XMLInputFactory> xmlInputFactories = new HashMap<>();
         private final XMLInputFactory defaultXmlInputFactory = XMLInputFactory.newInstance();
         private final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
         private final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        private final SAXParserFactory saxParserFactory = createSaxParserFactory();
         private final SchemaFactory xmlSchemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
 
-        public SAXBuilder getSaxBuilder() {
-            return saxBuilder;
+        public SAXBuilder getSaxBuilder(String dtd) {
+            return saxBuilders.computeIfAbsent(dtd, XmlFactories::createSaxBuilder);
         }
 
-        public XMLInputFactory getXmlInputFactory() {
-            return xmlInputFactory;
+        public XMLInputFactory getXmlInputFactory(String dtd) {
+            return xmlInputFactories.computeIfAbsent(dtd, XmlFactories::createXmlInputFactory);
         }
 
         public XMLInputFactory getDefaultXmlInputFactory() {
@@ -244,11 +357,15 @@ public class Settings {
             return documentBuilderFactory;
         }
 
+        public SAXParserFactory getSaxParserFactory() {
+            return saxParserFactory;
+        }
+
         public SchemaFactory getXmlSchemaFactory() {
             return xmlSchemaFactory;
         }
 
-        private static SAXBuilder createSaxBuilder() {
+        private static SAXBuilder createSaxBuilder(final String dtd) {
             final SAXBuilder builder = new SAXBuilder();
             builder.setXMLReaderFactory(XMLReaders.NONVALIDATING);
             builder.setFeature("http://xml.org/sax/features/validation", false);
@@ -258,10 +375,10 @@ public class Settings {
             builder.setEntityResolver(new EntityResolver() {
                 @Override
                 public InputSource resolveEntity(String publicId, String systemId) {
-                    if (publicId.equalsIgnoreCase("-//W3C//DTD XHTML 1.1 plus MathML 2.0 plus SVG 1.1//EN")
-                            || publicId.equalsIgnoreCase("-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN")
+                    if ("-//W3C//DTD XHTML 1.1 plus MathML 2.0 plus SVG 1.1//EN".equalsIgnoreCase(publicId)
+                            || "-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN".equalsIgnoreCase(publicId)
                             || systemId.endsWith("xhtml-math11-f.dtd")) {
-                        return new InputSource(getStreamFromProperty(XHTMLPlusMATHMLPlusSVGDTD));
+                        return new InputSource(getDTDStream(dtd));
                     }
                     return null;
                 }
@@ -270,7 +387,13 @@ public class Settings {
             return builder;
         }
 
-        private static XMLInputFactory createXmlInputFactory() throws FactoryConfigurationError {
+        private static SAXParserFactory createSaxParserFactory() {
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory;
+        }
+
+        private static XMLInputFactory createXmlInputFactory(final String dtd) throws FactoryConfigurationError {
             final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
             inputFactory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
             inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, true);
@@ -281,7 +404,7 @@ public class Settings {
                 @Override
                 public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) {
                     if (systemID.endsWith("dtd")) {
-                        return getStreamFromProperty(XHTMLPlusMATHMLPlusSVGDTD);
+                        return getDTDStream(dtd);
                     }
                     return null;
                 }
@@ -15,10 +15,8 @@
  */
 package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,7 +31,8 @@ import org.jdom2.Namespace;
  */
 abstract class AbstractModule implements Module {
 
-    protected final Properties properties = new Properties();
+    // replaced as a whole, so that modules can be read by many threads
+    private volatile ModuleSettings settings = ModuleSettings.EMPTY;
     private static final Logger LOGGER = Logger.getLogger(AbstractModule.class.getName());
     protected static final Namespace MATHMLNS = Namespace.getNamespace("http://www.w3.org/1998/Math/MathML");
     // MathML elements
@@ -51,61 +50,74 @@ abstract class AbstractModule implements Module {
 
     @Override
     public String getProperty(String key) {
-        if (key == null) {
-            throw new NullPointerException("key");
-        }
-        final String property = properties.getProperty(key);
-        if (property == null) {
-            throw new IllegalArgumentException("Property '" + key + "' not set");
-        }
-        return property;
+        return settings.getProperty(key);
     }
 
     @Override
     public boolean isProperty(String key) {
-        if (key == null) {
-            throw new NullPointerException("key");
-        }
-        return properties.getProperty(key) != null;
+        return settings.isProperty(key);
     }
 
     @Override
-    public void setProperty(String key, String value) {
+    public synchronized void setProperty(String key, String value) {
         if (key == null) {
             throw new NullPointerException("key");
         }
         if (value == null) {
             throw new NullPointerException("value");
         }
-        properties.setProperty(key, value);
+        settings = settings.with(key, value);
     }
 
-    public void declareProperty(String key) {
-        properties.setProperty(key, "");
+    public synchronized void declareProperty(String key) {
+        settings = settings.with(key, "");
     }
 
     @Override
     public Set<String> getPropertyNames() {
-        return properties.stringPropertyNames();
+        return settings.getPropertyNames();
+    }
+
+    @Override
+    public ModuleSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns trigger which always fires, modules which can tell when they
+     * change a document override it
+     */
+    @Override
+    public ModuleTrigger getTrigger() {
+        return ModuleTrigger.always(DocumentCensus.everything());
     }
 
     protected boolean isEnabled(String key) {
         assert key != null;
-        if (properties.getProperty(key).equals("1")
-                || properties.getProperty(key).equals("true")) {
-            return true;
-        }
-        if (properties.getProperty(key).equals("0")
-                || properties.getProperty(key).equals("false")) {
-            return false;
-        }
-        throw new IllegalArgumentException("'" + properties.getProperty(key)
-                + "' is not a valid boolean value of " + key);
+        return settings.isEnabled(key);
     }
 
     protected Set<String> getPropertySet(final String property) {
         assert property != null && !property.isEmpty();
-        return new HashSet<>(Arrays.asList(getProperty(property).split(" ")));
+        return settings.getPropertySet(property);
+    }
+
+    /**
+     * Returns characters of the values for a trigger condition, texts equal
+     * to some of the values contain at least one of them
+     *
+     * @return characters of the values or {@code null} if some value is empty
+     */
+    protected static String getTriggerCharacters(final Collection<String> values) {
+        assert values != null;
+        final StringBuilder characters = new StringBuilder();
+        for (String value : values) {
+            if (value.isEmpty()) {
+                return null;
+            }
+            characters.append(value);
+        }
+        return characters.toString();
     }
 
     protected boolean isOperator(final Element element, final String operator) {
@@ -117,7 +129,7 @@ abstract class AbstractModule implements Module {
         return element.getName().equals(OPERATOR);
     }
 
-    protected void replaceElement(final Element toReplace, final String replacementName) {
+    protected Element replaceElement(final Element toReplace, final String replacementName) {
         assert toReplace != null && replacementName != null;
         assert !replacementName.isEmpty();
         final Element parent = toReplace.getParentElement();
@@ -134,6 +146,7 @@ abstract class AbstractModule implements Module {
         parent.addContent(parentIndex, replacement);
         LOGGER.log(Level.FINE, "{0} replaced with {1}",
                 new Object[]{toReplace, replacementName});
+        return replacement;
     }
 
 }
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jdom2.Document;
+import org.jdom2.Element;
+
+/**
+ * Pass of a DOM module over the document
+ *
+ * Element passes call their handler on every element of the document, the
+ * children of an element are handled before the element. The handler may
+ * read and change only the element itself (its name, attributes and text)
+ * and the names of its ancestors, which are not handled yet, replace the
+ * element by another one with the same content or remove it. Since handling
+ * of an element does not depend on the handling of other elements,
+ * consecutive element passes, even of different modules, are run in a single
+ * traversal of the document calling the handlers in the order of the passes.
+ *
+ * Document passes process the whole document on their own, they are for
+ * transformations depending on the neighbourhood of the elements.
+ *
+ * @author David Formanek
+ */
+public final class DOMPass {
+
+    /**
+     * Handler of a single element
+     */
+    public interface ElementHandler {
+
+        /**
+         * @param element element to be handled
+         * @return element which replaced the given one in the document, the
+         * given element if not replaced or {@code null} if it was removed
+         */
+        public Element handle(Element element);
+    }
+
+    /**
+     * Handler of the whole document
+     */
+    public interface DocumentHandler {
+
+        /**
+         * @param doc document to be modified
+         * @throws ModuleException when cannot transform the document
+         */
+        public void handle(Document doc) throws ModuleException;
+    }
+
+    private final ElementHandler elementHandler;
+    private final DocumentHandler documentHandler;
+
+    private DOMPass(final ElementHandler elementHandler, final DocumentHandler documentHandler) {
+        this.elementHandler = elementHandler;
+        this.documentHandler = documentHandler;
+    }
+
+    public static DOMPass ofElements(final ElementHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException("handler");
+        }
+        return new DOMPass(handler, null);
+    }
+
+    public static DOMPass ofDocument(final DocumentHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException("handler");
+        }
+        return new DOMPass(null, handler);
+    }
+
+    /**
+     * Runs the passes in their order, consecutive element passes in a single
+     * traversal.
+     *
+     * @param passes passes to be run
+     * @param doc document to be modified
+     * @throws ModuleException when cannot transform the document by a pass
+     */
+    public static void execute(final List<DOMPass> passes, final Document doc) throws ModuleException {
+        if (passes == null) {
+            throw new NullPointerException("passes");
+        }
+        if (doc == null) {
+            throw new NullPointerException("doc");
+        }
+        final List<ElementHandler> handlers = new ArrayList<>();
+        for (DOMPass pass : passes) {
+            if (pass.elementHandler != null) {
+                handlers.add(pass.elementHandler);
+                continue;
+            }
+            if (!handlers.isEmpty()) {
+                traverse(doc.getRootElement(), handlers);
+                handlers.clear();
+            }
+            pass.documentHandler.handle(doc);
+        }
+        if (!handlers.isEmpty()) {
+            traverse(doc.getRootElement(), handlers);
+        }
+    }
+
+    private static void traverse(final Element element, final List<ElementHandler> handlers) {
+        assert element != null && handlers != null;
+        // handlers of the children may replace or remove them
+        for (Element child : new ArrayList<>(element.getChildren())) {
+            traverse(child, handlers);
+        }
+        Element actual = element;
+        for (int i = 0; i < handlers.size() && actual != null; i++) {
+            actual = handlers.get(i).handle(actual);
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import java.util.List;
+
+/**
+ * DOM modules processing the document in passes
+ *
+ * Element passes of several modules are run in a single traversal of the
+ * document, see {@link DOMPass}.
+ *
+ * @author David Formanek
+ */
+public interface DOMVisitorModule extends DOMModule {
+
+    /**
+     * Returns the passes of the canonicalization module
+     *
+     * @return passes in the order of execution, set up according to the
+     * current properties of the module
+     */
+    public List<DOMPass> getPasses();
+
+}
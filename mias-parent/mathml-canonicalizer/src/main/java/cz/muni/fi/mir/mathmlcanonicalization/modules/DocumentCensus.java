@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Element names, attribute names and characters which may occur in a
+ * document
+ *
+ * Names are local names regardless of namespaces, characters are UTF-16 code
+ * units of the texts and attribute values. The census is collected while the
+ * document is read, so the modules which cannot change the document can be
+ * skipped, see {@link ModuleTrigger}.
+ *
+ * @author David Formanek
+ */
+public final class DocumentCensus {
+
+    private final Set<String> elements = new HashSet<>();
+    private final Set<String> attributes = new HashSet<>();
+    private final BitSet characters = new BitSet();
+    private boolean anyElement = false;
+    private boolean anyAttribute = false;
+    private boolean anyCharacter = false;
+
+    /**
+     * Creates census of an empty document
+     */
+    public DocumentCensus() {
+    }
+
+    /**
+     * Creates copy of the census
+     *
+     * @param census census to be copied
+     */
+    public DocumentCensus(final DocumentCensus census) {
+        if (census == null) {
+            throw new NullPointerException("census");
+        }
+        addAll(census);
+    }
+
+    /**
+     * Creates census containing every element name, attribute name and
+     * character
+     *
+     * @return census of any document
+     */
+    public static DocumentCensus everything() {
+        final DocumentCensus census = new DocumentCensus();
+        census.anyElement = true;
+        census.anyAttribute = true;
+        census.anyCharacter = true;
+        return census;
+    }
+
+    /**
+     * Adds every character, when the texts cannot be told in advance
+     *
+     * @return this census
+     */
+    public DocumentCensus addAnyCharacter() {
+        anyCharacter = true;
+        return this;
+    }
+
+    public DocumentCensus addElement(final String name) {
+        elements.add(name);
+        return this;
+    }
+
+    public DocumentCensus addAttribute(final String name) {
+        attributes.add(name);
+        return this;
+    }
+
+    public DocumentCensus addCharacters(final CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            characters.set(text.charAt(i));
+        }
+        return this;
+    }
+
+    public DocumentCensus addCharacters(final char[] text, final int start, final int length) {
+        for (int i = start; i < start + length; i++) {
+            characters.set(text[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Adds all the names and characters of another census
+     *
+     * @param census census to be added
+     * @return this census
+     */
+    public DocumentCensus addAll(final DocumentCensus census) {
+        elements.addAll(census.elements);
+        attributes.addAll(census.attributes);
+        characters.or(census.characters);
+        anyElement |= census.anyElement;
+        anyAttribute |= census.anyAttribute;
+        anyCharacter |= census.anyCharacter;
+        return this;
+    }
+
+    public boolean containsElement(final String name) {
+        return anyElement || elements.contains(name);
+    }
+
+    public boolean containsAttribute(final String name) {
+        return anyAttribute || attributes.contains(name);
+    }
+
+    public boolean containsCharacter(final char character) {
+        return anyCharacter || characters.get(character);
+    }
+
+}
@@ -16,20 +16,18 @@
 package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
 import cz.muni.fi.mir.mathmlcanonicalization.Settings;
+import cz.muni.fi.mir.mathmlcanonicalization.utils.XMLStreamCopier;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
-import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.util.StreamReaderDelegate;
 
 /**
  * Remove useless elements and attributes from MathML.
@@ -50,10 +48,7 @@ import javax.xml.stream.XMLStreamWriter;
  *
  * @author Maros Kucbel
  */
-public class ElementMinimizer extends AbstractModule implements StreamModule {
-
-    private Set<String> removeWithChildren;
-    private Set<String> removeKeepChildren;
+public class ElementMinimizer extends AbstractModule implements StreamFilterModule {
 
     public ElementMinimizer() {
         declareProperty("remove_all");
@@ -74,12 +69,10 @@ public class ElementMinimizer extends AbstractModule implements StreamModule {
         if (input == null) {
             throw new NullPointerException("input");
         }
-        removeWithChildren = getPropertySet("remove_all");
-        removeKeepChildren = getPropertySet("remove");
-
         final ByteArrayOutputStream output = new ByteArrayOutputStream();
         try {
-            minimizeElements(input, output);
+            final XMLStreamReader reader = Settings.setupXMLInputFactory().createXMLStreamReader(input);
+            XMLStreamCopier.copy(filter(reader), output);
         } catch (XMLStreamException ex) {
             Logger.getLogger(this.getClass().getName()).log(
                     Level.SEVERE, "error while parsing the input file. ", ex);
@@ -88,6 +81,14 @@ public class ElementMinimizer extends AbstractModule implements StreamModule {
         return output;
     }
 
+    @Override
+    public XMLStreamReader filter(final XMLStreamReader reader) {
+        if (reader == null) {
+            throw new NullPointerException("reader");
+        }
+        return new MinimizingReader(reader, getPropertySet("remove_all"), getPropertySet("remove"));
+    }
+
     /**
      * Decides which attributes to keep based on keepAttributes properties.
      */
@@ -95,12 +96,17 @@ public class ElementMinimizer extends AbstractModule implements StreamModule {
             final String attributeValue) {
         assert name != null && attributeName != null && attributeValue != null;
         assert !name.isEmpty() && !attributeName.isEmpty();
-        String property = getProperty("keepAttributes");
-        final String elementPropertyName = "keepAttributes." + name;
-        if (isProperty(elementPropertyName)) {
-            property += " " + getProperty(elementPropertyName);
+        final ModuleSettings settings = getSettings();
+        if (isWhitelisted(settings.getPropertySet("keepAttributes"), attributeName, attributeValue)) {
+            return true;
         }
-        final List<String> whitelist = Arrays.asList(property.split(" "));
+        final String elementPropertyName = "keepAttributes." + name;
+        return settings.isProperty(elementPropertyName)
+                && isWhitelisted(settings.getPropertySet(elementPropertyName), attributeName, attributeValue);
+    }
+
+    private static boolean isWhitelisted(final Set<String> whitelist, final String attributeName,
+            final String attributeValue) {
         for (String attribute : whitelist) {
             if (attributeName.equals(attribute)
                     || attribute.contains("=")
@@ -112,110 +118,181 @@ public class ElementMinimizer extends AbstractModule implements StreamModule {
         return false;
     }
 
-    private void minimizeElements(final InputStream input, final OutputStream outputStream)
-            throws XMLStreamException {
-        assert input != null && outputStream != null;
-        // TODO: refactoring
-        // TODO: add logging
-        final XMLInputFactory inputFactory = Settings.setupXMLInputFactory();
-        final XMLOutputFactory outputFactory = Settings.xmlOutputFactory();
-        // stream for reading event from input stream
-        final XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
-        // stream that writes events to given output stream
-        final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(outputStream, "UTF-8");
-        writer.writeStartDocument(reader.getEncoding(), reader.getVersion());
+    /**
+     * Reader skipping the removed elements and attributes, comments,
+     * processing instructions and ignorable white space.
+     */
+    private class MinimizingReader extends StreamReaderDelegate {
+
+        private final Set<String> removeWithChildren;
+        private final Set<String> removeKeepChildren;
         // depth of current branch, used when removing element with all its children
-        int depth = 0;
-        boolean mathElement = false;
-        // check for event
-        while (reader.hasNext()) {
-            // get event code
-            final int event = reader.next();
-            // based on event code choose action
-            switch (event) {
-                case XMLStreamConstants.START_ELEMENT: {
-                    // write this element
-                    // omit if it should be skipped
-                    String name = reader.getLocalName();
-                    if (name.equals(MATH)) {
-                        mathElement = true;
-                    }
-                    if (mathElement) {
-                        if (removeKeepChildren.contains(name)) {
-                            continue;
-                        }
-                        // omit this element if it is marked to skip or is a child
-                        // of such an element
-                        if (removeWithChildren.contains(name)) {
-                            depth++;
+        private int depth = 0;
+        private boolean mathElement = false;
+        // indexes of the kept attributes of the current element
+        private int[] attributes = new int[0];
+
+        MinimizingReader(final XMLStreamReader reader, final Set<String> removeWithChildren,
+                final Set<String> removeKeepChildren) {
+            super(reader);
+            this.removeWithChildren = removeWithChildren;
+            this.removeKeepChildren = removeKeepChildren;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            while (true) {
+                final int event = super.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        // omit if it should be skipped
+                        String name = getLocalName();
+                        if (name.equals(MATH)) {
+                            mathElement = true;
                         }
-                        if (depth > 0) {
-                            continue;
+                        if (mathElement) {
+                            if (removeKeepChildren.contains(name)) {
+                                continue;
+                            }
+                            // omit this element if it is marked to skip or is a child
+                            // of such an element
+                            if (removeWithChildren.contains(name)) {
+                                depth++;
+                            }
+                            if (depth > 0) {
+                                continue;
+                            }
                         }
+                        selectAttributes(name);
+                        return event;
                     }
-                    writer.writeStartElement(reader.getName().getPrefix(), name, reader.getName().getNamespaceURI());
-                    for (int index = 0; index < reader.getAttributeCount(); ++index) {
-                        final String attributeName = reader.getAttributeLocalName(index);
-                        final String attributeValue = reader.getAttributeValue(index);
-                        final String attributePrefix = reader.getAttributePrefix(index);
-                        final String attributeNamespace = reader.getAttributeNamespace(index);
-                        // write only chosen attributes
-                        if (!mathElement || (mathElement && keepAttribute(name, attributeName, attributeValue))) {
-                            if (attributeNamespace == null) {
-                                writer.writeAttribute(attributeName, attributeValue);
-                            } else {
-                                writer.writeAttribute(attributePrefix, attributeNamespace, attributeName, attributeValue);
+                    case XMLStreamConstants.END_ELEMENT: {
+                        if (mathElement) {
+                            String name = getLocalName();
+                            if (name.equals(MATH)) {
+                                mathElement = false;
+                            }
+                            if (removeKeepChildren.contains(name)) {
+                                continue;
+                            }
+                            if (depth > 0) {
+                                if (removeWithChildren.contains(name)) {
+                                    depth--;
+                                }
+                                continue;
                             }
                         }
+                        return event;
                     }
-                    for (int index = 0; index < reader.getNamespaceCount(); ++index) {
-                        writer.writeNamespace(reader.getNamespacePrefix(index), reader.getNamespaceURI(index));
-                    }
-
-                    break;
-                }
-                case XMLStreamConstants.END_ELEMENT: {
-                    if (mathElement) {
-                        String name = reader.getLocalName();
-                        if (name.equals(MATH)) {
-                            mathElement = false;
-                        }
-                        if (removeKeepChildren.contains(name)) {
-                            continue;
-                        }
+                    case XMLStreamConstants.CHARACTERS: {
+                        // warning: white space is counted as CHARACTER event (new line after element)
                         if (depth > 0) {
-                            if (removeWithChildren.contains(name)) {
-                                depth--;
-                            }
                             continue;
                         }
+                        return event;
                     }
-                    writer.writeEndElement();
-                    break;
-                }
-                case XMLStreamConstants.CHARACTERS: {
-                    // warning: white space is counted as CHARACTER event (new line after element)
-                    if (depth > 0) {
-                        continue;
+                    case XMLStreamConstants.END_DOCUMENT:
+                    case XMLStreamConstants.DTD: {
+                        return event;
+                    }
+                    default: {
+                        break;
                     }
-                    writer.writeCharacters(reader.getText());
-                    break;
-                }
-                case XMLStreamConstants.END_DOCUMENT: {
-                    writer.writeEndDocument();
-                    break;
                 }
-                case XMLStreamConstants.DTD: {
-                    writer.writeDTD(reader.getText());
-                    break;
+            }
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException {
+            int event = next();
+            while (event == XMLStreamConstants.CHARACTERS && isWhiteSpace()) {
+                event = next();
+            }
+            if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("expected start or end tag", getLocation());
+            }
+            return event;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException {
+            final StringBuilder text = new StringBuilder();
+            int event = next();
+            while (event == XMLStreamConstants.CHARACTERS) {
+                text.append(getText());
+                event = next();
+            }
+            if (event != XMLStreamConstants.END_ELEMENT) {
+                throw new XMLStreamException("element text expected", getLocation());
+            }
+            return text.toString();
+        }
+
+        private void selectAttributes(final String name) {
+            final int count = super.getAttributeCount();
+            attributes = new int[count];
+            int kept = 0;
+            for (int index = 0; index < count; ++index) {
+                // keep only chosen attributes
+                if (!mathElement || keepAttribute(name, super.getAttributeLocalName(index),
+                        super.getAttributeValue(index))) {
+                    attributes[kept++] = index;
                 }
-                default: {
-                    break;
+            }
+            attributes = Arrays.copyOf(attributes, kept);
+        }
+
+        @Override
+        public int getAttributeCount() {
+            return attributes.length;
+        }
+
+        @Override
+        public QName getAttributeName(int index) {
+            return super.getAttributeName(attributes[index]);
+        }
+
+        @Override
+        public String getAttributeNamespace(int index) {
+            return super.getAttributeNamespace(attributes[index]);
+        }
+
+        @Override
+        public String getAttributeLocalName(int index) {
+            return super.getAttributeLocalName(attributes[index]);
+        }
+
+        @Override
+        public String getAttributePrefix(int index) {
+            return super.getAttributePrefix(attributes[index]);
+        }
+
+        @Override
+        public String getAttributeType(int index) {
+            return super.getAttributeType(attributes[index]);
+        }
+
+        @Override
+        public String getAttributeValue(int index) {
+            return super.getAttributeValue(attributes[index]);
+        }
+
+        @Override
+        public boolean isAttributeSpecified(int index) {
+            return super.isAttributeSpecified(attributes[index]);
+        }
+
+        @Override
+        public String getAttributeValue(String namespaceURI, String localName) {
+            for (int index : attributes) {
+                final String namespace = super.getAttributeNamespace(index);
+                if (super.getAttributeLocalName(index).equals(localName) && (namespaceURI == null
+                        || namespaceURI.equals(namespace == null ? "" : namespace))) {
+                    return super.getAttributeValue(index);
                 }
             }
+            return null;
         }
-        writer.flush();
-        writer.close();
     }
 
 }
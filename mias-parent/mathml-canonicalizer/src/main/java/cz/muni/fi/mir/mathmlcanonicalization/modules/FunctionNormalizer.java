@@ -16,6 +16,7 @@
 package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
 import static cz.muni.fi.mir.mathmlcanonicalization.modules.AbstractModule.MATHMLNS;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Logger;
@@ -47,6 +48,14 @@ public class FunctionNormalizer extends AbstractModule implements DOMModule {
         declareProperty("functionoperators");
     }
 
+    @Override
+    public ModuleTrigger getTrigger() {
+        final DocumentCensus produced = new DocumentCensus()
+                .addElement(ROW).addElement(OPERATOR).addCharacters("()");
+        return new ModuleTrigger(produced).addCondition(Arrays.asList(IDENTIFIER, OPERATOR),
+                getTriggerCharacters(getPropertySet(APPLY_FUNCTION_OPERATORS)));
+    }
+
     @Override
     public void execute(final Document doc) {
         if (doc == null) {
@@ -17,6 +17,7 @@ package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
 import static cz.muni.fi.mir.mathmlcanonicalization.modules.AbstractModule.MATHMLNS;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import org.jdom2.Document;
@@ -86,6 +87,17 @@ public class MfencedReplacer extends AbstractModule implements DOMModule {
         declareProperty(FORCE_DEFAULT_SEPARATORS);
     }
 
+    @Override
+    public ModuleTrigger getTrigger() {
+        // fences and separators given by attributes are in the census already
+        final DocumentCensus produced = new DocumentCensus()
+                .addElement(ROW).addElement(OPERATOR)
+                .addCharacters(getProperty(DEFAULT_OPEN))
+                .addCharacters(getProperty(DEFAULT_CLOSE))
+                .addCharacters(getProperty(DEFAULT_SEPARATORS));
+        return new ModuleTrigger(produced).addCondition(Collections.singletonList(FENCED), null);
+    }
+
     @Override
     public void execute(final Document doc) {
         if (doc == null) {
@@ -56,4 +56,18 @@ public interface Module {
      */
     public Set<String> getPropertyNames();
 
+    /**
+     * Gets the current properties of the module
+     *
+     * @return immutable settings, replaced by new ones when a property is set
+     */
+    public ModuleSettings getSettings();
+
+    /**
+     * Gets the trigger of the module according to the current properties
+     *
+     * @return trigger telling whether the module can change a document
+     */
+    public ModuleTrigger getTrigger();
+
 }
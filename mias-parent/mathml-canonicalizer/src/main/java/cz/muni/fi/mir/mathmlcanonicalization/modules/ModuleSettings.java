@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable properties of a module
+ *
+ * Property values are split into the sets of their space separated items
+ * when the settings are created, so modules do not parse them while
+ * canonicalizing. Settings can be shared among threads, setting a property of
+ * a module replaces its settings by new ones.
+ *
+ * @author David Formanek
+ */
+public final class ModuleSettings {
+
+    static final ModuleSettings EMPTY = new ModuleSettings(Collections.<String, String>emptyMap());
+
+    private final Map<String, String> properties;
+    private final Map<String, Set<String>> propertySets;
+
+    private ModuleSettings(final Map<String, String> properties) {
+        assert properties != null;
+        this.properties = Collections.unmodifiableMap(properties);
+        final Map<String, Set<String>> sets = new HashMap<>();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            sets.put(property.getKey(), Collections.unmodifiableSet(
+                    new HashSet<>(Arrays.asList(property.getValue().split(" ")))));
+        }
+        this.propertySets = Collections.unmodifiableMap(sets);
+    }
+
+    /**
+     * Creates settings with the property set to the value
+     *
+     * @param key property name
+     * @param value property value
+     * @return new settings, these settings are left unchanged
+     */
+    ModuleSettings with(final String key, final String value) {
+        assert key != null && value != null;
+        final Map<String, String> changed = new HashMap<>(properties);
+        changed.put(key, value);
+        return new ModuleSettings(changed);
+    }
+
+    /**
+     * Gets given property
+     *
+     * @param key property name
+     * @return property value (not null)
+     * @throws IllegalArgumentException when property not set
+     */
+    public String getProperty(final String key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        final String property = properties.get(key);
+        if (property == null) {
+            throw new IllegalArgumentException("Property '" + key + "' not set");
+        }
+        return property;
+    }
+
+    /**
+     * Finds out if the property is set
+     *
+     * @param key property name
+     * @return true if property is set, false otherwise
+     */
+    public boolean isProperty(final String key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        return properties.containsKey(key);
+    }
+
+    /**
+     * @return unmodifiable set of the property names
+     */
+    public Set<String> getPropertyNames() {
+        return properties.keySet();
+    }
+
+    /**
+     * Gets given boolean property
+     *
+     * @param key property name
+     * @return true for values 1 and true, false for values 0 and false
+     * @throws IllegalArgumentException when property not set or not boolean
+     */
+    public boolean isEnabled(final String key) {
+        final String property = getProperty(key);
+        if (property.equals("1") || property.equals("true")) {
+            return true;
+        }
+        if (property.equals("0") || property.equals("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("'" + property
+                + "' is not a valid boolean value of " + key);
+    }
+
+    /**
+     * Gets space separated items of given property
+     *
+     * @param key property name
+     * @return unmodifiable set of the items
+     * @throws IllegalArgumentException when property not set
+     */
+    public Set<String> getPropertySet(final String key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        final Set<String> propertySet = propertySets.get(key);
+        if (propertySet == null) {
+            throw new IllegalArgumentException("Property '" + key + "' not set");
+        }
+        return propertySet;
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cheap test whether a module can change a document
+ *
+ * The trigger consists of conditions on the census of the document. The
+ * module can change the document only if some of the conditions holds, i.e.
+ * the census contains all element and attribute names of the condition and
+ * some of its characters (if any are given). The trigger also tells what the
+ * module can add to the document, so that the triggers of the following
+ * modules are tested against the census extended by it.
+ *
+ * @author David Formanek
+ */
+public final class ModuleTrigger {
+
+    private final boolean always;
+    private final List<Condition> conditions = new ArrayList<>();
+    private final DocumentCensus produced;
+
+    /**
+     * Creates trigger with no conditions, which does not fire until
+     * conditions are added
+     *
+     * @param produced element names, attribute names and characters the
+     * module can add to a document
+     */
+    public ModuleTrigger(final DocumentCensus produced) {
+        this(false, produced);
+    }
+
+    private ModuleTrigger(final boolean always, final DocumentCensus produced) {
+        if (produced == null) {
+            throw new NullPointerException("produced");
+        }
+        this.always = always;
+        this.produced = produced;
+    }
+
+    /**
+     * Creates trigger of a module which can change any document
+     *
+     * @param produced element names, attribute names and characters the
+     * module can add to a document
+     * @return trigger which always fires
+     */
+    public static ModuleTrigger always(final DocumentCensus produced) {
+        return new ModuleTrigger(true, produced);
+    }
+
+    /**
+     * Adds condition under which the module can change a document
+     *
+     * @param elements names of elements which must all be present
+     * @param characters characters at least one of which must be present or
+     * {@code null} if no character is required
+     * @return this trigger
+     */
+    public ModuleTrigger addCondition(final Collection<String> elements, final String characters) {
+        return addCondition(elements, Collections.<String>emptySet(), characters);
+    }
+
+    /**
+     * Adds condition under which the module can change a document
+     *
+     * @param elements names of elements which must all be present
+     * @param attributes names of attributes which must all be present
+     * @param characters characters at least one of which must be present or
+     * {@code null} if no character is required
+     * @return this trigger
+     */
+    public ModuleTrigger addCondition(final Collection<String> elements,
+            final Collection<String> attributes, final String characters) {
+        if (elements == null) {
+            throw new NullPointerException("elements");
+        }
+        if (attributes == null) {
+            throw new NullPointerException("attributes");
+        }
+        conditions.add(new Condition(new ArrayList<>(elements), new ArrayList<>(attributes), characters));
+        return this;
+    }
+
+    /**
+     * Tests whether the module can change the document
+     *
+     * @param census census of the document
+     * @return false if the module certainly leaves the document unchanged
+     */
+    public boolean isFired(final DocumentCensus census) {
+        if (census == null) {
+            throw new NullPointerException("census");
+        }
+        if (always) {
+            return true;
+        }
+        for (Condition condition : conditions) {
+            if (condition.holds(census)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return element names, attribute names and characters the module can
+     * add to a document
+     */
+    public DocumentCensus getProduced() {
+        return produced;
+    }
+
+    private static final class Condition {
+
+        private final List<String> elements;
+        private final List<String> attributes;
+        private final String characters;
+
+        Condition(final List<String> elements, final List<String> attributes, final String characters) {
+            this.elements = elements;
+            this.attributes = attributes;
+            this.characters = characters;
+        }
+
+        boolean holds(final DocumentCensus census) {
+            for (String element : elements) {
+                if (!census.containsElement(element)) {
+                    return false;
+                }
+            }
+            for (String attribute : attributes) {
+                if (!census.containsAttribute(attribute)) {
+                    return false;
+                }
+            }
+            if (characters == null) {
+                return true;
+            }
+            for (int i = 0; i < characters.length(); i++) {
+                if (census.containsCharacter(characters.charAt(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -17,6 +17,7 @@ package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
 import static cz.muni.fi.mir.mathmlcanonicalization.modules.AbstractModule.MATHMLNS;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -90,6 +91,14 @@ public class MrowNormalizer extends AbstractModule implements DOMModule {
         declareProperty("childCount.mrow");
     }
 
+    @Override
+    public ModuleTrigger getTrigger() {
+        return new ModuleTrigger(new DocumentCensus().addElement(ROW))
+                .addCondition(Collections.singletonList(ROW), null)
+                .addCondition(Collections.singletonList(OPERATOR),
+                        getTriggerCharacters(getPropertySet(OPENING)));
+    }
+
     @Override
     public void execute(final Document doc) {
         if (doc == null) {
@@ -17,9 +17,10 @@ package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
 import static cz.muni.fi.mir.mathmlcanonicalization.modules.AbstractModule.MATHMLNS;
 import java.text.Normalizer;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,8 +30,6 @@ import org.jdom2.Content;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.Text;
-import org.jdom2.filter.ContentFilter;
-import org.jdom2.filter.ElementFilter;
 
 /**
  * Normalize the way to express an function applied to arguments in MathML.
@@ -45,7 +44,7 @@ import org.jdom2.filter.ElementFilter;
  *
  * @author David Formanek
  */
-public class OperatorNormalizer extends AbstractModule implements DOMModule {
+public class OperatorNormalizer extends AbstractModule implements DOMVisitorModule {
 
     private static final Logger LOGGER = Logger.getLogger(OperatorNormalizer.class.getName());
     // properties key names
@@ -67,75 +66,113 @@ public class OperatorNormalizer extends AbstractModule implements DOMModule {
         declareProperty(IDENTIFIERS);
     }
 
+    /**
+     * Returns trigger which always fires since any text can be normalized
+     */
     @Override
-    public void execute(final Document doc) {
-        if (doc == null) {
-            throw new NullPointerException("doc");
-        }
-        final Element root = doc.getRootElement();
+    public ModuleTrigger getTrigger() {
+        final DocumentCensus produced = new DocumentCensus()
+                .addElement(IDENTIFIER).addElement(OPERATOR)
+                .addCharacters(getProperty(OPERATOR_REPLACEMENTS))
+                .addCharacters(getProperty(COLON_REPLACEMENT));
+        if (!getProperty(NORMALIZATION_FORM).isEmpty()) {
+            produced.addAnyCharacter();
+        }
+        return ModuleTrigger.always(produced);
+    }
 
+    @Override
+    public void execute(final Document doc) throws ModuleException {
+        DOMPass.execute(getPasses(), doc);
+    }
+
+    /**
+     * Normalizes Unicode text, converts bad identifiers to operators, removes
+     * redundant and replaces operators and converts operators listed as
+     * identifiers, all in a single pass since every element is handled on its
+     * own
+     */
+    @Override
+    public List<DOMPass> getPasses() {
         // TODO: convert Unicode superscripts (supX entities) to msup etc.
         final String normalizerFormStr = getProperty(NORMALIZATION_FORM);
+        Normalizer.Form normalizerForm = null;
         if (normalizerFormStr.isEmpty()) {
             LOGGER.fine("Unicode text normalization is switched off");
         } else {
             try {
-                Normalizer.Form normalizerForm = Normalizer.Form.valueOf(normalizerFormStr);
-                normalizeUnicode(root, normalizerForm);
+                normalizerForm = Normalizer.Form.valueOf(normalizerFormStr);
             } catch (IllegalArgumentException ex) {
                 throw new IllegalArgumentException("Invalid configuration value: "
                         + NORMALIZATION_FORM, ex);
             }
         }
-        unifyOperators(root);
-    }
-
-    /**
-     * Converts bad identifiers to operators, removes redundant and replaces
-     */
-    private void unifyOperators(final Element ancestor) {
-        assert ancestor != null;
         final Set<String> toRemove = getPropertySet(OPERATORS_TO_REMOVE);
         final Map<String, String> replaceMap = getPropertyMap(OPERATOR_REPLACEMENTS);
         if (!getProperty(COLON_REPLACEMENT).isEmpty()) {
             replaceMap.put(":", getProperty(COLON_REPLACEMENT));
         }
-        final Set<String> operators = getPropertySet(OPERATORS);
+        final Set<String> operators = new HashSet<>(getPropertySet(OPERATORS));
         operators.addAll(toRemove);
         operators.addAll(replaceMap.keySet());
         operators.addAll(replaceMap.values());
-
-        replaceIdentifiers(ancestor, operators);
-
-        if (isEnabled(REMOVE_EMPTY_OPERATORS) || !toRemove.isEmpty()) {
-            removeSpareOperators(ancestor, toRemove);
-        } else {
+        final boolean removingEmpty = isEnabled(REMOVE_EMPTY_OPERATORS);
+        final boolean removing = removingEmpty || !toRemove.isEmpty();
+        if (!removing) {
             LOGGER.fine("No operators set for removal");
         }
-
         if (replaceMap.isEmpty()) {
             LOGGER.fine("No operators set to replace");
-        } else {
-            replaceOperators(ancestor, replaceMap);
         }
-
         final Set<String> identifiers = getPropertySet(IDENTIFIERS);
-        operatorsToIdentifiers(ancestor, identifiers);
+
+        final Normalizer.Form form = normalizerForm;
+        return Collections.singletonList(DOMPass.ofElements(element -> {
+            if (form != null) {
+                normalizeUnicode(element, form);
+            }
+            if (element.getParentElement() == null) {
+                return element; // only descendants of the root are unified
+            }
+            Element actual = element;
+            if (isIdentifier(actual) && operators.contains(actual.getTextTrim())) {
+                // TODO: control whole ranges of symbols rather than listed ones
+                LOGGER.log(Level.FINE, "Creating an operator from {0}", actual.getText());
+                actual = replaceElement(actual, OPERATOR);
+            }
+            if (removing && isOperator(actual)
+                    && isSpareOperator(actual, toRemove, removingEmpty)) {
+                //Keep special case where asterisk is by itself in a subscript
+                String parent = actual.getParentElement().getName();
+                if (!(parent.equals("msub"))
+                        && !(parent.equals("msubsup") && !(parent.equals("msup")))) {
+                    actual.detach();
+                    LOGGER.log(Level.FINE, "Operator {0} removed", actual);
+                    return null;
+                }
+            }
+            if (isMathMLOperator(actual) && replaceMap.containsKey(actual.getTextTrim())) {
+                final String oldOperator = actual.getTextTrim();
+                final String newOperator = replaceMap.get(oldOperator);
+                actual.setText(newOperator);
+                LOGGER.log(Level.FINE, "Operator ''{0}'' was replaced by ''{1}''",
+                        new Object[]{oldOperator, newOperator});
+            }
+            if (isMathMLOperator(actual) && identifiers.contains(actual.getTextTrim())) {
+                LOGGER.log(Level.FINE, "Creating an identifier from {0}", actual.getText());
+                actual = replaceElement(actual, IDENTIFIER);
+            }
+            return actual;
+        }));
     }
 
-    private void normalizeUnicode(final Element ancestor, final Normalizer.Form form) {
-        assert ancestor != null && form != null;
-        final List<Text> texts = new ArrayList<>();
-        final ContentFilter textFilter = new ContentFilter(ContentFilter.TEXT);
-        for (Content text : ancestor.getContent(textFilter)) {
-            texts.add((Text) text);
-        }
-        for (Element element : ancestor.getDescendants(new ElementFilter())) {
-            for (Content text : element.getContent(textFilter)) {
-                texts.add((Text) text);
+    private void normalizeUnicode(final Element element, final Normalizer.Form form) {
+        assert element != null && form != null;
+        for (Content content : element.getContent()) {
+            if (content.getCType() != Content.CType.Text) {
+                continue;
             }
-        }
-        for (Text text : texts) {
+            final Text text = (Text) content;
             if (Normalizer.isNormalized(text.getText(), form)) {
                 continue;
             }
@@ -147,76 +184,19 @@ public class OperatorNormalizer extends AbstractModule implements DOMModule {
         }
     }
 
-    private void removeSpareOperators(final Element element, final Collection<String> spareOperators) {
-        assert element != null && spareOperators != null && !spareOperators.isEmpty();
-        final List<Element> children = element.getChildren();
-        for (int i = 0; i < children.size(); i++) {
-            final Element actual = children.get(i); // actual element
-            if (isOperator(actual)) {
-                //Keep special case where asterisk is by itself in a subscript
-                String parent = actual.getParentElement().getName();
-                if (isSpareOperator(actual, spareOperators) && !(parent.equals("msub"))
-                        && !(parent.equals("msubsup") && !(parent.equals("msup")))) {
-                    actual.detach();
-                    i--; // move iterator back after detaching so it points to next element
-                    LOGGER.log(Level.FINE, "Operator {0} removed", actual);
-                }
-            } else {
-                removeSpareOperators(actual, spareOperators);
-            }
-        }
-    }
-
-    private boolean isSpareOperator(final Element operator, final Collection<String> spareOperators) {
+    private boolean isSpareOperator(final Element operator, final Collection<String> spareOperators,
+            final boolean removingEmpty) {
         assert operator != null && spareOperators != null && isOperator(operator);
-        return (isEnabled(REMOVE_EMPTY_OPERATORS) && operator.getText().isEmpty())
+        return (removingEmpty && operator.getText().isEmpty())
                 || (spareOperators.contains(operator.getTextTrim()));
     }
 
-    private void replaceOperators(final Element element, final Map<String, String> replacements) {
-        assert element != null && replacements != null;
-        List<Element> operatorsToReplace = new ArrayList<>();
-        for (Element operator : element.getDescendants(new ElementFilter(OPERATOR, MATHMLNS))) {
-            if (replacements.containsKey(operator.getTextTrim())) {
-                operatorsToReplace.add(operator);
-            }
-        }
-        for (Element operator : operatorsToReplace) {
-            final String oldOperator = operator.getTextTrim();
-            final String newOperator = replacements.get(oldOperator);
-            operator.setText(newOperator);
-            LOGGER.log(Level.FINE, "Operator ''{0}'' was replaced by ''{1}''",
-                    new Object[]{oldOperator, newOperator});
-        }
-    }
-
-    private void replaceIdentifiers(final Element ancestor, final Set<String> operators) {
-        assert ancestor != null && operators != null;
-        final List<Element> toReplace = new ArrayList<>();
-        for (Element element : ancestor.getDescendants(new ElementFilter(IDENTIFIER, MATHMLNS))) {
-            // TODO: control whole ranges of symbols rather than listed ones
-            if (operators.contains(element.getTextTrim())) {
-                toReplace.add(element);
-            }
-        }
-        for (Element element : toReplace) {
-            LOGGER.log(Level.FINE, "Creating an operator from {0}", element.getText());
-            replaceElement(element, OPERATOR);
-        }
+    private static boolean isIdentifier(final Element element) {
+        return element.getName().equals(IDENTIFIER) && element.getNamespace().equals(MATHMLNS);
     }
 
-    private void operatorsToIdentifiers(final Element ancestor, final Set<String> identifiers) {
-        assert ancestor != null && identifiers != null;
-        final List<Element> toReplace = new ArrayList<>();
-        for (Element element : ancestor.getDescendants(new ElementFilter(OPERATOR, MATHMLNS))) {
-            if (identifiers.contains(element.getTextTrim())) {
-                toReplace.add(element);
-            }
-        }
-        for (Element element : toReplace) {
-            LOGGER.log(Level.FINE, "Creating an identifier from {0}", element.getText());
-            replaceElement(element, IDENTIFIER);
-        }
+    private boolean isMathMLOperator(final Element element) {
+        return isOperator(element) && element.getNamespace().equals(MATHMLNS);
     }
 
     private Map<String, String> getPropertyMap(final String property) {
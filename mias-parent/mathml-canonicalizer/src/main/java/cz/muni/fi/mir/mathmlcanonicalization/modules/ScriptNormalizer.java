@@ -18,13 +18,13 @@ package cz.muni.fi.mir.mathmlcanonicalization.modules;
 import static cz.muni.fi.mir.mathmlcanonicalization.modules.AbstractModule.MATHMLNS;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import org.jdom2.Document;
 import org.jdom2.Element;
-import org.jdom2.filter.ElementFilter;
 
 /**
  * Handle sub/super/under/over/multi script elements in MathML.
@@ -52,7 +52,7 @@ import org.jdom2.filter.ElementFilter;
  * @author Jaroslav Dufek
  * @author David Formanek
  */
-public class ScriptNormalizer extends AbstractModule implements DOMModule {
+public class ScriptNormalizer extends AbstractModule implements DOMVisitorModule {
 
     private static final Logger LOGGER = Logger.getLogger(ScriptNormalizer.class.getName());
     // properties key names
@@ -67,31 +67,50 @@ public class ScriptNormalizer extends AbstractModule implements DOMModule {
     }
 
     @Override
-    public void execute(final Document doc) {
-        if (doc == null) {
-            throw new NullPointerException("doc");
+    public ModuleTrigger getTrigger() {
+        final DocumentCensus produced = new DocumentCensus()
+                .addElement(SUBSCRIPT).addElement(SUPERSCRIPT).addElement(SUBSUP);
+        final ModuleTrigger trigger = new ModuleTrigger(produced);
+        for (String script : new String[]{SUBSCRIPT, SUBSUP, UNDERSCRIPT, OVERSCRIPT, UNDEROVER}) {
+            trigger.addCondition(Collections.singletonList(script), null);
         }
-        final Element root = doc.getRootElement();
+        return trigger;
+    }
+
+    @Override
+    public void execute(final Document doc) throws ModuleException {
+        DOMPass.execute(getPasses(), doc);
+    }
+
+    @Override
+    public List<DOMPass> getPasses() {
+        final List<DOMPass> passes = new ArrayList<>();
         if (isEnabled(UNIFY_SCRIPTS)) {
             final Map<String, String> replaceMap = new HashMap<>();
             replaceMap.put(UNDERSCRIPT, SUBSCRIPT);
             replaceMap.put(OVERSCRIPT, SUPERSCRIPT);
             replaceMap.put(UNDEROVER, SUBSUP);
-            replaceDescendants(root, replaceMap);
+            passes.add(DOMPass.ofElements(element -> {
+                if (element.getParentElement() == null || !replaceMap.containsKey(element.getName())) {
+                    return element;
+                }
+                return replaceElement(element, replaceMap.get(element.getName()));
+            }));
         } else {
             // TODO: normalize unconverted munder/mover/munderover
         }
         // TODO: convert multiscript where possible
         if (isEnabled(SWAP_SCRIPTS)) {
-            normalizeSupInSub(root);
+            passes.add(DOMPass.ofDocument(doc -> normalizeSupInSub(doc.getRootElement())));
         }
-        Collection<String> chosenElements = getPropertySet(SPLIT_SCRIPTS_ELEMENTS);
+        final Collection<String> chosenElements = getPropertySet(SPLIT_SCRIPTS_ELEMENTS);
         if (chosenElements.isEmpty()) {
             LOGGER.finer("Msubsup conversion is switched off");
         } else {
-            normalizeMsubsup(root, chosenElements);
+            passes.add(DOMPass.ofDocument(doc -> normalizeMsubsup(doc.getRootElement(), chosenElements)));
         }
         // TODO: convert sub/sup combination with not chosen elements to subsup
+        return passes;
     }
 
     private void normalizeSupInSub(final Element element) {
@@ -156,17 +175,4 @@ public class ScriptNormalizer extends AbstractModule implements DOMModule {
         }
     }
 
-    private void replaceDescendants(final Element ancestor, final Map<String, String> map) {
-        assert ancestor != null && map != null;
-        final List<Element> toReplace = new ArrayList<>();
-        for (Element element : ancestor.getDescendants(new ElementFilter())) {
-            if (map.containsKey(element.getName())) {
-                toReplace.add(element);
-            }
-        }
-        for (Element element : toReplace) {
-            replaceElement(element, map.get(element.getName()));
-        }
-    }
-
 }
@@ -16,6 +16,7 @@
 package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import org.jdom2.Document;
@@ -37,6 +38,12 @@ public class SingleTopElementOutputter extends AbstractModule implements DOMModu
 
     private static final Logger LOGGER = Logger.getLogger(SingleTopElementOutputter.class.getName());
 
+    @Override
+    public ModuleTrigger getTrigger() {
+        return new ModuleTrigger(new DocumentCensus().addElement(ROW))
+                .addCondition(Collections.singletonList(MATH), null);
+    }
+
     @Override
     public void execute(final Document doc) {
         if (doc == null) {
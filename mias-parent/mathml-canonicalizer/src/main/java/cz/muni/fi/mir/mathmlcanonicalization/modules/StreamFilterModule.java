@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Stream modules processing the input as a stream of StAX events
+ *
+ * Filters of several modules can be chained over a single reader of the input,
+ * so the input is parsed only once and no intermediate result is serialized.
+ *
+ * @author David Formanek
+ */
+public interface StreamFilterModule extends StreamModule {
+
+    /**
+     * Wraps the reader by the filter of the canonicalization module.
+     *
+     * The filter reads the events from the given reader and must not read
+     * ahead, so the current event of the given reader is the one the filter
+     * is positioned at.
+     *
+     * @param reader reader of the input positioned at the start of the document
+     * @return reader of the events modified according to the module
+     * specification
+     * @throws ModuleException when cannot set up the filter
+     */
+    public XMLStreamReader filter(XMLStreamReader reader) throws ModuleException;
+
+}
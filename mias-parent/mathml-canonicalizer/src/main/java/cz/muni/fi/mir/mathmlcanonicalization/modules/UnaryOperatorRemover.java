@@ -15,15 +15,14 @@
  */
 package cz.muni.fi.mir.mathmlcanonicalization.modules;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 import org.jdom2.Document;
 import org.jdom2.Element;
-import org.jdom2.Namespace;
-import org.jdom2.filter.Filters;
-import org.jdom2.xpath.XPathExpression;
-import org.jdom2.xpath.XPathFactory;
 
 /**
  * Removes unary operators, i.e. {@code //mo[count(preceding-sibling::*) = 0]}.
@@ -79,24 +78,24 @@ public class UnaryOperatorRemover extends AbstractModule implements DOMModule {
     private static final String PM_UNARY_OPERATORS_TO_REMOVE = "pmathremoveunaryoperators";
     private static final String CM_UNARY_OPERATORS_TO_REMOVE = "cmathremoveunaryoperators";
 
-    private static final XPathExpression<Element> xpPMUnaryOperators = XPathFactory.instance().compile(
-            "//mathml:mo[count(preceding-sibling::*) = 0]|//mo[count(preceding-sibling::*) = 0]",
-            Filters.element(), null,
-            Namespace.getNamespace("mathml", "http://www.w3.org/1998/Math/MathML"));
-    private static final XPathExpression<Element> xpPMSecondOperatorInDoubleOperators = XPathFactory.instance().compile(
-            "//mathml:mo[preceding-sibling::*[1][self::mathml:mo]]|//mo[preceding-sibling::*[1][self::mo]]",
-            Filters.element(), null,
-            Namespace.getNamespace("mathml", "http://www.w3.org/1998/Math/MathML"));
-    private static final XPathExpression<Element> xpCMApplyWithTwoChildrens = XPathFactory.instance().compile(
-            "//mathml:apply[count(child::*)=2]|//apply[count(child::*)=2]",
-            Filters.element(), null,
-            Namespace.getNamespace("mathml", "http://www.w3.org/1998/Math/MathML"));
+    private static final String APPLY = "apply";
 
     public UnaryOperatorRemover() {
         declareProperty(PM_UNARY_OPERATORS_TO_REMOVE);
         declareProperty(CM_UNARY_OPERATORS_TO_REMOVE);
     }
 
+    @Override
+    public ModuleTrigger getTrigger() {
+        final ModuleTrigger trigger = new ModuleTrigger(new DocumentCensus());
+        trigger.addCondition(Collections.singletonList(OPERATOR),
+                getTriggerCharacters(getPropertySet(PM_UNARY_OPERATORS_TO_REMOVE)));
+        for (String operator : getPropertySet(CM_UNARY_OPERATORS_TO_REMOVE)) {
+            trigger.addCondition(Arrays.asList(APPLY, operator), null);
+        }
+        return trigger;
+    }
+
     @Override
     public void execute(final Document doc) {
 
@@ -106,32 +105,75 @@ public class UnaryOperatorRemover extends AbstractModule implements DOMModule {
 
         final Element root = doc.getRootElement();
 
-        removeUnaryOperator(root);
-
-    }
-
-    private void removeUnaryOperator(final Element rootElem) {
-
-        assert rootElem != null;
-
         /* Presentation MathML */
         final Set<String> pmCharsToRemove = getPropertySet(PM_UNARY_OPERATORS_TO_REMOVE);
 
         if (!pmCharsToRemove.isEmpty()) {
+            removeUnaryOperators(root, pmCharsToRemove);
+        }
 
-            // Unary operators
-            List<Element> pmElemsToRemove = xpPMUnaryOperators.evaluate(rootElem);
-            for (Element toRemove : pmElemsToRemove) {
-                if (pmCharsToRemove.contains(toRemove.getValue())) {
-                    LOGGER.finest("Removing element '" + toRemove.getQualifiedName() + "' with value '" + toRemove.getValue() + "'.");
-                    toRemove.detach();
+        /* Double operators of Presentation MathML and Content MathML */
+        final Set<String> cmOperatorsToRemove = getPropertySet(CM_UNARY_OPERATORS_TO_REMOVE);
+        removeDoubleAndApplyOperators(root, pmCharsToRemove, cmOperatorsToRemove);
+
+        LOGGER.finer("RemoveUnaryOperator finished");
+
+    }
+
+    /**
+     * Removes operators matching {@code //mo[count(preceding-sibling::*) = 0]}
+     * with values to be removed.
+     */
+    private void removeUnaryOperators(final Element element, final Set<String> pmCharsToRemove) {
+
+        assert element != null;
+
+        final List<Element> children = element.getChildren();
+        if (!children.isEmpty()) {
+            final Element first = children.get(0);
+            if (isPMOperator(first)) {
+                if (pmCharsToRemove.contains(first.getValue())) {
+                    LOGGER.finest("Removing element '" + first.getQualifiedName() + "' with value '" + first.getValue() + "'.");
+                    first.detach();
                 } else {
-                    LOGGER.finest("Skipping element '" + toRemove.getQualifiedName() + "' with value '" + toRemove.getValue() + "'.");
+                    LOGGER.finest("Skipping element '" + first.getQualifiedName() + "' with value '" + first.getValue() + "'.");
                 }
             }
+        }
+        for (Element child : children) {
+            removeUnaryOperators(child, pmCharsToRemove);
+        }
+
+    }
 
-            // Second of the double operators
-            pmElemsToRemove = xpPMSecondOperatorInDoubleOperators.evaluate(rootElem);
+    /**
+     * Removes operators matching {@code //mo[preceding-sibling::*[1][self::mo]]}
+     * with values to be removed and replaces elements matching
+     * {@code //apply[count(child::*)=2]} with operators to be removed by their
+     * operands.
+     *
+     * The result is the same as if all the operators were removed before the
+     * applications were replaced in the document order, since both depend
+     * only on the children of their parent. Double operators are thus removed
+     * among the children of the element before the element is replaced and
+     * its descendants are processed.
+     */
+    private void removeDoubleAndApplyOperators(final Element element, final Set<String> pmCharsToRemove,
+            final Set<String> cmOperatorsToRemove) {
+
+        assert element != null;
+
+        final List<Element> children = element.getChildren();
+        if (!pmCharsToRemove.isEmpty()) {
+            final List<Element> pmElemsToRemove = new ArrayList<>();
+            for (int i = 1; i < children.size(); i++) {
+                final Element actual = children.get(i);
+                final Element previous = children.get(i - 1);
+                if (isPMOperator(actual) && isOperator(previous)
+                        && previous.getNamespaceURI().equals(actual.getNamespaceURI())) {
+                    pmElemsToRemove.add(actual);
+                }
+            }
             for (Element toRemove : pmElemsToRemove) {
                 if (pmCharsToRemove.contains(toRemove.getValue())) {
                     LOGGER.finest("Removing the second element out of double elements '" + toRemove.getQualifiedName() + "' with value '" + toRemove.getValue() + "'.");
@@ -140,30 +182,36 @@ public class UnaryOperatorRemover extends AbstractModule implements DOMModule {
                     LOGGER.finest("Skipping the second element out of double elements '" + toRemove.getQualifiedName() + "' with value '" + toRemove.getValue() + "'.");
                 }
             }
-
         }
 
-        LOGGER.finer("RemoveUnaryOperator Presentation MathML finished");
-
-        /* Content MathML */
-        List<Element> applyWithTwoChildrens = xpCMApplyWithTwoChildrens.evaluate(rootElem);
-        final Set<String> cmOperatorsToRemove = getPropertySet(CM_UNARY_OPERATORS_TO_REMOVE);
-
-        for (Element applyElem : applyWithTwoChildrens) {
-            Element operator = applyElem.getChildren().get(0);
+        final Element parent = element.getParentElement();
+        if (parent != null && isMathMLOrNoNamespace(element) && element.getName().equals(APPLY)
+                && children.size() == 2) {
+            Element operator = children.get(0);
             if (cmOperatorsToRemove.contains(operator.getName())) {
-                Element operand = applyElem.getChildren().get(1);
+                Element operand = children.get(1);
                 LOGGER.finest("Removing operator '" + operator.getQualifiedName() + "' for operand '" + operand.getQualifiedName() + "'.");
                 operand.detach();
-                Element parent = applyElem.getParentElement();
-                int applyElemIndex = parent.indexOf(applyElem);
+                int applyElemIndex = parent.indexOf(element);
                 parent.setContent(applyElemIndex, operand);
-                applyElem.detach();
+                removeDoubleAndApplyOperators(operand, pmCharsToRemove, cmOperatorsToRemove);
+                return;
             }
         }
 
-        LOGGER.finer("RemoveUnaryOperator Content MathML finished");
+        for (Element child : new ArrayList<>(children)) {
+            removeDoubleAndApplyOperators(child, pmCharsToRemove, cmOperatorsToRemove);
+        }
+
+    }
+
+    private static boolean isMathMLOrNoNamespace(final Element element) {
+        final String uri = element.getNamespaceURI();
+        return uri.isEmpty() || uri.equals(MATHMLNS.getURI());
+    }
 
+    private boolean isPMOperator(final Element element) {
+        return isOperator(element) && isMathMLOrNoNamespace(element);
     }
 
 }
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DeclHandler;
+
+/**
+ * DTD compiled to the declarations which affect parsing of documents
+ *
+ * Large DTDs like XHTML 1.1 plus MathML 2.0 are spread over parameter
+ * entities, conditional sections and comments, which every parser reading the
+ * DTD has to expand again for each document. The DTD is compiled only once:
+ * it is parsed and its effective element, attribute list and general entity
+ * declarations are written out with all parameter entities expanded. Attribute
+ * declarations of type CDATA without a default value are left out since
+ * non-validating parsers treat such attributes as undeclared ones. The
+ * compiled DTD can be given to parsers instead of the original one, documents
+ * are parsed to the same content with the same named entities and default
+ * attributes.
+ *
+ * @author David Formanek
+ */
+public final class CompiledDTD {
+
+    private static final String DECLARATION_HANDLER = "http://xml.org/sax/properties/declaration-handler";
+
+    private final byte[] declarations;
+
+    private CompiledDTD(final byte[] declarations) {
+        this.declarations = declarations;
+    }
+
+    /**
+     * Compiles the DTD.
+     *
+     * External parameter entities of the DTD are not loaded, the DTD must be
+     * self-contained.
+     *
+     * @param dtd location of the DTD
+     * @return compiled DTD
+     * @throws IOException when the DTD cannot be read or is not well-formed
+     */
+    public static CompiledDTD compile(final URL dtd) throws IOException {
+        if (dtd == null) {
+            throw new NullPointerException("dtd");
+        }
+        final String systemId = dtd.toExternalForm();
+        final Compiler compiler = new Compiler();
+        try {
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setValidating(false);
+            final XMLReader reader = factory.newSAXParser().getXMLReader();
+            reader.setProperty(DECLARATION_HANDLER, compiler);
+            reader.setEntityResolver((publicId, entitySystemId) -> {
+                if (systemId.equals(entitySystemId)) {
+                    final InputSource source = new InputSource(dtd.openStream());
+                    source.setSystemId(systemId);
+                    return source;
+                }
+                return new InputSource(new StringReader(""));
+            });
+            reader.parse(new InputSource(new StringReader(
+                    "<!DOCTYPE compiled SYSTEM \"" + systemId + "\"><compiled/>")));
+        } catch (ParserConfigurationException | SAXException ex) {
+            throw new IOException("cannot compile DTD " + systemId, ex);
+        }
+        return new CompiledDTD(compiler.output.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return stream of the compiled declarations encoded in UTF-8
+     */
+    public InputStream openStream() {
+        return new ByteArrayInputStream(declarations);
+    }
+
+    /**
+     * @return size of the compiled declarations in bytes
+     */
+    public int size() {
+        return declarations.length;
+    }
+
+    /**
+     * Handler writing out the effective declarations, SAX reports only the
+     * first (binding) declaration of each attribute and entity
+     */
+    private static class Compiler implements DeclHandler {
+
+        private final StringBuilder output = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+
+        @Override
+        public void elementDecl(final String name, final String model) {
+            output.append("<!ELEMENT ").append(name).append(' ').append(model).append(">\n");
+        }
+
+        @Override
+        public void attributeDecl(final String element, final String attribute, final String type,
+                final String mode, final String value) {
+            if (type.equals("CDATA") && value == null) {
+                return;
+            }
+            output.append("<!ATTLIST ").append(element).append(' ').append(attribute).append(' ').append(type);
+            if (mode != null) {
+                output.append(' ').append(mode);
+            }
+            if (value != null) {
+                output.append(" \"");
+                appendLiteral(value, "&<\"\t\n\r");
+                output.append('"');
+            }
+            output.append(">\n");
+        }
+
+        @Override
+        public void internalEntityDecl(final String name, final String value) {
+            if (name.startsWith("%")) {
+                return;
+            }
+            output.append("<!ENTITY ").append(name).append(" \"");
+            appendLiteral(value, "&%\"\t\n\r");
+            output.append("\">\n");
+        }
+
+        @Override
+        public void externalEntityDecl(final String name, final String publicId, final String systemId) {
+            if (name.startsWith("%")) {
+                // external parameter entities were already expanded or are not used
+                return;
+            }
+            output.append("<!ENTITY ").append(name);
+            if (publicId != null) {
+                output.append(" PUBLIC \"").append(publicId).append('"');
+            } else {
+                output.append(" SYSTEM");
+            }
+            output.append(" \"").append(systemId).append("\">\n");
+        }
+
+        /**
+         * Appends literal with the given characters written as character
+         * references, so the literal is parsed to the value again
+         */
+        private void appendLiteral(final String value, final String escaped) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (escaped.indexOf(c) >= 0) {
+                    output.append("&#").append((int) c).append(';');
+                } else {
+                    output.append(c);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,408 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+
+/**
+ * Compiled pattern matching elements by their names and structure
+ *
+ * Structural rules of modules can be declared in a small subset of XSLT match
+ * patterns instead of XPath expressions. The pattern is compiled into tests
+ * evaluated directly on the JDOM tree.
+ *
+ * <pre>
+ * pattern     ::= alternative ('|' alternative)*
+ * alternative ::= nametest ('[' condition ']')*
+ * condition   ::= 'count(' step ')' ('=' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=') number
+ *               | step
+ * step        ::= axis '::' nametest ('[' (number | 'self::' nametest) ']')*
+ * axis        ::= 'child' | 'parent' | 'preceding-sibling' | 'following-sibling'
+ * nametest    ::= '*' | name | prefix ':' name
+ * </pre>
+ *
+ * As in XPath, only elements are selected on the axes, their positions are
+ * counted in the direction of the axis, a step condition requires at least
+ * one selected element and unprefixed names match elements in no namespace.
+ * For example {@code mo[preceding-sibling::*[1][self::mo]]} matches operators
+ * following another operator.
+ *
+ * @author David Formanek
+ */
+public final class ElementPattern {
+
+    private final String pattern;
+    private final List<Alternative> alternatives;
+
+    private ElementPattern(final String pattern, final List<Alternative> alternatives) {
+        this.pattern = pattern;
+        this.alternatives = alternatives;
+    }
+
+    /**
+     * Compiles the pattern.
+     *
+     * @param pattern pattern to be compiled
+     * @param namespaces namespaces of the prefixes used in the pattern
+     * @return compiled pattern
+     * @throws IllegalArgumentException when the pattern is not valid
+     */
+    public static ElementPattern compile(final String pattern, final Namespace... namespaces) {
+        if (pattern == null) {
+            throw new NullPointerException("pattern");
+        }
+        final Map<String, String> prefixes = new HashMap<>();
+        for (Namespace namespace : namespaces) {
+            prefixes.put(namespace.getPrefix(), namespace.getURI());
+        }
+        return new Parser(pattern, prefixes).parse();
+    }
+
+    /**
+     * Tests whether the element matches the pattern.
+     *
+     * @param element element to be tested
+     * @return true if the element matches any alternative of the pattern
+     */
+    public boolean matches(final Element element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        for (Alternative alternative : alternatives) {
+            if (alternative.matches(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static final class NameTest {
+
+        private final String uri; // null for any namespace
+        private final String name; // null for any name
+
+        NameTest(final String uri, final String name) {
+            this.uri = uri;
+            this.name = name;
+        }
+
+        boolean matches(final Element element) {
+            return (name == null || name.equals(element.getName()))
+                    && (uri == null || uri.equals(element.getNamespaceURI()));
+        }
+    }
+
+    private enum Axis {
+        CHILD, PARENT, PRECEDING_SIBLING, FOLLOWING_SIBLING;
+
+        List<Element> select(final Element element) {
+            if (this == CHILD) {
+                return element.getChildren();
+            }
+            final Element parent = element.getParentElement();
+            if (parent == null) {
+                return Collections.emptyList();
+            }
+            if (this == PARENT) {
+                return Collections.singletonList(parent);
+            }
+            final List<Element> siblings = parent.getChildren();
+            final int index = siblings.indexOf(element);
+            if (this == FOLLOWING_SIBLING) {
+                return siblings.subList(index + 1, siblings.size());
+            }
+            final List<Element> preceding = new ArrayList<>(siblings.subList(0, index));
+            Collections.reverse(preceding);
+            return preceding;
+        }
+    }
+
+    private static final class Step {
+
+        private final Axis axis;
+        private final NameTest nameTest;
+        // positions (Integer) and self tests (NameTest) in the order of predicates
+        private final List<Object> predicates;
+
+        Step(final Axis axis, final NameTest nameTest, final List<Object> predicates) {
+            this.axis = axis;
+            this.nameTest = nameTest;
+            this.predicates = predicates;
+        }
+
+        List<Element> select(final Element element) {
+            List<Element> selected = new ArrayList<>();
+            for (Element candidate : axis.select(element)) {
+                if (nameTest.matches(candidate)) {
+                    selected.add(candidate);
+                }
+            }
+            for (Object predicate : predicates) {
+                if (predicate instanceof Integer) {
+                    final int position = (Integer) predicate;
+                    selected = position >= 1 && position <= selected.size()
+                            ? Collections.singletonList(selected.get(position - 1))
+                            : Collections.<Element>emptyList();
+                } else {
+                    final List<Element> filtered = new ArrayList<>();
+                    for (Element candidate : selected) {
+                        if (((NameTest) predicate).matches(candidate)) {
+                            filtered.add(candidate);
+                        }
+                    }
+                    selected = filtered;
+                }
+            }
+            return selected;
+        }
+    }
+
+    private static final class Condition {
+
+        private final Step step;
+        private final String comparison; // null for existence of the selected elements
+        private final int number;
+
+        Condition(final Step step, final String comparison, final int number) {
+            this.step = step;
+            this.comparison = comparison;
+            this.number = number;
+        }
+
+        boolean matches(final Element element) {
+            final int count = step.select(element).size();
+            if (comparison == null) {
+                return count > 0;
+            }
+            switch (comparison) {
+                case "=":
+                    return count == number;
+                case "!=":
+                    return count != number;
+                case "<":
+                    return count < number;
+                case "<=":
+                    return count <= number;
+                case ">":
+                    return count > number;
+                default:
+                    return count >= number;
+            }
+        }
+    }
+
+    private static final class Alternative {
+
+        private final NameTest nameTest;
+        private final List<Condition> conditions;
+
+        Alternative(final NameTest nameTest, final List<Condition> conditions) {
+            this.nameTest = nameTest;
+            this.conditions = conditions;
+        }
+
+        boolean matches(final Element element) {
+            if (!nameTest.matches(element)) {
+                return false;
+            }
+            for (Condition condition : conditions) {
+                if (!condition.matches(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Parser {
+
+        private final String pattern;
+        private final Map<String, String> prefixes;
+        private int pos = 0;
+
+        Parser(final String pattern, final Map<String, String> prefixes) {
+            this.pattern = pattern;
+            this.prefixes = prefixes;
+        }
+
+        ElementPattern parse() {
+            final List<Alternative> alternatives = new ArrayList<>();
+            do {
+                alternatives.add(parseAlternative());
+            } while (consume("|"));
+            skipSpaces();
+            if (pos != pattern.length()) {
+                throw error("unexpected character");
+            }
+            return new ElementPattern(pattern, alternatives);
+        }
+
+        private Alternative parseAlternative() {
+            final NameTest nameTest = parseNameTest();
+            final List<Condition> conditions = new ArrayList<>();
+            while (consume("[")) {
+                conditions.add(parseCondition());
+                expect("]");
+            }
+            return new Alternative(nameTest, conditions);
+        }
+
+        private Condition parseCondition() {
+            skipSpaces();
+            if (pattern.startsWith("count", pos)) {
+                final int start = pos;
+                pos += "count".length();
+                if (consume("(")) {
+                    final Step step = parseStep();
+                    expect(")");
+                    final String comparison = parseComparison();
+                    return new Condition(step, comparison, parseNumber());
+                }
+                pos = start;
+            }
+            return new Condition(parseStep(), null, 0);
+        }
+
+        private Step parseStep() {
+            final String axisName = parseName();
+            final Axis axis;
+            switch (axisName) {
+                case "child":
+                    axis = Axis.CHILD;
+                    break;
+                case "parent":
+                    axis = Axis.PARENT;
+                    break;
+                case "preceding-sibling":
+                    axis = Axis.PRECEDING_SIBLING;
+                    break;
+                case "following-sibling":
+                    axis = Axis.FOLLOWING_SIBLING;
+                    break;
+                default:
+                    throw error("unsupported axis '" + axisName + "'");
+            }
+            expect("::");
+            final NameTest nameTest = parseNameTest();
+            final List<Object> predicates = new ArrayList<>();
+            while (consume("[")) {
+                skipSpaces();
+                if (pos < pattern.length() && Character.isDigit(pattern.charAt(pos))) {
+                    predicates.add(parseNumber());
+                } else {
+                    if (!parseName().equals("self")) {
+                        throw error("expected position or self test");
+                    }
+                    expect("::");
+                    predicates.add(parseNameTest());
+                }
+                expect("]");
+            }
+            return new Step(axis, nameTest, predicates);
+        }
+
+        private NameTest parseNameTest() {
+            if (consume("*")) {
+                return new NameTest(null, null);
+            }
+            final String name = parseName();
+            if (pattern.startsWith(":", pos) && !pattern.startsWith("::", pos)) {
+                pos++;
+                final String uri = prefixes.get(name);
+                if (uri == null) {
+                    throw error("unbound prefix '" + name + "'");
+                }
+                return new NameTest(uri, consume("*") ? null : parseName());
+            }
+            return new NameTest("", name);
+        }
+
+        private String parseName() {
+            skipSpaces();
+            final int start = pos;
+            while (pos < pattern.length()) {
+                final char c = pattern.charAt(pos);
+                if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                    break;
+                }
+                pos++;
+            }
+            if (start == pos || !Character.isLetter(pattern.charAt(start)) && pattern.charAt(start) != '_') {
+                throw error("expected name");
+            }
+            return pattern.substring(start, pos);
+        }
+
+        private int parseNumber() {
+            skipSpaces();
+            final int start = pos;
+            while (pos < pattern.length() && Character.isDigit(pattern.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("expected number");
+            }
+            return Integer.parseInt(pattern.substring(start, pos));
+        }
+
+        private String parseComparison() {
+            for (String comparison : new String[]{"!=", "<=", ">=", "=", "<", ">"}) {
+                if (consume(comparison)) {
+                    return comparison;
+                }
+            }
+            throw error("expected comparison");
+        }
+
+        private boolean consume(final String token) {
+            skipSpaces();
+            if (pattern.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final String token) {
+            if (!consume(token)) {
+                throw error("expected '" + token + "'");
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < pattern.length() && Character.isWhitespace(pattern.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException("Invalid pattern '" + pattern + "' at position "
+                    + pos + ": " + message);
+        }
+    }
+
+}
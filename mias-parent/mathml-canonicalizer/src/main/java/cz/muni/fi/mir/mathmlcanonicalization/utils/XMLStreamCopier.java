@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.utils;
+
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import cz.muni.fi.mir.mathmlcanonicalization.Settings;
+
+/**
+ * Serialization of StAX event streams.
+ *
+ * @author David Formanek
+ */
+public class XMLStreamCopier {
+
+    /**
+     * Write the events of a reader to a stream. Only elements, attributes,
+     * namespaces, characters and DTD are written, other events are skipped.
+     *
+     * @param reader reader positioned at the start of the document
+     * @param out stream to write the document to in UTF-8
+     * @throws javax.xml.stream.XMLStreamException an error with XML processing
+     * occurs
+     */
+    public static void copy(XMLStreamReader reader, OutputStream out) throws XMLStreamException {
+        final XMLStreamWriter writer = Settings.xmlOutputFactory().createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument(reader.getEncoding(), reader.getVersion());
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    writer.writeStartElement(reader.getName().getPrefix(), reader.getLocalName(),
+                            reader.getName().getNamespaceURI());
+                    for (int index = 0; index < reader.getAttributeCount(); ++index) {
+                        final String attributeNamespace = reader.getAttributeNamespace(index);
+                        if (attributeNamespace == null) {
+                            writer.writeAttribute(reader.getAttributeLocalName(index),
+                                    reader.getAttributeValue(index));
+                        } else {
+                            writer.writeAttribute(reader.getAttributePrefix(index), attributeNamespace,
+                                    reader.getAttributeLocalName(index), reader.getAttributeValue(index));
+                        }
+                    }
+                    for (int index = 0; index < reader.getNamespaceCount(); ++index) {
+                        writer.writeNamespace(reader.getNamespacePrefix(index), reader.getNamespaceURI(index));
+                    }
+                    break;
+                }
+                case XMLStreamConstants.END_ELEMENT: {
+                    writer.writeEndElement();
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS: {
+                    writer.writeCharacters(reader.getText());
+                    break;
+                }
+                case XMLStreamConstants.END_DOCUMENT: {
+                    writer.writeEndDocument();
+                    break;
+                }
+                case XMLStreamConstants.DTD: {
+                    writer.writeDTD(reader.getText());
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+        }
+        writer.flush();
+        writer.close();
+    }
+
+}
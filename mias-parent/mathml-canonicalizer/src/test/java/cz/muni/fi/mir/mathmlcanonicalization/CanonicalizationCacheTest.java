@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jdom2.input.sax.SAXHandler;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleTestResources;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.MrowNormalizer;
+
+/**
+ * Test cases for CanonicalizationCache class.
+ *
+ * @author David Formanek
+ */
+public class CanonicalizationCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<byte[]> inputs = new ArrayList<>();
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        for (InputStream resource : ModuleTestResources.getAllTestResources()) {
+            inputs.add(IOUtils.toByteArray(resource));
+        }
+        directory = folder.newFolder("cache").toPath();
+    }
+
+    @Test
+    public void shouldReuseOutputs() throws Exception {
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final CanonicalizationCache cache = new CanonicalizationCache(directory, Long.MAX_VALUE);
+        for (int round = 0; round < 2; round++) {
+            for (byte[] input : inputs) {
+                assertArrayEquals(canonicalize(canonicalizer, input), canonicalize(cache, canonicalizer, input));
+            }
+        }
+        assertEquals(inputs.size(), cache.getMissCount());
+        assertEquals(inputs.size(), cache.getHitCount());
+        assertTrue(cache.getSize() > 0);
+
+        // entries are kept by a cache opened again
+        final CanonicalizationCache reopened = new CanonicalizationCache(directory, Long.MAX_VALUE);
+        assertEquals(cache.getSize(), reopened.getSize());
+        for (byte[] input : inputs) {
+            canonicalize(reopened, canonicalizer, input);
+        }
+        assertEquals(0, reopened.getMissCount());
+    }
+
+    @Test
+    public void shouldNotReuseOutputsOfOtherConfiguration() throws Exception {
+        final CanonicalizationCache cache = new CanonicalizationCache(directory, Long.MAX_VALUE);
+        final MrowNormalizer normalizer = new MrowNormalizer();
+        final MathMLCanonicalizer canonicalizer = new MathMLCanonicalizer().addModule(normalizer);
+        canonicalize(cache, canonicalizer, inputs.get(0));
+        normalizer.setProperty("open", "( [ { \u27e8");
+        canonicalize(cache, canonicalizer, inputs.get(0));
+        canonicalize(cache, MathMLCanonicalizer.getDefaultCanonicalizer(), inputs.get(0));
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void shouldCanonicalizeMathToContentHandler() throws Exception {
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final CanonicalizationCache cache = new CanonicalizationCache(directory, Long.MAX_VALUE);
+        final XMLOutputter outputter = new XMLOutputter();
+        for (int round = 0; round < 2; round++) {
+            for (byte[] input : inputs) {
+                final SAXHandler expected = new SAXHandler();
+                canonicalizer.canonicalizeMath(new ByteArrayInputStream(input), expected);
+                final SAXHandler cached = new SAXHandler();
+                cache.canonicalizeMath(canonicalizer, new ByteArrayInputStream(input), cached);
+                assertEquals(outputter.outputString(expected.getDocument()),
+                        outputter.outputString(cached.getDocument()));
+            }
+        }
+        assertEquals(inputs.size(), cache.getHitCount());
+    }
+
+    @Test
+    public void shouldKeepSizeBudget() throws Exception {
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final CanonicalizationCache unlimited = new CanonicalizationCache(directory, Long.MAX_VALUE);
+        for (byte[] input : inputs) {
+            canonicalize(unlimited, canonicalizer, input);
+        }
+        final long budget = unlimited.getSize() / 2;
+
+        final CanonicalizationCache cache = new CanonicalizationCache(directory, budget);
+        assertTrue(cache.getSize() <= budget);
+        for (byte[] input : inputs) {
+            assertArrayEquals(canonicalize(canonicalizer, input), canonicalize(cache, canonicalizer, input));
+            assertTrue(cache.getSize() <= budget);
+        }
+        assertEquals(cache.getSize(), cache.collectGarbage());
+    }
+
+    @Test
+    public void shouldReplaceCorruptedEntries() throws Exception {
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final CanonicalizationCache cache = new CanonicalizationCache(directory, Long.MAX_VALUE);
+        canonicalize(cache, canonicalizer, inputs.get(0));
+        final Collection<File> entries = FileUtils.listFiles(directory.toFile(), null, true);
+        assertEquals(1, entries.size());
+        FileUtils.writeByteArrayToFile(entries.iterator().next(), new byte[]{1, 2, 3});
+
+        assertArrayEquals(canonicalize(canonicalizer, inputs.get(0)), canonicalize(cache, canonicalizer, inputs.get(0)));
+        assertEquals(2, cache.getMissCount());
+        canonicalize(cache, canonicalizer, inputs.get(0));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    private static byte[] canonicalize(final MathMLCanonicalizer canonicalizer, final byte[] input)
+            throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        canonicalizer.canonicalize(new ByteArrayInputStream(input), output);
+        return output.toByteArray();
+    }
+
+    private static byte[] canonicalize(final CanonicalizationCache cache, final MathMLCanonicalizer canonicalizer,
+            final byte[] input) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cache.canonicalize(canonicalizer, new ByteArrayInputStream(input), output);
+        return output.toByteArray();
+    }
+
+}
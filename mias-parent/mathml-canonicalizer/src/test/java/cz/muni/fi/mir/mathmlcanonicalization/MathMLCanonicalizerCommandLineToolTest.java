@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleTestResources;
+
+/**
+ * Test cases for MathMLCanonicalizerCommandLineTool class.
+ *
+ * @author David Formanek
+ */
+public class MathMLCanonicalizerCommandLineToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldOverwriteFilesInParallel() throws Exception {
+        final File config = folder.newFile("config.xml");
+        FileUtils.copyInputStreamToFile(Settings.getStreamFromProperty("defaultConfig"), config);
+        final File directory = folder.newFolder("inputs");
+        final MathMLCanonicalizer canonicalizer = new MathMLCanonicalizer(new ByteArrayInputStream(
+                FileUtils.readFileToByteArray(config)));
+        final List<File> files = new ArrayList<>();
+        final List<byte[]> expected = new ArrayList<>();
+        int index = 0;
+        for (InputStream resource : ModuleTestResources.getAllTestResources()) {
+            final byte[] input = IOUtils.toByteArray(resource);
+            final File file = new File(directory, (index % 3) + File.separator + index + ".xml");
+            FileUtils.writeByteArrayToFile(file, input);
+            files.add(file);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            canonicalizer.canonicalize(new ByteArrayInputStream(input), output);
+            expected.add(output.toByteArray());
+            index++;
+        }
+
+        MathMLCanonicalizerCommandLineTool.main(new String[]{"-c", config.getPath(), "-w", "-j", "4",
+            directory.getPath()});
+
+        for (int i = 0; i < files.size(); i++) {
+            assertArrayEquals(files.get(i).getName(), expected.get(i), FileUtils.readFileToByteArray(files.get(i)));
+        }
+        // no temporary files are left
+        assertEquals(files.size(), FileUtils.listFiles(directory, null, true).size());
+    }
+
+}
@@ -18,20 +18,35 @@ package cz.muni.fi.mir.mathmlcanonicalization;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.jdom2.Document;
+import org.jdom2.Element;
 import org.jdom2.JDOMException;
+import org.jdom2.input.sax.SAXHandler;
+import org.jdom2.output.XMLOutputter;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ElementMinimizer;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.FunctionNormalizer;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.Module;
 import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleException;
 import cz.muni.fi.mir.mathmlcanonicalization.modules.ModuleTestResources;
+import cz.muni.fi.mir.mathmlcanonicalization.modules.ScriptNormalizer;
 
 /**
  * Test cases for MathMLCanonicalizer class.
@@ -47,7 +62,7 @@ public class MathMLCanonicalizerTest {
 
     @Test
     public void testLoadingProperties() throws
-            UnsupportedEncodingException, IOException, JDOMException, ModuleException {
+            UnsupportedEncodingException, IOException, JDOMException, ModuleException, ConfigException {
         final String config = XML_DECLARATION
                 + "<config>"
                 + " <property name=\"existing\">value</property>"
@@ -64,8 +79,62 @@ public class MathMLCanonicalizerTest {
             e = ex;
         }
         assertNotNull(e);
-        assertEquals(Settings.getProperty("existing"), "value");
         assertFalse(Settings.isProperty("nonExisting"));
+
+        final String validConfig = XML_DECLARATION
+                + "<config>"
+                + " <property name=\"existing\">value</property>"
+                + "</config>";
+        final MathMLCanonicalizer canonicalizer = new MathMLCanonicalizer(
+                new ByteArrayInputStream(validConfig.getBytes("UTF-8")));
+        assertEquals("value", canonicalizer.getProperty("existing"));
+        // the configuration belongs to the canonicalizer only
+        assertEquals("", Settings.getProperty("existing"));
+        assertEquals("", new MathMLCanonicalizer().getProperty("existing"));
+    }
+
+    @Test
+    public void shouldParseWithOverriddenDTD() throws Exception {
+        final String config = XML_DECLARATION
+                + "<config>"
+                + " <property name=\"dtdXHTMLPlusMathMLPlusSVG\">"
+                + "/cz/muni/fi/mir/mathmlcanonicalization/test-alpha.dtd</property>"
+                + "</config>";
+        final String document = XML_DECLARATION
+                + "<!DOCTYPE math SYSTEM \"xhtml-math11-f.dtd\">"
+                + "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>&alpha;</mi></math>";
+        final MathMLCanonicalizer canonicalizer = new MathMLCanonicalizer(
+                new ByteArrayInputStream(config.getBytes("UTF-8")));
+
+        assertEquals("alpha", canonicalizer.canonicalize(new ByteArrayInputStream(document.getBytes("UTF-8")))
+                .getRootElement().getChildren().get(0).getText());
+        // parsed by the stream filter
+        canonicalizer.addModule(new ElementMinimizer());
+        assertEquals("alpha", canonicalizer.canonicalize(new ByteArrayInputStream(document.getBytes("UTF-8")))
+                .getRootElement().getChildren().get(0).getText());
+        // the global DTD is left unchanged
+        assertEquals("\u03b1", new MathMLCanonicalizer().canonicalize(
+                new ByteArrayInputStream(document.getBytes("UTF-8")))
+                .getRootElement().getChildren().get(0).getText());
+
+        final String missingDTD = config.replace("test-alpha.dtd", "missing.dtd");
+        Throwable e = null;
+        try {
+            new MathMLCanonicalizer(new ByteArrayInputStream(missingDTD.getBytes("UTF-8")));
+        } catch (ConfigException ex) {
+            e = ex;
+        }
+        assertNotNull(e);
+    }
+
+    @Test
+    public void shouldChangeConfigurationVersionOnlyOnNewValue() {
+        Settings.setProperty("versioned", "a");
+        long version = Settings.getConfigurationVersion();
+        Settings.setProperty("versioned", "a");
+        assertEquals(version, Settings.getConfigurationVersion());
+        Settings.setProperty("versioned", "b");
+        assertTrue(Settings.getConfigurationVersion() > version);
     }
 
     @Test
@@ -78,6 +147,121 @@ public class MathMLCanonicalizerTest {
         }
     }
 
+    @Test
+    public void shouldCanonicalizeOnlyMath() throws Exception {
+        final String first = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+                + "<mi>a</mi><mo>&#x2062;</mo><mfenced><mi>b</mi><mi>c</mi></mfenced></math>";
+        final String second = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+                + "<msubsup><mi>x</mi><mn>1</mn><mn>2</mn></msubsup><mspace width=\"1em\"/></math>";
+        final String document = XML_DECLARATION
+                + "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title>Title</title></head><body>"
+                + "<p>Text " + first + " text.</p><table><tr><td>" + second + "</td></tr></table>"
+                + "</body></html>";
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final XMLOutputter outputter = new XMLOutputter();
+
+        final Document whole = canonicalizer.canonicalize(new ByteArrayInputStream(document.getBytes("UTF-8")));
+        final Document kept = canonicalizer.canonicalizeMath(new ByteArrayInputStream(document.getBytes("UTF-8")), true);
+        assertEquals(outputter.outputString(whole), outputter.outputString(kept));
+
+        final Document dropped = canonicalizer.canonicalizeMath(new ByteArrayInputStream(document.getBytes("UTF-8")), false);
+        final Element root = dropped.getRootElement();
+        assertEquals("html", root.getName());
+        assertEquals(2, root.getContentSize());
+        int index = 0;
+        for (String math : new String[]{first, second}) {
+            final Document alone = canonicalizer.canonicalize(new ByteArrayInputStream(math.getBytes("UTF-8")));
+            assertEquals(outputter.outputString(alone.getRootElement()),
+                    outputter.outputString(root.getChildren().get(index++)));
+        }
+    }
+
+    @Test
+    public void shouldCanonicalizeMathToContentHandler() throws Exception {
+        final String math = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+                + "<mi>a</mi><mo>&#x2062;</mo><mfenced><mi>b</mi><mi>c</mi></mfenced></math>";
+        final List<String> documents = new ArrayList<>();
+        documents.add(XML_DECLARATION + math);
+        documents.add(XML_DECLARATION
+                + "<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\"><body><p>Text"
+                + math + math + "<m:math xmlns:m=\"http://www.w3.org/1998/Math/MathML\"><m:mi>x</m:mi></m:math>"
+                + "</p></body></html>");
+        for (InputStream resource : ModuleTestResources.getAllTestResources()) {
+            documents.add(IOUtils.toString(resource, "UTF-8"));
+        }
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final XMLOutputter outputter = new XMLOutputter();
+
+        for (String document : documents) {
+            final Document expected = canonicalizer.canonicalizeMath(
+                    new ByteArrayInputStream(document.getBytes("UTF-8")), false);
+            final SAXHandler handler = new SAXHandler();
+            canonicalizer.canonicalizeMath(new ByteArrayInputStream(document.getBytes("UTF-8")), handler);
+            assertEquals(outputter.outputString(expected), outputter.outputString(handler.getDocument()));
+        }
+    }
+
+    @Test
+    public void shouldSkipModulesWithoutTrigger() throws Exception {
+        final String document = XML_DECLARATION
+                + "<html xmlns=\"http://www.w3.org/1999/xhtml\"><body>"
+                + "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>sin</mi><mo>&#x2061;</mo><mi>x</mi></math>"
+                + "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><msubsup><mi>x</mi><mn>1</mn><mn>2</mn></msubsup></math>"
+                + "</body></html>";
+        final Module minimizer = new ElementMinimizer();
+        final Module functionNormalizer = new FunctionNormalizer();
+        functionNormalizer.setProperty("functionoperators", "\u2061");
+        final Module scriptNormalizer = new ScriptNormalizer();
+        scriptNormalizer.setProperty("swapscripts", "true");
+        scriptNormalizer.setProperty("splitscriptselements", "mi");
+        scriptNormalizer.setProperty("unifyscripts", "true");
+        final MathMLCanonicalizer canonicalizer = new MathMLCanonicalizer()
+                .addModule(minimizer).addModule(functionNormalizer).addModule(scriptNormalizer);
+
+        final Document result = canonicalizer.canonicalizeMath(new ByteArrayInputStream(document.getBytes("UTF-8")), false);
+        assertEquals(1, canonicalizer.getExecutionCount(minimizer));
+        assertEquals(1, canonicalizer.getExecutionCount(functionNormalizer));
+        assertEquals(1, canonicalizer.getSkipCount(functionNormalizer));
+        assertEquals(1, canonicalizer.getExecutionCount(scriptNormalizer));
+        assertEquals(1, canonicalizer.getSkipCount(scriptNormalizer));
+        final String output = new XMLOutputter().outputString(result);
+        assertTrue(output.contains("<mrow><mo>(</mo><mi>x</mi><mo>)</mo></mrow>"));
+        assertTrue(output.contains("<msup><msub><mi>x</mi><mn>1</mn></msub><mn>2</mn></msup>"));
+    }
+
+    @Test
+    public void shouldCanonicalizeConcurrently() throws Exception {
+        final List<byte[]> inputs = new ArrayList<>();
+        final List<String> expected = new ArrayList<>();
+        for (InputStream resource : ModuleTestResources.getAllTestResources()) {
+            final byte[] input = IOUtils.toByteArray(resource);
+            inputs.add(input);
+            expected.add(canonicalize(MathMLCanonicalizer.getDefaultCanonicalizer(), input));
+        }
+
+        final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 10 * inputs.size(); i++) {
+                final byte[] input = inputs.get(i % inputs.size());
+                results.add(executor.submit(() -> canonicalize(canonicalizer, input)));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(expected.get(i % inputs.size()), results.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String canonicalize(final MathMLCanonicalizer canonicalizer, final byte[] input)
+            throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        canonicalizer.canonicalize(new ByteArrayInputStream(input), output);
+        return output.toString("UTF-8");
+    }
+
     @Ignore
     @Test
     public void stressTest() throws Exception {
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.modules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Test for running the passes of DOM modules.
+ *
+ * @author David Formanek
+ */
+public class DOMPassTest {
+
+    private Document createDocument() {
+        final Element root = new Element("math");
+        final Element row = new Element("mrow");
+        row.addContent(new Element("mi").setText("x"));
+        row.addContent(new Element("mo").setText("+"));
+        root.addContent(row);
+        root.addContent(new Element("mn").setText("1"));
+        return new Document(root);
+    }
+
+    @Test
+    public void testElementPassesInSingleTraversal() throws ModuleException {
+        final List<String> handled = new ArrayList<>();
+        final DOMPass first = DOMPass.ofElements(element -> {
+            handled.add("1" + element.getName());
+            return element;
+        });
+        final DOMPass second = DOMPass.ofElements(element -> {
+            handled.add("2" + element.getName());
+            return element;
+        });
+        DOMPass.execute(Arrays.asList(first, second), createDocument());
+        assertEquals(Arrays.asList("1mi", "2mi", "1mo", "2mo", "1mrow", "2mrow", "1mn", "2mn",
+                "1math", "2math"), handled);
+    }
+
+    @Test
+    public void testDocumentPassSplitsTraversal() throws ModuleException {
+        final List<String> handled = new ArrayList<>();
+        final DOMPass element = DOMPass.ofElements(e -> {
+            if (e.getName().equals("mn")) {
+                handled.add(e.getName());
+            }
+            return e;
+        });
+        final DOMPass document = DOMPass.ofDocument(doc -> handled.add("doc"));
+        DOMPass.execute(Arrays.asList(element, document, element), createDocument());
+        assertEquals(Arrays.asList("mn", "doc", "mn"), handled);
+    }
+
+    @Test
+    public void testReplacedAndRemovedElements() throws ModuleException {
+        final List<String> handled = new ArrayList<>();
+        final DOMPass replacing = DOMPass.ofElements(element -> {
+            if (element.getName().equals("mi")) {
+                final Element replacement = new Element("mo").setText(element.getText());
+                element.getParentElement().setContent(0, replacement);
+                return replacement;
+            }
+            if (element.getName().equals("mn")) {
+                element.detach();
+                return null;
+            }
+            return element;
+        });
+        final DOMPass recording = DOMPass.ofElements(element -> {
+            handled.add(element.getName() + element.getText());
+            return element;
+        });
+        final Document doc = createDocument();
+        DOMPass.execute(Arrays.asList(replacing, recording), doc);
+        assertEquals(Arrays.asList("mox", "mo+", "mrow", "math"), handled);
+        assertEquals(1, doc.getRootElement().getChildren().size());
+        assertNull(doc.getRootElement().getChild("mn"));
+    }
+
+}
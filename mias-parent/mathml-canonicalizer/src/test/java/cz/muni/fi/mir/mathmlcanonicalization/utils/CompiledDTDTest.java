@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.io.IOUtils;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.input.sax.XMLReaders;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+import cz.muni.fi.mir.mathmlcanonicalization.Settings;
+
+/**
+ * Test cases for CompiledDTD class.
+ *
+ * @author David Formanek
+ */
+public class CompiledDTDTest {
+
+    private static final String DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\""
+            + " \"http://www.w3.org/TR/MathML2/dtd/xhtml-math11-f.dtd\">\n"
+            + "<html><head><title>&alpha; &amp; &lt;&NewLine;</title></head><body>"
+            + "<p id=\" p1 \" title=\"&copy;&quot;\">&nbsp;&fjlig;</p>"
+            + "<math><mi>a</mi><mo>&InvisibleTimes;</mo><mi>&Bscr;</mi>"
+            + "<mo stretchy=\" false \">&ApplyFunction;</mo></math>"
+            + "</body></html>";
+
+    @Test
+    public void shouldParseAsOriginalDTD() throws Exception {
+        final CompiledDTD compiled = CompiledDTD.compile(Settings.getResourceFromProperty("dtdXHTMLPlusMathMLPlusSVG"));
+        assertTrue(compiled.size() < Settings.getResourceFromProperty("dtdXHTMLPlusMathMLPlusSVG")
+                .openConnection().getContentLength());
+
+        final Document original = build(Settings.getStreamFromProperty("dtdXHTMLPlusMathMLPlusSVG"));
+        final Document result = build(compiled.openStream());
+        final XMLOutputter outputter = new XMLOutputter();
+        assertEquals(outputter.outputString(original.getRootElement()), outputter.outputString(result.getRootElement()));
+
+        // namespace of the root element is a fixed default attribute in the DTD
+        assertEquals("http://www.w3.org/1999/xhtml", result.getRootElement().getNamespaceURI());
+        final Element math = result.getRootElement().getChildren().get(1).getChildren().get(1);
+        assertEquals("\u2062", math.getChildren().get(1).getText());
+        assertEquals("false", math.getChildren().get(3).getAttributeValue("stretchy"));
+    }
+
+    @Test
+    public void shouldResolveNamedEntities() throws Exception {
+        final Document document = Settings.setupSAXBuilder().build(
+                new ByteArrayInputStream(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("\u03b1 & <\n", document.getRootElement().getChildren().get(0).getChildren().get(0).getText());
+
+        final XMLStreamReader reader = Settings.setupXMLInputFactory().createXMLStreamReader(
+                new ByteArrayInputStream(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+        final StringBuilder operators = new StringBuilder();
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("mo")) {
+                operators.append(reader.getElementText());
+            }
+        }
+        assertEquals("\u2062\u2061", operators.toString());
+    }
+
+    @Test
+    public void shouldCompileChangedDTD() throws Exception {
+        final String document = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\""
+                + " \"xhtml-math11-f.dtd\"><html>&alpha;</html>";
+        final String original = Settings.getProperty("dtdXHTMLPlusMathMLPlusSVG");
+        assertEquals("\u03b1", Settings.setupSAXBuilder().build(new StringReader(document)).getRootElement().getText());
+        Settings.setProperty("dtdXHTMLPlusMathMLPlusSVG", "/cz/muni/fi/mir/mathmlcanonicalization/test-alpha.dtd");
+        try {
+            assertEquals("alpha", Settings.setupSAXBuilder().build(new StringReader(document)).getRootElement().getText());
+        } finally {
+            Settings.setProperty("dtdXHTMLPlusMathMLPlusSVG", original);
+        }
+        assertEquals("\u03b1", Settings.setupSAXBuilder().build(new StringReader(document)).getRootElement().getText());
+    }
+
+    private static Document build(final InputStream dtd) throws Exception {
+        final byte[] declarations = IOUtils.toByteArray(dtd);
+        final SAXBuilder builder = new SAXBuilder();
+        builder.setXMLReaderFactory(XMLReaders.NONVALIDATING);
+        builder.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", true);
+        builder.setEntityResolver((publicId, systemId) -> new InputSource(new ByteArrayInputStream(declarations)));
+        return builder.build(new ByteArrayInputStream(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 MIR@MU Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package cz.muni.fi.mir.mathmlcanonicalization.utils;
+
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of compiled element patterns.
+ *
+ * @author David Formanek
+ */
+public class ElementPatternTest {
+
+    private static final Namespace MATHML = Namespace.getNamespace("mathml", "http://www.w3.org/1998/Math/MathML");
+
+    @Test
+    public void testNameTests() {
+        final Element noNamespace = new Element("mo");
+        final Element mathml = new Element("mo", MATHML.getURI());
+        assertTrue(ElementPattern.compile("mo").matches(noNamespace));
+        assertFalse(ElementPattern.compile("mo").matches(mathml));
+        assertTrue(ElementPattern.compile("mathml:mo", MATHML).matches(mathml));
+        assertTrue(ElementPattern.compile("mathml:*", MATHML).matches(mathml));
+        assertTrue(ElementPattern.compile("*").matches(mathml));
+        assertTrue(ElementPattern.compile("mi | mo").matches(noNamespace));
+    }
+
+    @Test
+    public void testStructuralConditions() {
+        final Element row = new Element("mrow");
+        final Element first = new Element("mo").setText("-");
+        final Element second = new Element("mi").setText("x");
+        final Element third = new Element("mo").setText("+");
+        final Element fourth = new Element("mo").setText("-");
+        row.addContent(first).addContent(second).addContent(third).addContent(fourth);
+
+        final ElementPattern unary = ElementPattern.compile("mo[count(preceding-sibling::*) = 0]");
+        assertTrue(unary.matches(first));
+        assertFalse(unary.matches(third));
+
+        final ElementPattern doubled = ElementPattern.compile("mo[preceding-sibling::*[1][self::mo]]");
+        assertFalse(doubled.matches(first));
+        assertFalse(doubled.matches(third));
+        assertTrue(doubled.matches(fourth));
+
+        assertTrue(ElementPattern.compile("mrow[count(child::mo) >= 3]").matches(row));
+        assertTrue(ElementPattern.compile("mrow[child::*[2][self::mi]]").matches(row));
+        assertTrue(ElementPattern.compile("mi[parent::mrow][following-sibling::mo[2]]").matches(second));
+        assertFalse(ElementPattern.compile("mi[following-sibling::mo[3]]").matches(second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedAxis() {
+        ElementPattern.compile("mo[ancestor::mrow]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnboundPrefix() {
+        ElementPattern.compile("mathml:mo");
+    }
+
+}
@@ -34,6 +34,15 @@ import org.xml.sax.SAXException;
  */
 public class DOMBuilder {
 
+    /**
+     * Namespace aware document builder factory, created only once per thread.
+     */
+    private static final ThreadLocal<DocumentBuilderFactory> DOCUMENT_BUILDER_FACTORY = ThreadLocal.withInitial(() -> {
+        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+        docFactory.setNamespaceAware(true);
+        return docFactory;
+    });
+
     /**
      * Build W3C DOM representation of XML file specified by filesystem path.
      *
@@ -163,9 +172,7 @@ public class DOMBuilder {
      * @throws ParserConfigurationException
      */
     public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        docFactory.setNamespaceAware(true);
-        return docFactory.newDocumentBuilder();
+        return DOCUMENT_BUILDER_FACTORY.get().newDocumentBuilder();
     }
 
 }
@@ -1,12 +1,18 @@
 package cz.muni.fi.mias;
 
 import cz.muni.fi.mias.indexing.Indexing;
+import cz.muni.fi.mias.indexing.MathTermMigration;
+import cz.muni.fi.mias.search.BatchSearching;
+import java.io.File;
+import java.io.IOException;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Main class witch main method.
@@ -16,6 +22,8 @@ import org.apache.commons.cli.ParseException;
  */
 public class MIaS {
 
+    private static final Logger LOG = LogManager.getLogger(MIaS.class);
+
     public static void main(String[] args) {
         Options options = Settings.getMIaSOptions();
         try {
@@ -58,6 +66,19 @@ public class MIaS {
                 InDocProcessing idp = new InDocProcessing(cmd.getOptionValues(Settings.OPTION_INDOCPROCESS)[0], cmd.getOptionValues(Settings.OPTION_INDOCPROCESS)[1]);
                 idp.process();
             }
+            if (cmd.hasOption(Settings.OPTION_SEARCH_BATCH)) {
+                String[] values = cmd.getOptionValues(Settings.OPTION_SEARCH_BATCH);
+                BatchSearching bs = new BatchSearching(values[0], values[1], values[2]);
+                bs.search();
+            }
+            if (cmd.hasOption(Settings.OPTION_MIGRATE_TERMS)) {
+                MathTermMigration migration = new MathTermMigration(new File(Settings.getIndexDir()), new File(cmd.getOptionValue(Settings.OPTION_MIGRATE_TERMS)));
+                try {
+                    migration.migrate();
+                } catch (IOException ex) {
+                    LOG.fatal("Migration of the index failed", ex);
+                }
+            }
         } catch (ParseException ex) {
             printHelp(options);
         }
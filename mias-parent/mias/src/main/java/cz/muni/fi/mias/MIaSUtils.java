@@ -10,11 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import org.xml.sax.EntityResolver;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 /**
  * Utilities class.
@@ -23,8 +19,6 @@ import org.xml.sax.SAXException;
  */
 public class MIaSUtils {
 
-    private static final String MATHML_DTD = "/cz/muni/fi/mias/math/xhtml-math11-f.dtd";
-
     /**
      * Extracts string content from a reader.
      *
@@ -43,21 +37,10 @@ public class MIaSUtils {
         return builder.toString();
     }
 
+    /**
+     * @see MIaSMathUtils#prepareDocumentBuilder()
+     */
     public static DocumentBuilder prepareDocumentBuilder() throws ParserConfigurationException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        builder.setEntityResolver(new EntityResolver() {
-
-            public InputSource resolveEntity(String publicId, String systemId)
-                    throws SAXException, java.io.IOException {
-                if (systemId.endsWith("dtd")) {
-                    return new InputSource(MIaSUtils.class.getResourceAsStream(MATHML_DTD));
-                } else {
-                    return null;
-                }
-            }
-        });
-        return builder;
+        return MIaSMathUtils.prepareDocumentBuilder();
     }
 }
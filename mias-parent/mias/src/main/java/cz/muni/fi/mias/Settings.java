@@ -1,6 +1,10 @@
 package cz.muni.fi.mias;
 
+import cz.muni.fi.mias.math.MathTermEncoding;
+import cz.muni.fi.mir.mathmlcanonicalization.CanonicalizationCache;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Properties;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
@@ -19,6 +23,8 @@ public class Settings {
     private static final Logger LOG = LogManager.getLogger(Settings.class);
     public static final String EMPTY_STRING  = "";
     private static Properties config;
+    private static CanonicalizationCache canonicalizationCache;
+    private static boolean canonicalizationCacheOpened;
     public static char dirSep = System.getProperty("file.separator").charAt(0);
     public static String eol = System.getProperty("line.separator");
     public static final String MATHDOCHEADER = "<?xml version='1.0' encoding='UTF-8'?><!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\" \"http://www.w3.org/TR/MathML2/dtd/xhtml-math11-f.dtd\">";
@@ -31,6 +37,8 @@ public class Settings {
     public static final String OPTION_DELETEINDEX = "deleteindex";
     public static final String OPTION_STATS = "stats";
     public static final String OPTION_INDOCPROCESS = "indocprocess";
+    public static final String OPTION_SEARCH_BATCH = "searchbatch";
+    public static final String OPTION_MIGRATE_TERMS = "migrateterms";
     
     public static Options getMIaSOptions() {
         Options options = new Options();
@@ -71,6 +79,17 @@ public class Settings {
             .argName("input_path> <root_dir")
             .desc("where root_dir is an absolute path to a directory in the input_path. Processes math formulae and inserts M-terms into documents created under root_dir.")
             .build());
+        options.addOption(Option.builder(OPTION_SEARCH_BATCH)
+            .hasArgs()
+            .numberOfArgs(3)
+            .argName("topics_file> <run_file> <root_dir")
+            .desc("where root_dir is the directory the files were indexed relative to. Searches all topics of the topics_file concurrently and writes the results to run_file in TREC format and query latencies to run_file.latency.")
+            .build());
+        options.addOption(Option.builder(OPTION_MIGRATE_TERMS)
+            .hasArg()
+            .argName("target_index_dir")
+            .desc("Copies the index with text M-terms to target_index_dir with hashed M-terms. Set MATH_TERM_ENCODING=hash to add documents to the new index, searching detects the encoding from the index.")
+            .build());
         return options;
     }
     
@@ -82,10 +101,17 @@ public class Settings {
            LOG.fatal(e);
             System.exit(2);            
         }
+        resetCanonicalizationCache();
     }
     
     public static void init() {
         config = new Properties();
+        resetCanonicalizationCache();
+    }
+
+    private static synchronized void resetCanonicalizationCache() {
+        canonicalizationCache = null;
+        canonicalizationCacheOpened = false;
     }
     
     /**
@@ -160,6 +186,283 @@ public class Settings {
         return result;
     }
 
+    /**
+     * 
+     * @return Maximal number of M-terms in the math part of a query. Zero or negative value, the default, means no limit.
+     */
+    public static int getMathTermBudget() {
+        String n = config.getProperty("MATH_TERM_BUDGET");
+        int result = 0;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Fraction of documents above which a query M-term is considered common.
+     */
+    public static float getMathCommonTermRatio() {
+        String n = config.getProperty("MATH_COMMON_TERM_RATIO");
+        float result = 0.5F;
+        try {
+            result = Float.parseFloat(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Factor by which the weights of common query M-terms are multiplied, 1 (default) keeps their weights.
+     */
+    public static float getMathCommonTermFactor() {
+        String n = config.getProperty("MATH_COMMON_TERM_FACTOR");
+        float result = 1.0F;
+        try {
+            result = Float.parseFloat(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Maximal number of parsed queries kept in the query cache. Zero disables the cache.
+     */
+    public static int getQueryCacheSize() {
+        String n = config.getProperty("QUERY_CACHE_SIZE");
+        int result = 1000;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Maximal number of queries whose best hits are kept in the result cache. Zero disables the cache.
+     */
+    public static int getResultCacheSize() {
+        String n = config.getProperty("RESULT_CACHE_SIZE");
+        int result = 100;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Minimal number of hits retrieved by one search, further pages within this window are served from the result cache.
+     */
+    public static int getResultWindow() {
+        String n = config.getProperty("RESULT_WINDOW");
+        int result = 100;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Estimated query cost (total number of postings of the query terms) from which the index segments are searched in parallel.
+     */
+    public static long getParallelSearchCost() {
+        String n = config.getProperty("PARALLEL_SEARCH_COST");
+        long result = 100000;
+        try {
+            result = Long.parseLong(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Number of results written for every topic in batch searching.
+     */
+    public static int getBatchResults() {
+        String n = config.getProperty("BATCH_RESULTS");
+        int result = 1000;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Preference for indexing structural fingerprints and canonical trees of the formulae used by the structural search.
+     */
+    public static boolean getIndexStructure() {
+        String prop = config.getProperty("STRUCTURE_INDEX");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Number of candidates retrieved by fingerprints and reranked by tree similarity in the structural search.
+     */
+    public static int getStructureCandidates() {
+        String n = config.getProperty("STRUCTURE_CANDIDATES");
+        int result = 300;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Time limit in milliseconds for retrieving candidates of the structural search.
+     */
+    public static long getStructureCandidateMillis() {
+        String n = config.getProperty("STRUCTURE_CANDIDATE_MILLIS");
+        long result = 1000;
+        try {
+            result = Long.parseLong(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Time limit in milliseconds for reranking candidates of the structural search, candidates not reranked in time keep their order.
+     */
+    public static long getStructureRerankMillis() {
+        String n = config.getProperty("STRUCTURE_RERANK_MILLIS");
+        long result = 500;
+        try {
+            result = Long.parseLong(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Preference for building the approximate nearest neighbour index of formula vectors after indexing. Requires STRUCTURE_INDEX.
+     */
+    public static boolean getIndexVectors() {
+        String prop = config.getProperty("VECTOR_INDEX");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Size of the candidate list of the nearest neighbour search of formula vectors. Greater values give more accurate results at higher cost.
+     */
+    public static int getVectorSearchEf() {
+        String n = config.getProperty("VECTOR_EF_SEARCH");
+        int result = 100;
+        try {
+            result = Integer.parseInt(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Preference for indexing the impact levels of M-terms which let the search skip documents that can not make it into the best hits.
+     */
+    public static boolean getIndexImpacts() {
+        String prop = config.getProperty("MATH_IMPACTS");
+        boolean result = false;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Minimal number of nodes of formulae whose M-terms are indexed also in the complex tier fields searched before the whole math fields, 0 (default) disables the tiers.
+     */
+    public static int getMathTierNodes() {
+        String prop = config.getProperty("MATH_TIER_NODES");
+        int result = 0;
+        if (prop != null) {
+            try {
+                result = Integer.parseInt(prop);
+            } catch (NumberFormatException nfe) {
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Preference for using hits of the complex tier only if they are provably the same as the hits of the whole index (default), otherwise any sufficient number of hits of the complex tier is used.
+     */
+    public static boolean getMathTierExact() {
+        String prop = config.getProperty("MATH_TIER_EXACT");
+        boolean result = true;
+        if (prop != null) {
+            result = Boolean.parseBoolean(prop);
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Encoding of M-terms in newly created indexes, text (default) or hash. Existing indexes keep the encoding they were created with.
+     */
+    public static MathTermEncoding getMathTermEncoding() {
+        String prop = config.getProperty("MATH_TERM_ENCODING");
+        MathTermEncoding result = MathTermEncoding.TEXT;
+        try {
+            result = MathTermEncoding.forName(prop);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Cache of canonicalized formulae in the CANONICALIZATION_CACHE_DIR directory limited to CANONICALIZATION_CACHE_SIZE megabytes (default 1024), shared by all threads. Null if the directory is not set or the cache cannot be opened.
+     */
+    public static synchronized CanonicalizationCache getCanonicalizationCache() {
+        if (!canonicalizationCacheOpened) {
+            canonicalizationCacheOpened = true;
+            String dir = config.getProperty("CANONICALIZATION_CACHE_DIR");
+            if (dir != null && !dir.isEmpty()) {
+                long megabytes = 1024;
+                String n = config.getProperty("CANONICALIZATION_CACHE_SIZE");
+                if (n != null) {
+                    try {
+                        megabytes = Long.parseLong(n);
+                    } catch (NumberFormatException nfe) {
+                    }
+                }
+                try {
+                    canonicalizationCache = new CanonicalizationCache(Paths.get(dir), megabytes * 1024 * 1024);
+                } catch (IOException | IllegalArgumentException e) {
+                    LOG.error("Canonicalization cache " + dir + " cannot be opened, formulae will be canonicalized.", e);
+                }
+            }
+        }
+        return canonicalizationCache;
+    }
+
     public static boolean getIndexFormulaeDocuments() {
         String prop = config.getProperty("FORMULA_DOCUMENTS");
         if (prop == null || prop.isEmpty()) {
@@ -5,7 +5,9 @@ import cz.muni.fi.mias.Settings;
 import cz.muni.fi.mias.indexing.doc.FileExtDocumentHandler;
 import cz.muni.fi.mias.indexing.doc.FolderVisitor;
 import cz.muni.fi.mias.indexing.doc.RecursiveFileVisitor;
+import cz.muni.fi.mias.math.MathTermEncoding;
 import cz.muni.fi.mias.math.MathTokenizer;
+import cz.muni.fi.mias.search.FormulaVectorIndex;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -13,6 +15,7 @@ import java.lang.management.ThreadMXBean;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.*;
@@ -80,14 +83,19 @@ public class Indexing {
             ps.setDiscountOverlaps(false);
             config.setSimilarity(ps);
             config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+            if (!checkMathTermEncoding()) {
+                return;
+            }
             try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), config))
             {
+                writer.setCommitData(Collections.singletonMap(MathTermEncoding.USER_DATA_KEY, Settings.getMathTermEncoding().name()));
                 LOG.info("Getting list of documents to index.");
                 List<File> files = getDocs(docDir);
                 countFiles(files);
                 LOG.info("Number of documents to index is {}",count);
                 indexDocsThreaded(files, writer);
             }
+            buildVectorIndex();
         } catch (IOException ex) {
             LOG.error(ex);
         }
@@ -178,6 +186,49 @@ public class Indexing {
         }
     }
 
+    /**
+     * Checks that the M-term encoding of the settings matches the encoding of
+     * the existing index, documents with differently encoded M-terms could not
+     * be found.
+     *
+     * @return true if there is no index yet or the encodings match
+     */
+    private boolean checkMathTermEncoding() throws IOException {
+        FSDirectory dir = FSDirectory.open(indexDir);
+        if (!DirectoryReader.indexExists(dir)) {
+            return true;
+        }
+        MathTermEncoding encoding;
+        try (DirectoryReader dr = DirectoryReader.open(dir)) {
+            encoding = MathTermEncoding.fromIndex(dr);
+        }
+        if (encoding != Settings.getMathTermEncoding()) {
+            LOG.fatal("Index uses {} M-term encoding but MATH_TERM_ENCODING is {}, set it accordingly or migrate the index.",
+                    encoding, Settings.getMathTermEncoding());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the nearest neighbour index of formula vectors if it is enabled
+     * in the settings.
+     */
+    private void buildVectorIndex() {
+        if (!Settings.getIndexVectors()) {
+            return;
+        }
+        if (!Settings.getIndexStructure()) {
+            LOG.warn("Formula vector index requires STRUCTURE_INDEX, skipping.");
+            return;
+        }
+        try (DirectoryReader dr = DirectoryReader.open(FSDirectory.open(indexDir))) {
+            FormulaVectorIndex.build(dr, new File(indexDir, FormulaVectorIndex.FILE_NAME));
+        } catch (IOException ex) {
+            LOG.error("Building formula vector index failed", ex);
+        }
+    }
+
     /**
      * Deletes whole current index directory
      */
@@ -221,6 +272,7 @@ public class Indexing {
         } catch (IOException ex) {
             System.out.println(ex.getMessage());
         }
+        buildVectorIndex();
     }
 
     private void deleteDocs(IndexWriter writer, File file) throws IOException {
@@ -248,10 +300,11 @@ public class Indexing {
         try(DirectoryReader dr = DirectoryReader.open(FSDirectory.open(indexDir))) {
             stats += "Index directory: "+indexDir.getAbsolutePath() + "\n";
             stats += "Number of indexed documents: " + dr.numDocs() + "\n";
+            stats += "M-term encoding: " + MathTermEncoding.fromIndex(dr) + "\n";
             
             long fileSize = 0;
             for (int i = 0; i < dr.numDocs(); i++) {
-                Document doc = dr.document(i);
+                Document doc = dr.document(i, Collections.singleton("filesize"));
                 if (doc.getField("filesize")!=null) {
                     String size = doc.getField("filesize").stringValue();
                     fileSize += Long.valueOf(size);
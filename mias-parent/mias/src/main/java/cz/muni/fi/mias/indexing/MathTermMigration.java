@@ -0,0 +1,321 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.math.MathImpacts;
+import cz.muni.fi.mias.math.MathTermEncoding;
+import cz.muni.fi.mias.math.MathTiers;
+import cz.muni.fi.mias.search.FormulaVectorIndex;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Rewrites an index with text M-terms to a new index with hashed M-terms
+ * ({@link MathTermEncoding#HASH}). Postings, stored fields and norms are
+ * copied unchanged, deleted documents are dropped and the result is merged
+ * into a single segment.
+ *
+ * Since the terms of a field are distinct, any repeated hash is a collision.
+ * All M-terms are checked and the migration fails if there is one.
+ *
+ * @author Martin Liska
+ */
+public class MathTermMigration {
+
+    private static final Logger LOG = LogManager.getLogger(MathTermMigration.class);
+    private static final Set<String> MATH_FIELDS = new HashSet<>(Arrays.asList("pmath", "cmath", MathTiers.field("pmath"), MathTiers.field("cmath")));
+    private static final Set<String> IMPACT_FIELDS = new HashSet<>(Arrays.asList(MathImpacts.field("pmath"), MathImpacts.field("cmath")));
+
+    private final File sourceDir;
+    private final File targetDir;
+
+    /**
+     * @param sourceDir Directory of the index with text M-terms
+     * @param targetDir Directory of the new index, must not contain an index
+     */
+    public MathTermMigration(File sourceDir, File targetDir) {
+        this.sourceDir = sourceDir;
+        this.targetDir = targetDir;
+    }
+
+    /**
+     * Runs the migration.
+     *
+     * @throws IOException if the indexes cannot be read or written, the source
+     * index is already migrated or hashes of its M-terms collide
+     */
+    public void migrate() throws IOException {
+        long start = System.currentTimeMillis();
+        try (DirectoryReader dr = DirectoryReader.open(FSDirectory.open(sourceDir))) {
+            MathTermEncoding encoding = MathTermEncoding.fromIndex(dr);
+            if (encoding != MathTermEncoding.TEXT) {
+                throw new IOException("Index " + sourceDir + " already uses " + encoding + " M-term encoding");
+            }
+            FSDirectory target = FSDirectory.open(targetDir);
+            if (DirectoryReader.indexExists(target)) {
+                throw new IOException("Directory " + targetDir + " already contains an index");
+            }
+            List<IndexReader> readers = new ArrayList<>();
+            for (AtomicReaderContext context : dr.leaves()) {
+                readers.add(new HashedMathTermsReader(context.reader()));
+            }
+            IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_45, new StandardAnalyzer());
+            PayloadSimilarity ps = new PayloadSimilarity();
+            ps.setDiscountOverlaps(false);
+            config.setSimilarity(ps);
+            try (IndexWriter writer = new IndexWriter(target, config)) {
+                writer.setCommitData(Collections.singletonMap(MathTermEncoding.USER_DATA_KEY, MathTermEncoding.HASH.name()));
+                writer.addIndexes(readers.toArray(new IndexReader[readers.size()]));
+                writer.commit();
+            }
+            LOG.info("Migrated {} documents from {} to {} in {} ms", dr.numDocs(), sourceDir, targetDir, System.currentTimeMillis() - start);
+        }
+        File vectors = new File(sourceDir, FormulaVectorIndex.FILE_NAME);
+        if (vectors.exists()) {
+            Files.copy(vectors.toPath(), new File(targetDir, FormulaVectorIndex.FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reader presenting the terms of the math fields hashed.
+     */
+    private static class HashedMathTermsReader extends FilterAtomicReader {
+
+        HashedMathTermsReader(AtomicReader in) {
+            super(in);
+        }
+
+        @Override
+        public Fields fields() throws IOException {
+            Fields fields = super.fields();
+            if (fields == null) {
+                return null;
+            }
+            return new FilterFields(fields) {
+                @Override
+                public Terms terms(String field) throws IOException {
+                    Terms terms = super.terms(field);
+                    if (terms == null) {
+                        return null;
+                    }
+                    if (MATH_FIELDS.contains(field)) {
+                        return new HashedTerms(field, terms, false, MathTermEncoding.HASH::encode);
+                    }
+                    return IMPACT_FIELDS.contains(field) ? new HashedTerms(field, terms, true, MathTermEncoding.HASH::encode) : terms;
+                }
+            };
+        }
+    }
+
+    /**
+     * Hashed terms of a field in hash order. Postings are read from the
+     * original terms. Terms of impact fields keep their level character after
+     * the hashed M-term.
+     */
+    static class HashedTerms extends Terms {
+
+        private final Terms in;
+        private final BytesRef[] hashes;
+        private final BytesRef[] originals;
+
+        /**
+         * @param field Name of the field
+         * @param in Original terms of the field
+         * @param impacts Whether the field is an impact field
+         * @param hash Hash function of M-terms
+         * @throws IOException if the terms cannot be read or hashes of two
+         * terms collide
+         */
+        HashedTerms(String field, Terms in, boolean impacts, Function<String, String> hash) throws IOException {
+            this.in = in;
+            List<BytesRef[]> pairs = new ArrayList<>();
+            TermsEnum te = in.iterator(null);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                String text = term.utf8ToString();
+                BytesRef hashed = new BytesRef(impacts
+                        ? hash.apply(text.substring(0, text.length() - 1)) + text.charAt(text.length() - 1)
+                        : hash.apply(text));
+                pairs.add(new BytesRef[]{hashed, BytesRef.deepCopyOf(term)});
+            }
+            Comparator<BytesRef> comparator = BytesRef.getUTF8SortedAsUnicodeComparator();
+            pairs.sort((a, b) -> comparator.compare(a[0], b[0]));
+            hashes = new BytesRef[pairs.size()];
+            originals = new BytesRef[pairs.size()];
+            for (int i = 0; i < pairs.size(); i++) {
+                hashes[i] = pairs.get(i)[0];
+                originals[i] = pairs.get(i)[1];
+                if (i > 0 && hashes[i].bytesEquals(hashes[i - 1])) {
+                    throw new IOException("Hash collision of M-terms in field " + field + ": "
+                            + originals[i - 1].utf8ToString() + " and " + originals[i].utf8ToString());
+                }
+            }
+        }
+
+        @Override
+        public TermsEnum iterator(TermsEnum reuse) throws IOException {
+            return new HashedTermsEnum(in.iterator(null), hashes, originals);
+        }
+
+        @Override
+        public Comparator<BytesRef> getComparator() {
+            return BytesRef.getUTF8SortedAsUnicodeComparator();
+        }
+
+        @Override
+        public long size() {
+            return hashes.length;
+        }
+
+        @Override
+        public long getSumTotalTermFreq() throws IOException {
+            return in.getSumTotalTermFreq();
+        }
+
+        @Override
+        public long getSumDocFreq() throws IOException {
+            return in.getSumDocFreq();
+        }
+
+        @Override
+        public int getDocCount() throws IOException {
+            return in.getDocCount();
+        }
+
+        @Override
+        public boolean hasFreqs() {
+            return in.hasFreqs();
+        }
+
+        @Override
+        public boolean hasOffsets() {
+            return in.hasOffsets();
+        }
+
+        @Override
+        public boolean hasPositions() {
+            return in.hasPositions();
+        }
+
+        @Override
+        public boolean hasPayloads() {
+            return in.hasPayloads();
+        }
+    }
+
+    private static class HashedTermsEnum extends TermsEnum {
+
+        private final TermsEnum in;
+        private final BytesRef[] hashes;
+        private final BytesRef[] originals;
+        private int pos = -1;
+        private int seeked = -1;
+
+        HashedTermsEnum(TermsEnum in, BytesRef[] hashes, BytesRef[] originals) {
+            this.in = in;
+            this.hashes = hashes;
+            this.originals = originals;
+        }
+
+        @Override
+        public BytesRef next() throws IOException {
+            if (pos + 1 >= hashes.length) {
+                pos = hashes.length;
+                return null;
+            }
+            return hashes[++pos];
+        }
+
+        @Override
+        public SeekStatus seekCeil(BytesRef text) throws IOException {
+            int i = Arrays.binarySearch(hashes, text, getComparator());
+            if (i >= 0) {
+                pos = i;
+                return SeekStatus.FOUND;
+            }
+            pos = -i - 1;
+            return pos == hashes.length ? SeekStatus.END : SeekStatus.NOT_FOUND;
+        }
+
+        @Override
+        public void seekExact(long ord) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long ord() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public BytesRef term() throws IOException {
+            return hashes[pos];
+        }
+
+        @Override
+        public int docFreq() throws IOException {
+            return original().docFreq();
+        }
+
+        @Override
+        public long totalTermFreq() throws IOException {
+            return original().totalTermFreq();
+        }
+
+        @Override
+        public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
+            return original().docs(liveDocs, reuse, flags);
+        }
+
+        @Override
+        public DocsAndPositionsEnum docsAndPositions(Bits liveDocs, DocsAndPositionsEnum reuse, int flags) throws IOException {
+            return original().docsAndPositions(liveDocs, reuse, flags);
+        }
+
+        @Override
+        public Comparator<BytesRef> getComparator() {
+            return BytesRef.getUTF8SortedAsUnicodeComparator();
+        }
+
+        /**
+         * @return Original enum positioned at the original of the current term
+         */
+        private TermsEnum original() throws IOException {
+            if (seeked != pos) {
+                if (!in.seekExact(originals[pos])) {
+                    throw new IllegalStateException("Term disappeared from the index: " + originals[pos].utf8ToString());
+                }
+                seeked = pos;
+            }
+            return in;
+        }
+    }
+}
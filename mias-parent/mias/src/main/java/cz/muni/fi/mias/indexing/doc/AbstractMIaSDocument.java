@@ -1,5 +1,18 @@
 package cz.muni.fi.mias.indexing.doc;
 
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.FormulaComplexityAttribute;
+import cz.muni.fi.mias.math.MathImpacts;
+import cz.muni.fi.mias.math.MathTiers;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.sinks.TeeSinkTokenFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+
 /**
  * Abstract implementation of the MIaSDocument which uses DocumentSource
  * 
@@ -8,11 +21,55 @@ package cz.muni.fi.mias.indexing.doc;
 public abstract class AbstractMIaSDocument implements MIaSDocument {
     
     protected DocumentSource source;
+    private static final PayloadSimilarity SIMILARITY = new PayloadSimilarity();
+
+    static {
+        SIMILARITY.setDiscountOverlaps(false);
+    }
 
     public AbstractMIaSDocument(DocumentSource source) {
         this.source = source;
     }
 
+    /**
+     * Adds math field with M-terms of the tokenizer to the document. If
+     * MATH_IMPACTS is set, the tokenizer is consumed right away and the
+     * impact field of the M-terms is added as well. If MATH_TIER_NODES is
+     * set, M-terms of formulae with at least that many nodes are added also to
+     * the complex tier field. Formulae are canonicalized through the cache in
+     * CANONICALIZATION_CACHE_DIR if it is set.
+     *
+     * @param document Document to add the field to
+     * @param field Name of the math field
+     * @param tokenizer Tokenizer producing the M-terms
+     * @throws IOException
+     */
+    protected static void addMathField(Document document, String field, MathTokenizer tokenizer) throws IOException {
+        tokenizer.setTermEncoding(Settings.getMathTermEncoding());
+        tokenizer.setCanonicalizationCache(Settings.getCanonicalizationCache());
+        TokenStream tokens = tokenizer;
+        TokenStream complexTier = null;
+        int tierNodes = Settings.getMathTierNodes();
+        if (tierNodes > 0) {
+            tokenizer.addAttribute(FormulaComplexityAttribute.class);
+            TeeSinkTokenFilter tee = new TeeSinkTokenFilter(tokenizer);
+            complexTier = MathTiers.complexTokens(tee, tierNodes);
+            tokens = tee;
+        }
+        if (Settings.getIndexImpacts()) {
+            MathImpacts impacts = new MathImpacts(field, tokens, SIMILARITY);
+            document.add(new TextField(field, impacts.getMathTokens()));
+            document.add(new Field(MathImpacts.field(field), impacts.getImpactTokens(), MathImpacts.IMPACT_FIELD_TYPE));
+        } else {
+            document.add(new TextField(field, tokens));
+        }
+        // the sink is filled while the math field is consumed, so it has to
+        // follow the math field in the document
+        if (complexTier != null) {
+            document.add(new Field(MathTiers.field(field), complexTier, MathTiers.TIER_FIELD_TYPE));
+        }
+    }
+
     @Override
     public String getLogInfo() {
         return source.getDocumentSourcePath();
@@ -5,6 +5,9 @@
 package cz.muni.fi.mias.indexing.doc;
 
 import cz.muni.fi.mias.MIaSUtils;
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.FingerprintTokenStream;
+import cz.muni.fi.mias.math.FormulaStructure;
 import cz.muni.fi.mias.math.MathTokenizer;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -25,6 +28,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.w3c.dom.Node;
@@ -73,12 +77,20 @@ public class FormulaDocument extends AbstractMIaSDocument {
                 InputStreamReader isr = new InputStreamReader(is, "UTF-8");
                 MathTokenizer mathTokenizer = new MathTokenizer(isr, true, MathTokenizer.MathMLType.PRESENTATION);
                 mathTokenizer.setFormulaPosition(i+1);
-                doc.add(new TextField("pmath", mathTokenizer));
+                addMathField(doc, "pmath", mathTokenizer);
                 is.reset();
                 isr = new InputStreamReader(is, "UTF-8");
                 MathTokenizer mathTokenizer1 = new MathTokenizer(isr, true, MathTokenizer.MathMLType.CONTENT);
                 mathTokenizer1.setFormulaPosition(i+1);
-                doc.add(new TextField("cmath", mathTokenizer1));
+                addMathField(doc, "cmath", mathTokenizer1);
+                if (Settings.getIndexStructure()) {
+                    is.reset();
+                    List<FormulaStructure> structures = FormulaStructure.parse(new InputStreamReader(is, "UTF-8"), Settings.getCanonicalizationCache());
+                    for (FormulaStructure structure : structures) {
+                        doc.add(new StoredField("ftree", structure.encode()));
+                    }
+                    doc.add(new TextField("fmath", new FingerprintTokenStream(structures)));
+                }
                 result.add(doc);
             }
         } catch (TransformerException | SAXException | ParserConfigurationException ex) {
@@ -1,5 +1,8 @@
 package cz.muni.fi.mias.indexing.doc;
 
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.FingerprintTokenStream;
+import cz.muni.fi.mias.math.FormulaStructure;
 import cz.muni.fi.mias.math.MathTokenizer;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -7,6 +10,7 @@ import java.util.Arrays;
 import java.util.List;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 
@@ -56,9 +60,17 @@ public class HtmlDocument extends AbstractMIaSDocument {
         }
 
         InputStreamReader isr = new InputStreamReader(source.resetStream(), "UTF-8");
-        document.add(new TextField("pmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.PRESENTATION)));
+        addMathField(document, "pmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.PRESENTATION));
         isr = new InputStreamReader(source.resetStream(), "UTF-8");
-        document.add(new TextField("cmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.CONTENT)));
+        addMathField(document, "cmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.CONTENT));
+        if (Settings.getIndexStructure()) {
+            isr = new InputStreamReader(source.resetStream(), "UTF-8");
+            List<FormulaStructure> structures = FormulaStructure.parse(isr, Settings.getCanonicalizationCache());
+            for (FormulaStructure structure : structures) {
+                document.add(new StoredField("ftree", structure.encode()));
+            }
+            document.add(new TextField("fmath", new FingerprintTokenStream(structures)));
+        }
         
         return Arrays.asList(document);
     }
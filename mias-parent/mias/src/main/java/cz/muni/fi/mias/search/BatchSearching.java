@@ -0,0 +1,274 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Searches all topics of an evaluation topics file (NTCIR or ARQMath style)
+ * and writes the results as a TREC run file.
+ *
+ * Topics are searched concurrently by the number of threads from the settings
+ * against one shared index searcher, only the hits are retrieved and no
+ * snippets are extracted. Every line of the run file has the form
+ * "topic_id Q0 document_id rank score run_tag", document ids are taken from
+ * the documents by NTCIR10CollectionDocumentIdExtractor and fall back to the
+ * indexed id. Search time of every topic is written to a side file
+ * run_file.latency.
+ *
+ * @author Martin Liska
+ */
+public class BatchSearching {
+
+    private static final Logger LOG = LogManager.getLogger(BatchSearching.class);
+    private static final String MATHML_NS = "http://www.w3.org/1998/Math/MathML";
+    private static final String RUN_TAG = "MIaS";
+
+    private final File topicsFile;
+    private final File runFile;
+    private final String storagePath;
+    private final Map<Integer, String> documentIds = new ConcurrentHashMap<>();
+    private IndexSearcher indexSearcher;
+    private Searching searching;
+
+    /**
+     * @param topicsFile XML file with the topics
+     * @param runFile Output run file
+     * @param storagePath Root directory the files were indexed relative to
+     */
+    public BatchSearching(String topicsFile, String runFile, String storagePath) {
+        this.topicsFile = new File(topicsFile);
+        this.runFile = new File(runFile);
+        this.storagePath = storagePath;
+    }
+
+    /**
+     * Searches all topics and writes the run and latency files.
+     */
+    public void search() {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Settings.getNumThreads()));
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(Settings.getIndexDir())))) {
+            List<Topic> topics = readTopics();
+            LOG.info("Searching {} topics from {}", topics.size(), topicsFile.getAbsolutePath());
+            indexSearcher = new IndexSearcher(reader);
+            searching = new Searching(indexSearcher, storagePath);
+            int limit = Settings.getBatchResults();
+
+            long start = System.currentTimeMillis();
+            List<Future<TopicResult>> jobs = new ArrayList<>(topics.size());
+            for (Topic topic : topics) {
+                jobs.add(executor.submit(new Callable<TopicResult>() {
+                    @Override
+                    public TopicResult call() throws IOException {
+                        return search(topic, limit);
+                    }
+                }));
+            }
+
+            File latencyFile = new File(runFile.getPath() + ".latency");
+            long[] latencies = new long[topics.size()];
+            int searched = 0;
+            try (Writer run = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(runFile), StandardCharsets.UTF_8));
+                    Writer latency = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(latencyFile), StandardCharsets.UTF_8))) {
+                for (int i = 0; i < jobs.size(); i++) {
+                    Topic topic = topics.get(i);
+                    TopicResult tr;
+                    try {
+                        tr = jobs.get(i).get();
+                    } catch (ExecutionException ex) {
+                        LOG.error("Searching topic " + topic.id + " failed", ex.getCause());
+                        continue;
+                    }
+                    for (int rank = 0; rank < tr.topDocs.scoreDocs.length; rank++) {
+                        ScoreDoc sd = tr.topDocs.scoreDocs[rank];
+                        run.write(topic.id + " Q0 " + tr.documentIds[rank] + " " + (rank + 1) + " " + sd.score + " " + RUN_TAG + "\n");
+                    }
+                    latency.write(topic.id + "\t" + tr.time + "\t" + tr.topDocs.totalHits + "\n");
+                    latencies[searched++] = tr.time;
+                }
+            }
+            long total = System.currentTimeMillis() - start;
+            // failed topics have no latency, they would pull the statistics down
+            latencies = Arrays.copyOf(latencies, searched);
+            Arrays.sort(latencies);
+            if (latencies.length > 0) {
+                LOG.info("Searched {} topics in {} ms, latency median {} ms, maximum {} ms", searched, total,
+                        latencies[latencies.length / 2], latencies[latencies.length - 1]);
+            }
+            if (searched < topics.size()) {
+                LOG.error("Searching {} of {} topics failed", topics.size() - searched, topics.size());
+            }
+            LOG.info("Run written to {}, latencies to {}", runFile.getAbsolutePath(), latencyFile.getAbsolutePath());
+        } catch (IOException | ParserConfigurationException | SAXException | TransformerException ex) {
+            LOG.fatal(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error("Batch searching was interrupted", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private TopicResult search(Topic topic, int limit) throws IOException {
+        long start = System.currentTimeMillis();
+        ImmutableTriple<Query, String, String> parsedQuery = searching.getParsedQuery(topic.query, MathTokenizer.MathMLType.BOTH, false, false);
+        TopDocs topDocs = searching.getTopDocs(parsedQuery.getLeft(), 0, limit);
+        long time = System.currentTimeMillis() - start;
+        String[] ids = new String[topDocs.scoreDocs.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getDocumentId(topDocs.scoreDocs[i].doc);
+        }
+        return new TopicResult(topDocs, ids, time);
+    }
+
+    private String getDocumentId(int doc) throws IOException {
+        String result = documentIds.get(doc);
+        if (result == null) {
+            try (InputStream is = searching.getDocumentStream(doc)) {
+                result = new NTCIR10CollectionDocumentIdExtractor(is).getId();
+            }
+            if (result == null) {
+                result = indexSearcher.doc(doc, Collections.singleton("id")).get("id");
+            }
+            documentIds.put(doc, result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads topics from the topics file. Topic id is taken from the number or
+     * id attribute or the num element of the topic. The query consists of the
+     * MathML formulae and keywords of the topic.
+     */
+    private List<Topic> readTopics() throws ParserConfigurationException, SAXException, IOException, TransformerException {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        DocumentBuilder builder = dbf.newDocumentBuilder();
+        Document doc = builder.parse(topicsFile);
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+        List<Topic> result = new ArrayList<>();
+        NodeList elements = doc.getElementsByTagNameNS("*", "*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element topic = (Element) elements.item(i);
+            if (!"topic".equalsIgnoreCase(topic.getLocalName())) {
+                continue;
+            }
+            String id = topic.getAttribute("number");
+            if (id.isEmpty()) {
+                id = topic.getAttribute("id");
+            }
+            if (id.isEmpty()) {
+                id = getChildText(topic, "num");
+            }
+            StringBuilder query = new StringBuilder();
+            NodeList maths = topic.getElementsByTagNameNS(MATHML_NS, "math");
+            for (int j = 0; j < maths.getLength(); j++) {
+                Document mathDoc = builder.newDocument();
+                Node math = mathDoc.importNode(maths.item(j), true);
+                mathDoc.appendChild(math);
+                removeMathPrefix(mathDoc, math);
+                StringWriter sw = new StringWriter();
+                transformer.transform(new DOMSource(mathDoc), new StreamResult(sw));
+                query.append(sw.toString()).append(" ");
+            }
+            NodeList keywords = topic.getElementsByTagNameNS("*", "keyword");
+            for (int j = 0; j < keywords.getLength(); j++) {
+                query.append(keywords.item(j).getTextContent().trim()).append(" ");
+            }
+            result.add(new Topic(id.trim(), query.toString().trim()));
+        }
+        return result;
+    }
+
+    private String getChildText(Element parent, String localName) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE && localName.equalsIgnoreCase(n.getLocalName())) {
+                return n.getTextContent();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Renames MathML elements to unprefixed names so that the formulae are
+     * recognized by MathSeparator.
+     */
+    private void removeMathPrefix(Document doc, Node node) {
+        Node renamed = node;
+        if (node.getNodeType() == Node.ELEMENT_NODE && MATHML_NS.equals(node.getNamespaceURI()) && node.getPrefix() != null) {
+            renamed = doc.renameNode(node, MATHML_NS, node.getLocalName());
+        }
+        for (Node n = renamed.getFirstChild(); n != null; n = n.getNextSibling()) {
+            removeMathPrefix(doc, n);
+        }
+    }
+
+    private static class Topic {
+
+        private final String id;
+        private final String query;
+
+        Topic(String id, String query) {
+            this.id = id;
+            this.query = query;
+        }
+    }
+
+    private static class TopicResult {
+
+        private final TopDocs topDocs;
+        private final String[] documentIds;
+        private final long time;
+
+        TopicResult(TopDocs topDocs, String[] documentIds, long time) {
+            this.topDocs = topDocs;
+            this.documentIds = documentIds;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Searches several indexes at once and merges their results into a single
+ * ranking.
+ *
+ * The indexes are searched concurrently by the index executor, which must not
+ * be the executor searching the segments of the indexes, as index tasks wait
+ * for their segment tasks. Scores are not comparable among indexes (they depend on
+ * the index statistics), so each score is divided by the best score of its
+ * index before the hits are merged. Results of the requested page are then
+ * built by the Searching of the index the hit comes from, so the snippets are
+ * extracted from the right storage. An index whose search fails is left out
+ * and the hits of the other indexes are returned.
+ *
+ * @author Martin Liska
+ */
+public class FederatedSearching {
+
+    private static final Logger LOG = LogManager.getLogger(FederatedSearching.class);
+
+    private final List<Searching> searchings;
+    private final ExecutorService indexExecutor;
+
+    /**
+     * @param searchings Searching for every index, the position in the list
+     * is used as the index number of the results
+     * @param indexExecutor Executor searching the indexes concurrently, null
+     * searches them one after another by the calling thread
+     */
+    public FederatedSearching(List<Searching> searchings, ExecutorService indexExecutor) {
+        this.searchings = searchings;
+        this.indexExecutor = indexExecutor;
+    }
+
+    public SearchResult search(String query, int offset, int limit, boolean debug, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+        SearchResult result = new SearchResult();
+        result.setQuery(query);
+        long start = System.currentTimeMillis();
+        List<IndexHits> indexHits = searchIndexes(query, offset + limit, variant, extractSubformulae, reduceWeighting);
+
+        List<Hit> merged = new ArrayList<>();
+        int totalResults = 0;
+        for (IndexHits ih : indexHits) {
+            totalResults += ih.topDocs.totalHits;
+            float maxScore = ih.topDocs.getMaxScore();
+            for (int rank = 0; rank < ih.topDocs.scoreDocs.length; rank++) {
+                ScoreDoc sd = ih.topDocs.scoreDocs[rank];
+                float normalized = maxScore > 0 ? sd.score / maxScore : sd.score;
+                merged.add(new Hit(ih.index, rank, new ScoreDoc(sd.doc, normalized)));
+            }
+        }
+        Collections.sort(merged, (a, b) -> {
+            int c = Float.compare(b.scoreDoc.score, a.scoreDoc.score);
+            if (c == 0) {
+                c = Integer.compare(a.rank, b.rank);
+            }
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        });
+        List<Hit> page = merged.subList(Math.min(offset, merged.size()), Math.min(offset + limit, merged.size()));
+        result.setCoreSearchTime(System.currentTimeMillis() - start);
+
+        List<List<Result>> indexResults = new ArrayList<>(Collections.nCopies(searchings.size(), (List<Result>) null));
+        for (IndexHits ih : indexHits) {
+            List<ScoreDoc> docs = new ArrayList<>();
+            for (Hit hit : page) {
+                if (hit.index == ih.index) {
+                    docs.add(hit.scoreDoc);
+                }
+            }
+            try {
+                indexResults.set(ih.index, searchings.get(ih.index).getResults(docs.toArray(new ScoreDoc[docs.size()]), ih.parsedQuery.getLeft(), debug));
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Results of index " + ih.index + " cannot be loaded, its hits are left out", ex);
+            }
+        }
+        int[] next = new int[searchings.size()];
+        List<Result> results = new ArrayList<>(page.size());
+        for (Hit hit : page) {
+            if (indexResults.get(hit.index) != null) {
+                Result r = indexResults.get(hit.index).get(next[hit.index]++);
+                r.setIndex(hit.index);
+                results.add(r);
+            }
+        }
+
+        result.setResults(results);
+        result.setTotalResults(totalResults);
+        if (!indexHits.isEmpty()) {
+            result.setProcessedQuery(indexHits.get(0).parsedQuery.getMiddle());
+        }
+        if (debug) {
+            StringBuilder luceneQuery = new StringBuilder();
+            for (IndexHits ih : indexHits) {
+                luceneQuery.append("index ").append(ih.index).append(": ")
+                        .append(ih.parsedQuery.getLeft()).append("\n")
+                        .append(ih.parsedQuery.getRight());
+            }
+            result.setLuceneQuery(luceneQuery.toString());
+        }
+        result.setTotalSearchTime(System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Searches every index for the top n hits. An index whose search fails is
+     * logged and left out.
+     */
+    private List<IndexHits> searchIndexes(String query, int n, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+        List<IndexHits> result = new ArrayList<>(searchings.size());
+        if (indexExecutor == null) {
+            for (int i = 0; i < searchings.size(); i++) {
+                try {
+                    result.add(searchIndex(i, query, n, variant, extractSubformulae, reduceWeighting));
+                } catch (IOException | RuntimeException ex) {
+                    LOG.error("Search of index " + i + " failed, its hits are left out", ex);
+                }
+            }
+            return result;
+        }
+        List<Future<IndexHits>> jobs = new ArrayList<>(searchings.size());
+        for (int i = 0; i < searchings.size(); i++) {
+            final int index = i;
+            jobs.add(indexExecutor.submit(() -> searchIndex(index, query, n, variant, extractSubformulae, reduceWeighting)));
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                result.add(jobs.get(i).get());
+            } catch (ExecutionException ex) {
+                LOG.error("Search of index " + i + " failed, its hits are left out", ex.getCause());
+            } catch (InterruptedException ex) {
+                LOG.error("Search of the indexes was interrupted, hits of the remaining indexes are left out", ex);
+                for (Future<IndexHits> job : jobs.subList(i, jobs.size())) {
+                    job.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return result;
+    }
+
+    private IndexHits searchIndex(int index, String query, int n, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) throws IOException {
+        Searching s = searchings.get(index);
+        ImmutableTriple<Query, String, String> parsedQuery = s.getParsedQuery(query, variant, extractSubformulae, reduceWeighting);
+        return new IndexHits(index, parsedQuery, s.getTopDocs(parsedQuery.getLeft(), 0, n));
+    }
+
+    private static class IndexHits {
+
+        private final int index;
+        private final ImmutableTriple<Query, String, String> parsedQuery;
+        private final TopDocs topDocs;
+
+        IndexHits(int index, ImmutableTriple<Query, String, String> parsedQuery, TopDocs topDocs) {
+            this.index = index;
+            this.parsedQuery = parsedQuery;
+            this.topDocs = topDocs;
+        }
+    }
+
+    private static class Hit {
+
+        private final int index;
+        private final int rank;
+        private final ScoreDoc scoreDoc;
+
+        Hit(int index, int rank, ScoreDoc scoreDoc) {
+            this.index = index;
+            this.rank = rank;
+            this.scoreDoc = scoreDoc;
+        }
+    }
+}
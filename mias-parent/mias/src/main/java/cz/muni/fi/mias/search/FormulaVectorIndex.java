@@ -0,0 +1,537 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.math.FormulaStructure;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Approximate nearest neighbour index of structural vectors of the formulae.
+ *
+ * Every formula stored in the ftree field is represented by its
+ * {@link FormulaStructure#getEmbedding(int) embedding} quantized to bytes. The
+ * vectors are organized in a hierarchical navigable small world graph which is
+ * written to a file beside the Lucene index and memory-mapped for searching.
+ * Formulae are identified by the id of their document, so the graph stays
+ * valid when the index segments are merged. The mapping limits the file to
+ * 2 GB, which is about ten million formulae.
+ *
+ * File layout: header, vectors, document numbers of the formulae, levels of
+ * the nodes, offsets of upper level neighbours, neighbours on level zero,
+ * neighbours on upper levels and the document ids.
+ *
+ * @author Martin Liska
+ */
+public class FormulaVectorIndex implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(FormulaVectorIndex.class);
+
+    public static final String FILE_NAME = "formulae.hnsw";
+    public static final int DIMENSIONS = 64;
+    /**
+     * Maximal number of neighbours on the upper levels, level zero allows
+     * twice as many
+     */
+    private static final int M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int MAGIC = 0x4d496153;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 9 * 4;
+    private static final float SCALE = 127f;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int dimensions;
+    private final int m;
+    private final int count;
+    private final int entryPoint;
+    private final int maxLevel;
+    private final String[] documentIds;
+    private final long vectorsOffset;
+    private final long documentsOffset;
+    private final long levelsOffset;
+    private final long upperOffsetsOffset;
+    private final long level0Offset;
+    private final long upperOffset;
+
+    private FormulaVectorIndex(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a formula vector index of version " + VERSION);
+        }
+        dimensions = buffer.getInt(8);
+        m = buffer.getInt(12);
+        count = buffer.getInt(16);
+        entryPoint = buffer.getInt(20);
+        maxLevel = buffer.getInt(24);
+        int upperSize = buffer.getInt(28);
+        int documentCount = buffer.getInt(32);
+        vectorsOffset = HEADER_SIZE;
+        documentsOffset = vectorsOffset + (long) count * dimensions;
+        levelsOffset = documentsOffset + 4L * count;
+        upperOffsetsOffset = levelsOffset + count;
+        level0Offset = upperOffsetsOffset + 4L * count;
+        upperOffset = level0Offset + 4L * count * (2 * m + 1);
+        int pos = (int) (upperOffset + 4L * upperSize);
+        documentIds = new String[documentCount];
+        for (int i = 0; i < documentCount; i++) {
+            int length = buffer.getInt(pos);
+            byte[] bytes = new byte[length];
+            for (int j = 0; j < length; j++) {
+                bytes[j] = buffer.get(pos + 4 + j);
+            }
+            documentIds[i] = new String(bytes, StandardCharsets.UTF_8);
+            pos += 4 + length;
+        }
+    }
+
+    /**
+     * Opens the index file for searching.
+     *
+     * @param file Index file
+     * @return Opened index
+     * @throws IOException if the file cannot be read or is not a valid index
+     */
+    public static FormulaVectorIndex open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Formula vector index " + file + " is larger than 2 GB");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new FormulaVectorIndex(channel, buffer);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return Number of formulae in the index
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Finds formulae with the most similar vectors.
+     *
+     * @param query Query vector of length {@link #DIMENSIONS}
+     * @param k Number of formulae to find
+     * @param ef Size of the candidate list, greater values give more accurate
+     * results at higher cost
+     * @return Found formulae, the most similar first
+     */
+    public List<Neighbour> search(float[] query, int k, int ef) {
+        List<Neighbour> result = new ArrayList<>();
+        if (count == 0) {
+            return result;
+        }
+        byte[] q = quantize(query);
+        int current = entryPoint;
+        int currentSim = similarity(q, current);
+        for (int level = maxLevel; level > 0; level--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int base = neighboursOffset(current, level);
+                int n = buffer.getInt(base);
+                for (int i = 0; i < n; i++) {
+                    int candidate = buffer.getInt(base + 4 * (i + 1));
+                    int sim = similarity(q, candidate);
+                    if (sim > currentSim) {
+                        currentSim = sim;
+                        current = candidate;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        PriorityQueue<long[]> nearest = searchLayer(q, current, currentSim, Math.max(ef, k));
+        List<long[]> sorted = new ArrayList<>(nearest);
+        Collections.sort(sorted, (a, b) -> Long.compare(b[1], a[1]));
+        for (int i = 0; i < Math.min(k, sorted.size()); i++) {
+            int node = (int) sorted.get(i)[0];
+            result.add(new Neighbour(documentIds[buffer.getInt((int) (documentsOffset + 4L * node))],
+                    sorted.get(i)[1] / (SCALE * SCALE)));
+        }
+        return result;
+    }
+
+    /**
+     * Searches level zero from the entry node.
+     *
+     * @return Up to ef nearest nodes as pairs {node, similarity} in a heap
+     * with the least similar on top
+     */
+    private PriorityQueue<long[]> searchLayer(byte[] q, int entry, int entrySim, int ef) {
+        Set<Integer> visited = new HashSet<>();
+        PriorityQueue<long[]> candidates = new PriorityQueue<>((a, b) -> Long.compare(b[1], a[1]));
+        PriorityQueue<long[]> nearest = new PriorityQueue<>((a, b) -> Long.compare(a[1], b[1]));
+        visited.add(entry);
+        candidates.add(new long[]{entry, entrySim});
+        nearest.add(new long[]{entry, entrySim});
+        while (!candidates.isEmpty()) {
+            long[] c = candidates.poll();
+            if (nearest.size() >= ef && c[1] < nearest.peek()[1]) {
+                break;
+            }
+            int base = neighboursOffset((int) c[0], 0);
+            int n = buffer.getInt(base);
+            for (int i = 0; i < n; i++) {
+                int neighbour = buffer.getInt(base + 4 * (i + 1));
+                if (visited.add(neighbour)) {
+                    int sim = similarity(q, neighbour);
+                    if (nearest.size() < ef || sim > nearest.peek()[1]) {
+                        candidates.add(new long[]{neighbour, sim});
+                        nearest.add(new long[]{neighbour, sim});
+                        if (nearest.size() > ef) {
+                            nearest.poll();
+                        }
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private int neighboursOffset(int node, int level) {
+        if (level == 0) {
+            return (int) (level0Offset + 4L * node * (2 * m + 1));
+        }
+        int upper = buffer.getInt((int) (upperOffsetsOffset + 4L * node));
+        return (int) (upperOffset + 4L * (upper + (level - 1) * (m + 1)));
+    }
+
+    private int similarity(byte[] q, int node) {
+        int offset = (int) (vectorsOffset + (long) node * dimensions);
+        int result = 0;
+        for (int i = 0; i < dimensions; i++) {
+            result += q[i] * buffer.get(offset + i);
+        }
+        return result;
+    }
+
+    private static byte[] quantize(float[] vector) {
+        byte[] result = new byte[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = (byte) Math.max(-127, Math.min(127, Math.round(vector[i] * SCALE)));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Builds the index of all formulae stored in the ftree field of the live
+     * documents of the reader and writes it to the file. The file is replaced
+     * atomically, so searchers may keep using the previous one.
+     *
+     * @param reader Reader of the Lucene index
+     * @param file Output file
+     * @throws IOException
+     */
+    public static void build(IndexReader reader, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        Builder builder = new Builder();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        Set<String> fields = new HashSet<>(Arrays.asList("id", "ftree"));
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            Document document = reader.document(doc, fields);
+            String[] trees = document.getValues("ftree");
+            if (trees.length == 0 || document.get("id") == null) {
+                continue;
+            }
+            int documentNumber = builder.addDocument(document.get("id"));
+            for (String tree : trees) {
+                try {
+                    builder.add(documentNumber, quantize(FormulaStructure.decode(tree).getEmbedding(DIMENSIONS)));
+                } catch (IllegalArgumentException ex) {
+                    LOG.warn("Stored formula structure of document {} is broken", document.get("id"));
+                }
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        builder.write(tmp);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Formula vector index of {} formulae built in {} ms", builder.count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Formula found by the search.
+     */
+    public static class Neighbour {
+
+        private final String documentId;
+        private final float similarity;
+
+        Neighbour(String documentId, float similarity) {
+            this.documentId = documentId;
+            this.similarity = similarity;
+        }
+
+        public String getDocumentId() {
+            return documentId;
+        }
+
+        /**
+         * @return Cosine similarity of the vectors
+         */
+        public float getSimilarity() {
+            return similarity;
+        }
+    }
+
+    /**
+     * Builds the graph in memory by inserting the formulae one by one.
+     */
+    private static class Builder {
+
+        private final Random random = new Random(42);
+        private final double levelFactor = 1 / Math.log(M);
+        private final List<String> documentIds = new ArrayList<>();
+        private byte[] vectors = new byte[1024 * DIMENSIONS];
+        private int[] documents = new int[1024];
+        private int[] levels = new int[1024];
+        private int[][] level0 = new int[1024][];
+        private int[][][] upper = new int[1024][][];
+        private int[] visited = new int[1024];
+        private int epoch;
+        private int count;
+        private int entryPoint = -1;
+        private int maxLevel;
+
+        int addDocument(String id) {
+            documentIds.add(id);
+            return documentIds.size() - 1;
+        }
+
+        void add(int documentNumber, byte[] vector) {
+            if (count == documents.length) {
+                int capacity = count * 2;
+                vectors = Arrays.copyOf(vectors, capacity * DIMENSIONS);
+                documents = Arrays.copyOf(documents, capacity);
+                levels = Arrays.copyOf(levels, capacity);
+                level0 = Arrays.copyOf(level0, capacity);
+                upper = Arrays.copyOf(upper, capacity);
+                visited = Arrays.copyOf(visited, capacity);
+            }
+            int node = count++;
+            System.arraycopy(vector, 0, vectors, node * DIMENSIONS, DIMENSIONS);
+            documents[node] = documentNumber;
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+            levels[node] = level;
+            level0[node] = new int[0];
+            upper[node] = new int[level][];
+            for (int l = 0; l < level; l++) {
+                upper[node][l] = new int[0];
+            }
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+            int current = entryPoint;
+            for (int l = maxLevel; l > level; l--) {
+                current = greedy(node, current, l);
+            }
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                List<int[]> nearest = searchLayer(node, current, l);
+                int maxNeighbours = l == 0 ? 2 * M : M;
+                int[] selected = select(nearest, M);
+                setNeighbours(node, l, selected);
+                for (int neighbour : selected) {
+                    connect(neighbour, node, l, maxNeighbours);
+                }
+                current = nearest.get(0)[0];
+            }
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = node;
+            }
+        }
+
+        private int greedy(int node, int current, int level) {
+            int currentSim = similarity(node, current);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int neighbour : neighbours(current, level)) {
+                    int sim = similarity(node, neighbour);
+                    if (sim > currentSim) {
+                        currentSim = sim;
+                        current = neighbour;
+                        changed = true;
+                    }
+                }
+            }
+            return current;
+        }
+
+        /**
+         * @return Up to EF_CONSTRUCTION nearest nodes as pairs {node,
+         * similarity}, the most similar first
+         */
+        private List<int[]> searchLayer(int node, int entry, int level) {
+            epoch++;
+            PriorityQueue<int[]> candidates = new PriorityQueue<>((a, b) -> Integer.compare(b[1], a[1]));
+            PriorityQueue<int[]> nearest = new PriorityQueue<>((a, b) -> Integer.compare(a[1], b[1]));
+            int[] e = {entry, similarity(node, entry)};
+            visited[entry] = epoch;
+            candidates.add(e);
+            nearest.add(e);
+            while (!candidates.isEmpty()) {
+                int[] c = candidates.poll();
+                if (nearest.size() >= EF_CONSTRUCTION && c[1] < nearest.peek()[1]) {
+                    break;
+                }
+                for (int neighbour : neighbours(c[0], level)) {
+                    if (visited[neighbour] != epoch) {
+                        visited[neighbour] = epoch;
+                        int sim = similarity(node, neighbour);
+                        if (nearest.size() < EF_CONSTRUCTION || sim > nearest.peek()[1]) {
+                            int[] n = {neighbour, sim};
+                            candidates.add(n);
+                            nearest.add(n);
+                            if (nearest.size() > EF_CONSTRUCTION) {
+                                nearest.poll();
+                            }
+                        }
+                    }
+                }
+            }
+            List<int[]> result = new ArrayList<>(nearest);
+            Collections.sort(result, (a, b) -> Integer.compare(b[1], a[1]));
+            return result;
+        }
+
+        private int[] select(List<int[]> nearest, int max) {
+            int[] result = new int[Math.min(max, nearest.size())];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = nearest.get(i)[0];
+            }
+            return result;
+        }
+
+        /**
+         * Adds the node to the neighbours of the other node, keeping only the
+         * most similar neighbours when the list is full.
+         */
+        private void connect(int other, int node, int level, int maxNeighbours) {
+            int[] current = neighbours(other, level);
+            int[] extended = Arrays.copyOf(current, current.length + 1);
+            extended[current.length] = node;
+            if (extended.length > maxNeighbours) {
+                List<int[]> scored = new ArrayList<>(extended.length);
+                for (int n : extended) {
+                    scored.add(new int[]{n, similarity(other, n)});
+                }
+                Collections.sort(scored, (a, b) -> Integer.compare(b[1], a[1]));
+                extended = select(scored, maxNeighbours);
+            }
+            setNeighbours(other, level, extended);
+        }
+
+        private int[] neighbours(int node, int level) {
+            return level == 0 ? level0[node] : upper[node][level - 1];
+        }
+
+        private void setNeighbours(int node, int level, int[] neighbours) {
+            if (level == 0) {
+                level0[node] = neighbours;
+            } else {
+                upper[node][level - 1] = neighbours;
+            }
+        }
+
+        private int similarity(int a, int b) {
+            int offsetA = a * DIMENSIONS;
+            int offsetB = b * DIMENSIONS;
+            int result = 0;
+            for (int i = 0; i < DIMENSIONS; i++) {
+                result += vectors[offsetA + i] * vectors[offsetB + i];
+            }
+            return result;
+        }
+
+        void write(File file) throws IOException {
+            int upperSize = 0;
+            for (int node = 0; node < count; node++) {
+                upperSize += levels[node] * (M + 1);
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(DIMENSIONS);
+                out.writeInt(M);
+                out.writeInt(count);
+                out.writeInt(Math.max(entryPoint, 0));
+                out.writeInt(maxLevel);
+                out.writeInt(upperSize);
+                out.writeInt(documentIds.size());
+                out.write(vectors, 0, count * DIMENSIONS);
+                for (int node = 0; node < count; node++) {
+                    out.writeInt(documents[node]);
+                }
+                for (int node = 0; node < count; node++) {
+                    out.writeByte(levels[node]);
+                }
+                int upperIndex = 0;
+                for (int node = 0; node < count; node++) {
+                    out.writeInt(levels[node] > 0 ? upperIndex : -1);
+                    upperIndex += levels[node] * (M + 1);
+                }
+                for (int node = 0; node < count; node++) {
+                    writeNeighbours(out, level0[node], 2 * M);
+                }
+                for (int node = 0; node < count; node++) {
+                    for (int l = 0; l < levels[node]; l++) {
+                        writeNeighbours(out, upper[node][l], M);
+                    }
+                }
+                for (String id : documentIds) {
+                    byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+
+        private void writeNeighbours(DataOutputStream out, int[] neighbours, int slots) throws IOException {
+            out.writeInt(neighbours.length);
+            for (int i = 0; i < slots; i++) {
+                out.writeInt(i < neighbours.length ? neighbours[i] : -1);
+            }
+        }
+    }
+}
@@ -0,0 +1,892 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.math.MathImpacts;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.payloads.AveragePayloadFunction;
+import org.apache.lucene.search.payloads.PayloadTermQuery;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ToStringUtils;
+
+/**
+ * Disjunction of weighted M-terms of one or more query formulae.
+ *
+ * Scores documents exactly like a BooleanQuery of SHOULD PayloadTermQuery
+ * clauses with AveragePayloadFunction, but is not limited by
+ * BooleanQuery.getMaxClauseCount() and, when used as the top level query,
+ * skips documents that cannot make it into the best topK hits (max-score
+ * pruning). For every clause an upper bound of its contribution is derived
+ * from its query weight, the term statistics of the segment and the maximal
+ * payload score of PayloadSimilarity. Clauses whose summed bounds can not
+ * beat the score of the current k-th best hit are not iterated, they are only
+ * advanced to documents produced by the remaining clauses.
+ *
+ * Segments indexed with MATH_IMPACTS are searched in the order of the impact
+ * levels of the M-terms instead (see {@link MathImpacts}). Documents of the
+ * highest levels are scored first and the search of the segment stops as soon
+ * as the bounds of the remaining levels can not beat the current k-th best
+ * hit, so the documents with low impacts of all clauses are never read.
+ *
+ * When pruning is active the collector does not see every matching document,
+ * so TopDocs.totalHits is only a lower bound of the number of matches. The
+ * bounds assume that the math fields are indexed without index-time boosts.
+ *
+ * @author Martin Liska
+ */
+public class MathQuery extends Query {
+
+    private static final float BOUND_SLACK = 1.0001F;
+
+    private List<PayloadTermQuery> clauses = new ArrayList<>();
+    private int topK;
+
+    /**
+     * Creates empty math query.
+     *
+     * @param topK Number of best hits the collector keeps. Documents that
+     * can not make it into them are skipped. Zero or negative value disables
+     * the pruning.
+     */
+    public MathQuery(int topK) {
+        this.topK = topK;
+    }
+
+    /**
+     * Adds M-term to this query.
+     *
+     * @param term Term with the M-term
+     * @param weight Weight of the M-term used as the boost of its clause
+     */
+    public void add(Term term, float weight) {
+        PayloadTermQuery ptq = new PayloadTermQuery(term, new AveragePayloadFunction());
+        ptq.setBoost(weight);
+        clauses.add(ptq);
+    }
+
+    public List<PayloadTermQuery> getClauses() {
+        return Collections.unmodifiableList(clauses);
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    /**
+     * @param topK Number of best hits the collector of the search keeps
+     * @return Copy of this query skipping the documents that can not make it
+     * into the given number of best hits
+     */
+    public MathQuery withTopK(int topK) {
+        MathQuery copy = clone();
+        copy.topK = topK;
+        return copy;
+    }
+
+    /**
+     * Computes upper bound of the score of any document of the index which
+     * contains none of the excluded M-terms. The bound is derived the same way
+     * as the bounds of the max-score pruning.
+     *
+     * @param searcher Searcher of the index
+     * @param excluded M-terms the documents do not contain
+     * @return Upper bound of the score, infinity if the similarity of the
+     * searcher does not allow bounding the scores
+     * @throws IOException
+     */
+    float maxScoreWithout(IndexSearcher searcher, Set<Term> excluded) throws IOException {
+        MathWeight weight = (MathWeight) searcher.createNormalizedWeight(this);
+        return weight.maxScoreWithout(searcher.getIndexReader().leaves(), excluded);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+        return new MathWeight(searcher);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        for (PayloadTermQuery clause : clauses) {
+            clause.extractTerms(terms);
+        }
+    }
+
+    @Override
+    public MathQuery clone() {
+        MathQuery clone = (MathQuery) super.clone();
+        clone.clauses = new ArrayList<>(clauses);
+        return clone;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder("(");
+        for (int i = 0; i < clauses.size(); i++) {
+            if (i > 0) {
+                buffer.append(' ');
+            }
+            buffer.append(clauses.get(i).toString(field));
+        }
+        buffer.append(')');
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) {
+            return false;
+        }
+        MathQuery other = (MathQuery) o;
+        return topK == other.topK && clauses.equals(other.clauses);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * super.hashCode() + topK) + clauses.hashCode();
+    }
+
+    /**
+     * Scores of the best hits collected so far during one search. The lowest
+     * of them is the threshold a document has to beat.
+     */
+    private static final class TopScores {
+
+        private final float[] heap;
+        private int size;
+        private volatile float minScore = Float.NEGATIVE_INFINITY;
+
+        TopScores(int k) {
+            heap = new float[k];
+        }
+
+        float minScore() {
+            return minScore;
+        }
+
+        synchronized void insert(float score) {
+            if (size < heap.length) {
+                int i = size++;
+                while (i > 0 && heap[(i - 1) / 2] > score) {
+                    heap[i] = heap[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                heap[i] = score;
+                if (size == heap.length) {
+                    minScore = heap[0];
+                }
+            } else if (score > heap[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && heap[child + 1] < heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] >= score) {
+                        break;
+                    }
+                    heap[i] = heap[child];
+                    i = child;
+                }
+                heap[i] = score;
+                minScore = heap[0];
+            }
+        }
+    }
+
+    private class MathWeight extends Weight {
+
+        private final Similarity similarity;
+        private final Weight[] weights;
+        private final float[] idfs;
+        private final float[] values;
+        private final float[] coords;
+        private final float maxCoord;
+        private final float maxPayloadScore;
+        private final TopScores topScores;
+
+        MathWeight(IndexSearcher searcher) throws IOException {
+            similarity = searcher.getSimilarity();
+            int n = clauses.size();
+            weights = new Weight[n];
+            idfs = new float[n];
+            values = new float[n];
+            for (int i = 0; i < n; i++) {
+                PayloadTermQuery clause = clauses.get(i);
+                weights[i] = clause.createWeight(searcher);
+            }
+            coords = new float[n + 1];
+            float max = 0;
+            boolean nonNegativeCoords = true;
+            for (int i = 1; i <= n; i++) {
+                coords[i] = n == 1 ? 1F : similarity.coord(i, n);
+                max = Math.max(max, coords[i]);
+                nonNegativeCoords &= coords[i] >= 0;
+            }
+            maxCoord = max;
+            boolean bounded = nonNegativeCoords && similarity instanceof PayloadSimilarity;
+            maxPayloadScore = bounded ? ((PayloadSimilarity) similarity).maxPayloadScore() : Float.POSITIVE_INFINITY;
+            if (bounded) {
+                TFIDFSimilarity tfidf = (TFIDFSimilarity) similarity;
+                for (int i = 0; i < n; i++) {
+                    Term term = clauses.get(i).getTerm();
+                    CollectionStatistics collectionStats = searcher.collectionStatistics(term.field());
+                    TermStatistics termStats = searcher.termStatistics(term, TermContext.build(searcher.getTopReaderContext(), term));
+                    idfs[i] = tfidf.idf(termStats.docFreq(), collectionStats.maxDoc());
+                }
+            }
+            topScores = topK > 0 && bounded ? new TopScores(topK) : null;
+        }
+
+        @Override
+        public Query getQuery() {
+            return MathQuery.this;
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+            float sum = 0.0F;
+            for (Weight w : weights) {
+                sum += w.getValueForNormalization();
+            }
+            sum *= getBoost() * getBoost();
+            return sum;
+        }
+
+        @Override
+        public void normalize(float norm, float topLevelBoost) {
+            topLevelBoost *= getBoost();
+            for (int i = 0; i < weights.length; i++) {
+                weights[i].normalize(norm, topLevelBoost);
+                values[i] = idfs[i] * clauses.get(i).getBoost() * norm * topLevelBoost * idfs[i];
+            }
+        }
+
+        @Override
+        public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+            ComplexExplanation sumExpl = new ComplexExplanation();
+            sumExpl.setDescription("sum of:");
+            int coord = 0;
+            float sum = 0.0F;
+            for (Weight w : weights) {
+                Explanation e = w.explain(context, doc);
+                if (e.isMatch()) {
+                    sumExpl.addDetail(e);
+                    sum += e.getValue();
+                    coord++;
+                }
+            }
+            if (coord == 0) {
+                return new ComplexExplanation(false, 0.0F, "no matching clause");
+            }
+            sumExpl.setMatch(true);
+            sumExpl.setValue(sum);
+            float coordFactor = coords[coord];
+            if (coordFactor == 1.0F) {
+                return sumExpl;
+            }
+            ComplexExplanation result = new ComplexExplanation(true, sum * coordFactor, "product of:");
+            result.addDetail(sumExpl);
+            result.addDetail(new Explanation(coordFactor, "coord(" + coord + "/" + weights.length + ")"));
+            return result;
+        }
+
+        @Override
+        public Scorer scorer(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            return createScorer(context, acceptDocs, null);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(AtomicReaderContext context, boolean scoreDocsInOrder, Bits acceptDocs) throws IOException {
+            if (topScores == null) {
+                return super.bulkScorer(context, scoreDocsInOrder, acceptDocs);
+            }
+            int[][] levels = impactLevels(context);
+            if (levels != null) {
+                return new ImpactBulkScorer(this, context, acceptDocs, levels);
+            }
+            MathScorer scorer = createScorer(context, acceptDocs, topScores);
+            if (scorer == null) {
+                return null;
+            }
+            return new MathBulkScorer(scorer, topScores);
+        }
+
+        /**
+         * Finds the impact levels of the clauses present in the segment.
+         *
+         * @return Levels of every clause from the highest, null if the segment
+         * has no impact field or the impact levels do not cover all documents
+         * of some M-term
+         */
+        private int[][] impactLevels(AtomicReaderContext context) throws IOException {
+            int[][] result = new int[clauses.size()][];
+            String impactField = null;
+            TermsEnum ite = null;
+            Terms impactTerms = null;
+            for (int i = 0; i < result.length; i++) {
+                Term term = clauses.get(i).getTerm();
+                Terms terms = context.reader().terms(term.field());
+                TermsEnum te = terms == null ? null : terms.iterator(null);
+                int docFreq = te != null && te.seekExact(term.bytes()) ? te.docFreq() : 0;
+                if (docFreq > 0 && (ite == null || !impactField.equals(MathImpacts.field(term.field())))) {
+                    impactField = MathImpacts.field(term.field());
+                    impactTerms = context.reader().terms(impactField);
+                    ite = impactTerms == null ? null : impactTerms.iterator(ite);
+                }
+                int[] levels = new int[MathImpacts.LEVELS];
+                int n = 0;
+                if (docFreq > 0) {
+                    if (impactTerms == null) {
+                        return null;
+                    }
+                    if (ite.seekCeil(new BytesRef(MathImpacts.firstTerm(term.text()))) != TermsEnum.SeekStatus.END) {
+                        int level;
+                        while ((level = MathImpacts.levelOf(ite.term(), term.bytes())) >= 0) {
+                            levels[n++] = level;
+                            docFreq -= ite.docFreq();
+                            if (ite.next() == null) {
+                                break;
+                            }
+                        }
+                    }
+                    if (docFreq != 0) {
+                        return null;
+                    }
+                }
+                result[i] = Arrays.copyOf(levels, n);
+            }
+            return result;
+        }
+
+        private int topK() {
+            return topK;
+        }
+
+        private Term getClauseTerm(int i) {
+            return clauses.get(i).getTerm();
+        }
+
+        private MathScorer createScorer(AtomicReaderContext context, Bits acceptDocs, TopScores threshold) throws IOException {
+            return createScorer(context, acceptDocs, threshold, null);
+        }
+
+        /**
+         * @param clauseBounds Bounds of the clauses to use instead of the ones
+         * derived from the term statistics, NaN leaves the clause out, null
+         * derives all bounds
+         */
+        private MathScorer createScorer(AtomicReaderContext context, Bits acceptDocs, TopScores threshold, float[] clauseBounds) throws IOException {
+            List<Scorer> scorers = new ArrayList<>();
+            List<Float> bounds = new ArrayList<>();
+            for (int i = 0; i < weights.length; i++) {
+                if (clauseBounds != null && Float.isNaN(clauseBounds[i])) {
+                    continue;
+                }
+                Scorer s = weights[i].scorer(context, acceptDocs);
+                if (s != null && s.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    scorers.add(s);
+                    if (threshold == null) {
+                        bounds.add(Float.POSITIVE_INFINITY);
+                    } else {
+                        bounds.add(clauseBounds == null ? upperBound(i, context) : clauseBounds[i]);
+                    }
+                }
+            }
+            if (scorers.isEmpty()) {
+                return null;
+            }
+            Integer[] order = new Integer[scorers.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Float.compare(bounds.get(a), bounds.get(b)));
+            Scorer[] sorted = new Scorer[order.length];
+            float[] cumulativeBounds = new float[order.length + 1];
+            for (int i = 0; i < order.length; i++) {
+                sorted[i] = scorers.get(order[i]);
+                cumulativeBounds[i + 1] = cumulativeBounds[i] + maxCoord * bounds.get(order[i]);
+            }
+            return new MathScorer(this, sorted, cumulativeBounds, coords, maxCoord, threshold);
+        }
+
+        /**
+         * @return Maximal score over all segments of a document matching only
+         * clauses whose terms are not excluded
+         */
+        private float maxScoreWithout(List<AtomicReaderContext> leaves, Set<Term> excluded) throws IOException {
+            if (Float.isInfinite(maxPayloadScore)) {
+                return Float.POSITIVE_INFINITY;
+            }
+            float result = 0.0F;
+            for (AtomicReaderContext context : leaves) {
+                float sum = 0.0F;
+                int matching = 0;
+                for (int i = 0; i < clauses.size(); i++) {
+                    if (!excluded.contains(clauses.get(i).getTerm())) {
+                        float bound = upperBound(i, context);
+                        if (bound > 0) {
+                            sum += bound;
+                            matching++;
+                        }
+                    }
+                }
+                float coord = 0.0F;
+                for (int i = 1; i <= matching; i++) {
+                    coord = Math.max(coord, coords[i]);
+                }
+                result = Math.max(result, coord * sum);
+            }
+            return result;
+        }
+
+        /**
+         * Maximal score the i-th clause can give to a document of the segment.
+         * The frequency of the term in a single document can not exceed its
+         * total frequency minus one occurrence in every other document
+         * containing it, the length norm does not exceed one and every
+         * payload scores at most maxPayloadScore.
+         */
+        private float upperBound(int i, AtomicReaderContext context) throws IOException {
+            Term term = clauses.get(i).getTerm();
+            Terms terms = context.reader().terms(term.field());
+            if (terms == null) {
+                return 0.0F;
+            }
+            TermsEnum te = terms.iterator(null);
+            if (!te.seekExact(term.bytes())) {
+                return 0.0F;
+            }
+            long totalTermFreq = te.totalTermFreq();
+            if (totalTermFreq == -1) {
+                return Float.POSITIVE_INFINITY;
+            }
+            long maxFreq = totalTermFreq - te.docFreq() + 1;
+            float tf = ((TFIDFSimilarity) similarity).tf(maxFreq);
+            return tf * values[i] * maxPayloadScore * BOUND_SLACK;
+        }
+    }
+
+    /**
+     * Scores the documents of a segment in the order of impact levels. The
+     * documents of the highest levels of all clauses are read first until
+     * there are topK of them, they are scored exactly to raise the threshold.
+     * The rest of the segment is scored by MathScorer with clause bounds given
+     * by the highest level that was not read, which usually lets it skip most
+     * of the postings or the whole segment. Documents are collected in the
+     * order of document numbers.
+     */
+    private static final class ImpactBulkScorer extends BulkScorer {
+
+        private final MathWeight weight;
+        private final AtomicReaderContext context;
+        private final Bits acceptDocs;
+        private final int[][] levels;
+        private final CollectedScorer scorer;
+        private FixedBitSet seen;
+        private int[] docs;
+        private float[] scores;
+        private int next;
+        private MathScorer rest;
+
+        ImpactBulkScorer(MathWeight weight, AtomicReaderContext context, Bits acceptDocs, int[][] levels) {
+            this.weight = weight;
+            this.context = context;
+            this.acceptDocs = acceptDocs;
+            this.levels = levels;
+            this.scorer = new CollectedScorer(weight);
+        }
+
+        @Override
+        public boolean score(Collector collector, int max) throws IOException {
+            if (docs == null) {
+                scoreTopLevels();
+            }
+            collector.setScorer(scorer);
+            int restDoc = rest == null ? DocIdSetIterator.NO_MORE_DOCS : rest.docID();
+            while (true) {
+                int upTo = Math.min(restDoc, max);
+                while (next < docs.length && docs[next] < upTo) {
+                    collect(collector, docs[next], scores[next]);
+                    next++;
+                }
+                if (restDoc >= max) {
+                    break;
+                }
+                if (!seen.get(restDoc)) {
+                    float score = rest.score();
+                    collect(collector, restDoc, score);
+                    if (score > weight.topScores.minScore()) {
+                        weight.topScores.insert(score);
+                    }
+                }
+                restDoc = rest.nextDoc();
+            }
+            return next < docs.length || restDoc != DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        private void collect(Collector collector, int doc, float score) throws IOException {
+            scorer.doc = doc;
+            scorer.score = score;
+            collector.collect(doc);
+        }
+
+        private void scoreTopLevels() throws IOException {
+            int n = levels.length;
+            int[] nextLevel = new int[n];
+            seen = new FixedBitSet(context.reader().maxDoc());
+            int[] found = new int[16];
+            int count = 0;
+            // once the threshold is set by the previous segments the levels
+            // only tighten the bounds
+            int wanted = weight.topScores.minScore() == Float.NEGATIVE_INFINITY ? weight.topK() : 0;
+            for (int level = MathImpacts.LEVELS - 1; level >= 0 && count < wanted; level--) {
+                for (int i = 0; i < n; i++) {
+                    if (nextLevel[i] < levels[i].length && levels[i][nextLevel[i]] == level) {
+                        nextLevel[i]++;
+                        Term term = weight.getClauseTerm(i);
+                        TermsEnum te = context.reader().terms(MathImpacts.field(term.field())).iterator(null);
+                        te.seekExact(new BytesRef(MathImpacts.term(level, term.text())));
+                        DocsEnum de = te.docs(acceptDocs, null, DocsEnum.FLAG_NONE);
+                        for (int doc = de.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = de.nextDoc()) {
+                            if (!seen.get(doc)) {
+                                seen.set(doc);
+                                if (count == found.length) {
+                                    found = Arrays.copyOf(found, 2 * count);
+                                }
+                                found[count++] = doc;
+                            }
+                        }
+                    }
+                }
+            }
+            docs = Arrays.copyOf(found, count);
+            scores = new float[count];
+            Arrays.sort(docs);
+            if (count > 0) {
+                MathScorer exact = weight.createScorer(context, acceptDocs, null);
+                for (int j = 0; j < count; j++) {
+                    if (exact.docID() < docs[j]) {
+                        exact.advance(docs[j]);
+                    }
+                    scores[j] = exact.score();
+                    if (scores[j] > weight.topScores.minScore()) {
+                        weight.topScores.insert(scores[j]);
+                    }
+                }
+            }
+            float[] bounds = new float[n];
+            Arrays.fill(bounds, Float.NaN);
+            boolean unread = false;
+            for (int i = 0; i < n; i++) {
+                if (nextLevel[i] < levels[i].length) {
+                    bounds[i] = Math.min(weight.upperBound(i, context),
+                            weight.values[i] * MathImpacts.upperBound(levels[i][nextLevel[i]]) * BOUND_SLACK);
+                    unread = true;
+                }
+            }
+            if (unread) {
+                rest = weight.createScorer(context, acceptDocs, weight.topScores, bounds);
+                if (rest != null) {
+                    rest.nextDoc();
+                }
+            }
+        }
+    }
+
+    /**
+     * Scorer passing the precomputed score of the collected document.
+     */
+    private static final class CollectedScorer extends Scorer {
+
+        private int doc = -1;
+        private float score;
+
+        CollectedScorer(Weight weight) {
+            super(weight);
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int advance(int target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long cost() {
+            return 1;
+        }
+    }
+
+    /**
+     * Scorer iterating union of clause scorers. With threshold given it
+     * follows only the clauses needed to beat the current minimal competitive
+     * score.
+     */
+    private static final class MathScorer extends Scorer {
+
+        private final Scorer[] scorers;
+        private final float[] cumulativeBounds;
+        private final float[] coords;
+        private final float maxCoord;
+        private final TopScores threshold;
+        private final Scorer[] heap;
+        private int heapSize;
+        private int firstEssential = 0;
+        private int doc = -1;
+        private float score;
+        private int matches;
+        private float sum;
+
+        MathScorer(Weight weight, Scorer[] scorers, float[] cumulativeBounds, float[] coords, float maxCoord, TopScores threshold) {
+            super(weight);
+            this.scorers = scorers;
+            this.cumulativeBounds = cumulativeBounds;
+            this.coords = coords;
+            this.maxCoord = maxCoord;
+            this.threshold = threshold;
+            this.heap = new Scorer[scorers.length];
+            rebuildHeap();
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return score;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            return matches;
+        }
+
+        @Override
+        public long cost() {
+            long cost = 0;
+            for (Scorer s : scorers) {
+                cost += s.cost();
+            }
+            return cost;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            if (doc == NO_MORE_DOCS) {
+                return doc;
+            }
+            while (heapSize > 0 && heap[0].docID() == doc) {
+                replaceTop(heap[0].nextDoc());
+            }
+            return findNext();
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            if (doc == NO_MORE_DOCS) {
+                return doc;
+            }
+            while (heapSize > 0 && heap[0].docID() < target) {
+                replaceTop(heap[0].advance(target));
+            }
+            return findNext();
+        }
+
+        private int findNext() throws IOException {
+            while (true) {
+                float minScore = threshold == null ? Float.NEGATIVE_INFINITY : threshold.minScore();
+                updateEssential(minScore);
+                if (heapSize == 0) {
+                    return doc = NO_MORE_DOCS;
+                }
+                int candidate = heap[0].docID();
+                sum = 0.0F;
+                matches = 0;
+                sumEssential(0, candidate);
+                if (sumNonEssential(candidate, minScore)) {
+                    score = sum * coords[matches];
+                    return doc = candidate;
+                }
+                while (heapSize > 0 && heap[0].docID() == candidate) {
+                    replaceTop(heap[0].nextDoc());
+                }
+            }
+        }
+
+        /**
+         * Moves clauses that alone can not produce competitive document out of
+         * the iterated ones. Scores of single clauses may be negative, so only
+         * positive thresholds allow pruning.
+         */
+        private void updateEssential(float minScore) {
+            if (minScore <= 0) {
+                return;
+            }
+            int first = firstEssential;
+            while (first < scorers.length && cumulativeBounds[first + 1] < minScore) {
+                first++;
+            }
+            if (first != firstEssential) {
+                firstEssential = first;
+                rebuildHeap();
+            }
+        }
+
+        private void sumEssential(int i, int candidate) throws IOException {
+            if (i < heapSize && heap[i].docID() == candidate) {
+                sum += heap[i].score();
+                matches++;
+                sumEssential(2 * i + 1, candidate);
+                sumEssential(2 * i + 2, candidate);
+            }
+        }
+
+        private boolean sumNonEssential(int candidate, float minScore) throws IOException {
+            for (int i = firstEssential - 1; i >= 0; i--) {
+                if (minScore > 0 && maxCoord * sum + cumulativeBounds[i + 1] < minScore) {
+                    return false;
+                }
+                Scorer s = scorers[i];
+                if (s.docID() < candidate) {
+                    s.advance(candidate);
+                }
+                if (s.docID() == candidate) {
+                    sum += s.score();
+                    matches++;
+                }
+            }
+            return true;
+        }
+
+        private void rebuildHeap() {
+            heapSize = 0;
+            for (int i = firstEssential; i < scorers.length; i++) {
+                if (scorers[i].docID() != NO_MORE_DOCS) {
+                    heap[heapSize] = scorers[i];
+                    siftUp(heapSize++);
+                }
+            }
+        }
+
+        private void replaceTop(int topDoc) {
+            if (topDoc == NO_MORE_DOCS) {
+                heap[0] = heap[--heapSize];
+                heap[heapSize] = null;
+            }
+            if (heapSize > 0) {
+                siftDown(0);
+            }
+        }
+
+        private void siftUp(int i) {
+            Scorer node = heap[i];
+            while (i > 0 && heap[(i - 1) / 2].docID() > node.docID()) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = node;
+        }
+
+        private void siftDown(int i) {
+            Scorer node = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heap[child + 1].docID() < heap[child].docID()) {
+                    child++;
+                }
+                if (heap[child].docID() >= node.docID()) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = node;
+        }
+    }
+
+    /**
+     * Drives MathScorer and feeds the scores of collected documents back to
+     * the shared threshold.
+     */
+    private static final class MathBulkScorer extends BulkScorer {
+
+        private final MathScorer scorer;
+        private final TopScores topScores;
+
+        MathBulkScorer(MathScorer scorer, TopScores topScores) {
+            this.scorer = scorer;
+            this.topScores = topScores;
+        }
+
+        @Override
+        public boolean score(Collector collector, int max) throws IOException {
+            collector.setScorer(scorer);
+            int doc = scorer.docID();
+            if (doc == -1) {
+                doc = scorer.nextDoc();
+            }
+            while (doc < max) {
+                collector.collect(doc);
+                float score = scorer.score();
+                if (score > topScores.minScore()) {
+                    topScores.insert(score);
+                }
+                doc = scorer.nextDoc();
+            }
+            return doc != DocIdSetIterator.NO_MORE_DOCS;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+
+/**
+ * Chooses which M-terms of the query formulae end up in the MathQuery.
+ *
+ * Every candidate M-term is rated by its expected contribution to the score,
+ * idf^2 * weight, which is the part of the clause weight known before the
+ * search. Terms that do not occur in the index are dropped, terms occurring in
+ * more than commonTermRatio of documents are down-weighted by
+ * commonTermFactor and only termBudget terms with the highest contribution
+ * are kept. Everything that was changed is described by the report.
+ *
+ * @author Martin Liska
+ */
+public class MathQueryPlanner {
+
+    private final IndexReader reader;
+    private final TFIDFSimilarity similarity;
+    private final int termBudget;
+    private final float commonTermRatio;
+    private final float commonTermFactor;
+    private final List<Candidate> candidates = new ArrayList<>();
+    private final StringBuilder report = new StringBuilder();
+
+    /**
+     * @param reader Reader of the searched index
+     * @param similarity Similarity used for searching
+     * @param termBudget Maximal number of M-terms in the planned query, zero or
+     * negative value means no limit
+     * @param commonTermRatio Terms contained in a greater fraction of documents
+     * are considered common
+     * @param commonTermFactor Weights of common terms are multiplied by this
+     * factor, 1 keeps the weights of all terms
+     */
+    public MathQueryPlanner(IndexReader reader, TFIDFSimilarity similarity, int termBudget, float commonTermRatio, float commonTermFactor) {
+        this.reader = reader;
+        this.similarity = similarity;
+        this.termBudget = termBudget;
+        this.commonTermRatio = commonTermRatio;
+        this.commonTermFactor = commonTermFactor;
+    }
+
+    /**
+     * Adds candidate M-term.
+     *
+     * @param term Term with the M-term
+     * @param weight Weight of the M-term computed by the tokenizer
+     */
+    public void add(Term term, float weight) {
+        add(term, term.text(), weight);
+    }
+
+    /**
+     * Adds candidate M-term whose term text is encoded.
+     *
+     * @param term Term with the encoded M-term
+     * @param mterm Text of the M-term shown in the report
+     * @param weight Weight of the M-term computed by the tokenizer
+     */
+    public void add(Term term, String mterm, float weight) {
+        candidates.add(new Candidate(term, mterm, weight));
+    }
+
+    /**
+     * Builds the math query from the added candidates.
+     *
+     * @param topK Number of best hits passed to the MathQuery
+     * @return MathQuery with the chosen M-terms
+     * @throws IOException
+     */
+    public MathQuery plan(int topK) throws IOException {
+        report.setLength(0);
+        int maxDoc = reader.maxDoc();
+        List<Candidate> kept = new ArrayList<>(candidates.size());
+        List<Candidate> absent = new ArrayList<>();
+        List<Candidate> common = new ArrayList<>();
+        for (Candidate c : candidates) {
+            c.docFreq = reader.docFreq(c.term);
+            if (c.docFreq == 0) {
+                absent.add(c);
+                continue;
+            }
+            c.plannedWeight = c.weight;
+            if (commonTermFactor != 1.0F && maxDoc > 0 && c.docFreq > commonTermRatio * maxDoc) {
+                c.plannedWeight *= commonTermFactor;
+                common.add(c);
+            }
+            float idf = similarity.idf(c.docFreq, maxDoc);
+            c.contribution = idf * idf * c.plannedWeight;
+            kept.add(c);
+        }
+        kept.sort((a, b) -> Float.compare(b.contribution, a.contribution));
+        List<Candidate> overBudget = new ArrayList<>();
+        if (termBudget > 0 && kept.size() > termBudget) {
+            overBudget.addAll(kept.subList(termBudget, kept.size()));
+            kept = kept.subList(0, termBudget);
+        }
+
+        MathQuery result = new MathQuery(topK);
+        for (Candidate c : kept) {
+            result.add(c.term, c.plannedWeight);
+        }
+
+        report.append("M-terms kept: ").append(kept.size()).append(" of ").append(candidates.size());
+        if (termBudget > 0) {
+            report.append(" (budget ").append(termBudget).append(")");
+        }
+        report.append("\n");
+        for (Candidate c : absent) {
+            report.append("dropped absent: ").append(c).append("\n");
+        }
+        for (Candidate c : common) {
+            report.append("down-weighted common: ").append(c)
+                    .append(" (docFreq=").append(c.docFreq)
+                    .append(", weight ").append(c.weight).append(" -> ").append(c.plannedWeight).append(")\n");
+        }
+        for (Candidate c : overBudget) {
+            report.append("dropped over budget: ").append(c)
+                    .append(" (docFreq=").append(c.docFreq)
+                    .append(", contribution=").append(c.contribution).append(")\n");
+        }
+        return result;
+    }
+
+    /**
+     * @return Description of the M-terms pruned or down-weighted by the last
+     * call of plan
+     */
+    public String getReport() {
+        return report.toString();
+    }
+
+    private static class Candidate {
+
+        private final Term term;
+        private final String mterm;
+        private final float weight;
+        private float plannedWeight;
+        private int docFreq;
+        private float contribution;
+
+        Candidate(Term term, String mterm, float weight) {
+            this.term = term;
+            this.mterm = mterm;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            return term.field() + ":" + mterm;
+        }
+    }
+}
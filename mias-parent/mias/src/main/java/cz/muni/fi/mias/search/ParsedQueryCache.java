@@ -0,0 +1,88 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.MIaSMathUtils;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.util.Objects;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+
+/**
+ * Bounded LRU cache of parsed queries shared by all Searching instances.
+ *
+ * Maps the normalized query string together with the parsing options, the
+ * canonicalizer configuration and the searched index reader to the built
+ * Lucene query, text of the processed query and the M-term planning report.
+ * Entries of a reader are dropped when the reader is closed, entries of a
+ * previous canonicalizer configuration are never hit again and age out.
+ *
+ * @author Martin Liska
+ */
+public class ParsedQueryCache extends ReaderScopedCache<ParsedQueryCache.Key, ImmutableTriple<Query, String, String>> {
+
+    private static final Logger LOG = LogManager.getLogger(ParsedQueryCache.class);
+
+    /**
+     * @param maxSize Maximal number of cached queries
+     */
+    public ParsedQueryCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Normalizes the query string so that queries differing only in white
+     * space share the cache entry.
+     */
+    public static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * @return Cached parsed query or null if not present
+     */
+    @Override
+    public ImmutableTriple<Query, String, String> get(IndexReader reader, Key key) {
+        ImmutableTriple<Query, String, String> result = super.get(reader, key);
+        LOG.debug("Parsed query cache {}, hit rate {}", result != null ? "hit" : "miss", getHitRate());
+        return result;
+    }
+
+    /**
+     * Query string together with the parsing options and the configuration of
+     * the shared canonicalizer at the time the key is created.
+     */
+    static class Key {
+
+        private final String query;
+        private final MathTokenizer.MathMLType variant;
+        private final boolean extractSubformulae;
+        private final boolean reduceWeighting;
+        private final String configuration;
+
+        Key(String query, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+            this.query = query;
+            this.variant = variant;
+            this.extractSubformulae = extractSubformulae;
+            this.reduceWeighting = reduceWeighting;
+            this.configuration = MIaSMathUtils.getCanonicalizer().getConfigurationDescription();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return query.equals(other.query) && variant == other.variant
+                    && extractSubformulae == other.extractSubformulae && reduceWeighting == other.reduceWeighting
+                    && configuration.equals(other.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, variant, extractSubformulae, reduceWeighting, configuration);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package cz.muni.fi.mias.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Bounded LRU cache of values computed for an index reader.
+ *
+ * Entries are looked up by the reader, compared by identity as it identifies
+ * the index generation, together with a key. Entries of a reader are dropped
+ * when the reader is closed.
+ *
+ * @param <K> Type of the keys
+ * @param <V> Type of the cached values
+ * @author Martin Liska
+ */
+public class ReaderScopedCache<K, V> implements IndexReader.ReaderClosedListener {
+
+    private final int maxSize;
+    private final Map<Entry<K>, V> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize Maximal number of cached values, zero disables the cache
+     */
+    public ReaderScopedCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Entry<K>, V>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Entry<K>, V> eldest) {
+                return size() > ReaderScopedCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return Cached value or null if not present
+     */
+    public V get(IndexReader reader, K key) {
+        V result;
+        synchronized (cache) {
+            result = cache.get(new Entry<>(reader, key));
+        }
+        if (result != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(IndexReader reader, K key, V value) {
+        if (maxSize <= 0) {
+            return;
+        }
+        reader.addReaderClosedListener(this);
+        synchronized (cache) {
+            cache.put(new Entry<>(reader, key), value);
+        }
+    }
+
+    /**
+     * Drops all cached values.
+     */
+    public void invalidate() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void onClose(IndexReader reader) {
+        synchronized (cache) {
+            Iterator<Entry<K>> it = cache.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().reader == reader) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Fraction of lookups served from the cache
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static final class Entry<K> {
+
+        private final IndexReader reader;
+        private final K key;
+
+        Entry(IndexReader reader, K key) {
+            this.reader = reader;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?> other = (Entry<?>) o;
+            return reader == other.reader && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(reader), key);
+        }
+    }
+}
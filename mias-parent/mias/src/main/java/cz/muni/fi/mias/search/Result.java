@@ -19,6 +19,7 @@ public class Result {
     private String info;
     private String id;
     private String snippet;
+    private Integer index;
 
     public Result(String title, String path, String info, String id, String snippet) {
         this.title = title;
@@ -73,5 +74,18 @@ public class Result {
     public void setSnippet(String snippet) {
         this.snippet = snippet;
     }
+
+    /**
+     *
+     * @return Number of the index the result comes from in federated search,
+     * null otherwise
+     */
+    public Integer getIndex() {
+        return index;
+    }
+
+    public void setIndex(Integer index) {
+        this.index = index;
+    }
     
 }
@@ -0,0 +1,94 @@
+package cz.muni.fi.mias.search;
+
+import java.util.Arrays;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Bounded LRU cache of the best hits of recently searched queries.
+ *
+ * For every query and index reader (which identifies the index generation)
+ * it keeps the window of hits retrieved so far. Further pages inside the
+ * window are served from memory, deeper pages extend the window by searching
+ * only for hits following its last hit. Entries of a reader are dropped when
+ * the reader is closed.
+ *
+ * @author Martin Liska
+ */
+public class ResultWindowCache extends ReaderScopedCache<Query, ResultWindowCache.Window> {
+
+    /**
+     * @param maxSize Maximal number of cached queries
+     */
+    public ResultWindowCache(int maxSize) {
+        super(maxSize);
+    }
+
+    /**
+     * Immutable window of the best hits of a query.
+     */
+    public static class Window {
+
+        private final ScoreDoc[] scoreDocs;
+        private final int totalHits;
+        private final boolean complete;
+
+        /**
+         * @param scoreDocs Best hits in descending order
+         * @param totalHits Total number of hits of the query
+         * @param complete True if there are no hits following the window that
+         * may ever be requested
+         */
+        public Window(ScoreDoc[] scoreDocs, int totalHits, boolean complete) {
+            this.scoreDocs = scoreDocs;
+            this.totalHits = totalHits;
+            this.complete = complete;
+        }
+
+        /**
+         * @return True if the window holds all hits up to the given depth
+         */
+        public boolean covers(int depth) {
+            return complete || scoreDocs.length >= depth;
+        }
+
+        public int size() {
+            return scoreDocs.length;
+        }
+
+        /**
+         * @return Last hit of the window or null if empty
+         */
+        public ScoreDoc last() {
+            return scoreDocs.length == 0 ? null : scoreDocs[scoreDocs.length - 1];
+        }
+
+        public int getTotalHits() {
+            return totalHits;
+        }
+
+        /**
+         * Creates window extended by hits following the last hit.
+         *
+         * @param continuation Hits following the last hit of this window
+         * @param complete True if there are no more hits to be requested
+         * @return Extended window
+         */
+        public Window extend(ScoreDoc[] continuation, boolean complete) {
+            ScoreDoc[] merged = Arrays.copyOf(scoreDocs, scoreDocs.length + continuation.length);
+            System.arraycopy(continuation, 0, merged, scoreDocs.length, continuation.length);
+            return new Window(merged, totalHits, complete);
+        }
+
+        /**
+         * @return Page of hits in the same form as TopDocsCollector.topDocs(offset, limit)
+         */
+        public TopDocs page(int offset, int limit) {
+            int from = Math.min(offset, scoreDocs.length);
+            int to = Math.min(offset + limit, scoreDocs.length);
+            float maxScore = scoreDocs.length == 0 ? Float.NaN : scoreDocs[0].score;
+            return new TopDocs(totalHits, Arrays.copyOfRange(scoreDocs, from, to), maxScore);
+        }
+    }
+}
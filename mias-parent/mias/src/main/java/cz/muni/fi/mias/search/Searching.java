@@ -2,6 +2,8 @@ package cz.muni.fi.mias.search;
 
 import cz.muni.fi.mias.*;
 import cz.muni.fi.mias.math.MathSeparator;
+import cz.muni.fi.mias.math.MathTermEncoding;
+import cz.muni.fi.mias.math.MathTiers;
 import cz.muni.fi.mias.math.MathTokenizer;
 import cz.muni.fi.mias.search.snippets.NiceSnippetExtractor;
 import cz.muni.fi.mias.search.snippets.SnippetExtractor;
@@ -14,13 +16,17 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -35,14 +41,21 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -51,7 +64,6 @@ import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.Weight;
-import org.apache.lucene.search.payloads.AveragePayloadFunction;
 import org.apache.lucene.search.payloads.PayloadTermQuery;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Counter;
@@ -75,6 +87,15 @@ public class Searching {
     private static final int searchTimeLimiterAllowedTicks = 30; // 30 seconds
     private static final int snippetExtractionTimeoutMillisec = 500; // 0.5 seconds
     private static final int snippetExtractionNumOfThreads = (int) Math.round(0.9 * Runtime.getRuntime().availableProcessors()); // Use roughly 90% of available CPU cores for parallel extraction of snippets
+    /**
+     * Stored fields needed for rendering of the results and snippet extraction
+     */
+    private static final Set<String> RESULT_FIELDS = new HashSet<>(Arrays.asList("path", "title", "id", "arxivId", "archivepath"));
+    private static ParsedQueryCache queryCache;
+    private static ResultWindowCache resultCache;
+    private ExecutorService searchExecutor;
+    private MathTermEncoding termEncoding;
+    private Boolean complexTier;
 
     /**
      * Constructs new Searching on the index from the Settings file.
@@ -99,12 +120,41 @@ public class Searching {
      * are located
      */
     public Searching(IndexSearcher searcher, String storagePath) {
+        this(searcher, storagePath, null);
+    }
+
+    /**
+     * Constructs new Searching using the given IndexSearcher and executor for
+     * searching index segments in parallel
+     *
+     * @param searcher IndexSearcher
+     * @param storagePath Root path where the document searched by the searcher
+     * are located
+     * @param searchExecutor Executor searching segments of expensive queries in
+     * parallel, null to always search sequentially
+     */
+    public Searching(IndexSearcher searcher, String storagePath, ExecutorService searchExecutor) {
+        this.searchExecutor = searchExecutor;
         this.indexSearcher = searcher;
-        this.indexSearcher.setSimilarity(new PayloadSimilarity());
+        this.indexSearcher.setSimilarity(ps);
         this.storagePath = storagePath;
 //        sug = new TitlesSuggester(indexSearcher.getIndexReader());
     }
 
+    IndexSearcher getIndexSearcher() {
+        return indexSearcher;
+    }
+
+    /**
+     * Sets the number of the best results whose snippets are extracted.
+     *
+     * @param snippetsEnabledLimit Number of results with snippets, zero
+     * disables snippet extraction
+     */
+    public void setSnippetsEnabledLimit(int snippetsEnabledLimit) {
+        this.snippetsEnabledLimit = snippetsEnabledLimit;
+    }
+
     /**
      * Searches the index for input in given InputStream. Used for command line
      * or file input of the query. Prints results to standard output.
@@ -163,49 +213,17 @@ public class Searching {
         result.setQuery(query);
         try {
             long start = System.currentTimeMillis();
-            ImmutablePair<Query, String> parsedQuery = parseInput(query, variant, extractSubformulae, reduceWeighting);
+            ImmutableTriple<Query, String, String> parsedQuery = getParsedQuery(query, variant, extractSubformulae, reduceWeighting);
             Query bq = parsedQuery.getLeft();
-            String queryXMLFormulae = parsedQuery.getRight();
-            Counter clock = Counter.newCounter(true);
-            AtomicBoolean clockTicking = new AtomicBoolean(true);
-            new Thread() {
-                public void run() {
-                    while (clockTicking.get()) { // Ticking until told to stop
-                        clock.addAndGet(1); // Count one more tick
-                        try {
-                            LOG.debug("Search time limiter ticked to " + clock.get() + " (ticking every " + searchTimeLimiterTickLengthMillisec + " miliseconds)");
-                            Thread.sleep(searchTimeLimiterTickLengthMillisec); // Tick length
-                        } catch (InterruptedException ex) {
-                            LOG.error("Search time limiter ticking interrupted", ex);
-                        }
-                    }
-                    LOG.debug("Search time limiter ticking stopped at " + clock.get());
-                }
-            }.start();
-            Weight weight = indexSearcher.createNormalizedWeight(bq);
-            TopScoreDocCollector collector = TopScoreDocCollector.create(Settings.getMaxResults(), !weight.scoresDocsOutOfOrder());
-            TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector, clock, searchTimeLimiterAllowedTicks);
-            long clockBaseline = clock.get();
-            timeLimitingCollector.setBaseline(clockBaseline);
-            LOG.debug("Search time limiter clock baseline set to {}", clockBaseline);
-            try {
-                indexSearcher.search(bq, timeLimitingCollector);
-            } catch (TimeExceededException ex) {
-                LOG.warn("Search time limiter interrupted search thread (search limit set to "
-                        + (searchTimeLimiterTickLengthMillisec * searchTimeLimiterAllowedTicks)
-                        + " miliseconds)");
-            } finally {
-                clockTicking.set(false); // Notify clock ticking thread we are finished
-                LOG.debug("Search time limiter clock instructed to stop ticking");
-            }
-            TopDocs docs = collector.topDocs(offset, limit);
+            String queryXMLFormulae = parsedQuery.getMiddle();
+            TopDocs docs = getTopDocs(bq, offset, limit);
 //            TopFieldDocs docs = indexSearcher.search(bq, null, Settings.getMaxResults(), Sort.RELEVANCE, true, false);
             long end = System.currentTimeMillis();
             result.setCoreSearchTime(end - start);
             result.setResults(getResults(docs.scoreDocs, bq, debug));
             result.setTotalResults(docs.totalHits);
             if (debug) {
-                result.setLuceneQuery(bq.toString());
+                result.setLuceneQuery(bq.toString() + "\n" + parsedQuery.getRight());
             }
             result.setProcessedQuery(queryXMLFormulae);
             result.setTotalSearchTime(System.currentTimeMillis() - start);
@@ -218,32 +236,333 @@ public class Searching {
         return result;
     }
 
+    /**
+     * Gets the parsed query from the query cache or parses it.
+     *
+     * @return Query, text of the processed query and report of the M-term
+     * planning
+     * @throws IOException
+     */
+    ImmutableTriple<Query, String, String> getParsedQuery(String query, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) throws IOException {
+        String normalizedQuery = ParsedQueryCache.normalize(query);
+        IndexReader reader = indexSearcher.getIndexReader();
+        // the key is taken before parsing, a query parsed while the
+        // configuration changes is kept under the previous configuration
+        ParsedQueryCache.Key key = new ParsedQueryCache.Key(normalizedQuery, variant, extractSubformulae, reduceWeighting);
+        ImmutableTriple<Query, String, String> parsedQuery = getQueryCache().get(reader, key);
+        if (parsedQuery == null) {
+            parsedQuery = parseInput(normalizedQuery, variant, extractSubformulae, reduceWeighting);
+            getQueryCache().put(reader, key, parsedQuery);
+        }
+        return parsedQuery;
+    }
+
+    /**
+     * Gets the requested page of hits. Hits are taken from the window of the
+     * best hits cached for the query and the window is extended by searching
+     * for hits following its last hit when the page is not covered by it.
+     *
+     * If the index has complex tier fields (MATH_TIER_NODES) and the query is
+     * a math query only, the hits are first searched among the documents with
+     * complex M-terms of the query. They are used if there are enough of them.
+     * With MATH_TIER_EXACT the last of them has to beat the upper bound of the
+     * score of documents without the complex M-terms too, so the hits are the
+     * same as the hits of the whole index. The total number of hits counts the
+     * complex tier only then.
+     *
+     * @param bq Query to search for
+     * @param offset index of the first retrieved result
+     * @param limit number of results to retrieve
+     * @return Requested page of hits
+     * @throws IOException
+     */
+    TopDocs getTopDocs(Query bq, int offset, int limit) throws IOException {
+        int depth = Math.min(offset + limit, Settings.getMaxResults());
+        MathQuery mathQuery = getMathOnlyQuery(bq);
+        if (mathQuery != null && hasComplexTier()) {
+            Set<Term> complexTerms = new HashSet<>();
+            List<Term> tierTerms = new ArrayList<>();
+            IndexReader reader = indexSearcher.getIndexReader();
+            for (PayloadTermQuery ptq : mathQuery.getClauses()) {
+                Term tierTerm = new Term(MathTiers.field(ptq.getTerm().field()), ptq.getTerm().bytes());
+                if (reader.docFreq(tierTerm) > 0) {
+                    complexTerms.add(ptq.getTerm());
+                    tierTerms.add(tierTerm);
+                }
+            }
+            if (!tierTerms.isEmpty()) {
+                ResultWindowCache.Window window = getWindow(new FilteredQuery(bq, new TermsFilter(tierTerms)), depth);
+                TopDocs page = window.page(offset, limit);
+                if (window.size() >= depth && (!Settings.getMathTierExact() || page.scoreDocs.length > 0
+                        && page.scoreDocs[page.scoreDocs.length - 1].score > mathQuery.maxScoreWithout(indexSearcher, complexTerms))) {
+                    LOG.debug("Hits {} to {} found in the complex tier", offset, depth);
+                    return page;
+                }
+            }
+        }
+        return getWindow(bq, depth).page(offset, limit);
+    }
+
+    /**
+     * @param bq Query to search for
+     * @param depth Number of the best hits the window has to cover
+     * @return Cached window of the best hits of the query, extended to cover
+     * the given depth if needed
+     * @throws IOException
+     */
+    private ResultWindowCache.Window getWindow(Query bq, int depth) throws IOException {
+        IndexReader reader = indexSearcher.getIndexReader();
+        int maxResults = Settings.getMaxResults();
+        ResultWindowCache.Window window = getResultCache().get(reader, bq);
+        if (window == null || !window.covers(depth)) {
+            int have = window == null ? 0 : window.size();
+            ScoreDoc after = window == null ? null : window.last();
+            int numHits = Math.min(Math.max(depth - have, Settings.getResultWindow()), maxResults - have);
+            ImmutablePair<TopDocs, Boolean> collected = collect(withTopK(bq, have + numHits), numHits, after);
+            TopDocs topDocs = collected.getLeft();
+            boolean complete = topDocs.scoreDocs.length < numHits || have + topDocs.scoreDocs.length >= maxResults;
+            window = window == null
+                    ? new ResultWindowCache.Window(topDocs.scoreDocs, topDocs.totalHits, complete)
+                    : window.extend(topDocs.scoreDocs, complete);
+            if (!collected.getRight()) {
+                getResultCache().put(reader, bq, window);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Sets the number of best hits the math queries of the query may prune
+     * to. The hits following the window are among the best have + numHits
+     * hits of the query, so that is the depth the collector needs.
+     *
+     * @param query Query to search for
+     * @param topK Number of best hits needed
+     * @return Query with math queries pruning to the topK best hits
+     */
+    private static Query withTopK(Query query, int topK) {
+        if (query instanceof MathQuery) {
+            return ((MathQuery) query).withTopK(topK);
+        }
+        if (query instanceof FilteredQuery) {
+            FilteredQuery fq = (FilteredQuery) query;
+            FilteredQuery result = new FilteredQuery(withTopK(fq.getQuery(), topK), fq.getFilter(), fq.getFilterStrategy());
+            result.setBoost(fq.getBoost());
+            return result;
+        }
+        if (query instanceof BooleanQuery) {
+            BooleanQuery bq = (BooleanQuery) query;
+            BooleanQuery result = new BooleanQuery(bq.isCoordDisabled());
+            result.setBoost(bq.getBoost());
+            result.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+            for (BooleanClause clause : bq.getClauses()) {
+                result.add(withTopK(clause.getQuery(), topK), clause.getOccur());
+            }
+            return result;
+        }
+        return query;
+    }
+
+    /**
+     * @return Math query the query consists of or null if it has other
+     * clauses
+     */
+    private MathQuery getMathOnlyQuery(Query bq) {
+        if (bq instanceof BooleanQuery) {
+            BooleanClause[] clauses = ((BooleanQuery) bq).getClauses();
+            if (clauses.length == 1 && clauses[0].getQuery() instanceof MathQuery) {
+                return (MathQuery) clauses[0].getQuery();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return True if the searched index has a complex tier field
+     */
+    private boolean hasComplexTier() {
+        if (complexTier == null) {
+            FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(indexSearcher.getIndexReader());
+            complexTier = fieldInfos.fieldInfo(MathTiers.field("pmath")) != null
+                    || fieldInfos.fieldInfo(MathTiers.field("cmath")) != null;
+        }
+        return complexTier;
+    }
+
+    /**
+     * Collects best hits of the query under the search time limit.
+     *
+     * @param bq Query to search for
+     * @param numHits Number of hits to collect
+     * @param after Hit after which the hits are collected, null to collect
+     * from the beginning
+     * @return Collected hits and flag whether the search time limit was exceeded
+     * @throws IOException
+     */
+    private ImmutablePair<TopDocs, Boolean> collect(Query bq, int numHits, ScoreDoc after) throws IOException {
+        Counter clock = Counter.newCounter(true);
+        AtomicBoolean clockTicking = new AtomicBoolean(true);
+        new Thread() {
+            public void run() {
+                while (clockTicking.get()) { // Ticking until told to stop
+                    clock.addAndGet(1); // Count one more tick
+                    try {
+                        LOG.debug("Search time limiter ticked to " + clock.get() + " (ticking every " + searchTimeLimiterTickLengthMillisec + " miliseconds)");
+                        Thread.sleep(searchTimeLimiterTickLengthMillisec); // Tick length
+                    } catch (InterruptedException ex) {
+                        LOG.error("Search time limiter ticking interrupted", ex);
+                    }
+                }
+                LOG.debug("Search time limiter ticking stopped at " + clock.get());
+            }
+        }.start();
+        Weight weight = indexSearcher.createNormalizedWeight(bq);
+        long clockBaseline = clock.get();
+        LOG.debug("Search time limiter clock baseline set to {}", clockBaseline);
+        List<AtomicReaderContext> leaves = indexSearcher.getIndexReader().leaves();
+        try {
+            if (searchExecutor != null && leaves.size() > 1 && estimateCost(bq) >= Settings.getParallelSearchCost()) {
+                return collectParallel(weight, leaves, numHits, after, clock, clockBaseline);
+            }
+            TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, after, !weight.scoresDocsOutOfOrder());
+            TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector, clock, searchTimeLimiterAllowedTicks);
+            timeLimitingCollector.setBaseline(clockBaseline);
+            boolean timeExceeded = false;
+            try {
+                indexSearcher.search(bq, timeLimitingCollector);
+            } catch (TimeExceededException ex) {
+                timeExceeded = true;
+                LOG.warn("Search time limiter interrupted search thread (search limit set to "
+                        + (searchTimeLimiterTickLengthMillisec * searchTimeLimiterAllowedTicks)
+                        + " miliseconds)");
+            }
+            return new ImmutablePair<>(collector.topDocs(), timeExceeded);
+        } finally {
+            clockTicking.set(false); // Notify clock ticking thread we are finished
+            LOG.debug("Search time limiter clock instructed to stop ticking");
+        }
+    }
+
+    /**
+     * Collects best hits of every index segment in a separate task of the
+     * search executor and merges them.
+     */
+    private ImmutablePair<TopDocs, Boolean> collectParallel(Weight weight, List<AtomicReaderContext> leaves, int numHits, ScoreDoc after, Counter clock, long clockBaseline) throws IOException {
+        LOG.debug("Searching {} segments in parallel", leaves.size());
+        List<Future<ImmutablePair<TopDocs, Boolean>>> jobs = new ArrayList<>(leaves.size());
+        for (AtomicReaderContext leaf : leaves) {
+            jobs.add(searchExecutor.submit(() -> collectSegment(weight, leaf, numHits, after, clock, clockBaseline)));
+        }
+        TopDocs[] segmentDocs = new TopDocs[leaves.size()];
+        boolean timeExceeded = false;
+        for (int i = 0; i < segmentDocs.length; i++) {
+            try {
+                ImmutablePair<TopDocs, Boolean> segmentResult = jobs.get(i).get();
+                segmentDocs[i] = segmentResult.getLeft();
+                timeExceeded |= segmentResult.getRight();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Parallel search was interrupted", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Parallel search of segment " + i + " failed", ex.getCause());
+            }
+        }
+        if (timeExceeded) {
+            LOG.warn("Search time limiter interrupted search thread (search limit set to "
+                    + (searchTimeLimiterTickLengthMillisec * searchTimeLimiterAllowedTicks)
+                    + " miliseconds)");
+        }
+        return new ImmutablePair<>(TopDocs.merge(null, numHits, segmentDocs), timeExceeded);
+    }
+
+    private ImmutablePair<TopDocs, Boolean> collectSegment(Weight weight, AtomicReaderContext leaf, int numHits, ScoreDoc after, Counter clock, long clockBaseline) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, after, !weight.scoresDocsOutOfOrder());
+        TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector, clock, searchTimeLimiterAllowedTicks);
+        timeLimitingCollector.setBaseline(clockBaseline);
+        boolean timeExceeded = false;
+        try {
+            timeLimitingCollector.setNextReader(leaf);
+            BulkScorer scorer = weight.bulkScorer(leaf, !timeLimitingCollector.acceptsDocsOutOfOrder(), leaf.reader().getLiveDocs());
+            if (scorer != null) {
+                scorer.score(timeLimitingCollector);
+            }
+        } catch (TimeExceededException ex) {
+            timeExceeded = true;
+        } catch (CollectionTerminatedException ex) {
+        }
+        return new ImmutablePair<>(collector.topDocs(), timeExceeded);
+    }
+
+    /**
+     * Estimates the cost of the query as the total length of the postings
+     * lists of its terms.
+     */
+    private long estimateCost(Query query) throws IOException {
+        Set<Term> terms = new HashSet<>();
+        try {
+            indexSearcher.rewrite(query).extractTerms(terms);
+        } catch (UnsupportedOperationException ex) {
+            return 0;
+        }
+        IndexReader reader = indexSearcher.getIndexReader();
+        long cost = 0;
+        for (Term term : terms) {
+            cost += reader.docFreq(term);
+        }
+        return cost;
+    }
+
+    /**
+     * @return Cache of result windows shared by all instances
+     */
+    public static synchronized ResultWindowCache getResultCache() {
+        if (resultCache == null) {
+            resultCache = new ResultWindowCache(Settings.getResultCacheSize());
+        }
+        return resultCache;
+    }
+
+    /**
+     * @return Cache of parsed queries shared by all instances
+     */
+    public static synchronized ParsedQueryCache getQueryCache() {
+        if (queryCache == null) {
+            queryCache = new ParsedQueryCache(Settings.getQueryCacheSize());
+        }
+        return queryCache;
+    }
+
     /**
      * Parses given query string with possible MathML formulae Supports query
      * grammar specified by org.apache.lucene.queryParser.QueryParser for text
      * queries
      *
      * @param queryString String holding the query.
-     * @return Query instance representing input query. This query is in form of
+     * @return Query instance representing input query, text of the processed
+     * query and report of the M-term planning. This query is in form of
      * (formula_1 or ... or formula_n) and (text queries)
      */
-    private ImmutablePair<Query, String> parseInput(String queryString, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+    private ImmutableTriple<Query, String, String> parseInput(String queryString, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) throws IOException {
         BooleanQuery result = new BooleanQuery();
         List<ImmutablePair<String, Float>> qxf = new ArrayList<>();
         StringBuilder queryXMLFormulae = new StringBuilder();
+        String plan = "";
         String[] sep = MathSeparator.separate(queryString, "");
         if (sep[1].length() > 0) {
-            BooleanQuery bq = new BooleanQuery();
+            MathQueryPlanner planner = new MathQueryPlanner(indexSearcher.getIndexReader(), ps,
+                    Settings.getMathTermBudget(), Settings.getMathCommonTermRatio(), Settings.getMathCommonTermFactor());
             String mathQuery = "<?xml version='1.0' encoding='UTF-8'?><!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\" \"http://www.w3.org/TR/MathML2/dtd/xhtml-math11-f.dtd\"><html>" + sep[1] + "</html>";
             if (variant == MathTokenizer.MathMLType.PRESENTATION || variant == MathTokenizer.MathMLType.BOTH) {
-                Map<String, Float> qf = addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.PRESENTATION, extractSubformulae, reduceWeighting);
+                Map<String, Float> qf = addMathQueries(mathQuery, planner, MathTokenizer.MathMLType.PRESENTATION, extractSubformulae, reduceWeighting);
                 qf.forEach((xml, weight) -> qxf.add(new ImmutablePair<>(xml, weight)));
             }
             if (variant == MathTokenizer.MathMLType.CONTENT || variant == MathTokenizer.MathMLType.BOTH) {
-                Map<String, Float> qf = addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.CONTENT, extractSubformulae, reduceWeighting);
+                Map<String, Float> qf = addMathQueries(mathQuery, planner, MathTokenizer.MathMLType.CONTENT, extractSubformulae, reduceWeighting);
                 qf.forEach((xml, weight) -> qxf.add(new ImmutablePair<>(xml, weight)));
             }
-            result.add(bq, BooleanClause.Occur.MUST);
+            // the pruning depth depends on the requested page, it is set for every search by getWindow
+            result.add(planner.plan(0), BooleanClause.Occur.MUST);
+            plan = planner.getReport();
             Collections.sort(qxf, (a, b) -> b.getRight().compareTo(a.getRight()));
             qxf.forEach((i) -> queryXMLFormulae
                     .append("formula with weight ").append(i.getRight())
@@ -260,10 +579,10 @@ public class Searching {
                 LOG.error(pe.getMessage());
             }
         }
-        return new ImmutablePair<>(result, queryXMLFormulae.toString());
+        return new ImmutableTriple<>(result, queryXMLFormulae.toString(), plan);
     }
 
-    private Map<String, Float> addMathQueries(String mathQuery, BooleanQuery bq, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
+    private Map<String, Float> addMathQueries(String mathQuery, MathQueryPlanner planner, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) {
         MathTokenizer mt = new MathTokenizer(new StringReader(mathQuery), extractSubformulae, variant, reduceWeighting);
         try {
             mt.reset();
@@ -271,26 +590,33 @@ public class Searching {
             LOG.fatal(ex);
         }
         Map<String, Float> queryForms = mt.getQueryFormulae();
-        List<Query> cQueries = getMathQueries(queryForms, variant);
-        for (Query q : cQueries) {
-            bq.add(q, BooleanClause.Occur.SHOULD);
-        }
+        addMathTerms(queryForms, variant, planner);
         return mt.getQueryXMLFormulae();
     }
 
-    private List<Query> getMathQueries(Map<String, Float> queryForms, MathTokenizer.MathMLType type) {
+    private void addMathTerms(Map<String, Float> queryForms, MathTokenizer.MathMLType type, MathQueryPlanner planner) {
         String field = (type == MathTokenizer.MathMLType.PRESENTATION ? "p" : "c") + "math";
-        List<Query> result = new ArrayList<>();
+        MathTermEncoding encoding = getTermEncoding();
         Iterator<Map.Entry<String, Float>> it = queryForms.entrySet().iterator();
         while (it.hasNext()) {
             Map.Entry<String, Float> entry = it.next();
-            Float boost = entry.getValue();
-            PayloadTermQuery ptq = new PayloadTermQuery(new Term(field, entry.getKey()), new AveragePayloadFunction());
+            planner.add(new Term(field, encoding.encode(entry.getKey())), entry.getKey(), entry.getValue());
+        }
+    }
 
-            ptq.setBoost(boost);
-            result.add(ptq);
+    /**
+     * @return Encoding of M-terms in the searched index
+     */
+    private MathTermEncoding getTermEncoding() {
+        if (termEncoding == null) {
+            try {
+                termEncoding = MathTermEncoding.fromIndex(indexSearcher.getIndexReader());
+            } catch (IOException | IllegalArgumentException ex) {
+                LOG.error("M-term encoding of the index could not be read, using text encoding", ex);
+                termEncoding = MathTermEncoding.TEXT;
+            }
         }
-        return result;
+        return termEncoding;
     }
 
     /**
@@ -302,7 +628,7 @@ public class Searching {
      * @return
      * @throws IOException
      */
-    private List<Result> getResults(ScoreDoc[] docs, Query query, boolean debug) throws IOException {
+    List<Result> getResults(ScoreDoc[] docs, Query query, boolean debug) throws IOException {
         List<Result> results = new ArrayList<>();
 
         // Extract snippets in separate thread with time limit on processing.
@@ -319,7 +645,7 @@ public class Searching {
 
             LOG.debug("Getting result " + (resultCounter + 1) + ": doc id " + sd.doc);
 
-            Document document = indexSearcher.doc(sd.doc);
+            Document document = indexSearcher.doc(sd.doc, RESULT_FIELDS);
             String fullLocalPath = document.get("path");
             String dataPath = storagePath + fullLocalPath;
 
@@ -343,10 +669,7 @@ public class Searching {
                     public String call() {
                         String extractedSnippet = null;
                         try {
-                            InputStream snippetIs;
-                            synchronized (document) {
-                                snippetIs = getInputStreamFromDataPath(document);
-                            }
+                            InputStream snippetIs = getInputStreamFromDataPath(document);
                             if (snippetIs != null) {
                                 SnippetExtractor extractor = new NiceSnippetExtractor(snippetIs, query, sd.doc, indexSearcher.getIndexReader());
                                 extractedSnippet = extractor.getSnippet();
@@ -458,6 +781,17 @@ public class Searching {
         }
     }
 
+    /**
+     * Opens the stored file of the hit.
+     *
+     * @param doc Document number of the hit
+     * @return Stream with the file content or null if the file is not found
+     * @throws IOException
+     */
+    InputStream getDocumentStream(int doc) throws IOException {
+        return getInputStreamFromDataPath(indexSearcher.doc(doc, RESULT_FIELDS));
+    }
+
     private InputStream getInputStreamFromDataPath(Document document) {
 
         InputStream is = null;
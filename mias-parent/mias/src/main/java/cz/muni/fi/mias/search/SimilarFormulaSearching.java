@@ -0,0 +1,138 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.FormulaStructure;
+import cz.muni.fi.mias.math.MathSeparator;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Searches for formulae similar to the query formulae using the nearest
+ * neighbour index of formula vectors built with VECTOR_INDEX.
+ *
+ * Every query formula is searched separately, a document is scored by the
+ * best similarity of its formulae to any query formula. Text of the query is
+ * ignored.
+ *
+ * @author Martin Liska
+ */
+public class SimilarFormulaSearching {
+
+    private static final Logger LOG = LogManager.getLogger(SimilarFormulaSearching.class);
+    /**
+     * Number of nearest formulae searched for every requested document, since
+     * a document usually contains several similar formulae
+     */
+    private static final int FORMULAE_PER_DOCUMENT = 4;
+
+    private final Searching searching;
+    private final IndexSearcher indexSearcher;
+    private final FormulaVectorIndex vectorIndex;
+
+    /**
+     * @param searching Searching over the index, used for building the results
+     * @param vectorIndex Nearest neighbour index of the formulae of the index
+     */
+    public SimilarFormulaSearching(Searching searching, FormulaVectorIndex vectorIndex) {
+        this.searching = searching;
+        this.indexSearcher = searching.getIndexSearcher();
+        this.vectorIndex = vectorIndex;
+    }
+
+    /**
+     * Searches the index for query specified by string.
+     *
+     * @param query String with the query
+     * @param offset index of the first retrieved result
+     * @param limit number of results to retrieve
+     * @param debug if true, results will contain debugging information
+     * @return Search result
+     */
+    public SearchResult search(String query, int offset, int limit, boolean debug) {
+        SearchResult result = new SearchResult();
+        result.setQuery(query);
+        result.setResults(new ArrayList<>());
+        try {
+            long start = System.currentTimeMillis();
+            String[] sep = MathSeparator.separate(ParsedQueryCache.normalize(query), "");
+            List<FormulaStructure> structures = new ArrayList<>();
+            if (sep[1].length() > 0) {
+                structures = FormulaStructure.parse(new StringReader(Settings.MATHDOCHEADER + "<html>" + sep[1] + "</html>"));
+            }
+            StringBuilder processedQuery = new StringBuilder();
+            for (FormulaStructure structure : structures) {
+                processedQuery.append("formula structure:\n").append(structure.encode()).append("\n");
+            }
+            result.setProcessedQuery(processedQuery.toString());
+            if (structures.isEmpty()) {
+                return result;
+            }
+
+            int k = Math.min(offset + limit, Settings.getMaxResults()) * FORMULAE_PER_DOCUMENT;
+            Map<String, Float> best = new LinkedHashMap<>();
+            for (FormulaStructure structure : structures) {
+                for (FormulaVectorIndex.Neighbour n : vectorIndex.search(structure.getEmbedding(FormulaVectorIndex.DIMENSIONS), k, Math.max(k, Settings.getVectorSearchEf()))) {
+                    best.merge(n.getDocumentId(), n.getSimilarity(), Math::max);
+                }
+            }
+            List<ScoreDoc> hits = new ArrayList<>(best.size());
+            for (Map.Entry<String, Float> e : best.entrySet()) {
+                int doc = getDocNumber(e.getKey());
+                if (doc >= 0) {
+                    hits.add(new ScoreDoc(doc, e.getValue()));
+                }
+            }
+            hits.sort((a, b) -> Float.compare(b.score, a.score));
+            result.setCoreSearchTime(System.currentTimeMillis() - start);
+
+            ScoreDoc[] page = hits.subList(Math.min(offset, hits.size()), Math.min(offset + limit, hits.size())).toArray(new ScoreDoc[0]);
+            result.setResults(searching.getResults(page, StructuralSearching.buildFingerprintQuery(structures), debug));
+            result.setTotalResults(hits.size());
+            if (debug) {
+                result.setLuceneQuery("nearest " + k + " of " + vectorIndex.size() + " formulae for "
+                        + structures.size() + " query formulae, " + hits.size() + " documents");
+            }
+            result.setTotalSearchTime(System.currentTimeMillis() - start);
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of the live document with the given id or -1 if there is
+     * none
+     */
+    private int getDocNumber(String id) throws IOException {
+        BytesRef term = new BytesRef(id);
+        for (AtomicReaderContext context : indexSearcher.getIndexReader().leaves()) {
+            Terms terms = context.reader().terms("id");
+            if (terms == null) {
+                continue;
+            }
+            TermsEnum te = terms.iterator(null);
+            if (te.seekExact(term)) {
+                DocsEnum docs = te.docs(context.reader().getLiveDocs(), null, DocsEnum.FLAG_NONE);
+                int doc = docs.nextDoc();
+                if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+                    return context.docBase + doc;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,211 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.FormulaStructure;
+import cz.muni.fi.mias.math.MathSeparator;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+/**
+ * Two-stage structural search over indexes built with STRUCTURE_INDEX.
+ *
+ * The first stage retrieves STRUCTURE_CANDIDATES candidates matching the
+ * structural fingerprints of the query formulae. The second stage reranks the
+ * candidates by the tree similarity of the query formulae and the canonical
+ * formula trees stored in the index. Each stage has its own time limit,
+ * candidates not reranked in time follow the reranked ones in the order of the
+ * first stage.
+ *
+ * @author Martin Liska
+ */
+public class StructuralSearching {
+
+    private static final Logger LOG = LogManager.getLogger(StructuralSearching.class);
+    private static final Set<String> TREE_FIELDS = Collections.singleton("ftree");
+
+    private final Searching searching;
+    private final IndexSearcher indexSearcher;
+
+    /**
+     * @param searching Searching over the index, used for building the results
+     */
+    public StructuralSearching(Searching searching) {
+        this.searching = searching;
+        this.indexSearcher = searching.getIndexSearcher();
+    }
+
+    /**
+     * Searches the index for query specified by string.
+     *
+     * @param query String with the query
+     * @param offset index of the first retrieved result
+     * @param limit number of results to retrieve
+     * @param debug if true, results will contain debugging information
+     * @return Search result
+     */
+    public SearchResult search(String query, int offset, int limit, boolean debug) {
+        SearchResult result = new SearchResult();
+        result.setQuery(query);
+        try {
+            long start = System.currentTimeMillis();
+            String[] sep = MathSeparator.separate(ParsedQueryCache.normalize(query), "");
+            List<FormulaStructure> structures = new ArrayList<>();
+            if (sep[1].length() > 0) {
+                structures = FormulaStructure.parse(new StringReader(Settings.MATHDOCHEADER + "<html>" + sep[1] + "</html>"));
+            }
+            Query candidateQuery = buildCandidateQuery(structures, sep[0]);
+            StringBuilder processedQuery = new StringBuilder();
+            for (FormulaStructure structure : structures) {
+                processedQuery.append("formula structure:\n").append(structure.encode()).append("\n");
+            }
+            if (sep[0].length() > 0) {
+                processedQuery.append("text: ").append(sep[0]).append("\n");
+            }
+            result.setProcessedQuery(processedQuery.toString());
+            if (candidateQuery == null) {
+                result.setResults(new ArrayList<>());
+                return result;
+            }
+
+            int numCandidates = Math.min(Math.max(Settings.getStructureCandidates(), offset + limit), Settings.getMaxResults());
+            TopScoreDocCollector collector = TopScoreDocCollector.create(numCandidates, true);
+            TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector,
+                    TimeLimitingCollector.getGlobalCounter(), Settings.getStructureCandidateMillis());
+            try {
+                indexSearcher.search(candidateQuery, timeLimitingCollector);
+            } catch (TimeExceededException ex) {
+                LOG.warn("Structural candidate retrieval exceeded time limit of {} ms", Settings.getStructureCandidateMillis());
+            }
+            TopDocs candidates = collector.topDocs();
+            long candidatesTime = System.currentTimeMillis() - start;
+
+            long rerankStart = System.currentTimeMillis();
+            ScoreDoc[] ranked = rerank(candidates.scoreDocs, structures, rerankStart + Settings.getStructureRerankMillis());
+            long rerankTime = System.currentTimeMillis() - rerankStart;
+            result.setCoreSearchTime(System.currentTimeMillis() - start);
+
+            ScoreDoc[] page = Arrays.copyOfRange(ranked, Math.min(offset, ranked.length), Math.min(offset + limit, ranked.length));
+            result.setResults(searching.getResults(page, candidateQuery, debug));
+            result.setTotalResults(candidates.totalHits);
+            if (debug) {
+                result.setLuceneQuery(candidateQuery.toString()
+                        + "\ncandidates: " + candidates.scoreDocs.length + " in " + candidatesTime + " ms"
+                        + "\nreranked in " + rerankTime + " ms");
+            }
+            result.setTotalSearchTime(System.currentTimeMillis() - start);
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Builds query matching documents with any fingerprint of the query
+     * formulae and all the query text.
+     *
+     * @return Query or null if there is nothing to search for
+     */
+    private Query buildCandidateQuery(List<FormulaStructure> structures, String text) {
+        BooleanQuery result = new BooleanQuery();
+        BooleanQuery math = buildFingerprintQuery(structures);
+        if (!math.clauses().isEmpty()) {
+            result.add(math, BooleanClause.Occur.MUST);
+        }
+        if (text.length() > 0) {
+            QueryParser parser = new MultiFieldQueryParser(new String[]{"content", "title"}, new StandardAnalyzer());
+            try {
+                result.add(parser.parse(text), BooleanClause.Occur.MUST);
+            } catch (ParseException pe) {
+                LOG.error(pe.getMessage());
+            }
+        }
+        return result.clauses().isEmpty() ? null : result;
+    }
+
+    /**
+     * Builds query matching documents with any structural fingerprint of the
+     * formulae.
+     */
+    static BooleanQuery buildFingerprintQuery(List<FormulaStructure> structures) {
+        Set<String> fingerprints = new LinkedHashSet<>();
+        for (FormulaStructure structure : structures) {
+            fingerprints.addAll(structure.getFingerprints());
+        }
+        BooleanQuery result = new BooleanQuery();
+        for (String fingerprint : fingerprints) {
+            if (result.clauses().size() == BooleanQuery.getMaxClauseCount()) {
+                break;
+            }
+            result.add(new TermQuery(new Term("fmath", fingerprint)), BooleanClause.Occur.SHOULD);
+        }
+        return result;
+    }
+
+    /**
+     * Reranks the candidates by the average over query formulae of the best
+     * similarity to a formula of the candidate.
+     *
+     * @param candidates Candidates in the order of the first stage
+     * @param structures Query formulae
+     * @param deadline Time when the reranking stops
+     * @return Reranked candidates with similarity as score followed by the
+     * candidates not reranked before the deadline
+     */
+    private ScoreDoc[] rerank(ScoreDoc[] candidates, List<FormulaStructure> structures, long deadline) throws IOException {
+        if (structures.isEmpty()) {
+            return candidates;
+        }
+        List<ScoreDoc> reranked = new ArrayList<>(candidates.length);
+        int i = 0;
+        for (; i < candidates.length && System.currentTimeMillis() < deadline; i++) {
+            String[] trees = indexSearcher.doc(candidates[i].doc, TREE_FIELDS).getValues("ftree");
+            List<FormulaStructure> docStructures = new ArrayList<>(trees.length);
+            for (String tree : trees) {
+                try {
+                    docStructures.add(FormulaStructure.decode(tree));
+                } catch (IllegalArgumentException ex) {
+                    LOG.warn("Stored formula structure of document id {} is broken", candidates[i].doc);
+                }
+            }
+            float similarity = 0;
+            for (FormulaStructure query : structures) {
+                float best = 0;
+                for (FormulaStructure docStructure : docStructures) {
+                    best = Math.max(best, query.similarity(docStructure));
+                }
+                similarity += best;
+            }
+            reranked.add(new ScoreDoc(candidates[i].doc, similarity / structures.size()));
+        }
+        if (i < candidates.length) {
+            LOG.warn("Structural reranking stopped by time limit after {} of {} candidates", i, candidates.length);
+        }
+        // stable sort keeps the first stage order of equally similar candidates
+        Collections.sort(reranked, (a, b) -> Float.compare(b.score, a.score));
+        reranked.addAll(Arrays.asList(candidates).subList(i, candidates.length));
+        return reranked.toArray(new ScoreDoc[reranked.size()]);
+    }
+}
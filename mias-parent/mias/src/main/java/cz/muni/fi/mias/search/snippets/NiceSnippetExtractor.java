@@ -1,6 +1,8 @@
 package cz.muni.fi.mias.search.snippets;
 
 import cz.muni.fi.mias.MIaSUtils;
+import cz.muni.fi.mias.math.PayloadCodec;
+import cz.muni.fi.mias.search.MathQuery;
 import cz.muni.fi.mias.Settings;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -68,7 +70,7 @@ public class NiceSnippetExtractor implements SnippetExtractor {
                             contextFound = true;
                             cont = docNumber - contextSpanDocNumber >= 0;
                             Collection<byte[]> payloads = spans.getPayload();
-                            formSpans.add(new Span(spans.doc(), q.toString(), spans.start(), cz.muni.fi.mias.math.PayloadHelper.decodeFloatFromShortBytes(payloads.iterator().next())));
+                            formSpans.add(new Span(spans.doc(), q.toString(), spans.start(), PayloadCodec.decode(payloads.iterator().next(), 0)));
                         }
                         if (!spans.next()) {
                             cont = false;
@@ -102,6 +104,10 @@ public class NiceSnippetExtractor implements SnippetExtractor {
                     }
                     getSpanTermQueries(bc.getQuery(), spanTermQueries, nonSpamTermQueries);
                 }
+            } else if (q instanceof MathQuery) {
+                for (Query clause : ((MathQuery) q).getClauses()) {
+                    getSpanTermQueries(clause, spanTermQueries, nonSpamTermQueries);
+                }
             } else {
                 nonSpamTermQueries.add(q);
             }
@@ -0,0 +1,130 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.math.MathImpacts;
+import cz.muni.fi.mias.math.MathTermEncoding;
+import java.io.File;
+import java.io.IOException;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+public class MathTermMigrationTest {
+
+    private static final int DOCUMENTS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hashesMathTerms() throws Exception {
+        File source = folder.newFolder("source");
+        File target = folder.newFolder("target");
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(source), new IndexWriterConfig(Version.LUCENE_4_10_4, new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < DOCUMENTS; i++) {
+                writer.addDocument(document(i));
+                if (i % 30 == 29) {
+                    writer.commit();
+                }
+            }
+            writer.deleteDocuments(new Term("id", "0"));
+        }
+
+        new MathTermMigration(source, target).migrate();
+
+        try (DirectoryReader sourceReader = DirectoryReader.open(FSDirectory.open(source));
+                DirectoryReader targetReader = DirectoryReader.open(FSDirectory.open(target))) {
+            Assert.assertEquals(MathTermEncoding.HASH, MathTermEncoding.fromIndex(targetReader));
+            Assert.assertEquals(1, targetReader.leaves().size());
+            Assert.assertEquals(DOCUMENTS - 1, targetReader.maxDoc());
+            IndexSearcher sourceSearcher = new IndexSearcher(sourceReader);
+            IndexSearcher targetSearcher = new IndexSearcher(targetReader);
+            TermsEnum te = MultiFields.getTerms(sourceReader, "pmath").iterator(null);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                String mterm = term.utf8ToString();
+                String hash = MathTermEncoding.HASH.encode(mterm);
+                Assert.assertEquals(count(sourceSearcher, new TermQuery(new Term("pmath", mterm))),
+                        count(targetSearcher, new TermQuery(new Term("pmath", hash))));
+                Assert.assertEquals(count(sourceSearcher, new TermQuery(new Term(MathImpacts.field("pmath"), MathImpacts.term(3, mterm)))),
+                        count(targetSearcher, new TermQuery(new Term(MathImpacts.field("pmath"), MathImpacts.term(3, hash)))));
+            }
+            // other fields are not hashed
+            Assert.assertEquals(1, count(targetSearcher, new TermQuery(new Term("id", "1"))));
+        }
+    }
+
+    @Test
+    public void rejectsMigratedIndex() throws Exception {
+        File source = folder.newFolder("source");
+        try (IndexWriter writer = new IndexWriter(FSDirectory.open(source), new IndexWriterConfig(Version.LUCENE_4_10_4, new WhitespaceAnalyzer()))) {
+            writer.addDocument(document(1));
+            writer.commit();
+        }
+        File target = folder.newFolder("target");
+        new MathTermMigration(source, target).migrate();
+        try {
+            new MathTermMigration(target, folder.newFolder("again")).migrate();
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void detectsHashCollision() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_4_10_4, new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < DOCUMENTS; i++) {
+                writer.addDocument(document(i));
+            }
+        }
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            Terms terms = reader.leaves().get(0).reader().terms("pmath");
+            // distinct hashes pass, one character hashes of 100 terms collide
+            Assert.assertEquals(terms.size(), new MathTermMigration.HashedTerms("pmath", terms, false, MathTermEncoding.HASH::encode).size());
+            try {
+                new MathTermMigration.HashedTerms("pmath", terms, false, t -> MathTermEncoding.HASH.encode(t).substring(0, 1));
+                Assert.fail();
+            } catch (IOException expected) {
+                Assert.assertTrue(expected.getMessage().contains("collision"));
+            }
+            // the level character of an impact term is kept after the hash
+            Terms impacts = reader.leaves().get(0).reader().terms(MathImpacts.field("pmath"));
+            TermsEnum hashed = new MathTermMigration.HashedTerms(MathImpacts.field("pmath"), impacts, true, t -> "h" + t).iterator(null);
+            TermsEnum te = impacts.iterator(null);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                Assert.assertEquals("h" + term.utf8ToString(), hashed.next().utf8ToString());
+            }
+            Assert.assertNull(hashed.next());
+        }
+    }
+
+    private static int count(IndexSearcher searcher, TermQuery query) throws IOException {
+        return searcher.search(query, 1).totalHits;
+    }
+
+    private static Document document(int i) {
+        Document document = new Document();
+        document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+        document.add(new TextField("pmath", "m" + i + " m" + i % 7 + " m" + i % 13, Field.Store.NO));
+        document.add(new TextField(MathImpacts.field("pmath"), MathImpacts.term(3, "m" + i) + " " + MathImpacts.term(5, "m" + i % 7), Field.Store.NO));
+        return document;
+    }
+}
@@ -0,0 +1,138 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.math.FormulaStructure;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+public class FormulaVectorIndexTest {
+
+    private static final int DOCUMENTS = 2000;
+    private static final int K = 10;
+    private static final String[] INNER = {"mrow", "msup", "mfrac", "msqrt", "msub"};
+    private static final String[] LEAVES = {"mi:a", "mi:b", "mi:x", "mi:y", "mn:1", "mn:2", "mn:3", "mo:+", "mo:-", "mo:="};
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Map<String, float[]> embeddings = new HashMap<>();
+    private static final List<String> trees = new ArrayList<>();
+    private static FormulaVectorIndex index;
+
+    @BeforeClass
+    public static void buildIndex() throws Exception {
+        Random random = new Random(42);
+        RAMDirectory directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_4_10_4, new KeywordAnalyzer()))) {
+            for (int i = 0; i < DOCUMENTS; i++) {
+                String tree = randomTree(random, 0);
+                Document document = new Document();
+                document.add(new StringField("id", "doc" + i, Field.Store.YES));
+                document.add(new StoredField("ftree", tree));
+                writer.addDocument(document);
+                embeddings.put("doc" + i, FormulaStructure.decode(tree).getEmbedding(FormulaVectorIndex.DIMENSIONS));
+                trees.add(tree);
+            }
+            // documents without id and deleted documents are left out
+            Document document = new Document();
+            document.add(new StoredField("ftree", trees.get(0)));
+            writer.addDocument(document);
+            writer.deleteDocuments(new Term("id", "doc1"));
+            embeddings.remove("doc1");
+        }
+        File file = new File(folder.getRoot(), FormulaVectorIndex.FILE_NAME);
+        try (IndexReader reader = DirectoryReader.open(directory)) {
+            FormulaVectorIndex.build(reader, file);
+        }
+        index = FormulaVectorIndex.open(file);
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        index.close();
+    }
+
+    @Test
+    public void indexesLiveFormulae() {
+        Assert.assertEquals(DOCUMENTS - 1, index.size());
+    }
+
+    @Test
+    public void findsFormulaItself() {
+        for (int i = 2; i < 100; i++) {
+            float[] query = FormulaStructure.decode(trees.get(i)).getEmbedding(FormulaVectorIndex.DIMENSIONS);
+            FormulaVectorIndex.Neighbour best = index.search(query, 1, 50).get(0);
+            // equal trees of other documents are as good as the formula itself
+            Assert.assertEquals(1.0F, cosine(query, embeddings.get(best.getDocumentId())), 1e-5F);
+            Assert.assertEquals(1.0F, best.getSimilarity(), 0.05F);
+        }
+    }
+
+    @Test
+    public void findsNearestNeighbours() {
+        Random random = new Random(7);
+        int found = 0;
+        int queries = 100;
+        for (int q = 0; q < queries; q++) {
+            float[] query = FormulaStructure.decode(randomTree(random, 0)).getEmbedding(FormulaVectorIndex.DIMENSIONS);
+            float[] exact = new float[embeddings.size()];
+            int i = 0;
+            for (float[] embedding : embeddings.values()) {
+                exact[i++] = cosine(query, embedding);
+            }
+            Arrays.sort(exact);
+            float kth = exact[exact.length - K];
+            List<FormulaVectorIndex.Neighbour> neighbours = index.search(query, K, 100);
+            Assert.assertEquals(K, neighbours.size());
+            float previous = Float.POSITIVE_INFINITY;
+            for (FormulaVectorIndex.Neighbour neighbour : neighbours) {
+                Assert.assertNotEquals("doc1", neighbour.getDocumentId());
+                Assert.assertTrue(neighbour.getSimilarity() <= previous);
+                previous = neighbour.getSimilarity();
+                // quantization may swap neighbours of nearly equal similarity
+                if (cosine(query, embeddings.get(neighbour.getDocumentId())) >= kth - 0.01F) {
+                    found++;
+                }
+            }
+        }
+        Assert.assertTrue("recall " + found / (float) (queries * K), found >= 0.95 * queries * K);
+    }
+
+    private static String randomTree(Random random, int depth) {
+        if (depth >= 3 || depth > 0 && random.nextInt(3) == 0) {
+            return LEAVES[random.nextInt(LEAVES.length)] + "[]";
+        }
+        StringBuilder sb = new StringBuilder(depth == 0 ? "math" : INNER[random.nextInt(INNER.length)]).append('[');
+        int children = 1 + random.nextInt(3);
+        for (int i = 0; i < children; i++) {
+            sb.append(randomTree(random, depth + 1));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static float cosine(float[] a, float[] b) {
+        float result = 0;
+        for (int i = 0; i < a.length; i++) {
+            result += a[i] * b[i];
+        }
+        return result;
+    }
+}
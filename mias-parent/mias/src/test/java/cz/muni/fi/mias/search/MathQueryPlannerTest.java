@@ -0,0 +1,130 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.Settings;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.payloads.PayloadTermQuery;
+import org.junit.*;
+
+public class MathQueryPlannerTest {
+
+    private static MathTestIndex index;
+    private static IndexReader reader;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        index = new MathTestIndex();
+        // a in all documents, b in 2, c in 1 and d in 5 of 10
+        for (int i = 0; i < 10; i++) {
+            StringBuilder text = new StringBuilder("a|1.0");
+            if (i < 2) {
+                text.append(" b|1.0");
+            }
+            if (i == 0) {
+                text.append(" c|1.0");
+            }
+            if (i % 2 == 0) {
+                text.append(" d|1.0");
+            }
+            index.add(text.toString());
+        }
+        index.commit();
+        reader = index.searcher().getIndexReader();
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        reader.close();
+        index.close();
+    }
+
+    @Test
+    public void keepsTermsWithHighestContributionWithinBudget() throws Exception {
+        MathQueryPlanner planner = new MathQueryPlanner(reader, new PayloadSimilarity(), 2, 0.5F, 1.0F);
+        addCandidates(planner);
+        MathQuery query = planner.plan(0);
+        // contributions idf^2 * weight: b 4.86, d 1.14, a 0.82, c 0.68
+        Assert.assertEquals(terms("b", "d"), terms(query));
+        Assert.assertEquals(1.0F, query.getClauses().get(0).getBoost(), 0.0F);
+        Assert.assertEquals(0.5F, query.getClauses().get(1).getBoost(), 0.0F);
+
+        String report = planner.getReport();
+        Assert.assertTrue(report, report.startsWith("M-terms kept: 2 of 5 (budget 2)\n"));
+        Assert.assertTrue(report, report.contains("dropped absent: pmath:x\n"));
+        Assert.assertTrue(report, report.contains("dropped over budget: pmath:a (docFreq=10, "));
+        Assert.assertTrue(report, report.contains("dropped over budget: pmath:c (docFreq=1, "));
+        Assert.assertFalse(report, report.contains("down-weighted"));
+    }
+
+    @Test
+    public void dropsAbsentTermsWithoutBudget() throws Exception {
+        MathQueryPlanner planner = new MathQueryPlanner(reader, new PayloadSimilarity(), 0, 0.5F, 1.0F);
+        addCandidates(planner);
+        Assert.assertEquals(terms("b", "d", "a", "c"), terms(planner.plan(0)));
+        Assert.assertTrue(planner.getReport().startsWith("M-terms kept: 4 of 5\n"));
+    }
+
+    @Test
+    public void downWeightsCommonTerms() throws Exception {
+        MathQueryPlanner planner = new MathQueryPlanner(reader, new PayloadSimilarity(), 0, 0.5F, 0.5F);
+        addCandidates(planner);
+        MathQuery query = planner.plan(0);
+        PayloadTermQuery a = query.getClauses().get(terms(query).indexOf(new Term(MathTestIndex.FIELD, "a")));
+        Assert.assertEquals(0.5F, a.getBoost(), 0.0F);
+        String report = planner.getReport();
+        Assert.assertTrue(report, report.contains("down-weighted common: pmath:a (docFreq=10, weight 1.0 -> 0.5)\n"));
+        // d is in exactly half of the documents
+        Assert.assertFalse(report, report.contains("down-weighted common: pmath:d"));
+    }
+
+    @Test
+    public void defaultSettingsKeepWeights() throws Exception {
+        Settings.init();
+        MathQueryPlanner planner = new MathQueryPlanner(reader, new PayloadSimilarity(),
+                Settings.getMathTermBudget(), Settings.getMathCommonTermRatio(), Settings.getMathCommonTermFactor());
+        addCandidates(planner);
+        for (PayloadTermQuery clause : planner.plan(0).getClauses()) {
+            Assert.assertEquals(clause.getTerm().text().equals("c") ? 0.1F : clause.getTerm().text().equals("d") ? 0.5F : 1.0F,
+                    clause.getBoost(), 0.0F);
+        }
+        Assert.assertTrue(planner.getReport().startsWith("M-terms kept: 4 of 5\n"));
+        Assert.assertFalse(planner.getReport().contains("down-weighted"));
+    }
+
+    @Test
+    public void reportsLastPlanWithMTermTexts() throws Exception {
+        MathQueryPlanner planner = new MathQueryPlanner(reader, new PayloadSimilarity(), 0, 0.5F, 1.0F);
+        planner.add(new Term(MathTestIndex.FIELD, "a"), 1.0F);
+        planner.add(new Term(MathTestIndex.FIELD, "encodedX"), "x", 1.0F);
+        planner.plan(0);
+        String report = planner.plan(0).getClauses().size() + "\n" + planner.getReport();
+        Assert.assertEquals("1\nM-terms kept: 1 of 2\ndropped absent: pmath:x\n", report);
+    }
+
+    private static void addCandidates(MathQueryPlanner planner) {
+        planner.add(new Term(MathTestIndex.FIELD, "a"), 1.0F);
+        planner.add(new Term(MathTestIndex.FIELD, "b"), 1.0F);
+        planner.add(new Term(MathTestIndex.FIELD, "c"), 0.1F);
+        planner.add(new Term(MathTestIndex.FIELD, "d"), 0.5F);
+        planner.add(new Term(MathTestIndex.FIELD, "x"), 1.0F);
+    }
+
+    private static List<Term> terms(String... texts) {
+        List<Term> result = new ArrayList<>();
+        for (String text : texts) {
+            result.add(new Term(MathTestIndex.FIELD, text));
+        }
+        return result;
+    }
+
+    private static List<Term> terms(MathQuery query) {
+        List<Term> result = new ArrayList<>();
+        for (PayloadTermQuery clause : query.getClauses()) {
+            result.add(clause.getTerm());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package cz.muni.fi.mias.search;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.payloads.AveragePayloadFunction;
+import org.apache.lucene.search.payloads.PayloadTermQuery;
+import org.junit.*;
+
+public class MathQueryTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int SEGMENT_DOCUMENTS = 500;
+    private static final int TERMS = 40;
+    private static final float DELTA = 1e-5F;
+
+    private static MathTestIndex index;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        Random random = new Random(42);
+        index = new MathTestIndex();
+        for (int segment = 0; segment < SEGMENTS; segment++) {
+            for (int doc = 0; doc < SEGMENT_DOCUMENTS; doc++) {
+                StringBuilder text = new StringBuilder();
+                int length = 1 + random.nextInt(12);
+                for (int i = 0; i < length; i++) {
+                    // skewed term frequencies, the first terms are common
+                    int term = (int) (TERMS * random.nextDouble() * random.nextDouble());
+                    text.append('t').append(term).append('|').append((float) Math.pow(0.55, random.nextInt(6))).append(' ');
+                }
+                index.add(text.toString());
+            }
+            index.commit();
+        }
+        searcher = index.searcher();
+        Assert.assertEquals(SEGMENTS, searcher.getIndexReader().leaves().size());
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        searcher.getIndexReader().close();
+        index.close();
+    }
+
+    @Test
+    public void pruningKeepsBestHits() throws Exception {
+        Random random = new Random(7);
+        int pruned = 0;
+        for (int q = 0; q < 50; q++) {
+            Set<Term> terms = new LinkedHashSet<>();
+            int n = 1 + random.nextInt(15);
+            while (terms.size() < n) {
+                terms.add(new Term(MathTestIndex.FIELD, "t" + random.nextInt(TERMS)));
+            }
+            BooleanQuery expectedQuery = new BooleanQuery();
+            MathQuery query = new MathQuery(0);
+            for (Term term : terms) {
+                float weight = (float) Math.pow(0.8, random.nextInt(8));
+                PayloadTermQuery ptq = new PayloadTermQuery(term, new AveragePayloadFunction());
+                ptq.setBoost(weight);
+                expectedQuery.add(ptq, BooleanClause.Occur.SHOULD);
+                query.add(term, weight);
+            }
+            for (int k : new int[]{1, 10, 100}) {
+                TopDocs expected = searcher.search(expectedQuery, k);
+                assertSameHits(expectedQuery, expected, searcher.search(query, k));
+                TopDocs actual = searcher.search(query.withTopK(k), k);
+                assertSameHits(expectedQuery, expected, actual);
+                if (actual.totalHits < expected.totalHits) {
+                    pruned++;
+                }
+            }
+        }
+        // the documents are really skipped
+        Assert.assertTrue(pruned > 0);
+    }
+
+    @Test
+    public void pruningContinuesAfterHit() throws Exception {
+        MathQuery query = new MathQuery(0);
+        query.add(new Term(MathTestIndex.FIELD, "t1"), 1.0F);
+        query.add(new Term(MathTestIndex.FIELD, "t5"), 0.8F);
+        query.add(new Term(MathTestIndex.FIELD, "t20"), 0.5F);
+        TopDocs expected = searcher.search(query, 60);
+        TopDocs first = searcher.search(query.withTopK(30), 30);
+        TopDocs second = searcher.searchAfter(first.scoreDocs[29], query.withTopK(60), 30);
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(expected.scoreDocs[i].doc, first.scoreDocs[i].doc);
+            Assert.assertEquals(expected.scoreDocs[30 + i].doc, second.scoreDocs[i].doc);
+            Assert.assertEquals(expected.scoreDocs[30 + i].score, second.scoreDocs[i].score, 0.0F);
+        }
+    }
+
+    /**
+     * Scores have to be the same as the expected ones. Hits may differ only
+     * in the order of documents with equal scores, so every hit is checked to
+     * have the score the expected query gives it.
+     */
+    private static void assertSameHits(Query expectedQuery, TopDocs expected, TopDocs actual) throws Exception {
+        Assert.assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            ScoreDoc e = expected.scoreDocs[i];
+            ScoreDoc a = actual.scoreDocs[i];
+            Assert.assertEquals(e.score, a.score, DELTA * e.score);
+            if (e.doc != a.doc) {
+                Assert.assertEquals(a.score, searcher.explain(expectedQuery, a.doc).getValue(), DELTA * a.score);
+            }
+        }
+    }
+}
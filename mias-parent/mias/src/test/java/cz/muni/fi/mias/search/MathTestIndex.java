@@ -0,0 +1,104 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.math.PayloadCodec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.AbstractEncoder;
+import org.apache.lucene.analysis.payloads.DelimitedPayloadTokenFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * In-memory index of documents with weighted M-terms for tests. Every commit
+ * creates a new segment. M-terms are given as text of whitespace separated
+ * tokens term|weight, the weights are stored in payloads the way
+ * MathTokenizer stores them.
+ */
+public class MathTestIndex implements Closeable {
+
+    public static final String FIELD = "pmath";
+
+    private static final Analyzer ANALYZER = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+            Tokenizer source = new WhitespaceTokenizer(reader);
+            return new TokenStreamComponents(source, new DelimitedPayloadTokenFilter(source, '|', new AbstractEncoder() {
+                @Override
+                public BytesRef encode(char[] buffer, int offset, int length) {
+                    return PayloadCodec.encode(Float.parseFloat(new String(buffer, offset, length)));
+                }
+            }));
+        }
+    };
+
+    private final RAMDirectory directory = new RAMDirectory();
+    private final IndexWriter writer;
+
+    public MathTestIndex() throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_4, ANALYZER);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        config.setSimilarity(new PayloadSimilarity());
+        writer = new IndexWriter(directory, config);
+    }
+
+    /**
+     * @param text Weighted M-terms
+     * @return Tokens of the weighted M-terms with payloads
+     */
+    public static TokenStream tokens(String text) throws IOException {
+        return ANALYZER.tokenStream(FIELD, text);
+    }
+
+    /**
+     * Adds document with the weighted M-terms in the math field.
+     */
+    public void add(String text) throws IOException {
+        Document document = new Document();
+        document.add(new TextField(FIELD, tokens(text)));
+        writer.addDocument(document);
+    }
+
+    public void add(Document document) throws IOException {
+        writer.addDocument(document);
+    }
+
+    /**
+     * Closes the current segment.
+     */
+    public void commit() throws IOException {
+        writer.commit();
+    }
+
+    /**
+     * @return Searcher of the committed documents using PayloadSimilarity
+     */
+    public IndexSearcher searcher() throws IOException {
+        IndexSearcher searcher = new IndexSearcher(DirectoryReader.open(directory));
+        searcher.setSimilarity(new PayloadSimilarity());
+        return searcher;
+    }
+
+    public RAMDirectory getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        directory.close();
+    }
+}
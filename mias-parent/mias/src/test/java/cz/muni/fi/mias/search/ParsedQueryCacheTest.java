@@ -0,0 +1,39 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.math.MathTokenizer;
+import org.apache.commons.lang3.tuple.ImmutableTriple;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.junit.*;
+
+public class ParsedQueryCacheTest {
+
+    @Test
+    public void entriesOfPreviousConfigurationAreNotHit() throws Exception {
+        try (MathTestIndex index = new MathTestIndex()) {
+            index.add("a|0.5");
+            index.commit();
+            try (IndexReader reader = index.searcher().getIndexReader()) {
+                ParsedQueryCache cache = new ParsedQueryCache(10);
+                ImmutableTriple<Query, String, String> parsed = ImmutableTriple.of((Query) new MatchAllDocsQuery(), "q", "");
+                cache.put(reader, key("q  "), parsed);
+                Assert.assertSame(parsed, cache.get(reader, key("q")));
+                Assert.assertNull(cache.get(reader, new ParsedQueryCache.Key("q", MathTokenizer.MathMLType.CONTENT, false, false)));
+
+                String previous = cz.muni.fi.mir.mathmlcanonicalization.Settings.getProperty("configSchema");
+                cz.muni.fi.mir.mathmlcanonicalization.Settings.setProperty("configSchema", previous + "/changed");
+                try {
+                    Assert.assertNull(cache.get(reader, key("q")));
+                } finally {
+                    cz.muni.fi.mir.mathmlcanonicalization.Settings.setProperty("configSchema", previous);
+                }
+                Assert.assertSame(parsed, cache.get(reader, key("q")));
+            }
+        }
+    }
+
+    private static ParsedQueryCache.Key key(String query) {
+        return new ParsedQueryCache.Key(ParsedQueryCache.normalize(query), MathTokenizer.MathMLType.PRESENTATION, false, false);
+    }
+}
@@ -0,0 +1,171 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathTiers;
+import java.io.File;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.TermsFilter;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+public class SearchingTest {
+
+    private static final int RESULT_WINDOW = 20;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static MathTestIndex index;
+    private static IndexSearcher searcher;
+    private static MathTestIndex tierIndex;
+    private static IndexSearcher tierSearcher;
+
+    @BeforeClass
+    public static void createIndex() throws Exception {
+        File properties = folder.newFile("mias.properties");
+        FileUtils.writeStringToFile(properties, "RESULT_WINDOW=" + RESULT_WINDOW + "\n");
+        Settings.init(properties.getPath());
+        Random random = new Random(42);
+        index = new MathTestIndex();
+        for (int segment = 0; segment < 3; segment++) {
+            for (int doc = 0; doc < 200; doc++) {
+                StringBuilder text = new StringBuilder();
+                int length = 1 + random.nextInt(8);
+                for (int i = 0; i < length; i++) {
+                    text.append('t').append(random.nextInt(10)).append('|').append(random.nextInt(100) / 100.0F + 0.01F).append(' ');
+                }
+                index.add(text.toString());
+            }
+            index.commit();
+        }
+        searcher = index.searcher();
+
+        // complex M-terms c1 and c3 are common, c2 is rare
+        tierIndex = new MathTestIndex();
+        for (int segment = 0; segment < 2; segment++) {
+            for (int doc = 0; doc < 300; doc++) {
+                StringBuilder text = new StringBuilder();
+                StringBuilder complex = new StringBuilder();
+                int length = 1 + random.nextInt(4);
+                for (int i = 0; i < length; i++) {
+                    text.append('g').append(random.nextInt(5)).append('|').append(random.nextInt(90) / 100.0F + 0.01F).append(' ');
+                }
+                if (doc % 10 == 0) {
+                    text.append("c1|0.9 ");
+                    complex.append("c1 ");
+                }
+                if (doc % 100 == 1) {
+                    text.append("c2|0.9 ");
+                    complex.append("c2 ");
+                }
+                if (doc % 10 == 5) {
+                    text.append("c3|0.9 ");
+                    complex.append("c3 ");
+                }
+                Document document = new Document();
+                document.add(new TextField(MathTestIndex.FIELD, MathTestIndex.tokens(text.toString())));
+                document.add(new Field(MathTiers.field(MathTestIndex.FIELD), complex.toString(), MathTiers.TIER_FIELD_TYPE));
+                tierIndex.add(document);
+            }
+            tierIndex.commit();
+        }
+        tierSearcher = tierIndex.searcher();
+    }
+
+    @AfterClass
+    public static void closeIndex() throws Exception {
+        searcher.getIndexReader().close();
+        index.close();
+        tierSearcher.getIndexReader().close();
+        tierIndex.close();
+    }
+
+    @Test
+    public void pagesContinueAfterCachedWindow() throws Exception {
+        MathQuery mathQuery = new MathQuery(0);
+        mathQuery.add(new Term(MathTestIndex.FIELD, "t1"), 1.0F);
+        mathQuery.add(new Term(MathTestIndex.FIELD, "t2"), 0.7F);
+        mathQuery.add(new Term(MathTestIndex.FIELD, "t3"), 0.4F);
+        BooleanQuery query = new BooleanQuery();
+        query.add(mathQuery, BooleanClause.Occur.MUST);
+        TopDocs expected = searcher.search(mathQuery, 100);
+
+        Searching searching = new Searching(searcher, "");
+        ResultWindowCache cache = Searching.getResultCache();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        assertPage(expected, 0, 10, searching.getTopDocs(query, 0, 10));
+        Assert.assertEquals(misses + 1, cache.getMisses());
+        // inside of the first window
+        assertPage(expected, 10, 10, searching.getTopDocs(query, 10, 10));
+        Assert.assertEquals(hits + 1, cache.getHits());
+        // across the boundary of the window, continued by searchAfter
+        assertPage(expected, 15, 10, searching.getTopDocs(query, 15, 10));
+        Assert.assertEquals(hits + 2, cache.getHits());
+        // the extended window covers the page, further pages extend it again
+        assertPage(expected, 30, 10, searching.getTopDocs(query, 30, 10));
+        assertPage(expected, 35, 30, searching.getTopDocs(query, 35, 30));
+        Assert.assertEquals(hits + 4, cache.getHits());
+        Assert.assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void complexTierHitsBeatingTheBoundAreUsed() throws Exception {
+        BooleanQuery query = tierQuery("c1", 1.0F, "g0", 0.01F);
+        assertTierSearch(query, 0, 10);
+        assertTierSearch(query, 10, 10);
+        // the whole index was not searched
+        Assert.assertNull(Searching.getResultCache().get(tierSearcher.getIndexReader(), query));
+    }
+
+    @Test
+    public void fallsBackToWholeIndexForTooFewTierHits() throws Exception {
+        BooleanQuery query = tierQuery("c2", 1.0F, "g0", 0.1F);
+        assertTierSearch(query, 0, 10);
+        Assert.assertNotNull(Searching.getResultCache().get(tierSearcher.getIndexReader(), query));
+    }
+
+    @Test
+    public void fallsBackToWholeIndexForTierHitsBelowTheBound() throws Exception {
+        BooleanQuery query = tierQuery("c3", 0.01F, "g0", 1.0F);
+        // the tier alone has enough hits, but documents without c3 score higher
+        Assert.assertTrue(tierSearcher.search(new FilteredQuery(query, new TermsFilter(new Term(MathTiers.field(MathTestIndex.FIELD), "c3"))), 10).totalHits >= 10);
+        assertTierSearch(query, 0, 10);
+        Assert.assertNotNull(Searching.getResultCache().get(tierSearcher.getIndexReader(), query));
+    }
+
+    private static BooleanQuery tierQuery(String complex, float complexWeight, String generic, float genericWeight) {
+        MathQuery mathQuery = new MathQuery(0);
+        mathQuery.add(new Term(MathTestIndex.FIELD, complex), complexWeight);
+        mathQuery.add(new Term(MathTestIndex.FIELD, generic), genericWeight);
+        BooleanQuery query = new BooleanQuery();
+        query.add(mathQuery, BooleanClause.Occur.MUST);
+        return query;
+    }
+
+    /**
+     * The page has to be the same as the page of the whole index.
+     */
+    private static void assertTierSearch(BooleanQuery query, int offset, int limit) throws Exception {
+        TopDocs expected = tierSearcher.search(query.getClauses()[0].getQuery(), offset + limit);
+        assertPage(expected, offset, limit, new Searching(tierSearcher, "").getTopDocs(query, offset, limit));
+    }
+
+    private static void assertPage(TopDocs expected, int offset, int limit, TopDocs page) {
+        Assert.assertEquals(limit, page.scoreDocs.length);
+        for (int i = 0; i < limit; i++) {
+            Assert.assertEquals(expected.scoreDocs[offset + i].doc, page.scoreDocs[i].doc);
+            Assert.assertEquals(expected.scoreDocs[offset + i].score, page.scoreDocs[i].score, 0.0F);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package cz.muni.fi.mias;
 
 
+import cz.muni.fi.mir.mathmlcanonicalization.MathMLCanonicalizer;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -37,19 +38,36 @@ public class MIaSMathUtils {
 
     private static final Logger LOG = LogManager.getLogger(MIaSMathUtils.class);
 
-    private static final String MATHML_DTD = "/cz/muni/fi/mias/math/xhtml-math11-f.dtd";
-
-    public static DocumentBuilder prepareDocumentBuilder() throws ParserConfigurationException {
+    private static final ThreadLocal<DocumentBuilderFactory> DOCUMENT_BUILDER_FACTORY = ThreadLocal.withInitial(() -> {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setNamespaceAware(true);
-        DocumentBuilder builder = factory.newDocumentBuilder();
+        try {
+            // deferred nodes only slow down building of the many entities of the DTD
+            factory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+        } catch (ParserConfigurationException ex) {
+            LOG.debug("Deferred node expansion cannot be turned off", ex);
+        }
+        return factory;
+    });
+
+    /**
+     * Prepares namespace aware document builder which resolves DTDs to the
+     * XHTML plus MathML DTD of the shared canonicalizer. The DTD is compiled
+     * once and shared with the canonicalizer, the factory is created once per
+     * thread.
+     *
+     * @return New document builder
+     * @throws ParserConfigurationException
+     */
+    public static DocumentBuilder prepareDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = DOCUMENT_BUILDER_FACTORY.get().newDocumentBuilder();
         builder.setEntityResolver(new EntityResolver() {
             @Override
             public InputSource resolveEntity(String publicId, String systemId)
                     throws SAXException, java.io.IOException {
                 LOG.debug("{} {}", new Object[]{publicId, systemId});
                 if (systemId.endsWith("dtd")) {
-                    return new InputSource(MIaSMathUtils.class.getResourceAsStream(MATHML_DTD));
+                    return new InputSource(getCanonicalizer().getXHTMLPlusMathMLPlusSVGDTDStream());
                 } else {
                     return null;
                 }
@@ -57,4 +75,21 @@ public class MIaSMathUtils {
         });
         return builder;
     }
+
+    /**
+     * Returns canonicalizer with the default configuration shared by all
+     * indexing and search threads, the canonicalizer is thread-safe and its
+     * configuration is loaded only once.
+     *
+     * @return Shared default canonicalizer
+     */
+    public static MathMLCanonicalizer getCanonicalizer() {
+        return DefaultCanonicalizer.INSTANCE;
+    }
+
+    // holder creating the canonicalizer on the first use
+    private static class DefaultCanonicalizer {
+
+        private static final MathMLCanonicalizer INSTANCE = MathMLCanonicalizer.getDefaultCanonicalizer();
+    }
 }
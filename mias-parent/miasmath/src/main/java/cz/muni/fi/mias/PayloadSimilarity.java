@@ -15,7 +15,7 @@
  */
 package cz.muni.fi.mias;
 
-import cz.muni.fi.mias.math.PayloadHelper;
+import cz.muni.fi.mias.math.PayloadCodec;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.util.BytesRef;
 
@@ -32,8 +32,15 @@ public class PayloadSimilarity extends DefaultSimilarity {
     public float scorePayload(int docId, int start, int end, BytesRef byteRef) {
         float score = 1.0F;
         if (byteRef.bytes != BytesRef.EMPTY_BYTES) {
-            score = PayloadHelper.decodeFloatFromShortBytes(byteRef.bytes);
+            score = PayloadCodec.decode(byteRef);
         }
         return score;
     }
+
+    /**
+     * @return Maximal value returned by scorePayload
+     */
+    public float maxPayloadScore() {
+        return Math.max(1.0F, Short.MAX_VALUE / 10000F);
+    }
 }
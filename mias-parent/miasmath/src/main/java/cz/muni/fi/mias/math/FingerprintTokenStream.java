@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * Token stream providing structural fingerprints of formulae. Fingerprints of
+ * one formula share the position, every formula has its own position like in
+ * {@link MathTokenizer}.
+ *
+ * @author Martin Liska
+ */
+public final class FingerprintTokenStream extends TokenStream {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+    private final List<FormulaStructure> structures;
+    private int formula;
+    private int increment;
+    private Iterator<String> fingerprints = Collections.<String>emptyIterator();
+
+    /**
+     * @param structures Structures of the formulae in the order of the document
+     */
+    public FingerprintTokenStream(List<FormulaStructure> structures) {
+        this.structures = structures;
+    }
+
+    @Override
+    public boolean incrementToken() {
+        clearAttributes();
+        while (!fingerprints.hasNext() && formula < structures.size()) {
+            fingerprints = structures.get(formula++).getFingerprints().iterator();
+            increment++;
+        }
+        if (!fingerprints.hasNext()) {
+            return false;
+        }
+        termAtt.setEmpty().append(fingerprints.next());
+        posAtt.setPositionIncrement(increment);
+        increment = 0;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        formula = 0;
+        increment = 0;
+        fingerprints = Collections.<String>emptyIterator();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import org.apache.lucene.util.Attribute;
+
+/**
+ * Complexity of the formula of an M-term as valued by
+ * {@link CountNodesFormulaValuator}. {@link MathTokenizer} fills it in only
+ * when the attribute is added to it before it is reset.
+ *
+ * @author Martin Liska
+ */
+public interface FormulaComplexityAttribute extends Attribute {
+
+    /**
+     * @return Number of nodes of the formula of the current M-term
+     */
+    float getComplexity();
+
+    /**
+     * @param complexity Number of nodes of the formula of the current M-term
+     */
+    void setComplexity(float complexity);
+}
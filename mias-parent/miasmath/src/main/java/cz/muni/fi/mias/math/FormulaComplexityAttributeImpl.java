@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import org.apache.lucene.util.AttributeImpl;
+
+/**
+ * Default implementation of {@link FormulaComplexityAttribute}.
+ *
+ * @author Martin Liska
+ */
+public class FormulaComplexityAttributeImpl extends AttributeImpl implements FormulaComplexityAttribute {
+
+    private float complexity;
+
+    @Override
+    public float getComplexity() {
+        return complexity;
+    }
+
+    @Override
+    public void setComplexity(float complexity) {
+        this.complexity = complexity;
+    }
+
+    @Override
+    public void clear() {
+        complexity = 0;
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+        ((FormulaComplexityAttribute) target).setComplexity(complexity);
+    }
+}
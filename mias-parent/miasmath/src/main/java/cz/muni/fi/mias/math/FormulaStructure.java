@@ -0,0 +1,369 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import cz.muni.fi.mias.MIaSMathUtils;
+import cz.muni.fi.mir.mathmlcanonicalization.CanonicalizationCache;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.input.ReaderInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.filter.Filters;
+import org.jdom2.input.sax.SAXHandler;
+
+/**
+ * Labelled tree of a canonicalized formula used for structural search.
+ *
+ * Element nodes are labelled by their name, leaves by their name and text.
+ * Structure provides hashed fingerprints for cheap candidate retrieval (paths
+ * from the leaves up to PATH_LENGTH levels towards the root and labels of
+ * adjacent siblings), compact string encoding for storing the tree in the
+ * index and tree similarity used for reranking the candidates.
+ *
+ * @author Martin Liska
+ */
+public class FormulaStructure {
+
+    private static final Logger LOG = LogManager.getLogger(FormulaStructure.class);
+
+    /**
+     * Maximal number of nodes of a path fingerprint
+     */
+    public static final int PATH_LENGTH = 3;
+    /**
+     * Weight of matching subtrees differing only in the leaf texts relative to
+     * exactly matching subtrees
+     */
+    private static final float SHAPE_COEF = 0.5f;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String name;
+    private final String label;
+    private final List<FormulaStructure> children;
+    private Map<Long, Integer> exactSubtrees;
+    private Map<Long, Integer> shapeSubtrees;
+
+    private FormulaStructure(String name, String label, List<FormulaStructure> children) {
+        this.name = name;
+        this.label = label;
+        this.children = children;
+    }
+
+    /**
+     * Canonicalizes the input and creates structures of all formulae in it.
+     *
+     * @param input Reader with MathML formulae or document containing them
+     * @return Structures of the formulae in the order of the input, empty list
+     * if the input cannot be processed
+     */
+    public static List<FormulaStructure> parse(Reader input) {
+        return parse(input, null);
+    }
+
+    /**
+     * Canonicalizes the input and creates structures of all formulae in it.
+     * The input is canonicalized only if the cache does not contain it, so the
+     * canonical formulae are shared with the MathTokenizers using the cache.
+     *
+     * @param input Reader with MathML formulae or document containing them
+     * @param cache Cache of canonicalized formulae or null
+     * @return Structures of the formulae in the order of the input, empty list
+     * if the input cannot be processed
+     */
+    public static List<FormulaStructure> parse(Reader input, CanonicalizationCache cache) {
+        List<FormulaStructure> result = new ArrayList<>();
+        try {
+            Document doc;
+            if (cache != null) {
+                SAXHandler handler = new SAXHandler();
+                cache.canonicalizeMath(MIaSMathUtils.getCanonicalizer(), new ReaderInputStream(input, "UTF-8"), handler);
+                doc = handler.getDocument();
+            } else {
+                doc = MIaSMathUtils.getCanonicalizer().canonicalizeMath(new ReaderInputStream(input, "UTF-8"), false);
+            }
+            Element root = doc.getRootElement();
+            if (MathMLConstants.MML_MATH.equals(root.getName())) {
+                result.add(fromElement(root));
+            } else {
+                for (Element e : root.getDescendants(Filters.element())) {
+                    if (MathMLConstants.MML_MATH.equals(e.getName())) {
+                        result.add(fromElement(e));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Input could not be parsed (probably it is not valid MathML)", e);
+        }
+        return result;
+    }
+
+    /**
+     * Creates structure of canonicalized formula.
+     *
+     * @param math Root element of the formula
+     * @return Structure of the formula
+     */
+    public static FormulaStructure fromElement(Element math) {
+        List<FormulaStructure> children = new ArrayList<>();
+        addChildren(math, children);
+        String name = math.getName();
+        String text = math.getTextTrim();
+        String label = children.isEmpty() && !text.isEmpty() ? name + ":" + text : name;
+        return new FormulaStructure(name, label, children);
+    }
+
+    private static void addChildren(Element parent, List<FormulaStructure> children) {
+        for (Element child : parent.getChildren()) {
+            String name = child.getName();
+            if (MathMLConf.ignoreNodeAndChildren(name)) {
+                continue;
+            }
+            if (MathMLConf.ignoreNode(name)) {
+                addChildren(child, children);
+            } else {
+                children.add(fromElement(child));
+            }
+        }
+    }
+
+    /**
+     * Decodes structure encoded by {@link #encode()}.
+     *
+     * @param encoded Encoded structure
+     * @return Decoded structure
+     * @throws IllegalArgumentException if the string is not valid encoding
+     */
+    public static FormulaStructure decode(String encoded) {
+        int[] pos = {0};
+        FormulaStructure result = decode(encoded, pos);
+        if (pos[0] != encoded.length()) {
+            throw new IllegalArgumentException("Trailing characters in encoded formula structure: " + encoded);
+        }
+        return result;
+    }
+
+    private static FormulaStructure decode(String s, int[] pos) {
+        StringBuilder label = new StringBuilder();
+        int i = pos[0];
+        while (i < s.length() && s.charAt(i) != '[') {
+            char c = s.charAt(i++);
+            if (c == '\\' && i < s.length()) {
+                c = s.charAt(i++);
+            }
+            label.append(c);
+        }
+        if (i >= s.length()) {
+            throw new IllegalArgumentException("Missing children of node in encoded formula structure: " + s);
+        }
+        i++;
+        List<FormulaStructure> children = new ArrayList<>();
+        while (i < s.length() && s.charAt(i) != ']') {
+            pos[0] = i;
+            children.add(decode(s, pos));
+            i = pos[0];
+        }
+        if (i >= s.length()) {
+            throw new IllegalArgumentException("Unterminated node in encoded formula structure: " + s);
+        }
+        pos[0] = i + 1;
+        String l = label.toString();
+        int colon = l.indexOf(':');
+        return new FormulaStructure(colon < 0 ? l : l.substring(0, colon), l, children);
+    }
+
+    /**
+     * Encodes the structure as string "label[children]" where characters [, ]
+     * and \ of the labels are escaped by \.
+     *
+     * @return Encoded structure
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        encode(sb);
+        return sb.toString();
+    }
+
+    private void encode(StringBuilder sb) {
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c == '[' || c == ']' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        sb.append('[');
+        for (FormulaStructure child : children) {
+            child.encode(sb);
+        }
+        sb.append(']');
+    }
+
+    /**
+     * @return Distinct hashed fingerprints of the formula, path fingerprints
+     * are prefixed by p, sibling fingerprints by s
+     */
+    public Set<String> getFingerprints() {
+        Set<String> result = new LinkedHashSet<>();
+        addFingerprints(new ArrayList<>(), result);
+        return result;
+    }
+
+    private void addFingerprints(List<String> ancestors, Set<String> result) {
+        if (children.isEmpty()) {
+            StringBuilder path = new StringBuilder(label);
+            for (int i = ancestors.size() - 1; i >= 0 && ancestors.size() - i < PATH_LENGTH; i--) {
+                path.append('/').append(ancestors.get(i));
+                result.add("p" + Long.toUnsignedString(hash(path), 36));
+            }
+            return;
+        }
+        for (int i = 0; i + 1 < children.size(); i++) {
+            String left = children.get(i).children.isEmpty() ? children.get(i).label : children.get(i).name;
+            String right = children.get(i + 1).children.isEmpty() ? children.get(i + 1).label : children.get(i + 1).name;
+            result.add("s" + Long.toUnsignedString(hash(name + "(" + left + "," + right + ")"), 36));
+        }
+        ancestors.add(name);
+        for (FormulaStructure child : children) {
+            child.addFingerprints(ancestors, result);
+        }
+        ancestors.remove(ancestors.size() - 1);
+    }
+
+    /**
+     * Computes similarity of two formula trees as Dice coefficient of their
+     * subtrees. Subtrees differing only in the texts of the leaves count with
+     * lower weight.
+     *
+     * @param other Structure to compare with
+     * @return Similarity from 0 (nothing in common) to 1 (equal trees)
+     */
+    public float similarity(FormulaStructure other) {
+        float exact = dice(getExactSubtrees(), other.getExactSubtrees());
+        float shape = dice(getShapeSubtrees(), other.getShapeSubtrees());
+        return (exact + SHAPE_COEF * shape) / (1 + SHAPE_COEF);
+    }
+
+    /**
+     * Computes fixed-length structural vector of the formula by hashing its
+     * subtrees and fingerprints into the given number of dimensions. Cosine
+     * similarity of the vectors approximates the similarity of the trees.
+     *
+     * @param dimensions Length of the vector
+     * @return Vector with unit length or zero vector for empty formula
+     */
+    public float[] getEmbedding(int dimensions) {
+        float[] result = new float[dimensions];
+        for (Map.Entry<Long, Integer> e : getExactSubtrees().entrySet()) {
+            addFeature(result, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<Long, Integer> e : getShapeSubtrees().entrySet()) {
+            addFeature(result, e.getKey(), SHAPE_COEF * e.getValue());
+        }
+        for (String fingerprint : getFingerprints()) {
+            addFeature(result, hash(fingerprint), 1);
+        }
+        double norm = 0;
+        for (float f : result) {
+            norm += f * f;
+        }
+        if (norm > 0) {
+            float n = (float) Math.sqrt(norm);
+            for (int i = 0; i < dimensions; i++) {
+                result[i] /= n;
+            }
+        }
+        return result;
+    }
+
+    private static void addFeature(float[] vector, long hash, float weight) {
+        int i = (int) Long.remainderUnsigned(hash, vector.length);
+        vector[i] += ((hash >>> 40) & 1) == 0 ? weight : -weight;
+    }
+
+    private synchronized Map<Long, Integer> getExactSubtrees() {
+        if (exactSubtrees == null) {
+            exactSubtrees = new HashMap<>();
+            subtreeHash(true, exactSubtrees);
+        }
+        return exactSubtrees;
+    }
+
+    private synchronized Map<Long, Integer> getShapeSubtrees() {
+        if (shapeSubtrees == null) {
+            shapeSubtrees = new HashMap<>();
+            subtreeHash(false, shapeSubtrees);
+        }
+        return shapeSubtrees;
+    }
+
+    private long subtreeHash(boolean exact, Map<Long, Integer> subtrees) {
+        long h = hash(exact ? label : name);
+        for (FormulaStructure child : children) {
+            h = (h ^ child.subtreeHash(exact, subtrees)) * FNV_PRIME;
+        }
+        h = (h ^ children.size()) * FNV_PRIME;
+        subtrees.merge(h, 1, Integer::sum);
+        return h;
+    }
+
+    private static float dice(Map<Long, Integer> a, Map<Long, Integer> b) {
+        int sizeA = 0;
+        int sizeB = 0;
+        int common = 0;
+        for (Map.Entry<Long, Integer> e : a.entrySet()) {
+            sizeA += e.getValue();
+            Integer other = b.get(e.getKey());
+            if (other != null) {
+                common += Math.min(e.getValue(), other);
+            }
+        }
+        for (Integer count : b.values()) {
+            sizeB += count;
+        }
+        return sizeA + sizeB == 0 ? 0 : 2f * common / (sizeA + sizeB);
+    }
+
+    private static long hash(CharSequence s) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    public List<FormulaStructure> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
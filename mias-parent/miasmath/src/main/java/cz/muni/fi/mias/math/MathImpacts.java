@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Impact-layered postings of M-terms.
+ *
+ * The impact of an M-term in a document is the part of its PayloadTermQuery
+ * score given by the document: tf of the span frequency, length norm of the
+ * field and average payload score. The impact is quantized to one of
+ * {@link #LEVELS} levels and the document is indexed in an impact field under
+ * the M-term followed by a character of the level. Level characters are
+ * control characters not allowed in XML, so they sort before any other
+ * continuation of the M-term and the terms of all levels of an M-term are
+ * adjacent in the term dictionary, from the highest level to the lowest. This
+ * lets the search read the documents of the highest impacts first and stop
+ * when no document of the remaining levels can make it into the best hits.
+ *
+ * Levels are half powers of two, the level of an impact is the highest level
+ * whose lower limit does not exceed it.
+ *
+ * @author Martin Liska
+ */
+public class MathImpacts {
+
+    /**
+     * Number of impact levels
+     */
+    public static final int LEVELS = 16;
+    /**
+     * Level of impact 1
+     */
+    private static final int LEVEL_OF_ONE = 10;
+    /**
+     * Character of the highest level, lower levels have the following
+     * characters
+     */
+    private static final char HIGHEST_LEVEL_CHAR = '\u000E';
+    /**
+     * Impact fields index documents only, the level is in the term
+     */
+    public static final FieldType IMPACT_FIELD_TYPE = new FieldType();
+
+    static {
+        IMPACT_FIELD_TYPE.setIndexed(true);
+        IMPACT_FIELD_TYPE.setTokenized(true);
+        IMPACT_FIELD_TYPE.setOmitNorms(true);
+        IMPACT_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_ONLY);
+        IMPACT_FIELD_TYPE.freeze();
+    }
+
+    private final List<String> terms = new ArrayList<>();
+    private final List<BytesRef> payloads = new ArrayList<>();
+    private final int[] increments;
+    private final Map<String, float[]> stats = new LinkedHashMap<>();
+    private final float norm;
+    private final TFIDFSimilarity similarity;
+
+    /**
+     * Consumes the whole token stream of a math field and computes the
+     * impacts of its M-terms.
+     *
+     * @param field Name of the math field
+     * @param tokens Token stream of the math field, it is closed afterwards
+     * @param similarity Similarity used for indexing and searching
+     * @throws IOException
+     */
+    public MathImpacts(String field, TokenStream tokens, TFIDFSimilarity similarity) throws IOException {
+        this.similarity = similarity;
+        CharTermAttribute termAtt = tokens.addAttribute(CharTermAttribute.class);
+        PayloadAttribute payAtt = tokens.addAttribute(PayloadAttribute.class);
+        PositionIncrementAttribute posAtt = tokens.addAttribute(PositionIncrementAttribute.class);
+        List<Integer> incs = new ArrayList<>();
+        int position = -1;
+        try {
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                String term = termAtt.toString();
+                BytesRef payload = payAtt.getPayload() == null ? null : BytesRef.deepCopyOf(payAtt.getPayload());
+                terms.add(term);
+                payloads.add(payload);
+                incs.add(posAtt.getPositionIncrement());
+                position += posAtt.getPositionIncrement();
+                float[] s = stats.computeIfAbsent(term, t -> new float[3]);
+                s[0]++;
+                if (payload != null) {
+                    s[1] += similarity.scorePayload(0, position, position + 1, payload);
+                    s[2]++;
+                }
+            }
+            tokens.end();
+        } finally {
+            tokens.close();
+        }
+        increments = new int[incs.size()];
+        int overlaps = 0;
+        for (int i = 0; i < increments.length; i++) {
+            increments[i] = incs.get(i);
+            if (increments[i] == 0) {
+                overlaps++;
+            }
+        }
+        FieldInvertState state = new FieldInvertState(field, position, terms.size(), overlaps, 0, 1.0F);
+        norm = similarity.decodeNormValue(similarity.computeNorm(state));
+    }
+
+    /**
+     * @param mathField Name of the math field
+     * @return Name of the impact field of the math field
+     */
+    public static String field(String mathField) {
+        return mathField + "impact";
+    }
+
+    /**
+     * @param level Impact level
+     * @param mterm Indexed M-term
+     * @return Term of the impact field
+     */
+    public static String term(int level, String mterm) {
+        return mterm + (char) (HIGHEST_LEVEL_CHAR + LEVELS - 1 - level);
+    }
+
+    /**
+     * @param mterm Indexed M-term
+     * @return Term of the impact field preceding the terms of all levels of
+     * the M-term
+     */
+    public static String firstTerm(String mterm) {
+        return mterm + HIGHEST_LEVEL_CHAR;
+    }
+
+    /**
+     * @param term Term of the impact field
+     * @param mterm Indexed M-term
+     * @return Level of the term if it is a term of the M-term, -1 otherwise
+     */
+    public static int levelOf(BytesRef term, BytesRef mterm) {
+        if (term.length != mterm.length + 1 || !StringHelper.startsWith(term, mterm)) {
+            return -1;
+        }
+        int c = term.bytes[term.offset + mterm.length] - HIGHEST_LEVEL_CHAR;
+        return c >= 0 && c < LEVELS ? LEVELS - 1 - c : -1;
+    }
+
+    /**
+     * @param impact Impact of an M-term in a document
+     * @return Level of the impact
+     */
+    public static int level(float impact) {
+        if (!(impact > 0)) {
+            return 0;
+        }
+        int level = (int) Math.floor(2 * Math.log(impact) / Math.log(2)) + LEVEL_OF_ONE;
+        return Math.max(0, Math.min(LEVELS - 1, level));
+    }
+
+    /**
+     * @param level Impact level
+     * @return Impact that no impact of the level exceeds, infinity for the
+     * highest level
+     */
+    public static float upperBound(int level) {
+        if (level >= LEVELS - 1) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return (float) Math.pow(2, (level + 1 - LEVEL_OF_ONE) / 2.0);
+    }
+
+    /**
+     * @return Token stream replaying the consumed math tokens
+     */
+    public TokenStream getMathTokens() {
+        return new ReplayTokenStream();
+    }
+
+    /**
+     * @return Token stream with the level prefixed M-terms for the impact
+     * field
+     */
+    public TokenStream getImpactTokens() {
+        return new ImpactTokenStream();
+    }
+
+    /**
+     * @return Impacts of the M-terms of the field
+     */
+    public Map<String, Float> getImpacts() {
+        Map<String, Float> result = new LinkedHashMap<>();
+        for (Map.Entry<String, float[]> e : stats.entrySet()) {
+            result.put(e.getKey(), impact(e.getValue()));
+        }
+        return result;
+    }
+
+    private float impact(float[] s) {
+        float tf = similarity.tf(s[0] * similarity.sloppyFreq(1));
+        float payload = s[2] > 0 ? s[1] / s[2] : 1.0F;
+        return tf * norm * payload;
+    }
+
+    private final class ReplayTokenStream extends TokenStream {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final PayloadAttribute payAtt = addAttribute(PayloadAttribute.class);
+        private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+        private int i;
+
+        @Override
+        public boolean incrementToken() {
+            clearAttributes();
+            if (i >= terms.size()) {
+                return false;
+            }
+            termAtt.setEmpty().append(terms.get(i));
+            payAtt.setPayload(payloads.get(i));
+            posAtt.setPositionIncrement(increments[i]);
+            i++;
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            i = 0;
+        }
+    }
+
+    private final class ImpactTokenStream extends TokenStream {
+
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private Iterator<Map.Entry<String, float[]>> it;
+
+        @Override
+        public boolean incrementToken() {
+            clearAttributes();
+            if (!it.hasNext()) {
+                return false;
+            }
+            Map.Entry<String, float[]> e = it.next();
+            termAtt.setEmpty().append(term(level(impact(e.getValue())), e.getKey()));
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            it = stats.entrySet().iterator();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Encoding of M-terms (string representations of formulae produced by
+ * {@link MathTokenizer}) in the pmath and cmath fields.
+ *
+ * The encoding of an index is recorded in the user data of its commits under
+ * {@link #USER_DATA_KEY}, indexes without the record use {@link #TEXT}. Queries
+ * have to be encoded by the encoding of the searched index.
+ *
+ * @author Martin Liska
+ */
+public enum MathTermEncoding {
+
+    /**
+     * M-term is indexed as it is
+     */
+    TEXT,
+    /**
+     * M-term is indexed as its 128 bit hash written in 22 characters of
+     * URL-safe Base64. Terms are short and of the same length regardless of
+     * the size of the formula.
+     */
+    HASH;
+
+    /**
+     * Key of the encoding in the commit user data of the index
+     */
+    public static final String USER_DATA_KEY = "mathTermEncoding";
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    /**
+     * @param mterm M-term
+     * @return Indexed term for the M-term
+     */
+    public String encode(String mterm) {
+        if (this == TEXT) {
+            return mterm;
+        }
+        byte[] hash = DIGEST.get().digest(mterm.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+    }
+
+    /**
+     * @param name Name of the encoding, case insensitive
+     * @return Encoding of the given name
+     * @throws IllegalArgumentException if there is no such encoding
+     */
+    public static MathTermEncoding forName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param userData Commit user data of an index
+     * @return Encoding recorded in the user data
+     */
+    public static MathTermEncoding fromUserData(Map<String, String> userData) {
+        String name = userData.get(USER_DATA_KEY);
+        return name == null ? TEXT : forName(name);
+    }
+
+    /**
+     * @param reader Reader of an index
+     * @return Encoding of M-terms in the index, {@link #TEXT} if the reader is
+     * not a directory reader
+     * @throws IOException
+     */
+    public static MathTermEncoding fromIndex(IndexReader reader) throws IOException {
+        if (reader instanceof DirectoryReader) {
+            return fromUserData(((DirectoryReader) reader).getIndexCommit().getUserData());
+        }
+        return TEXT;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.sinks.TeeSinkTokenFilter;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * Complexity tiers of M-terms.
+ *
+ * Short generic M-terms, such as a power of two identifiers, occur in almost
+ * every document and dominate the cost of the search. M-terms of formulae
+ * with at least a given number of nodes (see {@link CountNodesFormulaValuator})
+ * are therefore indexed also in a complex tier field, which lists only the
+ * documents containing selective M-terms. The search can look for the best
+ * hits among these documents first and consult the whole math field only when
+ * it does not find enough of them.
+ *
+ * @author Martin Liska
+ */
+public class MathTiers {
+
+    /**
+     * Complex tier fields index documents only, weights stay in the math field
+     */
+    public static final FieldType TIER_FIELD_TYPE = new FieldType();
+
+    static {
+        TIER_FIELD_TYPE.setIndexed(true);
+        TIER_FIELD_TYPE.setTokenized(true);
+        TIER_FIELD_TYPE.setOmitNorms(true);
+        TIER_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_ONLY);
+        TIER_FIELD_TYPE.freeze();
+    }
+
+    /**
+     * @param mathField Name of the math field
+     * @return Name of the complex tier field of the math field
+     */
+    public static String field(String mathField) {
+        return mathField + "complex";
+    }
+
+    /**
+     * Creates stream of the M-terms of the complex tier. The stream is filled
+     * while the tee is consumed, so it has to be consumed after the tee.
+     *
+     * @param tee Tee of the M-terms of a math field, it has to provide
+     * {@link FormulaComplexityAttribute}
+     * @param minNodes Minimal number of nodes of formulae in the complex tier
+     * @return Stream of the M-terms of the complex tier
+     */
+    public static TokenStream complexTokens(TeeSinkTokenFilter tee, final int minNodes) {
+        TokenStream sink = tee.newSinkTokenStream(new TeeSinkTokenFilter.SinkFilter() {
+            @Override
+            public boolean accept(AttributeSource source) {
+                return source.getAttribute(FormulaComplexityAttribute.class).getComplexity() >= minNodes;
+            }
+        });
+        return new TokenFilter(sink) {
+            private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+
+            @Override
+            public boolean incrementToken() throws IOException {
+                if (!input.incrementToken()) {
+                    return false;
+                }
+                // M-terms of subformulae share the position of their formula,
+                // which may be the first position of the tier
+                posAtt.setPositionIncrement(1);
+                return true;
+            }
+        };
+    }
+}
@@ -27,6 +27,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.commons.io.input.ReaderInputStream;
@@ -34,14 +38,14 @@ import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
-import org.apache.lucene.util.BytesRef;
-import org.jdom2.output.DOMOutputter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Text;
+import cz.muni.fi.mias.MIaSMathUtils;
+import cz.muni.fi.mir.mathmlcanonicalization.CanonicalizationCache;
 import cz.muni.fi.mir.mathmlcanonicalization.MathMLCanonicalizer;
 import cz.muni.fi.mir.mathmlunificator.MathMLUnificator;
 import cz.muni.fi.mir.mathmlunificator.config.Constants;
@@ -79,8 +83,8 @@ public class MathTokenizer extends Tokenizer {
     private static final AtomicLong producedF = new AtomicLong(0);
 
     // utilities
-    private final MathMLCanonicalizer canonicalizer = MathMLCanonicalizer.getDefaultCanonicalizer();
-    private final DOMOutputter outputter = new DOMOutputter();
+    private final MathMLCanonicalizer canonicalizer = MIaSMathUtils.getCanonicalizer();
+    private final SAXTransformerFactory transformerFactory = (SAXTransformerFactory) TransformerFactory.newInstance();
 
     // configuration
     /**
@@ -120,6 +124,8 @@ public class MathTokenizer extends Tokenizer {
     private final boolean reduceWeighting;
     private final MathMLType mmlType;
     private int formulaPosition = 1;
+    private MathTermEncoding termEncoding = MathTermEncoding.TEXT;
+    private CanonicalizationCache canonicalizationCache = null;
 
     // formulae filtering befor adding to the index
     private final boolean addTrivialFormulae = false;
@@ -134,6 +140,7 @@ public class MathTokenizer extends Tokenizer {
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final PayloadAttribute payAtt = addAttribute(PayloadAttribute.class);
     private final PositionIncrementAttribute posAtt = addAttribute(PositionIncrementAttribute.class);
+    private FormulaComplexityAttribute complexityAtt;
     private final Map<Integer, List<Formula>> formulae = new LinkedHashMap<>();
     private Iterator<List<Formula>> itMap = Collections.<List<Formula>>emptyList().iterator();
     private Iterator<Formula> itForms = Collections.<Formula>emptyList().iterator();
@@ -199,6 +206,26 @@ public class MathTokenizer extends Tokenizer {
         increment = formulaPosition;
     }
 
+    /**
+     * Sets the encoding of the produced M-terms, {@link MathTermEncoding#TEXT}
+     * by default.
+     *
+     * @param termEncoding Encoding of the M-terms
+     */
+    public void setTermEncoding(MathTermEncoding termEncoding) {
+        this.termEncoding = termEncoding;
+    }
+
+    /**
+     * Sets the cache of canonicalized formulae, the input is canonicalized
+     * only if the cache does not contain it. No cache is used by default.
+     *
+     * @param canonicalizationCache Cache shared by the tokenizers or null
+     */
+    public void setCanonicalizationCache(CanonicalizationCache canonicalizationCache) {
+        this.canonicalizationCache = canonicalizationCache;
+    }
+
     @Override
     // NB: TokenStream implementation classes or at least their incrementToken() implementation must be final
     public final boolean incrementToken() {
@@ -206,15 +233,17 @@ public class MathTokenizer extends Tokenizer {
         if (nextIt()) {
             Formula f = itForms.next();
             termAtt.setEmpty();
-            String nodeString = nodeToString(f.getNode(), false);
+            String nodeString = termEncoding.encode(nodeToString(f.getNode(), false));
             // Trim node string representation to fit Lucene index term max size
             if (nodeString.length() >= TOKEN_TRIM_LENGTH) {
                 LOG.warn("Node string representation too long ({} chars), cut to {} chars.",nodeString.length(),TOKEN_TRIM_LENGTH);
                 nodeString.substring(0, TOKEN_TRIM_LENGTH);
             }
             termAtt.append(nodeString);
-            byte[] payload = PayloadHelper.encodeFloatToShort(f.getWeight());
-            payAtt.setPayload(new BytesRef(payload));
+            if (complexityAtt != null) {
+                complexityAtt.setComplexity(formulaComplexityValuator.value(f.getNode(), mmlType));
+            }
+            payAtt.setPayload(PayloadCodec.encode(f.getWeight()));
             posAtt.setPositionIncrement(increment);
             increment = 0;
             return true;
@@ -240,6 +269,7 @@ public class MathTokenizer extends Tokenizer {
     @Override
     public void reset() throws IOException {
         super.reset();
+        complexityAtt = hasAttribute(FormulaComplexityAttribute.class) ? getAttribute(FormulaComplexityAttribute.class) : null;
 
         processFormulae(input);
     }
@@ -299,8 +329,16 @@ public class MathTokenizer extends Tokenizer {
         Document doc;
 
         try {
-            org.jdom2.Document jdom2Doc = canonicalizer.canonicalize(new ReaderInputStream(input, "UTF-8"));
-            doc = outputter.output(jdom2Doc);
+            // the canonicalized formulae are built in DOM directly
+            TransformerHandler handler = transformerFactory.newTransformerHandler();
+            DOMResult result = new DOMResult();
+            handler.setResult(result);
+            if (canonicalizationCache != null) {
+                canonicalizationCache.canonicalizeMath(canonicalizer, new ReaderInputStream(input, "UTF-8"), handler);
+            } else {
+                canonicalizer.canonicalizeMath(new ReaderInputStream(input, "UTF-8"), handler);
+            }
+            doc = (Document) result.getNode();
         } catch (Exception e) {
             LOG.warn("Input could not be parsed (probably it is not valid MathML)", e);
             doc = null;
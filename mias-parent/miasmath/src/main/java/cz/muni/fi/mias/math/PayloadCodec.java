@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.mias.math;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Codec of the weights of M-terms stored in two byte payloads.
+ *
+ * A weight w is stored as the short {@code round(log10(w) * 3276) + 32768}
+ * and the payload score is the short divided by 10000. Decoding reads the
+ * payload in place at its offset, which is cheaper than looking the score up
+ * in a table of all payloads. Encoding of weights from
+ * {@link #MIN_FAST_WEIGHT} to {@link #MAX_FAST_WEIGHT} takes an approximate
+ * logarithm from the exponent and a table of mantissas and corrects it by a
+ * table of the smallest weights of every step, so it gives the same payloads
+ * as the logarithm without computing it. Other weights are encoded by the
+ * logarithm.
+ *
+ * @author Martin Liska
+ */
+public final class PayloadCodec {
+
+    /**
+     * Length of the payload in bytes
+     */
+    public static final int LENGTH = 2;
+    /**
+     * Smallest weight encoded without the logarithm
+     */
+    public static final float MIN_FAST_WEIGHT = 1e-5F;
+    /**
+     * Largest weight encoded without the logarithm
+     */
+    public static final float MAX_FAST_WEIGHT = 1e5F;
+
+    private static final int STEPS_PER_DECADE = 3276;
+    private static final int MANTISSA_BITS = 12;
+    private static final double LOG10_2 = Math.log10(2);
+    private static final double[] LOG10_MANTISSAS = new double[1 << MANTISSA_BITS];
+    private static final int MIN_STEP = step(MIN_FAST_WEIGHT);
+    private static final int MAX_STEP = step(MAX_FAST_WEIGHT);
+    /**
+     * STEP_STARTS[i] is the smallest weight of step MIN_STEP + i
+     */
+    private static final float[] STEP_STARTS = new float[MAX_STEP - MIN_STEP + 2];
+
+    static {
+        for (int i = 0; i < LOG10_MANTISSAS.length; i++) {
+            LOG10_MANTISSAS[i] = Math.log10(1 + (double) i / LOG10_MANTISSAS.length);
+        }
+        for (int i = 0; i < STEP_STARTS.length; i++) {
+            STEP_STARTS[i] = stepStart(MIN_STEP + i);
+        }
+    }
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * @param bytes Array with the payload
+     * @param offset Offset of the payload in the array
+     * @return Payload score of the payload
+     */
+    public static float decode(byte[] bytes, int offset) {
+        return ((float) (short) (((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF))) / 10000;
+    }
+
+    /**
+     * @param payload Payload
+     * @return Payload score of the payload
+     */
+    public static float decode(BytesRef payload) {
+        return decode(payload.bytes, payload.offset);
+    }
+
+    /**
+     * @param weight Weight of an M-term
+     * @return Payload of the weight as short
+     */
+    public static short encodeShort(float weight) {
+        if (weight >= MIN_FAST_WEIGHT && weight <= MAX_FAST_WEIGHT) {
+            return (short) (fastStep(weight) + 32768);
+        }
+        return (short) (Math.round(Math.log10(weight) * STEPS_PER_DECADE) + 32768);
+    }
+
+    /**
+     * Writes payload of the weight to the array.
+     *
+     * @param weight Weight of an M-term
+     * @param bytes Array for the payload
+     * @param offset Offset of the payload in the array
+     */
+    public static void encode(float weight, byte[] bytes, int offset) {
+        short payload = encodeShort(weight);
+        bytes[offset] = (byte) (payload >> 8);
+        bytes[offset + 1] = (byte) payload;
+    }
+
+    /**
+     * @param weight Weight of an M-term
+     * @return New payload of the weight
+     */
+    public static BytesRef encode(float weight) {
+        byte[] bytes = new byte[LENGTH];
+        encode(weight, bytes, 0);
+        return new BytesRef(bytes);
+    }
+
+    private static int step(float weight) {
+        return (int) Math.round(Math.log10(weight) * STEPS_PER_DECADE);
+    }
+
+    private static int fastStep(float weight) {
+        int bits = Float.floatToRawIntBits(weight);
+        int exponent = (bits >>> 23) - 127;
+        double log10 = exponent * LOG10_2 + LOG10_MANTISSAS[(bits >>> (23 - MANTISSA_BITS)) & (LOG10_MANTISSAS.length - 1)];
+        int i = (int) Math.round(log10 * STEPS_PER_DECADE) - MIN_STEP;
+        i = Math.max(0, Math.min(STEP_STARTS.length - 2, i));
+        while (weight < STEP_STARTS[i]) {
+            i--;
+        }
+        while (weight >= STEP_STARTS[i + 1]) {
+            i++;
+        }
+        return MIN_STEP + i;
+    }
+
+    /**
+     * @return The smallest positive weight whose step is at least the given
+     * step
+     */
+    private static float stepStart(int step) {
+        float weight = (float) Math.pow(10, (step - 0.5) / STEPS_PER_DECADE);
+        while (weight > Float.MIN_VALUE && step(Math.nextDown(weight)) >= step) {
+            weight = Math.nextDown(weight);
+        }
+        while (step(weight) < step) {
+            weight = Math.nextUp(weight);
+        }
+        return weight;
+    }
+}
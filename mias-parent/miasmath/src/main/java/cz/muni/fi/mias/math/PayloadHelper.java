@@ -43,15 +43,14 @@ public class PayloadHelper extends org.apache.lucene.analysis.payloads.PayloadHe
      * Converts float number to byte array
      */
     public static byte[] encodeFloatToShort(float f) {
-        return encodeShort((short) (Math.round(Math.log10(f) * 3276) + 32768));
+        return encodeShort(PayloadCodec.encodeShort(f));
     }
 
     /**
      * Converts byte array to float number
      */
     public static float decodeFloatFromShortBytes(byte[] bytes) {
-        float result = (float) decodeShort(bytes);
-        return result / 10000;
+        return PayloadCodec.decode(bytes, 0);
     }
 
 }
@@ -0,0 +1,110 @@
+package cz.muni.fi.mias.math;
+
+import cz.muni.fi.mir.mathmlcanonicalization.CanonicalizationCache;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+public class FormulaStructureTest {
+
+    private static final String X_PLUS_ONE = "math[mrow[mi:x[]mo:+[]mn:1[]]]";
+    private static final String X_PLUS_TWO = "math[mrow[mi:x[]mo:+[]mn:2[]]]";
+    private static final String MATHML = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mrow>"
+            + "<msup><mi>x</mi><mn>2</mn></msup><mo>+</mo><mi>y</mi></mrow></math>";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void encodeAndDecode() {
+        FormulaStructure structure = FormulaStructure.decode(X_PLUS_ONE);
+        Assert.assertEquals(X_PLUS_ONE, structure.encode());
+        Assert.assertEquals("math", structure.getLabel());
+        Assert.assertEquals("mi:x", structure.getChildren().get(0).getChildren().get(0).getLabel());
+
+        // brackets and backslashes of the labels are escaped
+        String escaped = "math[mi:\\[[]mo:\\][]mi:\\\\[]]";
+        FormulaStructure special = FormulaStructure.decode(escaped);
+        Assert.assertEquals("mi:[", special.getChildren().get(0).getLabel());
+        Assert.assertEquals("mo:]", special.getChildren().get(1).getLabel());
+        Assert.assertEquals("mi:\\", special.getChildren().get(2).getLabel());
+        Assert.assertEquals(escaped, special.encode());
+        Assert.assertEquals(escaped, FormulaStructure.decode(special.encode()).encode());
+    }
+
+    @Test
+    public void parsedStructureSurvivesEncoding() {
+        List<FormulaStructure> structures = FormulaStructure.parse(new StringReader(MATHML));
+        Assert.assertEquals(1, structures.size());
+        FormulaStructure structure = structures.get(0);
+        FormulaStructure decoded = FormulaStructure.decode(structure.encode());
+        Assert.assertEquals(structure.encode(), decoded.encode());
+        Assert.assertEquals(structure.getFingerprints(), decoded.getFingerprints());
+        Assert.assertEquals(1.0F, structure.similarity(decoded), 0.0F);
+    }
+
+    @Test
+    public void parseThroughCache() throws Exception {
+        CanonicalizationCache cache = new CanonicalizationCache(folder.newFolder().toPath(), Long.MAX_VALUE);
+        String expected = FormulaStructure.parse(new StringReader(MATHML)).get(0).encode();
+        Assert.assertEquals(expected, FormulaStructure.parse(new StringReader(MATHML), cache).get(0).encode());
+        Assert.assertEquals(expected, FormulaStructure.parse(new StringReader(MATHML), cache).get(0).encode());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeTrailingCharacters() {
+        FormulaStructure.decode(X_PLUS_ONE + "]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeUnterminatedNode() {
+        FormulaStructure.decode("math[mrow[mi:x[]");
+    }
+
+    @Test
+    public void pathAndSiblingFingerprints() {
+        Set<String> fingerprints = FormulaStructure.decode(X_PLUS_ONE).getFingerprints();
+        // every leaf has paths through mrow and through mrow and math
+        Assert.assertEquals(6, count(fingerprints, 'p'));
+        // pairs x,+ and +,1 of mrow, math has a single child
+        Assert.assertEquals(2, count(fingerprints, 's'));
+
+        // the paths of x and + and the pair x,+ are shared
+        Set<String> common = new HashSet<>(fingerprints);
+        common.retainAll(FormulaStructure.decode(X_PLUS_TWO).getFingerprints());
+        Assert.assertEquals(4, count(common, 'p'));
+        Assert.assertEquals(1, count(common, 's'));
+
+        // fingerprints of paths are limited to PATH_LENGTH nodes
+        Set<String> deep = FormulaStructure.decode("math[mrow[mrow[mrow[mi:x[]]]]]").getFingerprints();
+        Assert.assertEquals(FormulaStructure.PATH_LENGTH - 1, count(deep, 'p'));
+    }
+
+    @Test
+    public void diceSimilarity() {
+        FormulaStructure xPlusOne = FormulaStructure.decode(X_PLUS_ONE);
+        FormulaStructure xPlusTwo = FormulaStructure.decode(X_PLUS_TWO);
+        Assert.assertEquals(1.0F, xPlusOne.similarity(FormulaStructure.decode(X_PLUS_ONE)), 0.0F);
+        // exact subtrees x and + of 5 give 0.4, all 5 shapes match
+        Assert.assertEquals((0.4F + 0.5F) / 1.5F, xPlusOne.similarity(xPlusTwo), 1e-6F);
+        Assert.assertEquals(xPlusOne.similarity(xPlusTwo), xPlusTwo.similarity(xPlusOne), 0.0F);
+        Assert.assertEquals(0.0F, FormulaStructure.decode("mi:x[]").similarity(FormulaStructure.decode("mn:1[]")), 0.0F);
+        float otherShape = xPlusOne.similarity(FormulaStructure.decode("math[msup[mi:x[]mn:1[]]]"));
+        Assert.assertTrue(otherShape > 0 && otherShape < xPlusOne.similarity(xPlusTwo));
+    }
+
+    private static int count(Set<String> fingerprints, char prefix) {
+        int result = 0;
+        for (String fingerprint : fingerprints) {
+            if (fingerprint.charAt(0) == prefix) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+package cz.muni.fi.mias.math;
+
+import java.util.Random;
+import org.apache.lucene.util.BytesRef;
+import org.junit.*;
+
+public class MathImpactsTest {
+
+    @Test
+    public void levelBoundaries() {
+        Assert.assertEquals(0, MathImpacts.level(0.0F));
+        Assert.assertEquals(0, MathImpacts.level(-1.0F));
+        Assert.assertEquals(0, MathImpacts.level(Float.NaN));
+        Assert.assertEquals(0, MathImpacts.level(Float.MIN_VALUE));
+        Assert.assertEquals(10, MathImpacts.level(1.0F));
+        Assert.assertEquals(9, MathImpacts.level(Math.nextDown(1.0F)));
+        Assert.assertEquals(MathImpacts.LEVELS - 1, MathImpacts.level(Float.MAX_VALUE));
+        Assert.assertEquals(Float.POSITIVE_INFINITY, MathImpacts.upperBound(MathImpacts.LEVELS - 1), 0.0F);
+        for (int level = 0; level < MathImpacts.LEVELS - 1; level++) {
+            float bound = MathImpacts.upperBound(level);
+            Assert.assertTrue(bound < MathImpacts.upperBound(level + 1));
+            // the bound of a level is the lower limit of the next one
+            Assert.assertEquals(level + 1, MathImpacts.level(Math.nextUp(bound)));
+            Assert.assertEquals(level, MathImpacts.level(Math.nextDown(Math.nextDown(bound))));
+        }
+    }
+
+    @Test
+    public void upperBoundHoldsForAllImpacts() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            float impact = (float) Math.pow(2, random.nextDouble() * 20 - 10);
+            int level = MathImpacts.level(impact);
+            Assert.assertTrue(impact <= MathImpacts.upperBound(level));
+            if (level > 0) {
+                Assert.assertTrue(impact >= MathImpacts.upperBound(level - 1) * 0.9999F);
+            }
+        }
+    }
+
+    @Test
+    public void termsOfLevels() {
+        BytesRef mterm = new BytesRef("m");
+        String previous = MathImpacts.firstTerm("m");
+        for (int level = MathImpacts.LEVELS - 1; level >= 0; level--) {
+            String term = MathImpacts.term(level, "m");
+            // higher levels come first, all before other continuations of the M-term
+            Assert.assertTrue(previous.compareTo(term) <= 0);
+            Assert.assertTrue(term.compareTo("m ") < 0);
+            Assert.assertEquals(level, MathImpacts.levelOf(new BytesRef(term), mterm));
+            Assert.assertEquals(-1, MathImpacts.levelOf(new BytesRef(term), new BytesRef("n")));
+            Assert.assertEquals(-1, MathImpacts.levelOf(new BytesRef(term + "x"), mterm));
+            previous = term;
+        }
+        Assert.assertEquals(-1, MathImpacts.levelOf(new BytesRef("mx"), mterm));
+        Assert.assertEquals(-1, MathImpacts.levelOf(new BytesRef("m\u0001"), mterm));
+        // terms are read at an offset of a shared array
+        byte[] bytes = ("xx" + MathImpacts.term(7, "m")).getBytes();
+        Assert.assertEquals(7, MathImpacts.levelOf(new BytesRef(bytes, 2, bytes.length - 2), mterm));
+    }
+}
@@ -0,0 +1,123 @@
+package cz.muni.fi.mias.math;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import java.util.Random;
+import org.apache.lucene.util.BytesRef;
+import org.junit.*;
+
+public class PayloadCodecTest {
+
+    private static final int BENCHMARK_ROUNDS = 200;
+
+    @Test
+    public void decodeAllPayloads() {
+        byte[] bytes = new byte[3];
+        for (int i = 0; i < 1 << 16; i++) {
+            short payload = (short) i;
+            float expected = ((float) payload) / 10000;
+            bytes[1] = (byte) (payload >> 8);
+            bytes[2] = (byte) payload;
+            Assert.assertEquals(expected, PayloadCodec.decode(bytes, 1), 0.0F);
+            Assert.assertEquals(expected, PayloadCodec.decode(new BytesRef(bytes, 1, 2)), 0.0F);
+        }
+    }
+
+    @Test
+    public void encodeStepBoundaries() {
+        for (int step = -20000; step <= 20000; step++) {
+            float boundary = (float) Math.pow(10, (step - 0.5) / 3276);
+            float weight = boundary;
+            for (int i = 0; i < 4; i++) {
+                weight = Math.nextDown(weight);
+            }
+            for (int i = 0; i < 8; i++) {
+                assertEncoded(weight);
+                weight = Math.nextUp(weight);
+            }
+        }
+    }
+
+    @Test
+    public void encodeRandomWeights() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            assertEncoded((float) Math.pow(10, random.nextDouble() * 14 - 7));
+            assertEncoded(random.nextFloat());
+        }
+        assertEncoded(PayloadCodec.MIN_FAST_WEIGHT);
+        assertEncoded(PayloadCodec.MAX_FAST_WEIGHT);
+        assertEncoded(1.0F);
+        assertEncoded(0.0F);
+        assertEncoded(Float.MAX_VALUE);
+    }
+
+    @Test
+    public void encodeAndDecode() {
+        BytesRef payload = PayloadCodec.encode(0.55F);
+        Assert.assertEquals(PayloadCodec.LENGTH, payload.length);
+        Assert.assertEquals(PayloadHelper.decodeFloatFromShortBytes(PayloadHelper.encodeFloatToShort(0.55F)), PayloadCodec.decode(payload), 0.0F);
+    }
+
+    @Test
+    public void scorePayloadsOfSharedArray() {
+        byte[] bytes = new byte[2 * PayloadCodec.LENGTH];
+        PayloadCodec.encode(0.55F, bytes, 0);
+        PayloadCodec.encode(0.3F, bytes, PayloadCodec.LENGTH);
+        PayloadSimilarity similarity = new PayloadSimilarity();
+        Assert.assertEquals(PayloadCodec.decode(bytes, 0), similarity.scorePayload(0, 0, 1, new BytesRef(bytes, 0, PayloadCodec.LENGTH)), 0.0F);
+        Assert.assertEquals(PayloadCodec.decode(bytes, PayloadCodec.LENGTH), similarity.scorePayload(0, 1, 2, new BytesRef(bytes, PayloadCodec.LENGTH, PayloadCodec.LENGTH)), 0.0F);
+    }
+
+    @Ignore
+    @Test
+    public void benchmark() {
+        Random random = new Random(42);
+        float[] weights = new float[1 << 16];
+        byte[] payloads = new byte[2 * weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) Math.pow(0.55, random.nextInt(10)) * (float) Math.pow(0.8, random.nextInt(3));
+            PayloadCodec.encode(weights[i], payloads, 2 * i);
+        }
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long start = System.nanoTime();
+            int sum = 0;
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                for (float weight : weights) {
+                    sum += (short) (Math.round(Math.log10(weight) * 3276) + 32768);
+                }
+            }
+            long logarithm = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                for (float weight : weights) {
+                    sum -= PayloadCodec.encodeShort(weight);
+                }
+            }
+            long table = System.nanoTime() - start;
+            System.out.println("encode: logarithm " + logarithm / 1000000 + " ms, table " + table / 1000000 + " ms (" + sum + ")");
+
+            float scores = 0;
+            start = System.nanoTime();
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                for (int i = 0; i < weights.length; i++) {
+                    byte[] copy = new byte[]{payloads[2 * i], payloads[2 * i + 1]};
+                    scores += ((float) PayloadHelper.decodeShort(copy)) / 10000;
+                }
+            }
+            long copying = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                for (int i = 0; i < weights.length; i++) {
+                    scores -= PayloadCodec.decode(payloads, 2 * i);
+                }
+            }
+            table = System.nanoTime() - start;
+            System.out.println("decode: copied payload " + copying / 1000000 + " ms, in place " + table / 1000000 + " ms (" + scores + ")");
+        }
+    }
+
+    private static void assertEncoded(float weight) {
+        short expected = (short) (Math.round(Math.log10(weight) * 3276) + 32768);
+        Assert.assertEquals("weight " + weight, expected, PayloadCodec.encodeShort(weight));
+    }
+}
@@ -16,11 +16,13 @@
 package cz.muni.fi.service.search;
 
 import cz.muni.fi.mias.math.MathSeparator;
+import cz.muni.fi.mias.math.MathTokenizer;
 import cz.muni.fi.mias.search.SearchResult;
 import cz.muni.fi.mias.search.Searching;
 import cz.muni.fi.webmias.IndexDef;
 import cz.muni.fi.webmias.Indexes;
 import cz.muni.fi.webmias.TeXConverter;
+import java.io.IOException;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -50,7 +52,7 @@ public class SearchResource {
             @QueryParam(value = "limit") int limit,
             @QueryParam(value = "index") int indexNo,
             @QueryParam(value = "extractSubformulae") boolean extractSubformulae,
-            @QueryParam(value = "reduceWeighting") boolean reduceWeighting) {
+            @QueryParam(value = "reduceWeighting") boolean reduceWeighting) throws IOException {
         if (limit > LIMIT || limit <= 0) {
             limit = LIMIT;
         }
@@ -61,10 +63,19 @@ public class SearchResource {
         }
         Results r = new Results();
 
-        IndexDef indexDef = Indexes.getIndexDef(indexNo);
-        IndexSearcher is = indexDef.getIndexSearcher();
-        Searching s = new Searching(is, indexDef.getStorage());
-        SearchResult result = s.search(convertedQuery, false, offset, limit, false, extractSubformulae, reduceWeighting);
+        SearchResult result;
+        if (indexNo == Indexes.ALL_INDEXES) {
+            result = Indexes.searchAll(convertedQuery, offset, limit, false, MathTokenizer.MathMLType.BOTH, extractSubformulae, reduceWeighting);
+        } else {
+            IndexDef indexDef = Indexes.getIndexDef(indexNo);
+            IndexSearcher is = indexDef.acquireSearcher();
+            try {
+                Searching s = new Searching(is, indexDef.getStorage(), Indexes.getSearchExecutor());
+                result = s.search(convertedQuery, false, offset, limit, false, extractSubformulae, reduceWeighting);
+            } finally {
+                indexDef.releaseSearcher(is);
+            }
+        }
         r.setTime(result.getTotalSearchTime());
         r.setTotalResults(result.getTotalResults());
         r.setItemsPerPage(limit);
@@ -81,7 +92,7 @@ public class SearchResource {
             @FormParam(value = "limit") int limit,
             @FormParam(value = "index") int indexNo,
             @QueryParam(value = "extractSubformulae") boolean extractSubformulae,
-            @QueryParam(value = "reduceWeighting") boolean reduceWeighting) {
+            @QueryParam(value = "reduceWeighting") boolean reduceWeighting) throws IOException {
         return search(query, offset, limit, indexNo, extractSubformulae, reduceWeighting);
     }
 }
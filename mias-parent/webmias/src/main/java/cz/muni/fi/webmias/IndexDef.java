@@ -15,21 +15,35 @@
  */
 package cz.muni.fi.webmias;
 
+import cz.muni.fi.mias.search.FormulaVectorIndex;
+import java.io.File;
+import java.io.IOException;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
 
 /**
+ * Definition of a searchable index. Searchers are provided by the
+ * SearcherManager which reopens the index when a new commit appears. Every
+ * acquired searcher has to be released, searchers of the old generation are
+ * closed once no search uses them. Formula vector index of the index
+ * directory is opened on first use and reopened when it is rebuilt.
+ *
  * @author Martin Liska
  */
 public class IndexDef {
 
     private String name;
     private String storage;
-    private IndexSearcher indexSearcher;
+    private final SearcherManager searcherManager;
+    private final File vectorIndexFile;
+    private FormulaVectorIndex vectorIndex;
+    private long vectorIndexModified;
 
-    public IndexDef(String name, String storage, IndexSearcher indexSearcher) {
+    public IndexDef(String name, String storage, SearcherManager searcherManager, File indexDir) {
         this.name = name;
         this.storage = storage;
-        this.indexSearcher = indexSearcher;
+        this.searcherManager = searcherManager;
+        this.vectorIndexFile = new File(indexDir, FormulaVectorIndex.FILE_NAME);
     }
 
     public String getName() {
@@ -48,12 +62,53 @@ public class IndexDef {
         this.storage = storage;
     }
 
-    public IndexSearcher getIndexSearcher() {
-        return indexSearcher;
+    /**
+     * Acquires the current searcher. It must be released by
+     * {@link #releaseSearcher(IndexSearcher)} when the search is finished.
+     *
+     * @return Current searcher of the index
+     * @throws IOException
+     */
+    public IndexSearcher acquireSearcher() throws IOException {
+        return searcherManager.acquire();
+    }
+
+    public void releaseSearcher(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    /**
+     * Reopens the index if there is a new commit. The new searcher is warmed
+     * before it replaces the current one.
+     *
+     * @throws IOException
+     */
+    public void maybeRefresh() throws IOException {
+        searcherManager.maybeRefresh();
     }
 
-    public void setIndexSearcher(IndexSearcher indexSearcher) {
-        this.indexSearcher = indexSearcher;
+    /**
+     * Provides the formula vector index built with VECTOR_INDEX. The index is
+     * reopened when its file has changed, the replaced index stays readable
+     * for searches still using it.
+     *
+     * @return Current formula vector index or null if the index has none
+     * @throws IOException
+     */
+    public synchronized FormulaVectorIndex getVectorIndex() throws IOException {
+        long modified = vectorIndexFile.lastModified();
+        if (modified == 0) {
+            return null;
+        }
+        if (vectorIndex == null || modified != vectorIndexModified) {
+            FormulaVectorIndex old = vectorIndex;
+            vectorIndex = FormulaVectorIndex.open(vectorIndexFile);
+            vectorIndexModified = modified;
+            if (old != null) {
+                old.close();
+            }
+        }
+        return vectorIndex;
     }
 
 }
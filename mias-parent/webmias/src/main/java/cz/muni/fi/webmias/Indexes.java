@@ -16,24 +16,48 @@
 package cz.muni.fi.webmias;
 
 import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathTokenizer;
+import cz.muni.fi.mias.search.FederatedSearching;
+import cz.muni.fi.mias.search.SearchResult;
+import cz.muni.fi.mias.search.Searching;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import org.apache.lucene.index.DirectoryReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.FSDirectory;
 
 /**
- * Class responsible for loading indexes from indexes.properties file
+ * Class responsible for loading indexes from indexes.properties file. Indexes
+ * are checked for new commits every REFRESH_SECONDS seconds, new searchers are
+ * warmed by up to WARMUP_QUERIES recent queries from WARMUP_QUERYLOG.
  *
  * @author Martin Liska
  */
 public class Indexes {
 
+    private static final Logger LOG = Logger.getLogger(Indexes.class.getName());
+
+    /**
+     * Index number selecting federated search over all indexes.
+     */
+    public static final int ALL_INDEXES = -1;
+
     private static final List<IndexDef> indexes = new ArrayList<>();
     private static final char dirSep = System.getProperty("file.separator").charAt(0);
+    private static ExecutorService searchExecutor;
+    private static ExecutorService indexExecutor;
+    private static ScheduledExecutorService refresher;
 
     static {
         try {
@@ -42,20 +66,36 @@ public class Indexes {
             String[] indexesNames = prop.getProperty("INDEX_NAMES").split(",");
             String[] indexesPaths = prop.getProperty("PATHS").split(",");
             String[] storageArray = prop.getProperty("STORAGES").split(",");
+            searchExecutor = createSearchExecutor(prop.getProperty("SEARCH_THREADS"));
+            String queryLogPath = prop.getProperty("WARMUP_QUERYLOG");
+            File queryLog = queryLogPath == null || queryLogPath.isEmpty() ? null : new File(queryLogPath);
+            int warmupQueries = Integer.parseInt(prop.getProperty("WARMUP_QUERIES", "20").trim());
+            Settings.init();
+            Settings.setMaxResults(prop.getProperty("MAXRESULTS"));
             for (int i = 0; i < indexesNames.length; i++) {
                 String name = indexesNames[i];
-                IndexSearcher is = new IndexSearcher(DirectoryReader.open(FSDirectory.open(new File(indexesPaths[i]))));
                 String storage = storageArray[i];
                 int sl = storage.length();
                 if (storage.charAt(sl - 1) != dirSep) {
                     storage = storage + dirSep;
                 }
+                File indexDir = new File(indexesPaths[i]);
+                SearcherManager searcherManager = new SearcherManager(FSDirectory.open(indexDir),
+                        new WarmingSearcherFactory(storage, searchExecutor, queryLog, warmupQueries));
 
-                IndexDef indexDef = new IndexDef(name, storage, is);
+                IndexDef indexDef = new IndexDef(name, storage, searcherManager, indexDir);
                 indexes.add(indexDef);
             }
-            Settings.init();
-            Settings.setMaxResults(prop.getProperty("MAXRESULTS"));
+            indexExecutor = createIndexExecutor(indexes.size());
+            long refreshSeconds = Long.parseLong(prop.getProperty("REFRESH_SECONDS", "60").trim());
+            if (refreshSeconds > 0) {
+                refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "mias-index-refresh");
+                    t.setDaemon(true);
+                    return t;
+                });
+                refresher.scheduleWithFixedDelay(Indexes::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -68,6 +108,92 @@ public class Indexes {
         return indexes.get(i);
     }
 
+    public static int getIndexCount() {
+        return indexes.size();
+    }
+
+    /**
+     * Reopens indexes having a new commit.
+     */
+    private static void refresh() {
+        for (IndexDef indexDef : indexes) {
+            try {
+                indexDef.maybeRefresh();
+            } catch (IOException | RuntimeException ex) {
+                LOG.log(Level.SEVERE, "Refreshing index " + indexDef.getName() + " failed", ex);
+            }
+        }
+    }
+
+    /**
+     * @return Executor shared by all index searchers for searching index
+     * segments in parallel
+     */
+    public static ExecutorService getSearchExecutor() {
+        return searchExecutor;
+    }
+
+    /**
+     * Creates bounded pool of daemon threads. When all threads are busy and
+     * the queue is full, the segment is searched by the requesting thread.
+     */
+    private static ExecutorService createSearchExecutor(String threadsProperty) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (threadsProperty != null && !threadsProperty.isEmpty()) {
+            threads = Integer.parseInt(threadsProperty.trim());
+        }
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16),
+                r -> {
+                    Thread t = new Thread(r, "mias-search");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Creates pool of daemon threads searching the indexes for searchAll, one
+     * thread per index. It is separate from the search executor, whose threads
+     * would otherwise wait for the segment tasks of their own index.
+     */
+    private static ExecutorService createIndexExecutor(int indexCount) {
+        int threads = Math.max(1, indexCount);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16),
+                r -> {
+                    Thread t = new Thread(r, "mias-index-search");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Searches all indexes at once and merges their results. Searchers of the
+     * indexes are acquired for the search and released afterwards.
+     */
+    public static SearchResult searchAll(String query, int offset, int limit, boolean debug, MathTokenizer.MathMLType variant, boolean extractSubformulae, boolean reduceWeighting) throws IOException {
+        int count = getIndexCount();
+        IndexSearcher[] searchers = new IndexSearcher[count];
+        try {
+            List<Searching> searchings = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                IndexDef indexDef = getIndexDef(i);
+                searchers[i] = indexDef.acquireSearcher();
+                searchings.add(new Searching(searchers[i], indexDef.getStorage(), searchExecutor));
+            }
+            FederatedSearching fs = new FederatedSearching(searchings, indexExecutor);
+            return fs.search(query, offset, limit, debug, variant, extractSubformulae, reduceWeighting);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                if (searchers[i] != null) {
+                    getIndexDef(i).releaseSearcher(searchers[i]);
+                }
+            }
+        }
+    }
+
     public static String[] getIndexNames() {
         String[] result = new String[indexes.size()];
         for (int i = 0; i < result.length; i++) {
@@ -20,8 +20,11 @@ import cz.muni.fi.mias.search.Searching;
 import cz.muni.fi.mias.math.MathSeparator;
 import cz.muni.fi.mias.math.MathTokenizer;
 import cz.muni.fi.mias.math.MathTokenizer.MathMLType;
+import cz.muni.fi.mias.search.FormulaVectorIndex;
 import cz.muni.fi.mias.search.Result;
 import cz.muni.fi.mias.search.SearchResult;
+import cz.muni.fi.mias.search.SimilarFormulaSearching;
+import cz.muni.fi.mias.search.StructuralSearching;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
@@ -48,9 +51,10 @@ public class ProcessServlet extends HttpServlet {
     private static final Logger LOG = Logger.getLogger(ProcessServlet.class.getName());
 
     private final int resPerPage = 20;
-    private Searching s;
     private File queryLog;
     private static final String QUERY_PARAMETER = "query";
+    private static final String STRUCTURE_VARIANT = "structure";
+    private static final String SIMILAR_VARIANT = "similar";
     private static final boolean forbidden = false;
 
     @Override
@@ -94,8 +98,6 @@ public class ProcessServlet extends HttpServlet {
         String variant = request.getParameter("variant");
         MathMLType mmlType = getType(variant);
 
-        IndexDef currentIndexDef = Indexes.getIndexDef(indexNumber);
-        IndexSearcher searcher = currentIndexDef.getIndexSearcher();
         request.setAttribute("index", indexNumber);
         request.setAttribute(QUERY_PARAMETER, query);
         request.setAttribute("debug", debug);
@@ -115,9 +117,30 @@ public class ProcessServlet extends HttpServlet {
                 query += " " + TeXConverter.convertTexLatexML(sep[0]);
             }
 
-            s = new Searching(searcher, currentIndexDef.getStorage());
             page = page == 0 ? page : page - 1;
-            SearchResult searchResult = s.search(query, false, page * resPerPage, resPerPage, debug, mmlType, extractSubformulae, reduceWeighting);
+            SearchResult searchResult;
+            if (indexNumber == Indexes.ALL_INDEXES) {
+                searchResult = Indexes.searchAll(query, page * resPerPage, resPerPage, debug, mmlType, extractSubformulae, reduceWeighting);
+            } else {
+                IndexDef currentIndexDef = Indexes.getIndexDef(indexNumber);
+                IndexSearcher searcher = currentIndexDef.acquireSearcher();
+                try {
+                    Searching s = new Searching(searcher, currentIndexDef.getStorage(), Indexes.getSearchExecutor());
+                    FormulaVectorIndex vectorIndex = SIMILAR_VARIANT.equals(variant) ? currentIndexDef.getVectorIndex() : null;
+                    if (SIMILAR_VARIANT.equals(variant) && vectorIndex == null) {
+                        LOG.log(Level.WARNING, "Index {0} has no formula vector index, using structural search", currentIndexDef.getName());
+                    }
+                    if (vectorIndex != null) {
+                        searchResult = new SimilarFormulaSearching(s, vectorIndex).search(query, page * resPerPage, resPerPage, debug);
+                    } else if (STRUCTURE_VARIANT.equals(variant) || SIMILAR_VARIANT.equals(variant)) {
+                        searchResult = new StructuralSearching(s).search(query, page * resPerPage, resPerPage, debug);
+                    } else {
+                        searchResult = s.search(query, false, page * resPerPage, resPerPage, debug, mmlType, extractSubformulae, reduceWeighting);
+                    }
+                } finally {
+                    currentIndexDef.releaseSearcher(searcher);
+                }
+            }
             int totalResults = searchResult.getTotalResults();
             request.setAttribute("processedQuery", searchResult.getProcessedQuery());
             request.setAttribute("luceneQuery", searchResult.getLuceneQuery());
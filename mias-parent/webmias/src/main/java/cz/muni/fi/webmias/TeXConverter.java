@@ -70,7 +70,7 @@ public class TeXConverter {
      */
     public static String convertTexLatexML(String query) {
         query = query.replaceAll("\\$\\$", "\\$");
-        if (query.matches(".*\\$.+\\$.*")) {
+        if (containsTeX(query)) {
             try {
                 HttpClient httpclient = HttpClients.createDefault();
                 HttpPost httppost = new HttpPost(LATEX_TO_XHTML_CONVERSION_WS_URL);
@@ -120,6 +120,17 @@ public class TeXConverter {
         return query;
     }
 
+    /**
+     * Finds out if the query contains TeX formulae, which are converted by
+     * {@link #convertTexLatexML(java.lang.String)} through the web service.
+     *
+     * @param query String containing keywords and TeX formulae
+     * @return true if there is a formula enclosed in $ or $$
+     */
+    public static boolean containsTeX(String query) {
+        return query.replaceAll("\\$\\$", "\\$").matches(".*\\$.+\\$.*");
+    }
+
     /**
      * Converts TeX formula to MathML using SnuggleTeX library.
      *
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 MIR@MU Project.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.muni.fi.webmias;
+
+import cz.muni.fi.mias.math.MathSeparator;
+import cz.muni.fi.mias.search.Searching;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+
+/**
+ * Creates searchers for the SearcherManager of an index. Every new searcher
+ * is warmed by replaying the most recent queries from the query log written
+ * by ProcessServlet before it is used for searching. Only the end of the log
+ * is read. Queries with TeX formulae are not replayed as their conversion
+ * calls the remote LaTeXML service, which would block the startup of the
+ * application.
+ *
+ * @author Martin Liska
+ */
+public class WarmingSearcherFactory extends SearcherFactory {
+
+    private static final Logger LOG = Logger.getLogger(WarmingSearcherFactory.class.getName());
+    private static final String QUERY_LOG_PREFIX = "Searching query from IP:";
+    private static final int QUERY_LOG_BLOCK = 64 * 1024;
+
+    private final String storage;
+    private final ExecutorService executor;
+    private final File queryLog;
+    private final int warmupQueries;
+
+    /**
+     * @param storage Root path of the documents of the index
+     * @param executor Executor for searching segments in parallel, may be null
+     * @param queryLog Query log to take warmup queries from, may be null
+     * @param warmupQueries Maximal number of replayed queries
+     */
+    public WarmingSearcherFactory(String storage, ExecutorService executor, File queryLog, int warmupQueries) {
+        this.storage = storage;
+        this.executor = executor;
+        this.queryLog = queryLog;
+        this.warmupQueries = warmupQueries;
+    }
+
+    @Override
+    public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader, executor);
+        List<String> queries = readRecentQueries();
+        if (!queries.isEmpty()) {
+            long start = System.currentTimeMillis();
+            Searching s = new Searching(searcher, storage, executor);
+            s.setSnippetsEnabledLimit(0);
+            int replayed = 0;
+            for (String query : queries) {
+                String[] sep = MathSeparator.separate(query, "");
+                if (sep[0] != null && TeXConverter.containsTeX(sep[0])) {
+                    continue;
+                }
+                String processed = sep[0] == null || sep[0].isEmpty() ? sep[1] : sep[1] + " " + sep[0];
+                try {
+                    s.search(processed, false, 0, 20, false);
+                    replayed++;
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Warmup query failed: " + query, ex);
+                }
+            }
+            LOG.log(Level.INFO, "Searcher warmed with {0} queries in {1} ms",
+                    new Object[]{replayed, System.currentTimeMillis() - start});
+        }
+        return searcher;
+    }
+
+    /**
+     * Reads the distinct queries of the last query log entries, the most
+     * recent first. The log is read backwards by blocks until there are enough
+     * entries, so the time does not grow with the size of the log.
+     */
+    private List<String> readRecentQueries() {
+        List<String> result = new ArrayList<>();
+        if (queryLog == null || warmupQueries <= 0 || !queryLog.isFile()) {
+            return result;
+        }
+        LinkedList<String> recent = new LinkedList<>();
+        try (RandomAccessFile file = new RandomAccessFile(queryLog, "r")) {
+            long start = file.length();
+            byte[] tail = new byte[0];
+            while (start > 0 && recent.size() < 4 * warmupQueries) {
+                int block = (int) Math.min(QUERY_LOG_BLOCK, start);
+                start -= block;
+                byte[] read = new byte[block + tail.length];
+                file.seek(start);
+                file.readFully(read, 0, block);
+                System.arraycopy(tail, 0, read, block, tail.length);
+                tail = read;
+                recent = parseQueries(tail, start == 0);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Cannot read query log " + queryLog.getAbsolutePath(), ex);
+        }
+        LinkedHashSet<String> distinct = new LinkedHashSet<>();
+        while (!recent.isEmpty() && distinct.size() < warmupQueries) {
+            distinct.add(recent.removeLast());
+        }
+        result.addAll(distinct);
+        return result;
+    }
+
+    /**
+     * Parses the queries of the log entries in the end of the query log.
+     *
+     * @param tail End of the query log
+     * @param whole Whether the tail is the whole log, otherwise its first line
+     * may be incomplete and it is skipped
+     */
+    private LinkedList<String> parseQueries(byte[] tail, boolean whole) throws IOException {
+        LinkedList<String> recent = new LinkedList<>();
+        int offset = 0;
+        if (!whole) {
+            while (offset < tail.length && tail[offset] != '\n') {
+                offset++;
+            }
+            offset++;
+        }
+        if (offset >= tail.length) {
+            return recent;
+        }
+        BufferedReader br = new BufferedReader(new StringReader(new String(tail, offset, tail.length - offset, StandardCharsets.UTF_8)));
+        StringBuilder query = null;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.startsWith(QUERY_LOG_PREFIX)) {
+                query = new StringBuilder();
+            } else if (query != null) {
+                if (line.isEmpty()) {
+                    addRecent(recent, query.toString());
+                    query = null;
+                } else {
+                    query.append(query.length() > 0 ? "\n" : "").append(line);
+                }
+            }
+        }
+        if (query != null) {
+            addRecent(recent, query.toString());
+        }
+        return recent;
+    }
+
+    private void addRecent(LinkedList<String> recent, String query) {
+        if (query.trim().isEmpty()) {
+            return;
+        }
+        recent.add(query);
+        if (recent.size() > 4 * warmupQueries) {
+            recent.removeFirst();
+        }
+    }
+}
@@ -63,6 +63,8 @@ import="cz.muni.fi.webmias.Indexes"
                                 <option value="pcmath" <c:if test="${variant=='pcmath'}">selected="selected"</c:if>>presentation and content</option>
                                 <option value="pmath" <c:if test="${variant=='pmath'}">selected="selected"</c:if>>presentation</option>
                                 <option value="cmath" <c:if test="${variant=='cmath'}">selected="selected"</c:if>>content</option>
+                                <option value="structure" <c:if test="${variant=='structure'}">selected="selected"</c:if>>formula structure</option>
+                                <option value="similar" <c:if test="${variant=='similar'}">selected="selected"</c:if>>similar formulae</option>
                                 </select>
                             </div>
                             <div class="search-option">
@@ -71,6 +73,7 @@ import="cz.muni.fi.webmias.Indexes"
                                     <c:forEach items="<%= Indexes.getIndexNames() %>" var="indexDef" varStatus="status">
                                         <option value="${status.index}" <c:if test="${index==status.index}">selected="selected"</c:if>>${indexDef}</option>
                                     </c:forEach>
+                                    <option value="-1" <c:if test="${index==-1}">selected="selected"</c:if>>All indexes</option>
                                 </select>
                             </div>
                             <div class="search-option">
@@ -147,7 +150,7 @@ import="cz.muni.fi.webmias.Indexes"
                                         </a>
                                     </c:if>
                                 </span> -
-                                <a class="cached-file" target="_blank" data-url="${res.id}" data-href="<c:if test="${forbidden}">forbidden.jsp</c:if><c:if test="${!forbidden}">cached?index=${index}&amp;path=${res.id}</c:if>">cached XHTML</a>
+                                <a class="cached-file" target="_blank" data-url="${res.id}" data-href="<c:if test="${forbidden}">forbidden.jsp</c:if><c:if test="${!forbidden}">cached?index=${res.index != null ? res.index : index}&amp;path=${res.id}</c:if>">cached XHTML</a>
                                 </div>
                         </c:forEach>
                         <div class="nolinkhighlighting">